@@ -29,6 +29,7 @@ import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -51,9 +52,11 @@ import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.UpgradeAnswer;
 import com.cloud.agent.api.UpgradeCommand;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentControlChannelException;
 import com.cloud.resource.ServerResource;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.backoff.BackoffAlgorithm;
 import com.cloud.utils.concurrency.NamedThreadFactory;
@@ -72,6 +75,7 @@ import com.cloud.utils.script.Script;
  *         || Param Name | Description | Values | Default ||
  *         || type | Type of server | Storage / Computing / Routing | No Default ||
  *         || workers | # of workers to process the requests | int | 1 ||
+ *         || command.workers | # of commands that can run at the same time | int | 10 ||
  *         || host | host to connect to | ip address | localhost ||
  *         || port | port to connect to | port number | 8250 ||
  *         || instance | Used to allow multiple agents running on the same host | String | none || * }
@@ -117,8 +121,11 @@ public class Agent implements HandlerFactory, IAgentControl {
 
     StartupTask                 _startup              = null;
     boolean                     _reconnectAllowed     = true;
+    // Set once the management server tells us it can parse binary requests
+    volatile boolean            _serverAcceptsBinary  = false;
     //For time sentitive task, e.g. PingTask
     private ThreadPoolExecutor     _ugentTaskPool;
+    CommandScheduler            _scheduler;
 
     // for simulator use only
     public Agent(IAgentShell shell) {
@@ -132,6 +139,7 @@ public class Agent implements HandlerFactory, IAgentControl {
         _ugentTaskPool = new ThreadPoolExecutor(shell.getPingRetries(), 2 * shell.getPingRetries(), 10, TimeUnit.MINUTES, 
                                                 new SynchronousQueue<Runnable>(), new NamedThreadFactory("UgentTask")
                                                 );
+        _scheduler = new CommandScheduler(NumbersUtil.parseInt(shell.getProperties().getProperty("command.workers"), 10));
     }
 
     public Agent(IAgentShell shell, int localAgentId, ServerResource resource) throws ConfigurationException {
@@ -166,6 +174,7 @@ public class Agent implements HandlerFactory, IAgentControl {
         _ugentTaskPool = new ThreadPoolExecutor(shell.getPingRetries(), 2 * shell.getPingRetries(), 10, TimeUnit.MINUTES, 
                                                 new SynchronousQueue<Runnable>(), new NamedThreadFactory("UgentTask")
                                                 );
+        _scheduler = new CommandScheduler(NumbersUtil.parseInt(shell.getProperties().getProperty("command.workers"), 10));
         
         s_logger.info("Agent [id = " + (_id != null ? _id : "new") + " : type = " + getResourceName() + " : zone = " + _shell.getZone() + " : pod = " + _shell.getPod() + " : workers = "
                 + _shell.getWorkers() + " : host = " + _shell.getHost() + " : port = " + _shell.getPort());
@@ -263,6 +272,7 @@ public class Agent implements HandlerFactory, IAgentControl {
         }
         
         _ugentTaskPool.shutdownNow();
+        _scheduler.shutdown();
     }
 
     public Long getId() {
@@ -309,6 +319,8 @@ public class Agent implements HandlerFactory, IAgentControl {
         final Request request = new Request(_id != null ? _id : -1, -1, commands, false, false);
         request.setSequence(getNextSequence());
 
+        // Until the management server we just connected to says otherwise, talk json.
+        _serverAcceptsBinary = false;
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Sending Startup: " + request.toString());
         }
@@ -379,7 +391,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
             s_logger.info("Lost connection to the server. Dealing with the remaining commands...");
 
-            inProgress = _inProgress.get();
+            inProgress = _inProgress.get() + _scheduler.getPendingCount();
             if (inProgress > 0) {
                 s_logger.info("Cannot connect because we still have " + inProgress + " commands in progress.");
             }
@@ -439,6 +451,19 @@ public class Agent implements HandlerFactory, IAgentControl {
     }
 
     protected void processRequest(final Request request, final Link link) {
+        try {
+            _scheduler.submit(request.getCommands(), request.executeInSequence(), new Runnable() {
+                @Override
+                public void run() {
+                    executeRequest(request, link);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            s_logger.warn("Unable to schedule " + request.toString() + " because the agent is stopping");
+        }
+    }
+
+    protected void executeRequest(final Request request, final Link link) {
         boolean requestLogged = false;
         Response response = null;
         try {
@@ -494,12 +519,9 @@ public class Agent implements HandlerFactory, IAgentControl {
                         }
 
                     } else {
-                        _inProgress.incrementAndGet();
-                        try {
-                            answer = _resource.executeRequest(cmd);
-                        } finally {
-                            _inProgress.decrementAndGet();
-                        }
+                        final long start = System.currentTimeMillis();
+                        answer = _resource.executeRequest(cmd);
+                        _scheduler.record(cmd, System.currentTimeMillis() - start);
                         if (answer == null) {
                             s_logger.debug("Response: unsupported command" + cmd.toString());
                             answer = Answer.createUnsupportedCommandAnswer(cmd);
@@ -566,8 +588,12 @@ public class Agent implements HandlerFactory, IAgentControl {
             }
 
             final PingCommand ping = _resource.getCurrentStatus(getId());
+            if (ping != null) {
+                ping.setCommandLatencies(_scheduler.getUpdatedLatencies());
+            }
             final Request request = new Request(_id, -1, ping, false);
             request.setSequence(getNextSequence());
+            setWireVersion(request);
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending ping: " + request.toString());
             }
@@ -676,7 +702,14 @@ public class Agent implements HandlerFactory, IAgentControl {
         postRequest(request);
     }
 
+    protected void setWireVersion(Request request) {
+        if (_serverAcceptsBinary) {
+            request.setVersion(Version.v4);
+        }
+    }
+
     private void postRequest(Request request) throws AgentControlChannelException {
+        setWireVersion(request);
         if (_link != null) {
             try {
                 _link.send(request.toBytes());
@@ -812,6 +845,7 @@ public class Agent implements HandlerFactory, IAgentControl {
                 Request request;
                 try {
                     request = Request.parse(task.getData());
+                    _serverAcceptsBinary = request.acceptsBinary();
                     if (request instanceof Response) {
                         processResponse((Response) request, task.getLink());
                     } else {
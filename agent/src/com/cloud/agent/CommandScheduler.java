@@ -0,0 +1,275 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.agent;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.StartCommand;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.utils.LatencyHistogram;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * CommandScheduler runs requests from the management server on a pool of
+ * threads.  Each request is keyed by the vms, volumes and routers its
+ * commands touch; requests sharing a key run one at a time in the order they
+ * were submitted while everything else runs side by side.  Requests that
+ * have to execute in sequence share one more key so they stay in order
+ * among themselves.
+ *
+ * It also keeps how long each type of command took so the agent can send it
+ * along with its pings.
+ */
+public class CommandScheduler {
+    private static final Logger s_logger = Logger.getLogger(CommandScheduler.class);
+
+    public static final String SEQUENTIAL_KEY = "sequential";
+    public static final String QUEUED = "(queued)";
+
+    private static final Method[] s_noMethods = new Method[0];
+    private static final String[][] s_keyGetters = { { "getVmName", "vm:" }, { "getVolumePath", "volume:" } };
+    private static final ConcurrentHashMap<Class<?>, Method[]> s_getters = new ConcurrentHashMap<Class<?>, Method[]>();
+
+    protected class Job implements Runnable {
+        final Set<String> _keys;
+        final Runnable _work;
+        final long _submitted = System.currentTimeMillis();
+        boolean _started;
+
+        Job(Set<String> keys, Runnable work) {
+            _keys = keys;
+            _work = work;
+        }
+
+        @Override
+        public void run() {
+            _queueWait.record(System.currentTimeMillis() - _submitted);
+            try {
+                _work.run();
+            } catch (Throwable th) {
+                s_logger.warn("Caught: ", th);
+            } finally {
+                done(this);
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor _executor;
+    private final Map<String, LinkedList<Job>> _lanes = new HashMap<String, LinkedList<Job>>();
+    private final ConcurrentHashMap<String, LatencyHistogram> _latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentHashMap<String, Boolean> _updated = new ConcurrentHashMap<String, Boolean>();
+    private final LatencyHistogram _queueWait = new LatencyHistogram();
+    private int _pending;
+
+    public CommandScheduler(int threads) {
+        _executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("AgentCommand"));
+    }
+
+    /**
+     * @return the keys commands touching the same thing share: "vm:" plus the vm name, "volume:" plus its path or
+     *         "router:" plus the router name for network element commands.  Commands that don't say what they work on have none.
+     */
+    public static Set<String> getKeys(Command cmd) {
+        Set<String> keys = new LinkedHashSet<String>();
+        if (cmd instanceof NetworkElementCommand) {
+            // the vm name on these is the user vm the router is serving
+            NetworkElementCommand nec = (NetworkElementCommand)cmd;
+            String router = nec.getAccessDetail(NetworkElementCommand.ROUTER_NAME);
+            if (router == null) {
+                router = nec.getAccessDetail(NetworkElementCommand.ROUTER_IP);
+            }
+            if (router != null) {
+                keys.add("router:" + router);
+            }
+            return keys;
+        }
+
+        if (cmd instanceof StartCommand) {
+            // also covers PrepareForMigrationCommand
+            keys.add("vm:" + ((StartCommand)cmd).getVirtualMachine().getName());
+        }
+
+        Method[] getters = getGetters(cmd.getClass());
+        for (int i = 0; i < getters.length; i++) {
+            if (getters[i] == null) {
+                continue;
+            }
+            try {
+                Object value = getters[i].invoke(cmd);
+                if (value != null) {
+                    keys.add(s_keyGetters[i][1] + value);
+                }
+            } catch (Exception e) {
+                s_logger.debug("Unable to get " + getters[i].getName() + " from " + cmd.getClass().getSimpleName() + ": " + e.toString());
+            }
+        }
+        return keys;
+    }
+
+    private static Method[] getGetters(Class<?> clazz) {
+        Method[] getters = s_getters.get(clazz);
+        if (getters != null) {
+            return getters;
+        }
+
+        getters = new Method[s_keyGetters.length];
+        boolean found = false;
+        for (int i = 0; i < s_keyGetters.length; i++) {
+            try {
+                Method method = clazz.getMethod(s_keyGetters[i][0]);
+                if (method.getReturnType() == String.class) {
+                    getters[i] = method;
+                    found = true;
+                }
+            } catch (NoSuchMethodException e) {
+            }
+        }
+        if (!found) {
+            getters = s_noMethods;
+        }
+        s_getters.put(clazz, getters);
+        return getters;
+    }
+
+    /**
+     * Runs work once every request submitted before it with any of the same keys is done.
+     */
+    public void submit(Set<String> keys, Runnable work) {
+        Job job = new Job(keys, work);
+        synchronized (_lanes) {
+            _pending++;
+            for (String key : keys) {
+                LinkedList<Job> lane = _lanes.get(key);
+                if (lane == null) {
+                    lane = new LinkedList<Job>();
+                    _lanes.put(key, lane);
+                }
+                lane.add(job);
+            }
+            startIfReady(job);
+        }
+    }
+
+    public void submit(Command[] cmds, boolean inSequence, Runnable work) {
+        Set<String> keys = new LinkedHashSet<String>();
+        if (inSequence) {
+            keys.add(SEQUENTIAL_KEY);
+        }
+        for (Command cmd : cmds) {
+            keys.addAll(getKeys(cmd));
+        }
+        submit(keys, work);
+    }
+
+    // Jobs are appended to all their lanes at once, so the oldest job waiting is always first in every one of its lanes.
+    private void startIfReady(Job job) {
+        if (job._started) {
+            return;
+        }
+        for (String key : job._keys) {
+            if (_lanes.get(key).getFirst() != job) {
+                return;
+            }
+        }
+        job._started = true;
+        _executor.execute(job);
+    }
+
+    private void done(Job job) {
+        synchronized (_lanes) {
+            _pending--;
+            List<Job> next = new ArrayList<Job>(job._keys.size());
+            for (String key : job._keys) {
+                LinkedList<Job> lane = _lanes.get(key);
+                lane.removeFirst();
+                if (lane.isEmpty()) {
+                    _lanes.remove(key);
+                } else {
+                    next.add(lane.getFirst());
+                }
+            }
+            for (Job waiting : next) {
+                startIfReady(waiting);
+            }
+        }
+    }
+
+    /**
+     * @return requests submitted that haven't finished yet, running or not.
+     */
+    public int getPendingCount() {
+        synchronized (_lanes) {
+            return _pending;
+        }
+    }
+
+    public void record(Command cmd, long millis) {
+        String name = cmd.getClass().getSimpleName();
+        LatencyHistogram histogram = _latencies.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = _latencies.putIfAbsent(name, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(millis);
+        _updated.put(name, Boolean.TRUE);
+    }
+
+    public LatencyHistogram getLatency(String command) {
+        return _latencies.get(command);
+    }
+
+    /**
+     * @return the latency of each type of command that ran since the last call, plus how long requests waited for
+     *         their turn, or null if nothing ran.
+     */
+    public Map<String, String> getUpdatedLatencies() {
+        if (_updated.isEmpty()) {
+            return null;
+        }
+
+        Map<String, String> latencies = new LinkedHashMap<String, String>();
+        for (String name : _updated.keySet()) {
+            _updated.remove(name);
+            latencies.put(name, _latencies.get(name).toString());
+        }
+        latencies.put(QUEUED, _queueWait.toString());
+        return latencies;
+    }
+
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+}
@@ -53,6 +53,7 @@ import javax.naming.ConfigurationException;
 import org.apache.log4j.Logger;
 import org.libvirt.Connect;
 import org.libvirt.Domain;
+import org.libvirt.DomainBlockStats;
 import org.libvirt.DomainInfo;
 import org.libvirt.DomainInterfaceStats;
 import org.libvirt.DomainSnapshot;
@@ -295,10 +296,13 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 	protected String _pool;
 	protected String _localGateway;
 	private boolean _can_bridge_firewall;
+	private boolean _can_program_ipsets;
 	protected String _localStoragePath;
 	protected String _localStorageUUID;
 	private Pair<String, String> _pifs;
 	private final Map<String, vmStats> _vmStats = new ConcurrentHashMap<String, vmStats>();
+	private final Map<String, DomainMetadata> _domainMetadata = new ConcurrentHashMap<String, DomainMetadata>();
+	private volatile int _nodeCpus = 0;
 	
 	
 	protected boolean _disconnected = true;
@@ -672,6 +676,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 		
 		
 		_can_bridge_firewall = can_bridge_firewall(_pifs.second());
+		_can_program_ipsets = _can_bridge_firewall && can_program_ipsets();
 		
 		_localGateway = Script.runSimpleBashScript("ip route |grep default|awk '{print $3}'");
 		if (_localGateway == null) {
@@ -1627,18 +1632,26 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
             return new SecurityIngressRuleAnswer(cmd, false, e.toString());
         }
         
-    	boolean result = add_network_rules(cmd.getVmName(),
+        if (cmd.isDelta() && !_can_program_ipsets) {
+            return new SecurityIngressRuleAnswer(cmd, false, "ipsets are not available to apply rule changes", SecurityIngressRuleAnswer.FailureReason.DELTA_UNSUPPORTED);
+        }
+
+    	String result = add_network_rules(cmd.getVmName(),
     			Long.toString(cmd.getVmId()), 
     			cmd.getGuestIp(),cmd.getSignature(), 
     			Long.toString(cmd.getSeqNum()), 
     			cmd.getGuestMac(), 
-    			cmd.stringifyRules(), vif, brname);
+    			cmd.stringifyRules(), vif, brname,
+    			cmd.getBaseSignature(), cmd.stringifyRevokedRules());
 
-    	if (!result) {
+    	if (result != null && result.contains("delta_unsupported")) {
+    		s_logger.debug("Rules for vm " + cmd.getVmName() + " were programmed without ipsets, asking for the full ruleset");
+    		return new SecurityIngressRuleAnswer(cmd, false, "rules for the vm cannot be changed incrementally", SecurityIngressRuleAnswer.FailureReason.DELTA_UNSUPPORTED);
+    	} else if (result != null) {
     		s_logger.warn("Failed to program network rules for vm " + cmd.getVmName());
     		return new SecurityIngressRuleAnswer(cmd, false, "programming network rules failed");
     	} else {
-    		s_logger.debug("Programmed network rules for vm " + cmd.getVmName() + " guestIp=" + cmd.getGuestIp() + ", numrules=" + cmd.getRuleSet().length);
+    		s_logger.debug("Programmed network rules for vm " + cmd.getVmName() + " guestIp=" + cmd.getGuestIp() + ", numrules=" + cmd.getRuleSet().length + (cmd.isDelta() ? ", numrevoked=" + cmd.getRevokedRuleSet().length : ""));
     		return new SecurityIngressRuleAnswer(cmd);
     	}
     }
@@ -1712,6 +1725,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 		try {
 			Connect conn = LibvirtConnection.getConnection();
 			attachOrDetachISO(conn, cmd.getVmName(), cmd.getIsoPath(), cmd.isAttach());
+			invalidateDomainMetadata(cmd.getVmName());
 		} catch (LibvirtException e) {
 			return new Answer(cmd, false, e.toString());
 		} catch (URISyntaxException e) {
@@ -1727,6 +1741,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 		try {
 			Connect conn = LibvirtConnection.getConnection();
 			attachOrDetachDisk(conn, cmd.getAttach(), cmd.getVmName(), cmd.getVolumePath(), cmd.getDeviceId().intValue());
+			invalidateDomainMetadata(cmd.getVmName());
 		} catch (LibvirtException e) {
 			return new AttachVolumeAnswer(cmd, e.toString());
 		} catch (InternalErrorException e) {
@@ -1820,7 +1835,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return command.execute();
     }
     
-	private synchronized Answer execute(MigrateCommand cmd) {
+	private Answer execute(MigrateCommand cmd) {
 		String vmName = cmd.getVmName();
     	
 		State state = null;
@@ -1874,7 +1889,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 		return new MigrateAnswer(cmd, result == null, result, null);
 	}
 
-	private synchronized Answer execute(PrepareForMigrationCommand cmd) {
+	private Answer execute(PrepareForMigrationCommand cmd) {
 		
 		VirtualMachineTO vm = cmd.getVirtualMachine();
 		if (s_logger.isDebugEnabled()) {
@@ -1915,6 +1930,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 			synchronized (_vms) {
 				_vms.put(vm.getName(), State.Migrating);
 			}
+			invalidateDomainMetadata(vm.getName());
 
 			return new PrepareForMigrationAnswer(cmd);
 		} catch (LibvirtException e) {
@@ -2016,6 +2032,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     	try {
     		Connect conn = LibvirtConnection.getConnection();
 	    	final String result = rebootVM(conn, cmd.getVmName());
+	    	invalidateDomainMetadata(cmd.getVmName());
 	    	if (result == null) {
 	    		Integer vncPort = null;
 	    		try {
@@ -2052,8 +2069,19 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 		try {
 			HashMap<String, VmStatsEntry> vmStatsNameMap = new HashMap<String, VmStatsEntry>();
 			Connect conn = LibvirtConnection.getConnection();
+			if (_nodeCpus == 0) {
+				_nodeCpus = conn.nodeInfo().cpus;
+			}
+			Calendar now = Calendar.getInstance();
 			for (String vmName : vmNames) {
-				VmStatsEntry statEntry = getVmStat(conn, vmName);
+				VmStatsEntry statEntry = null;
+				try {
+					statEntry = getVmStat(conn, vmName, now);
+				} catch (LibvirtException e) {
+					// e.g. the vm is gone or its devices changed under us; look again next time
+					s_logger.debug("Can't get stats for vm " + vmName + ": " + e.toString());
+					invalidateDomainMetadata(vmName);
+				}
 				if( statEntry == null ) {
                     continue;
                 }
@@ -2084,6 +2112,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         	
         	destroy_network_rules_for_vm(conn, vmName);
             String result = stopVM(conn, vmName, defineOps.UNDEFINE_VM);
+            _vmStats.remove(vmName);
+            invalidateDomainMetadata(vmName);
             
             final String result2 = cleanupVnet(conn, cmd.getVnet());
            
@@ -2263,6 +2293,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 			synchronized (_vms) {
 				_vms.put(vmName, State.Starting);
 			}
+			invalidateDomainMetadata(vmName);
 
 			vm = createVMFromSpec(vmSpec);
 
@@ -2391,7 +2422,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 				
 	}
 
-	private String createVlanBr(String vlanId, String nic) throws InternalErrorException{
+	private synchronized String createVlanBr(String vlanId, String nic) throws InternalErrorException{
 		String brName = setVnetBrName(vlanId);
 		createVnet(vlanId, nic);
 		return brName;
@@ -2922,6 +2953,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         }
         
         _vmStats.remove(vmName);
+        invalidateDomainMetadata(vmName);
     }
 
 	protected String rebootVM(Connect conn, String vmName) {
@@ -3300,24 +3332,66 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     	long _usedTime;
     	long _tx;
     	long _rx;
+    	long _diskRdBytes;
+    	long _diskWrBytes;
+    	long _diskRdReq;
+    	long _diskWrReq;
     	Calendar _timestamp;
+    	// the devices the counters above were summed over
+    	DomainMetadata _metadata;
     }
-    
-    private VmStatsEntry getVmStat(Connect conn, String vmName) throws LibvirtException{
+
+    /*
+     * The part of a domain's xml that stats collection needs.  Dumping and parsing the xml
+     * of every vm on every cycle is what made collecting stats expensive; the devices only
+     * change when the vm is started, stopped, migrated or has disks attached, which is when
+     * the entry is dropped.
+     */
+    private static class DomainMetadata {
+    	final List<String> _vifs = new ArrayList<String>();
+    	final List<String> _disks = new ArrayList<String>();
+    }
+
+    private DomainMetadata getDomainMetadata(Domain dm, String vmName) throws LibvirtException {
+    	DomainMetadata metadata = _domainMetadata.get(vmName);
+    	if (metadata != null) {
+    		return metadata;
+    	}
+
+    	LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
+    	parser.parseDomainXML(dm.getXMLDesc(0));
+    	metadata = new DomainMetadata();
+    	for (InterfaceDef vif : parser.getInterfaces()) {
+    		metadata._vifs.add(vif.getDevName());
+    	}
+    	for (DiskDef disk : parser.getDisks()) {
+    		if (disk.getDeviceType() == DiskDef.deviceType.DISK && disk.getDiskPath() != null) {
+    			metadata._disks.add(disk.getDiskPath());
+    		}
+    	}
+    	_domainMetadata.put(vmName, metadata);
+    	return metadata;
+    }
+
+    protected void invalidateDomainMetadata(String vmName) {
+    	_domainMetadata.remove(vmName);
+    }
+
+    private VmStatsEntry getVmStat(Connect conn, String vmName, Calendar now) throws LibvirtException{
     	Domain dm = null;
     	try {
     		dm = getDomain(conn, vmName);
     		DomainInfo info = dm.getInfo();
+    		DomainMetadata metadata = getDomainMetadata(dm, vmName);
 
     		VmStatsEntry stats = new VmStatsEntry();
     		stats.setNumCPUs(info.nrVirtCpu);
     		stats.setEntityType("vm");
+    		stats.setDiskStatsReported(true);
     		
     		/*get cpu utilization*/
     		vmStats oldStats = null;
 
-    		Calendar now = Calendar.getInstance();
-    		
     		oldStats = _vmStats.get(vmName);
   
 
@@ -3326,32 +3400,61 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     			elapsedTime = now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
     			double utilization = (info.cpuTime - oldStats._usedTime)/((double)elapsedTime*1000000);
 
-    			NodeInfo node = conn.nodeInfo();
-    			utilization = utilization/node.cpus;
+    			utilization = utilization/_nodeCpus;
     			stats.setCPUUtilization(utilization*100);
     		}
 			
     		/*get network stats*/
 
-    		List<InterfaceDef> vifs = getInterfaces(conn, vmName);
     		long rx = 0;
     		long tx = 0;
-    		for (InterfaceDef vif : vifs) {
-    			DomainInterfaceStats ifStats = dm.interfaceStats(vif.getDevName());
+    		for (String vif : metadata._vifs) {
+    			DomainInterfaceStats ifStats = dm.interfaceStats(vif);
     			rx += ifStats.rx_bytes;
     			tx += ifStats.tx_bytes;
     		}
     		
-    		if (oldStats != null) {
+    		/*
+    		 * Once the devices change the sums aren't comparable with the last ones: a detached
+    		 * disk would show up as negative I/O.  Start a new baseline instead.
+    		 */
+    		boolean sameDevices = oldStats != null && oldStats._metadata == metadata;
+    		if (sameDevices) {
     			stats.setNetworkReadKBs((rx - oldStats._rx)/1000);
     			stats.setNetworkWriteKBs((tx - oldStats._tx)/1000);
     		}
+
+    		/*get disk stats*/
+
+    		long rdBytes = 0;
+    		long wrBytes = 0;
+    		long rdReq = 0;
+    		long wrReq = 0;
+    		for (String disk : metadata._disks) {
+    			DomainBlockStats blockStats = dm.blockStats(disk);
+    			rdBytes += blockStats.rd_bytes;
+    			wrBytes += blockStats.wr_bytes;
+    			rdReq += blockStats.rd_req;
+    			wrReq += blockStats.wr_req;
+    		}
+
+    		if (sameDevices) {
+    			stats.setDiskReadKBs((rdBytes - oldStats._diskRdBytes)/1000);
+    			stats.setDiskWriteKBs((wrBytes - oldStats._diskWrBytes)/1000);
+    			stats.setDiskReadIOs(rdReq - oldStats._diskRdReq);
+    			stats.setDiskWriteIOs(wrReq - oldStats._diskWrReq);
+    		}
     		
     		vmStats newStat = new vmStats();
     		newStat._usedTime = info.cpuTime;
     		newStat._rx = rx;
     		newStat._tx = tx;
+    		newStat._diskRdBytes = rdBytes;
+    		newStat._diskWrBytes = wrBytes;
+    		newStat._diskRdReq = rdReq;
+    		newStat._diskWrReq = wrReq;
     		newStat._timestamp = now;
+    		newStat._metadata = metadata;
     		_vmStats.put(vmName, newStat);
     		return stats;
     	} finally {
@@ -3489,10 +3592,21 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     	return true;
     }
     
-    private boolean add_network_rules(String vmName, String vmId, String guestIP, String sig, String seq, String mac, String rules, String vif, String brname) {
-    	if (!_can_bridge_firewall) {
+    private boolean can_program_ipsets() {
+        Script cmd = new Script(_securityGroupPath, _timeout, s_logger);
+        cmd.add("can_program_ipsets");
+        String result = cmd.execute();
+        if (result != null) {
+            s_logger.info("ipsets are not available, security group rules can only be programmed in full");
             return false;
         }
+        return true;
+    }
+
+    private String add_network_rules(String vmName, String vmId, String guestIP, String sig, String seq, String mac, String rules, String vif, String brname, String baseSig, String revokedRules) {
+    	if (!_can_bridge_firewall) {
+            return "bridge firewall is not available";
+        }
     	
     	String newRules = rules.replace(" ", ";");
     	Script cmd = new Script(_securityGroupPath, _timeout, s_logger);
@@ -3508,11 +3622,11 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     	if (rules != null) {
             cmd.add("--rules", newRules);
         }
-    	String result = cmd.execute();
-    	if (result != null) {
-    		return false;
+    	if (baseSig != null) {
+    	    cmd.add("--basesig", baseSig);
+    	    cmd.add("--revokedrules", revokedRules.replace(" ", ";"));
     	}
-    	return true;
+    	return cmd.execute();
     }
     
     private boolean cleanup_rules() {
@@ -3587,7 +3701,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 		return new Pair<Double, Double>(rx, tx);
     }
     
-    private void createControlNetwork(Connect conn) throws LibvirtException {
+    private synchronized void createControlNetwork(Connect conn) throws LibvirtException {
         _virtRouterResource.createControlNetwork(_linkLocalBridgeName);
     }
 
@@ -0,0 +1,154 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.AttachVolumeCommand;
+import com.cloud.agent.api.CheckHealthCommand;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.StopCommand;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.SavePasswordCommand;
+
+public class CommandSchedulerTest extends TestCase {
+    private static Set<String> keys(String... keys) {
+        return new HashSet<String>(Arrays.asList(keys));
+    }
+
+    public void testKeys() {
+        assertEquals(keys("vm:i-2-3-VM"), CommandScheduler.getKeys(new StopCommand("i-2-3-VM")));
+        assertEquals(keys("vm:i-2-3-VM", "volume:/mnt/vol"),
+                CommandScheduler.getKeys(new AttachVolumeCommand(true, "i-2-3-VM", null, "/mnt", "/mnt/vol", "vol", 1L, null)));
+        assertTrue(CommandScheduler.getKeys(new CheckHealthCommand()).isEmpty());
+
+        SavePasswordCommand password = new SavePasswordCommand("secret", "10.1.1.2", "i-2-3-VM");
+        password.setAccessDetail(NetworkElementCommand.ROUTER_NAME, "r-4-VM");
+        assertEquals("routers are what these run against", keys("router:r-4-VM"), CommandScheduler.getKeys(password));
+    }
+
+    public void testOrdering() throws Exception {
+        CommandScheduler scheduler = new CommandScheduler(4);
+        try {
+            final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(4);
+
+            scheduler.submit(new Command[] { new StopCommand("a") }, false, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                    }
+                    ran.add("a1");
+                    done.countDown();
+                }
+            });
+            scheduler.submit(new Command[] { new StopCommand("a") }, false, new Runnable() {
+                @Override
+                public void run() {
+                    ran.add("a2");
+                    done.countDown();
+                }
+            });
+            scheduler.submit(new Command[] { new StopCommand("b") }, false, new Runnable() {
+                @Override
+                public void run() {
+                    ran.add("b");
+                    done.countDown();
+                }
+            });
+            scheduler.submit(new Command[] { new CheckHealthCommand() }, false, new Runnable() {
+                @Override
+                public void run() {
+                    ran.add("health");
+                    done.countDown();
+                }
+            });
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (ran.size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("unrelated commands don't wait for a1", keys("b", "health"), new HashSet<String>(ran));
+            assertTrue("a1 and a2 are still pending", scheduler.getPendingCount() >= 2);
+
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertTrue(ran.indexOf("a1") < ran.indexOf("a2"));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testSequential() throws Exception {
+        CommandScheduler scheduler = new CommandScheduler(8);
+        try {
+            final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+            final CountDownLatch done = new CountDownLatch(20);
+            for (int i = 0; i < 20; i++) {
+                final int n = i;
+                scheduler.submit(new Command[] { new CheckHealthCommand() }, true, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(2);
+                        } catch (InterruptedException e) {
+                        }
+                        ran.add(n);
+                        done.countDown();
+                    }
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i, ran.get(i).intValue());
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testLatencies() {
+        CommandScheduler scheduler = new CommandScheduler(1);
+        try {
+            assertNull(scheduler.getUpdatedLatencies());
+            scheduler.record(new StopCommand("a"), 20);
+            scheduler.record(new StopCommand("b"), 40);
+            Map<String, String> latencies = scheduler.getUpdatedLatencies();
+            assertEquals(2, latencies.size());
+            assertTrue(latencies.get("StopCommand").startsWith("count=2, avg=30ms"));
+            assertNotNull(latencies.get(CommandScheduler.QUEUED));
+            assertNull("only what ran since the last ping is sent", scheduler.getUpdatedLatencies());
+            assertEquals(2, scheduler.getLatency("StopCommand").getCount());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -17,11 +17,14 @@
  */
 package com.cloud.agent.api;
 
+import java.util.Map;
+
 import com.cloud.host.Host;
 
 public class PingCommand extends Command {
     Host.Type hostType;
     long hostId;
+    Map<String, String> commandLatencies;
     
     protected PingCommand() {
     }
@@ -39,6 +42,17 @@ public class PingCommand extends Command {
         return hostId;
     }
     
+    /**
+     * @return latency summary by command name for the commands the agent ran since its last ping, null if none.
+     */
+    public Map<String, String> getCommandLatencies() {
+        return commandLatencies;
+    }
+    
+    public void setCommandLatencies(Map<String, String> commandLatencies) {
+        this.commandLatencies = commandLatencies;
+    }
+    
     @Override
     public boolean executeInSequence() {
         return false;
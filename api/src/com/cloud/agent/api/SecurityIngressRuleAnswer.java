@@ -22,7 +22,8 @@ public class SecurityIngressRuleAnswer extends Answer {
         NONE,
         UNKNOWN,
         PROGRAMMING_FAILED,
-        CANNOT_BRIDGE_FIREWALL
+        CANNOT_BRIDGE_FIREWALL,
+        DELTA_UNSUPPORTED
     }
     Long logSequenceNumber = null;
     Long vmId = null;
@@ -80,6 +80,13 @@ public class SecurityIngressRulesCmd extends Command {
     Long vmId;
     Long msId;
     IpPortAndProto [] ruleSet;
+    /*
+     * When set, ruleSet only holds the cidrs added since the ruleset with this signature was
+     * programmed and revokedRuleSet the cidrs that went away. signature is still that of the
+     * complete ruleset the host ends up with.
+     */
+    String baseSignature;
+    IpPortAndProto [] revokedRuleSet;
 
     public SecurityIngressRulesCmd() {
         super();
@@ -102,6 +109,13 @@ public class SecurityIngressRulesCmd extends Command {
     }
 
 
+    public SecurityIngressRulesCmd(String guestIp, String guestMac, String vmName, Long vmId, String signature, Long seqNum, IpPortAndProto[] addedRuleSet, IpPortAndProto[] revokedRuleSet, String baseSignature) {
+        this(guestIp, guestMac, vmName, vmId, signature, seqNum, addedRuleSet);
+        this.revokedRuleSet = revokedRuleSet;
+        this.baseSignature = baseSignature;
+    }
+
+
     @Override
     public boolean executeInSequence() {
         return true;
@@ -127,9 +141,31 @@ public class SecurityIngressRulesCmd extends Command {
         return vmName;
     }
 
+    public boolean isDelta() {
+        return baseSignature != null;
+    }
+
+
+    public String getBaseSignature() {
+        return baseSignature;
+    }
+
+
+    public IpPortAndProto[] getRevokedRuleSet() {
+        return revokedRuleSet;
+    }
+
     public String stringifyRules() {
+        return stringifyRules(getRuleSet());
+    }
+
+    public String stringifyRevokedRules() {
+        return revokedRuleSet == null ? "" : stringifyRules(revokedRuleSet);
+    }
+
+    protected static String stringifyRules(IpPortAndProto[] rules) {
         StringBuilder ruleBuilder = new StringBuilder();
-        for (SecurityIngressRulesCmd.IpPortAndProto ipPandP: getRuleSet()) {
+        for (SecurityIngressRulesCmd.IpPortAndProto ipPandP: rules) {
             ruleBuilder.append(ipPandP.getProto()).append(":").append(ipPandP.getStartPort()).append(":").append(ipPandP.getEndPort()).append(":");
             for (String cidr: ipPandP.getAllowedCidrs()) {
                 ruleBuilder.append(cidr).append(",");
@@ -211,9 +247,15 @@ public class SecurityIngressRulesCmd extends Command {
     
     public int getTotalNumCidrs() {
         //useful for logging
+        return countCidrs(ruleSet) + countCidrs(revokedRuleSet);
+    }
+
+    public static int countCidrs(IpPortAndProto[] rules) {
         int count = 0;
-        for (IpPortAndProto i: ruleSet) {
-            count += i.allowedCidrs.length;
+        if (rules != null) {
+            for (IpPortAndProto i: rules) {
+                count += i.allowedCidrs.length;
+            }
         }
         return count;
     }
@@ -28,6 +28,11 @@ public class VmStatsEntry implements VmStats {
 	double cpuUtilization;
 	double networkReadKBs;
 	double networkWriteKBs;
+	double diskReadKBs;
+	double diskWriteKBs;
+	double diskReadIOs;
+	double diskWriteIOs;
+	boolean diskStatsReported;
 	int numCPUs;	
 	String entityType;
 	    
@@ -67,6 +72,46 @@ public class VmStatsEntry implements VmStats {
     	this.networkWriteKBs = networkWriteKBs;
     }
     
+    public double getDiskReadKBs() {
+    	return diskReadKBs;
+    }
+    
+    public void setDiskReadKBs(double diskReadKBs) {
+    	this.diskReadKBs = diskReadKBs;
+    }
+    
+    public double getDiskWriteKBs() {
+    	return diskWriteKBs;
+    }
+    
+    public void setDiskWriteKBs(double diskWriteKBs) {
+    	this.diskWriteKBs = diskWriteKBs;
+    }
+    
+    public double getDiskReadIOs() {
+    	return diskReadIOs;
+    }
+    
+    public void setDiskReadIOs(double diskReadIOs) {
+    	this.diskReadIOs = diskReadIOs;
+    }
+    
+    public double getDiskWriteIOs() {
+    	return diskWriteIOs;
+    }
+    
+    public void setDiskWriteIOs(double diskWriteIOs) {
+    	this.diskWriteIOs = diskWriteIOs;
+    }
+    
+    public boolean isDiskStatsReported() {
+    	return diskStatsReported;
+    }
+    
+    public void setDiskStatsReported(boolean diskStatsReported) {
+    	this.diskStatsReported = diskStatsReported;
+    }
+    
     public int getNumCPUs() {
     	return numCPUs;
     }
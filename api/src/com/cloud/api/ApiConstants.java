@@ -99,6 +99,7 @@ public class ApiConstants {
     public static final String ISO_FILTER = "isofilter";
     public static final String ISO_GUEST_OS_NONE = "None";
     public static final String JOB_ID = "jobid";
+    public static final String JOB_IDS = "jobids";
     public static final String JOB_STATUS = "jobstatus";
     public static final String LASTNAME = "lastname";
     public static final String LEVEL = "level";
@@ -194,6 +195,7 @@ public class ApiConstants {
     public static final String VM_TOTAL = "vmtotal";
     public static final String VNET = "vnet";
     public static final String VOLUME_ID = "volumeid";
+    public static final String WAIT = "wait";
     public static final String ZONE_ID = "zoneid";
     public static final String NETWORK_TYPE = "networktype";
     public static final String PAGE = "page";
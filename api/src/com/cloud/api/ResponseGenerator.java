@@ -19,8 +19,10 @@ package com.cloud.api;
 
 import java.text.DecimalFormat;
 import java.util.List;
+import java.util.Set;
 
 import com.cloud.api.commands.QueryAsyncJobResultCmd;
+import com.cloud.api.commands.QueryAsyncJobResultsCmd;
 import com.cloud.api.response.AccountResponse;
 import com.cloud.api.response.AsyncJobResponse;
 import com.cloud.api.response.CapacityResponse;
@@ -106,6 +108,7 @@ import com.cloud.user.Account;
 import com.cloud.user.User;
 import com.cloud.user.UserAccount;
 import com.cloud.uservm.UserVm;
+import com.cloud.utils.Pair;
 import com.cloud.vm.InstanceGroup;
 import com.cloud.vm.VirtualMachine;
 
@@ -136,12 +139,16 @@ public interface ResponseGenerator {
 
     DomainRouterResponse createDomainRouterResponse(VirtualRouter router);
 
+    List<DomainRouterResponse> createDomainRouterResponses(List<? extends VirtualRouter> routers);
+
     HostResponse createHostResponse(Host host);
 
     VlanIpRangeResponse createVlanIpRangeResponse(Vlan vlan);
 
     IPAddressResponse createIPAddressResponse(IpAddress ipAddress);
 
+    List<IPAddressResponse> createIPAddressResponses(List<? extends IpAddress> ipAddresses);
+
     LoadBalancerResponse createLoadBalancerResponse(LoadBalancer loadBalancer);
 
     PodResponse createPodResponse(Pod pod, Boolean showCapacities);
@@ -150,6 +157,8 @@ public interface ResponseGenerator {
 
     VolumeResponse createVolumeResponse(Volume volume);
 
+    List<VolumeResponse> createVolumeResponses(List<? extends Volume> volumes);
+
     InstanceGroupResponse createInstanceGroupResponse(InstanceGroup group);
 
     StoragePoolResponse createStoragePoolResponse(StoragePool pool);
@@ -174,6 +183,11 @@ public interface ResponseGenerator {
 
     List<TemplateResponse> createTemplateResponses(long templateId, long zoneId, boolean readyOnly);
 
+    /**
+     * @param templateZonePairs template ids with the zone to list them in, or null for all zones.
+     */
+    List<TemplateResponse> createTemplateResponses(Set<Pair<Long, Long>> templateZonePairs, boolean readyOnly);
+
     VpnUsersResponse createVpnUserResponse(VpnUser user);
 
     RemoteAccessVpnResponse createRemoteAccessVpnResponse(RemoteAccessVpn vpn);
@@ -205,10 +219,14 @@ public interface ResponseGenerator {
 
     AsyncJobResponse queryJobResult(QueryAsyncJobResultCmd cmd);
 
+    List<AsyncJobResponse> queryJobResults(QueryAsyncJobResultsCmd cmd);
+
     NetworkOfferingResponse createNetworkOfferingResponse(NetworkOffering offering);
 
     NetworkResponse createNetworkResponse(Network network);
 
+    List<NetworkResponse> createNetworkResponses(List<? extends Network> networks);
+
     UserResponse createUserResponse(User user);
 
     AccountResponse createUserAccountResponse(UserAccount user);
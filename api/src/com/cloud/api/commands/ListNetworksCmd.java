@@ -18,7 +18,6 @@
 
 package com.cloud.api.commands;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -127,11 +126,7 @@ public class ListNetworksCmd extends BaseListCmd {
     public void execute(){
         List<? extends Network> networks = _networkService.searchForNetworks(this);
         ListResponse<NetworkResponse> response = new ListResponse<NetworkResponse>();
-        List<NetworkResponse> networkResponses = new ArrayList<NetworkResponse>();
-        for (Network network : networks) {
-            NetworkResponse networkResponse = _responseGenerator.createNetworkResponse(network);
-            networkResponses.add(networkResponse);
-        }
+        List<NetworkResponse> networkResponses = _responseGenerator.createNetworkResponses(networks);
 
         response.setResponses(networkResponses);
         response.setResponseName(getCommandName());
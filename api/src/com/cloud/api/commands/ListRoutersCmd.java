@@ -18,7 +18,6 @@
 
 package com.cloud.api.commands;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -133,11 +132,9 @@ public class ListRoutersCmd extends BaseListCmd {
     public void execute(){
         List<? extends VirtualRouter> result = _mgr.searchForRouters(this);
         ListResponse<DomainRouterResponse> response = new ListResponse<DomainRouterResponse>();
-        List<DomainRouterResponse> routerResponses = new ArrayList<DomainRouterResponse>();
-        for (VirtualRouter router : result) {
-            DomainRouterResponse routerResponse = _responseGenerator.createDomainRouterResponse(router);
+        List<DomainRouterResponse> routerResponses = _responseGenerator.createDomainRouterResponses(result);
+        for (DomainRouterResponse routerResponse : routerResponses) {
             routerResponse.setObjectName("router");
-            routerResponses.add(routerResponse);
         }
 
         response.setResponses(routerResponses);
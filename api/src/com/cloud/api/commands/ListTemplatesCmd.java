@@ -18,7 +18,6 @@
 
 package com.cloud.api.commands;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
@@ -140,13 +139,7 @@ public class ListTemplatesCmd extends BaseListCmd {
         Set<Pair<Long, Long>> templateZonePairSet = _mgr.listTemplates(this);
 
         ListResponse<TemplateResponse> response = new ListResponse<TemplateResponse>();
-        List<TemplateResponse> templateResponses = new ArrayList<TemplateResponse>();
-
-        for (Pair<Long, Long> template : templateZonePairSet) {
-            List<TemplateResponse> responses = new ArrayList<TemplateResponse>();
-            responses = _responseGenerator.createTemplateResponses(template.first().longValue(), template.second(), listInReadyState());
-            templateResponses.addAll(responses);
-        }
+        List<TemplateResponse> templateResponses = _responseGenerator.createTemplateResponses(templateZonePairSet, listInReadyState());
 
         response.setResponses(templateResponses);
         response.setResponseName(getCommandName());
@@ -0,0 +1,82 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.api.commands;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.api.ApiConstants;
+import com.cloud.api.BaseCmd;
+import com.cloud.api.Implementation;
+import com.cloud.api.Parameter;
+import com.cloud.api.response.AsyncJobResponse;
+import com.cloud.api.response.ListResponse;
+import com.cloud.user.Account;
+
+@Implementation(description="Retrieves the current status of several asynchronous jobs at once.", responseObject=AsyncJobResponse.class)
+public class QueryAsyncJobResultsCmd extends BaseCmd {
+    public static final Logger s_logger = Logger.getLogger(QueryAsyncJobResultsCmd.class.getName());
+
+    private static final String s_name = "queryasyncjobresultsresponse";
+
+    /////////////////////////////////////////////////////
+    //////////////// API parameters /////////////////////
+    /////////////////////////////////////////////////////
+
+    @Parameter(name=ApiConstants.JOB_IDS, type=CommandType.LIST, collectionType=CommandType.LONG, required=true, description="a comma delimited list of asychronous job IDs")
+    private List<Long> ids;
+
+    @Parameter(name=ApiConstants.WAIT, type=CommandType.INTEGER, description="if none of the jobs has completed yet, the number of seconds to wait for one of them to complete before returning")
+    private Integer wait;
+
+    /////////////////////////////////////////////////////
+    /////////////////// Accessors ///////////////////////
+    /////////////////////////////////////////////////////
+
+    public List<Long> getIds() {
+        return ids;
+    }
+
+    public Integer getWait() {
+        return wait;
+    }
+
+    /////////////////////////////////////////////////////
+    /////////////// API Implementation///////////////////
+    /////////////////////////////////////////////////////
+
+    @Override
+    public String getCommandName() {
+        return s_name;
+    }
+
+    @Override
+    public long getEntityOwnerId() {
+        return Account.ACCOUNT_ID_SYSTEM;
+    }
+
+    @Override
+    public void execute(){
+        List<AsyncJobResponse> jobResponses = _responseGenerator.queryJobResults(this);
+        ListResponse<AsyncJobResponse> response = new ListResponse<AsyncJobResponse>();
+        response.setResponses(jobResponses);
+        response.setResponseName(getCommandName());
+        this.setResponseObject(response);
+    }
+}
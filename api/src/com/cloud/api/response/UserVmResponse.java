@@ -128,6 +128,18 @@ public class UserVmResponse extends BaseResponse implements ControlledEntityResp
     @SerializedName("networkkbswrite") @Param(description="the outgoing network traffic on the host")
     private Long networkKbsWrite;
 
+    @SerializedName("diskkbsread") @Param(description="the incoming disk traffic on the vm in KBs, not returned when the hypervisor doesn't collect disk stats")
+    private Long diskKbsRead;
+
+    @SerializedName("diskkbswrite") @Param(description="the outgoing disk traffic on the vm in KBs, not returned when the hypervisor doesn't collect disk stats")
+    private Long diskKbsWrite;
+
+    @SerializedName("diskioread") @Param(description="the number of disk reads on the vm, not returned when the hypervisor doesn't collect disk stats")
+    private Long diskIORead;
+
+    @SerializedName("diskiowrite") @Param(description="the number of disk writes on the vm, not returned when the hypervisor doesn't collect disk stats")
+    private Long diskIOWrite;
+
     @SerializedName("guestosid") @Param(description="Os type ID of the virtual machine")
     private Long guestOsId;
 
@@ -288,6 +300,22 @@ public class UserVmResponse extends BaseResponse implements ControlledEntityResp
         this.networkKbsWrite = networkKbsWrite;
     }
 
+    public void setDiskKbsRead(Long diskKbsRead) {
+        this.diskKbsRead = diskKbsRead;
+    }
+
+    public void setDiskKbsWrite(Long diskKbsWrite) {
+        this.diskKbsWrite = diskKbsWrite;
+    }
+
+    public void setDiskIORead(Long diskIORead) {
+        this.diskIORead = diskIORead;
+    }
+
+    public void setDiskIOWrite(Long diskIOWrite) {
+        this.diskIOWrite = diskIOWrite;
+    }
+
     public void setGuestOsId(Long guestOsId) {
         this.guestOsId = guestOsId;
     }
@@ -23,5 +23,11 @@ public interface VmStats {
 	public double getCPUUtilization();
     public double getNetworkReadKBs();
     public double getNetworkWriteKBs();
+    public double getDiskReadKBs();
+    public double getDiskWriteKBs();
+    public double getDiskReadIOs();
+    public double getDiskWriteIOs();
+    // false when the hypervisor doesn't collect disk stats, the disk counters are then meaningless
+    public boolean isDiskStatsReported();
 
 }
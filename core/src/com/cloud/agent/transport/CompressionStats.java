@@ -0,0 +1,137 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Keeps count of how well each command type compresses and what it costs,
+ * so the codec and threshold can be chosen from numbers rather than guesses.
+ * There is one instance per process, registered as com.cloud:type=AgentTransport.
+ */
+public class CompressionStats extends StandardMBean implements CompressionStatsMBean {
+    private static final Logger s_logger = Logger.getLogger(CompressionStats.class);
+
+    private static final CompressionStats s_instance = new CompressionStats();
+
+    static {
+        try {
+            JmxUtil.registerMBean("AgentTransport", "Compression", s_instance);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register for JMX", e);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+
+    protected CompressionStats() {
+        super(CompressionStatsMBean.class, false);
+    }
+
+    public static CompressionStats getInstance() {
+        return s_instance;
+    }
+
+    public void recordCompress(String type, String codec, int rawBytes, int compressedBytes, long nanos) {
+        Entry entry = getEntry(type, codec);
+        entry.compressed.incrementAndGet();
+        entry.rawBytes.addAndGet(rawBytes);
+        entry.compressedBytes.addAndGet(compressedBytes);
+        entry.compressNanos.addAndGet(nanos);
+    }
+
+    public void recordDecompress(String type, String codec, long nanos) {
+        Entry entry = getEntry(type, codec);
+        entry.decompressed.incrementAndGet();
+        entry.decompressNanos.addAndGet(nanos);
+    }
+
+    protected Entry getEntry(String type, String codec) {
+        String key = type + "/" + codec;
+        Entry entry = _entries.get(key);
+        if (entry == null) {
+            entry = new Entry(type, codec);
+            Entry existing = _entries.putIfAbsent(key, entry);
+            if (existing != null) {
+                entry = existing;
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public String getCodec() {
+        return Request.getCompressionCodec().getName();
+    }
+
+    @Override
+    public List<Map<String, String>> getStatsByCommand() {
+        List<Map<String, String>> stats = new ArrayList<Map<String, String>>(_entries.size());
+        for (Entry entry : _entries.values()) {
+            long compressed = entry.compressed.get();
+            long decompressed = entry.decompressed.get();
+            long rawBytes = entry.rawBytes.get();
+            long compressedBytes = entry.compressedBytes.get();
+
+            Map<String, String> map = new TreeMap<String, String>();
+            map.put("command", entry.type);
+            map.put("codec", entry.codec);
+            map.put("compressed", Long.toString(compressed));
+            map.put("rawBytes", Long.toString(rawBytes));
+            map.put("compressedBytes", Long.toString(compressedBytes));
+            map.put("ratio", compressedBytes == 0 ? "-" : String.format("%.2f", (double)rawBytes / compressedBytes));
+            map.put("avgCompressMicros", compressed == 0 ? "-" : Long.toString(entry.compressNanos.get() / compressed / 1000));
+            map.put("decompressed", Long.toString(decompressed));
+            map.put("avgDecompressMicros", decompressed == 0 ? "-" : Long.toString(entry.decompressNanos.get() / decompressed / 1000));
+            stats.add(map);
+        }
+        return stats;
+    }
+
+    @Override
+    public void reset() {
+        _entries.clear();
+    }
+
+    protected static class Entry {
+        final String type;
+        final String codec;
+        final AtomicLong compressed = new AtomicLong();
+        final AtomicLong rawBytes = new AtomicLong();
+        final AtomicLong compressedBytes = new AtomicLong();
+        final AtomicLong compressNanos = new AtomicLong();
+        final AtomicLong decompressed = new AtomicLong();
+        final AtomicLong decompressNanos = new AtomicLong();
+
+        Entry(String type, String codec) {
+            this.type = type;
+            this.codec = codec;
+        }
+    }
+}
@@ -17,16 +17,11 @@
  */
 package com.cloud.agent.transport;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -35,9 +30,12 @@ import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.SecStorageFirewallCfgCommand.PortConfig;
 import com.cloud.exception.UnsupportedVersionException;
+import com.cloud.serializer.BinarySerializer;
 import com.cloud.serializer.GsonHelper;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
+import com.cloud.utils.compression.CompressionCodec;
+import com.cloud.utils.compression.CompressionCodecs;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
@@ -58,12 +56,23 @@ import com.google.gson.JsonSerializer;
  * 
  * A request looks as follows:
  * 1. Version - 1 byte;
- * 2. Flags - 3 bytes;
- * 3. Sequence - 8 bytes;
- * 4. Length - 4 bytes;
- * 5. ManagementServerId - 8 bytes;
- * 6. AgentId - 8 bytes;
- * 7. Data Package.
+ * 2. Codec - 1 byte, which CompressionCodec the data package is compressed with;
+ * 3. Flags - 2 bytes;
+ * 4. Sequence - 8 bytes;
+ * 5. Length - 4 bytes;
+ * 6. ManagementServerId - 8 bytes;
+ * 7. AgentId - 8 bytes;
+ * 8. Data Package.
+ * 
+ * The data package is Gson marshalled json up to v3.  v4 carries it in the
+ * BinarySerializer format instead.  Every request and response built here
+ * sets FLAG_ACCEPTS_BINARY to tell the other side that it can send v4; a
+ * peer that never sees the flag keeps talking json.
+ * 
+ * Data packages over COMPRESSION_THRESHOLD are compressed.  The codec byte
+ * used to be always 0 and older peers only know gzip, so json keeps using
+ * gzip and only v4, which implies a peer that knows the codecs, uses the
+ * codec picked by setCompressionCodec().
  * 
  */
 public class Request {
@@ -76,7 +85,8 @@ public class Request {
     public enum Version {
         v1, // using gson to marshall
         v2, // now using gson as marshalled.
-        v3; // Adding routing information into the Request data structure.
+        v3, // Adding routing information into the Request data structure.
+        v4; // Binary marshalling through BinarySerializer.
 
         public static Version get(final byte ver) throws UnsupportedVersionException {
             for (final Version version : Version.values()) {
@@ -95,7 +105,18 @@ public class Request {
     protected static final short       FLAG_FROM_SERVER     = 0x20;
     protected static final short       FLAG_CONTROL         = 0x40;
     protected static final short       FLAG_COMPRESSED      = 0x80;
+    protected static final short       FLAG_ACCEPTS_BINARY  = 0x100;
+
+    protected static final int COMPRESSION_THRESHOLD = 8192;
 
+    private static volatile CompressionCodec s_codec = CompressionCodecs.DEFLATE;
+
+    static {
+        String codec = System.getProperty("agent.transport.codec");
+        if (codec != null) {
+            setCompressionCodec(codec);
+        }
+    }
 
     protected Version   _ver;
     protected long      _session;
@@ -106,6 +127,9 @@ public class Request {
     protected long      _agentId;
     protected Command[] _cmds;
     protected String    _content;
+    protected ByteBuffer _binary;
+    protected byte      _codec;
+    protected long      _decompressNanos;
     
     protected Request() {
     }
@@ -130,12 +154,17 @@ public class Request {
         _content = content;
     }
 
+    protected Request(Version ver, long seq, long agentId, long mgmtId, long via, short flags, final ByteBuffer binary) {
+        this(ver, seq, agentId, mgmtId, via, flags, (Command[])null);
+        _binary = binary;
+    }
+
     public Request(long agentId, long mgmtId, Command command, boolean fromServer) {
         this(agentId, mgmtId, new Command[] { command }, true, fromServer);
     }
 
     public Request(long agentId, long mgmtId, Command[] cmds, boolean stopOnError, boolean fromServer) {
-        this(Version.v1, -1l, agentId, mgmtId, (short)0, cmds);
+        this(Version.v1, -1l, agentId, mgmtId, FLAG_ACCEPTS_BINARY, cmds);
         setStopOnError(stopOnError);
         setFromServer(fromServer);
     }
@@ -165,6 +194,7 @@ public class Request {
         this._mgmtId = that._mgmtId;
         this._via = that._via;
         this._agentId = that._agentId;
+        this._flags |= FLAG_ACCEPTS_BINARY;
         setFromServer(!that.isFromServer());
     }
 
@@ -200,6 +230,21 @@ public class Request {
         return _ver;
     }
 
+    /**
+     * Sets the wire format used by toBytes().  Only switch to v4 if the
+     * other side has said it accepts it.
+     */
+    public void setVersion(Version ver) {
+        _ver = ver;
+    }
+
+    /**
+     * @return true if the sender of this request can parse v4 requests.
+     */
+    public boolean acceptsBinary() {
+        return (_flags & FLAG_ACCEPTS_BINARY) > 0;
+    }
+
     public void setAgentId(long agentId) {
         _agentId = agentId;
     }
@@ -228,15 +273,64 @@ public class Request {
     public Command[] getCommands() {
         if (_cmds == null) {
             try {
-                _cmds = s_gson.fromJson(_content, Command[].class);
+                _cmds = deserialize(Command[].class);
             } catch (RuntimeException e) {
-                s_logger.error("Caught problem with " + _content, e);
+                s_logger.error("Caught problem with " + (_content != null ? _content : "binary content"), e);
                 throw e;
             }
         }
         return _cmds;
     }
 
+    protected <T extends Command> T[] deserialize(Class<T[]> clazz) {
+        T[] cmds;
+        if (_binary != null) {
+            cmds = BinarySerializer.deserialize(_binary.duplicate(), clazz);
+        } else {
+            cmds = s_gson.fromJson(_content, clazz);
+        }
+        if (_decompressNanos > 0) {
+            // only now is the command type known.
+            CompressionStats.getInstance().recordDecompress(getStatsType(cmds), CompressionCodecs.get(_codec).getName(), _decompressNanos);
+            _decompressNanos = 0;
+        }
+        return cmds;
+    }
+
+    protected static String getStatsType(Command[] cmds) {
+        if (cmds == null) {
+            return "Unknown";
+        }
+        if (cmds.length == 0) {
+            return "Empty";
+        }
+        return cmds[0] == null ? "Null" : cmds[0].getClass().getSimpleName();
+    }
+
+    /**
+     * Sets the codec used to compress large v4 messages; json always uses
+     * gzip.  The default is deflate, "lz" trades ratio for speed.
+     */
+    public static void setCompressionCodec(String name) {
+        CompressionCodec codec = CompressionCodecs.get(name);
+        if (codec == null) {
+            s_logger.warn("Unknown compression codec " + name + ", keeping " + s_codec.getName());
+            return;
+        }
+        s_codec = codec;
+    }
+
+    public static CompressionCodec getCompressionCodec() {
+        return s_codec;
+    }
+
+    protected Command[] commandsForMarshalling() {
+        if (_cmds == null) {
+            _cmds = this instanceof Response ? deserialize(Answer[].class) : deserialize(Command[].class);
+        }
+        return _cmds;
+    }
+
     protected String getType() {
         return "Cmd ";
     }
@@ -244,7 +338,7 @@ public class Request {
     protected ByteBuffer serializeHeader(final int contentSize) {
         final ByteBuffer buffer = ByteBuffer.allocate(40);
         buffer.put(getVersionInByte());
-        buffer.put((byte) 0);
+        buffer.put(_codec);
         buffer.putShort(getFlags());
         buffer.putLong(_seq);
         // The size here is uncompressed size, if the data is compressed.
@@ -257,85 +351,109 @@ public class Request {
         return buffer;
     }
 
+    /**
+     * Gzip decompression, as used by every version of the protocol before
+     * the codec byte was introduced.
+     */
     public static ByteBuffer doDecompress(ByteBuffer buffer, int length) {
-        byte[] byteArrayIn = new byte[1024];
-        int allocLength = length;
-        /* Add default length to support 2.2.8 */
-        if (allocLength < 65535) {
-            allocLength = 65535;
-        }
-        ByteArrayInputStream byteIn;
-        if (buffer.hasArray()) {
-            byteIn = new ByteArrayInputStream(buffer.array(),
-                    buffer.position() + buffer.arrayOffset(),
-                    buffer.remaining());
-        } else {
-            byte[] array = new byte[buffer.limit() - buffer.position()];
-            buffer.get(array);
-            byteIn = new ByteArrayInputStream(array);
-        }
-        ByteBuffer retBuff = ByteBuffer.allocate(allocLength);
-        int len = 0;
-        try {
-            GZIPInputStream in = new GZIPInputStream(byteIn);
-            while ((len = in.read(byteArrayIn)) > 0) {
-                retBuff.put(byteArrayIn, 0, len);
-            }
-            in.close();
-        } catch (IOException e) {
-            s_logger.error("Fail to decompress the request!", e);
-        }
-        retBuff.flip();
-        return retBuff;
+        return CompressionCodecs.GZIP.decompress(buffer, length);
     }
-    
+
     public static ByteBuffer doCompress(ByteBuffer buffer, int length) {
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream(length);
-        byte[] array;
-        if (buffer.hasArray()) {
-            array = buffer.array();
-        } else {
-            array = new byte[buffer.capacity()];
-            buffer.get(array);
+        ByteBuffer[] compressed = CompressionCodecs.GZIP.compress(new ByteBuffer[] { buffer });
+        if (compressed.length == 1) {
+            return compressed[0];
         }
-        try {
-            GZIPOutputStream out = new GZIPOutputStream(byteOut, length);
-            out.write(array);
-            out.finish();
-            out.close();
-        } catch (IOException e) {
-            s_logger.error("Fail to compress the request!", e);
+        int size = 0;
+        for (ByteBuffer chunk : compressed) {
+            size += chunk.remaining();
+        }
+        ByteBuffer flat = ByteBuffer.allocate(size);
+        for (ByteBuffer chunk : compressed) {
+            flat.put(chunk);
         }
-        return ByteBuffer.wrap(byteOut.toByteArray());
+        flat.flip();
+        return flat;
     }
-    
+
+    protected ByteBuffer[] compress(ByteBuffer[] data, int size, CompressionCodec codec) {
+        long start = System.nanoTime();
+        ByteBuffer[] compressed = codec.compress(data);
+        long nanos = System.nanoTime() - start;
+
+        int compressedSize = 0;
+        for (ByteBuffer buffer : compressed) {
+            compressedSize += buffer.remaining();
+        }
+        CompressionStats.getInstance().recordCompress(getStatsType(_cmds), codec.getName(), size, compressedSize, nanos);
+
+        _flags |= FLAG_COMPRESSED;
+        _codec = codec.getId();
+        return compressed;
+    }
+
     public ByteBuffer[] toBytes() {
-        final ByteBuffer[] buffers = new ByteBuffer[2];
-        ByteBuffer tmp;
-        
+        if (_ver == Version.v4) {
+            try {
+                return toBinaryBytes();
+            } catch (CloudRuntimeException e) {
+                s_logger.warn("Unable to marshall " + getType() + _seq + " in binary, falling back to json", e);
+                _ver = Version.v1;
+            }
+        }
+
         if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
+            Command[] cmds = commandsForMarshalling();
+            _content = s_gson.toJson(cmds, cmds.getClass());
         }
-        tmp = ByteBuffer.wrap(_content.getBytes());
-        int capacity = tmp.capacity();
-        /* Check if we need to compress the data */
-        if (capacity >= 8192) {
-            tmp = doCompress(tmp, capacity);
-            _flags |= FLAG_COMPRESSED;
+        ByteBuffer[] data = new ByteBuffer[] { ByteBuffer.wrap(_content.getBytes()) };
+        int capacity = data[0].capacity();
+        return toBytes(data, capacity, CompressionCodecs.GZIP);
+    }
+
+    protected ByteBuffer[] toBytes(ByteBuffer[] data, int size, CompressionCodec codec) {
+        // a parsed request carries the flags it came in with.
+        _flags &= ~FLAG_COMPRESSED;
+        _codec = 0;
+        if (size >= COMPRESSION_THRESHOLD) {
+            data = compress(data, size, codec);
         }
-        buffers[1] = tmp;
-        buffers[0] = serializeHeader(capacity);
 
+        final ByteBuffer[] buffers = new ByteBuffer[data.length + 1];
+        buffers[0] = serializeHeader(size);
+        System.arraycopy(data, 0, buffers, 1, data.length);
         return buffers;
     }
 
+    protected ByteBuffer[] toBinaryBytes() {
+        ByteBuffer[] data;
+        if (_cmds == null && _binary != null) {
+            data = new ByteBuffer[] { _binary.duplicate() };
+        } else {
+            data = BinarySerializer.serialize(commandsForMarshalling());
+        }
+
+        int size = 0;
+        for (ByteBuffer buffer : data) {
+            size += buffer.remaining();
+        }
+
+        return toBytes(data, size, s_codec);
+    }
+
     public byte[] getBytes() {
         final ByteBuffer[] buffers = toBytes();
-        final int len1 = buffers[0].remaining();
-        final int len2 = buffers[1].remaining();
-        final byte[] bytes = new byte[len1 + len2];
-        buffers[0].get(bytes, 0, len1);
-        buffers[1].get(bytes, len1, len2);
+        int len = 0;
+        for (ByteBuffer buffer : buffers) {
+            len += buffer.remaining();
+        }
+        final byte[] bytes = new byte[len];
+        int offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            int remaining = buffer.remaining();
+            buffer.get(bytes, offset, remaining);
+            offset += remaining;
+        }
         return bytes;
     }
 
@@ -384,9 +502,9 @@ public class Request {
         if (logContent) {
             if (_cmds == null) {
                 try {
-                    _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                    commandsForMarshalling();
                 } catch (RuntimeException e) {
-                    s_logger.error("Unable to convert to json: " + _content);
+                    s_logger.error("Unable to convert to json: " + (_content != null ? _content : "binary content"));
                     throw e;
                 }
             }
@@ -405,9 +523,7 @@ public class Request {
                 return null;
             }
         } else {
-            if (_cmds == null) {
-                _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
-            }
+            commandsForMarshalling();
             content.append("{ ");
             for (Command cmd : _cmds) {
                 content.append(cmd.getClass().getSimpleName()).append(", ");
@@ -445,10 +561,10 @@ public class Request {
         ByteBuffer buff = ByteBuffer.wrap(bytes);
         final byte ver = buff.get();
         final Version version = Version.get(ver);
-        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
+        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal() && version.ordinal() != Version.v4.ordinal()) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
-        final byte reserved = buff.get(); // tossed away for now.
+        final byte codecId = buff.get();
         final short flags = buff.getShort();
         final boolean isRequest = (flags & FLAG_REQUEST) > 0;
 
@@ -459,34 +575,59 @@ public class Request {
         final long agentId = buff.getLong();
         
         long via;
-        if (version.ordinal() == Version.v1.ordinal()) {
+        if (version.ordinal() == Version.v1.ordinal() || version.ordinal() == Version.v4.ordinal()) {
             via = buff.getLong();
         } else {
             via = agentId;
         }
 
+        long decompressNanos = 0;
         if ((flags & FLAG_COMPRESSED) != 0) {
-            buff = doDecompress(buff, size);
+            CompressionCodec codec = CompressionCodecs.get(codecId);
+            if (codec == null) {
+                throw new UnsupportedVersionException("Unknown compression codec: " + codecId, UnsupportedVersionException.IncompatibleVersion);
+            }
+            long start = System.nanoTime();
+            buff = codec.decompress(buff, size);
+            decompressNanos = Math.max(System.nanoTime() - start, 1);
+        }
+
+        Request request;
+        if (version == Version.v4) {
+            ByteBuffer binary = buff.slice();
+            if (isRequest) {
+                request = new Request(version, seq, agentId, mgmtId, via, flags, binary);
+            } else {
+                request = new Response(version, seq, agentId, mgmtId, via, flags, binary);
+            }
+            request._codec = codecId;
+            request._decompressNanos = decompressNanos;
+            return request;
         }
         
         byte[] command = null;
         int offset = 0;
+        int length = buff.remaining();
         if (buff.hasArray()) {
             command = buff.array();
             offset = buff.arrayOffset() + buff.position();
         } else {
-            command = new byte[buff.remaining()];
+            command = new byte[length];
             buff.get(command);
             offset = 0;
         }
 
-        final String content = new String(command, offset, command.length - offset);
+        // Only take what's within the limit; a decompressed buffer is usually bigger than its content.
+        final String content = new String(command, offset, length);
 
         if (isRequest) {
-            return new Request(version, seq, agentId, mgmtId, via, flags, content);
+            request = new Request(version, seq, agentId, mgmtId, via, flags, content);
         } else {
-            return new Response(Version.get(ver), seq, agentId, mgmtId, via, flags, content);
+            request = new Response(Version.get(ver), seq, agentId, mgmtId, via, flags, content);
         }
+        request._codec = codecId;
+        request._decompressNanos = decompressNanos;
+        return request;
     }
 
     public long getAgentId() {
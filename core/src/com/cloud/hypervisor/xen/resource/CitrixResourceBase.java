@@ -45,14 +45,9 @@ import java.util.UUID;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.apache.log4j.Logger;
 import org.apache.xmlrpc.XmlRpcException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 import com.cloud.agent.IAgentControl;
 import com.cloud.agent.api.Answer;
@@ -1747,68 +1742,41 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     protected HostStatsEntry getHostStats(Connection conn, GetHostStatsCommand cmd, String hostGuid, long hostId) {
 
         HostStatsEntry hostStats = new HostStatsEntry(hostId, 0, 0, 0, "host", 0, 0, 0, 0);
-        Object[] rrdData = getRRDData(conn, 1); // call rrd method with 1 for host
+        RrdUpdates rrdData = getRRDData(conn, 1, null); // call rrd method with 1 for host
 
         if (rrdData == null) {
             return null;
         }
 
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
+        for (int col = 0; col < rrdData.getColumnCount(); col++) {
+            String param = rrdData.getParam(col);
 
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
+            if (param.contains("pif_eth0_rx")) {
+                hostStats.setNetworkReadKBs(rrdData.getAverage(col));
             }
 
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
+            if (param.contains("pif_eth0_tx")) {
+                hostStats.setNetworkWriteKBs(rrdData.getAverage(col));
             }
 
-            String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
+            if (param.contains("memory_total_kib")) {
+                hostStats.setTotalMemoryKBs(rrdData.getAverage(col));
             }
 
-            String type = columnMetadataList[1];
-            String param = columnMetadataList[3];
-
-            if (type.equalsIgnoreCase("host")) {
-
-                if (param.contains("pif_eth0_rx")) {
-                    hostStats.setNetworkReadKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("pif_eth0_tx")) {
-                    hostStats.setNetworkWriteKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("memory_total_kib")) {
-                    hostStats.setTotalMemoryKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("memory_free_kib")) {
-                    hostStats.setFreeMemoryKBs(getDataAverage(dataNode, col, numRows));
-                }
+            if (param.contains("memory_free_kib")) {
+                hostStats.setFreeMemoryKBs(rrdData.getAverage(col));
+            }
 
-                if (param.contains("cpu")) {
-                    // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
-                    hostStats.setCpuUtilization(hostStats.getCpuUtilization() + getDataAverage(dataNode, col, numRows));
-                }
+            if (param.contains("cpu")) {
+                // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
+                hostStats.setCpuUtilization(hostStats.getCpuUtilization() + rrdData.getAverage(col));
+            }
 
 /*
-                if (param.contains("loadavg")) {
-                    hostStats.setAverageLoad((hostStats.getAverageLoad() + getDataAverage(dataNode, col, numRows)));
-                }
-*/
+            if (param.contains("loadavg")) {
+                hostStats.setAverageLoad((hostStats.getAverageLoad() + rrdData.getAverage(col)));
             }
+*/
         }
 
         // add the host cpu utilization
@@ -1867,55 +1835,26 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             vmResponseMap.put(vmUUID, new VmStatsEntry(0, 0, 0, 0, "vm"));
         }
 
-        Object[] rrdData = getRRDData(conn, 2); // call rrddata with 2 for vm
+        RrdUpdates rrdData = getRRDData(conn, 2, vmResponseMap.keySet()); // call rrddata with 2 for vm
 
         if (rrdData == null) {
             return null;
         }
 
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
-
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
-            }
-
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
-            }
-
-            String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
-            }
-
-            String type = columnMetadataList[1];
-            String uuid = columnMetadataList[2];
-            String param = columnMetadataList[3];
+        for (int col = 0; col < rrdData.getColumnCount(); col++) {
+            VmStatsEntry vmStatsAnswer = vmResponseMap.get(rrdData.getUuid(col));
+            String param = rrdData.getParam(col);
 
-            if (type.equals("vm") && vmResponseMap.keySet().contains(uuid)) {
-                VmStatsEntry vmStatsAnswer = vmResponseMap.get(uuid);
+            vmStatsAnswer.setEntityType("vm");
 
-                vmStatsAnswer.setEntityType("vm");
-
-                if (param.contains("cpu")) {
-                    vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
-                    vmStatsAnswer.setCPUUtilization(((vmStatsAnswer.getCPUUtilization() + getDataAverage(dataNode, col, numRows))));
-                } else if (param.equals("vif_0_rx")) {
-                	vmStatsAnswer.setNetworkReadKBs(getDataAverage(dataNode, col, numRows)/(8*2));
-                } else if (param.equals("vif_0_tx")) {
-                	vmStatsAnswer.setNetworkWriteKBs(getDataAverage(dataNode, col, numRows)/(8*2));
-                }
+            if (param.contains("cpu")) {
+                vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
+                vmStatsAnswer.setCPUUtilization(((vmStatsAnswer.getCPUUtilization() + rrdData.getAverage(col))));
+            } else if (param.equals("vif_0_rx")) {
+            	vmStatsAnswer.setNetworkReadKBs(rrdData.getAverage(col)/(8*2));
+            } else if (param.equals("vif_0_tx")) {
+            	vmStatsAnswer.setNetworkWriteKBs(rrdData.getAverage(col)/(8*2));
             }
-
         }
 
         for (String vmUUID : vmResponseMap.keySet()) {
@@ -1934,13 +1873,32 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return vmResponseMap;
     }
 
-    protected Object[] getRRDData(Connection conn, int flag) {
+    /**
+     * Reads rrd_updates straight off the host with the session of the pooled
+     * connection, keeping only the columns asked for as it streams in.  Falls
+     * back to fetching it through the vmops plugin if that doesn't work.
+     * 
+     * @param flag 1 => called from host, hence host stats 2 => called from vm, hence vm stats
+     * @param uuids the vms to keep the columns of; null for all.
+     */
+    protected RrdUpdates getRRDData(Connection conn, int flag, Set<String> uuids) {
+        String type = flag == 1 ? "host" : "vm";
+        String query = "host=" + (flag == 1) + "&cf=" + _consolidationFunction + "&interval=" + _pollingIntervalInSeconds + "&start="
+                + (System.currentTimeMillis() / 1000 - 100);
 
-        /*
-         * Note: 1 => called from host, hence host stats 2 => called from vm, hence vm stats
-         */
-        String stats = "";
+        RrdUpdates rrdData = new RrdUpdates(type, uuids);
+        InputStream in = null;
+        try {
+            in = _connPool.openHttpStream(conn, _host.ip, "rrd_updates", query, _pollingIntervalInSeconds * 1000);
+            rrdData.parse(in);
+            return rrdData;
+        } catch (Exception e) {
+            s_logger.debug("Unable to read rrd_updates from " + _host.ip + ", going through the plugin: " + e.toString());
+        } finally {
+            XenServerConnectionPool.closeHttpStream(in);
+        }
 
+        String stats = null;
         try {
             if (flag == 1) {
                 stats = getHostStatsRawXML(conn);
@@ -1953,95 +1911,19 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             return null;
         }
 
-        // s_logger.debug("The raw xml stream is:"+stats);
-        // s_logger.debug("Length of raw xml is:"+stats.length());
-
         //stats are null when the host plugin call fails (host down state)
         if(stats == null) {
             return null;
         }
-        
-        StringReader statsReader = new StringReader(stats);
-        InputSource statsSource = new InputSource(statsReader);
 
-        Document doc = null;
+        rrdData = new RrdUpdates(type, uuids);
         try {
-            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(statsSource);
+            rrdData.parse(new StringReader(stats));
         } catch (Exception e) {
-        	s_logger.warn("Exception caught whilst processing the document via document factory:", e);
-        	return null;
-        }
-
-        if(doc==null){
-        	s_logger.warn("Null document found after tryinh to parse the stats source");
-        	return null;
-        }
-        
-        NodeList firstLevelChildren = doc.getChildNodes();
-        NodeList secondLevelChildren = (firstLevelChildren.item(0)).getChildNodes();
-        Node metaNode = secondLevelChildren.item(0);
-        Node dataNode = secondLevelChildren.item(1);
-
-        Integer numRows = 0;
-        Integer numColumns = 0;
-        Node legend = null;
-        NodeList metaNodeChildren = metaNode.getChildNodes();
-        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
-            Node n = metaNodeChildren.item(i);
-            if (n.getNodeName().equals("rows")) {
-                numRows = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("columns")) {
-                numColumns = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("legend")) {
-                legend = n;
-            }
-        }
-
-        return new Object[] { numRows, numColumns, legend, dataNode };
-    }
-
-    protected String getXMLNodeValue(Node n) {
-        return n.getChildNodes().item(0).getNodeValue();
-    }
-
-    protected double getDataAverage(Node dataNode, int col, int numRows) {
-        double value = 0;
-        double dummy = 0;
-        int numRowsUsed = 0;
-        for (int row = 0; row < numRows; row++) {
-            Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
-            Double currentDataAsDouble = Double.valueOf(getXMLNodeValue(data));
-            if (!currentDataAsDouble.equals(Double.NaN)) {
-                numRowsUsed += 1;
-                value += currentDataAsDouble;
-            }
-        }
-
-        if(numRowsUsed == 0)
-        {
-        	if((!Double.isInfinite(value))&&(!Double.isNaN(value)))
-        	{
-        		return value;
-        	}
-        	else
-        	{
-        		s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows=0");
-        		return dummy;
-        	}
-        }
-        else
-        {
-        	if((!Double.isInfinite(value/numRowsUsed))&&(!Double.isNaN(value/numRowsUsed)))
-        	{
-        		return (value/numRowsUsed);
-        	}
-        	else
-        	{
-        		s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows>0");
-        		return dummy;
-        	}
+            s_logger.warn("Exception caught whilst parsing the stats:", e);
+            return null;
         }
-        
+        return rrdData;
     }
 
     protected String getHostStatsRawXML(Connection conn) {
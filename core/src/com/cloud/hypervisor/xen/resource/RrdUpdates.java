@@ -0,0 +1,193 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * RrdUpdates reads what the rrd_updates handler of a XenServer host returns
+ * as it streams in.  Only the columns of the type asked for, host or vm, and
+ * of the uuids asked for are kept, each as a running sum over the rows; the
+ * values of every other column are skipped without being turned into strings.
+ * 
+ * The legend entries look like AVERAGE:vm:<uuid>:cpu0 and come before the rows.
+ */
+public class RrdUpdates {
+    private static final Logger s_logger = Logger.getLogger(RrdUpdates.class);
+
+    private static final XMLInputFactory s_factory = XMLInputFactory.newInstance();
+    static {
+        s_factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        s_factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        s_factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private final String _type;
+    private final Set<String> _wanted;
+
+    private int _rows;
+    private int _rowsRead;
+    private int _legendSize;
+    private int[] _slots = new int[64];    // legend column -> index into the kept columns; -1 if not kept
+    private final List<String> _keptUuids = new ArrayList<String>();
+    private final List<String> _keptParams = new ArrayList<String>();
+    private double[] _sums = new double[16];
+    private int[] _counts = new int[16];
+
+    /**
+     * @param type the type of object whose columns to keep: host or vm.
+     * @param uuids uuids of the objects whose columns to keep; null keeps all of the type.
+     */
+    public RrdUpdates(String type, Set<String> uuids) {
+        _type = type;
+        _wanted = uuids;
+    }
+
+    public void parse(InputStream in) throws XMLStreamException {
+        XMLStreamReader reader;
+        synchronized (s_factory) {
+            reader = s_factory.createXMLStreamReader(in);
+        }
+        parse(reader);
+    }
+
+    public void parse(Reader in) throws XMLStreamException {
+        XMLStreamReader reader;
+        synchronized (s_factory) {
+            reader = s_factory.createXMLStreamReader(in);
+        }
+        parse(reader);
+    }
+
+    protected void parse(XMLStreamReader reader) throws XMLStreamException {
+        try {
+            int column = 0;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+
+                String name = reader.getLocalName();
+                if (name.equals("v")) {
+                    int slot = column < _legendSize ? _slots[column] : -1;
+                    column++;
+                    if (slot >= 0) {
+                        add(slot, reader.getElementText());
+                    }
+                } else if (name.equals("row")) {
+                    column = 0;
+                    _rowsRead++;
+                } else if (name.equals("entry")) {
+                    addColumn(reader.getElementText());
+                } else if (name.equals("rows")) {
+                    _rows = Integer.parseInt(reader.getElementText().trim());
+                } else if (name.equals("columns")) {
+                    int columns = Integer.parseInt(reader.getElementText().trim());
+                    if (columns > _slots.length) {
+                        _slots = Arrays.copyOf(_slots, columns);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    protected void addColumn(String entry) {
+        if (_legendSize == _slots.length) {
+            _slots = Arrays.copyOf(_slots, _slots.length * 2);
+        }
+
+        int slot = -1;
+        String[] parts = entry.trim().split(":");
+        if (parts.length == 4 && parts[1].equalsIgnoreCase(_type) && (_wanted == null || _wanted.contains(parts[2]))) {
+            slot = _keptParams.size();
+            _keptUuids.add(parts[2]);
+            _keptParams.add(parts[3]);
+            if (slot == _sums.length) {
+                _sums = Arrays.copyOf(_sums, slot * 2);
+                _counts = Arrays.copyOf(_counts, slot * 2);
+            }
+        }
+        _slots[_legendSize++] = slot;
+    }
+
+    protected void add(int slot, String text) {
+        double value;
+        try {
+            value = Double.parseDouble(text.trim());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (!Double.isNaN(value)) {
+            _sums[slot] += value;
+            _counts[slot]++;
+        }
+    }
+
+    /**
+     * @return rows the meta section says there are.
+     */
+    public int getRows() {
+        return _rows;
+    }
+
+    public int getRowsRead() {
+        return _rowsRead;
+    }
+
+    /**
+     * @return number of columns kept.
+     */
+    public int getColumnCount() {
+        return _keptParams.size();
+    }
+
+    public String getUuid(int column) {
+        return _keptUuids.get(column);
+    }
+
+    public String getParam(int column) {
+        return _keptParams.get(column);
+    }
+
+    /**
+     * @return average of the column over the rows, leaving out the NaNs; 0 if the average is infinite or NaN.
+     */
+    public double getAverage(int column) {
+        int count = _counts[column];
+        double average = count == 0 ? _sums[column] : _sums[column] / count;
+        if (Double.isInfinite(average) || Double.isNaN(average)) {
+            s_logger.warn("Found an invalid value (infinity/NaN) for " + _keptParams.get(column) + " of " + _type + " " + _keptUuids.get(column));
+            return 0;
+        }
+        return average;
+    }
+}
@@ -21,6 +21,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.SocketException;
 import java.net.URL;
 import java.util.HashMap;
@@ -543,6 +545,54 @@ public class XenServerConnectionPool {
         }
     }
 
+    /**
+     * Opens one of the http handlers of a host, such as rrd_updates, with the
+     * session of a pooled connection; sessions are good on every host in the pool.
+     * Close the stream with closeHttpStream() so the https connection goes back
+     * into the jvm's keep alive cache for the next request to the host.
+     * 
+     * @param query parameters after the session id, already url encoded; may be null.
+     * @param timeout connect and read timeout in milliseconds.
+     */
+    public InputStream openHttpStream(Connection conn, String ip, String handler, String query, int timeout) throws IOException {
+        String session = conn.getSessionReference();
+        if (session == null) {
+            throw new IOException("No session to call " + handler + " on " + ip);
+        }
+
+        URL url = new URL("https://" + ip + "/" + handler + "?session_id=" + session + (query == null ? "" : "&" + query));
+        HttpURLConnection http = (HttpURLConnection)url.openConnection();
+        http.setConnectTimeout(timeout);
+        http.setReadTimeout(timeout);
+        int status = http.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            closeHttpStream(http.getErrorStream());
+            throw new IOException(handler + " on " + ip + " returned " + status + " " + http.getResponseMessage());
+        }
+        return http.getInputStream();
+    }
+
+    /**
+     * Reads what is left of the stream before closing it; the jvm only reuses
+     * connections whose responses were read to the end.
+     */
+    public static void closeHttpStream(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        byte[] buf = new byte[4096];
+        try {
+            while (in.read(buf) != -1) {
+            }
+        } catch (IOException e) {
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
     public Connection connect(String hostUuid, String poolUuid, String ipAddress,
             String username, Queue<String> password, int wait) {
         XenServerConnection mConn = null;
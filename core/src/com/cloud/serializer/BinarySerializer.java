@@ -0,0 +1,817 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.serializer;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.storage.template.TemplateInfo;
+import com.cloud.utils.Pair;
+import com.cloud.utils.Ternary;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * BinarySerializer marshalls command and answer object graphs into a compact
+ * tagged binary form.  It follows the same rules as the Gson based path:
+ * static and transient fields are skipped, a null on the wire leaves the
+ * field at whatever the constructor put there, and objects are created
+ * through their no-arg constructor when they have one.
+ *
+ * The first time a class shows up in a message its name, and for plain
+ * objects its field names, are written out.  After that the class is
+ * referred to by index.  The reader maps the field names onto its own
+ * version of the class so fields that only exist on one side are skipped.
+ *
+ * Reflection data for each class is looked up once and kept in a cache.
+ *
+ * Types that can't be represented (anything from java.* that isn't a
+ * primitive wrapper, String, Date, URI, array, Collection or Map) throw a
+ * CloudRuntimeException so the caller can fall back to Gson.
+ *
+ * The reader only creates objects of com.cloud.agent.api types, the known
+ * value types, and other com.cloud types where the field they go into asks
+ * for them.  Any other class named on the wire is refused before it's
+ * initialized.
+ */
+public class BinarySerializer {
+    protected static final byte TYPE_NULL = 0;
+    protected static final byte TYPE_BOOLEAN = 1;
+    protected static final byte TYPE_BYTE = 2;
+    protected static final byte TYPE_SHORT = 3;
+    protected static final byte TYPE_CHAR = 4;
+    protected static final byte TYPE_INT = 5;
+    protected static final byte TYPE_LONG = 6;
+    protected static final byte TYPE_FLOAT = 7;
+    protected static final byte TYPE_DOUBLE = 8;
+    protected static final byte TYPE_STRING = 9;
+    protected static final byte TYPE_ENUM = 10;
+    protected static final byte TYPE_BYTES = 11;
+    protected static final byte TYPE_ARRAY = 12;
+    protected static final byte TYPE_LIST = 13;
+    protected static final byte TYPE_SET = 14;
+    protected static final byte TYPE_MAP = 15;
+    protected static final byte TYPE_DATE = 16;
+    protected static final byte TYPE_OBJECT = 17;
+    protected static final byte TYPE_URI = 18;
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentHashMap<Class<?>, ClassSchema> s_schemas = new ConcurrentHashMap<Class<?>, ClassSchema>();
+    private static final ConcurrentHashMap<String, Class<?>> s_classes = new ConcurrentHashMap<String, Class<?>>();
+    private static final String s_pkg = "com.cloud.agent.api.";
+    private static final Set<Class<?>> s_valueTypes = new HashSet<Class<?>>();
+    private static final Map<Class<?>, Byte> s_primitives = new HashMap<Class<?>, Byte>();
+    private static final Object s_unsafe;
+    private static final Method s_allocateInstance;
+
+    static {
+        s_primitives.put(boolean.class, TYPE_BOOLEAN);
+        s_primitives.put(byte.class, TYPE_BYTE);
+        s_primitives.put(short.class, TYPE_SHORT);
+        s_primitives.put(char.class, TYPE_CHAR);
+        s_primitives.put(int.class, TYPE_INT);
+        s_primitives.put(long.class, TYPE_LONG);
+        s_primitives.put(float.class, TYPE_FLOAT);
+        s_primitives.put(double.class, TYPE_DOUBLE);
+
+        s_valueTypes.add(Pair.class);
+        s_valueTypes.add(Ternary.class);
+        s_valueTypes.add(TemplateInfo.class);
+
+        // Same trick Gson uses for classes without a no-arg constructor.
+        Object unsafe = null;
+        Method allocate = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            allocate = unsafeClass.getMethod("allocateInstance", Class.class);
+        } catch (Exception e) {
+            unsafe = null;
+            allocate = null;
+        }
+        s_unsafe = unsafe;
+        s_allocateInstance = allocate;
+    }
+
+    /**
+     * Serializes the object graph.
+     *
+     * @param obj object to serialize.
+     * @return flipped buffers holding the serialized form, ready to be sent.
+     */
+    public static ByteBuffer[] serialize(Object obj) {
+        Output out = new Output();
+        new Writer(out).writeValue(obj, null);
+        return out.toBuffers();
+    }
+
+    /**
+     * Deserializes an object graph written by serialize().  The buffer's
+     * position is moved past the value.
+     */
+    public static <T> T deserialize(ByteBuffer buffer, Class<T> clazz) {
+        try {
+            return clazz.cast(new Reader(buffer).readValue(clazz));
+        } catch (ClassCastException e) {
+            throw new CloudRuntimeException("Unable to deserialize into " + clazz.getName(), e);
+        } catch (RuntimeException e) {
+            if (e instanceof CloudRuntimeException) {
+                throw e;
+            }
+            throw new CloudRuntimeException("Unable to deserialize into " + clazz.getName(), e);
+        }
+    }
+
+    protected static ClassSchema getSchema(Class<?> clazz) {
+        ClassSchema schema = s_schemas.get(clazz);
+        if (schema == null) {
+            schema = new ClassSchema(clazz);
+            ClassSchema existing = s_schemas.putIfAbsent(clazz, schema);
+            if (existing != null) {
+                schema = existing;
+            }
+        }
+        return schema;
+    }
+
+    protected static Class<?> findClass(String name) {
+        Class<?> clazz = s_classes.get(name);
+        if (clazz == null) {
+            if (!isLoadable(name)) {
+                throw new CloudRuntimeException("Not allowed to deserialize " + name);
+            }
+            try {
+                clazz = Class.forName(name, false, BinarySerializer.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new CloudRuntimeException("Can't find " + name, e);
+            }
+            s_classes.put(name, clazz);
+        }
+        return clazz;
+    }
+
+    /**
+     * Only classes from our packages, java.lang and the dates get as far as being
+     * loaded; isAllowed() then decides what may be created.
+     */
+    protected static boolean isLoadable(String name) {
+        int dims = 0;
+        while (dims < name.length() && name.charAt(dims) == '[') {
+            dims++;
+        }
+        if (dims > 0) {
+            if (name.charAt(dims) != 'L') {
+                return name.length() == dims + 1;    // array of primitives
+            }
+            name = name.substring(dims + 1, name.length() - 1);
+        }
+        return name.startsWith("com.cloud.") || name.startsWith("java.lang.") || name.equals("java.util.Date") || name.equals("java.sql.Date")
+            || name.equals("java.sql.Time") || name.equals("java.sql.Timestamp");
+    }
+
+    /**
+     * @param type how the class is used on the wire.
+     * @param declared the type of the field or array the value goes into; null if unknown.
+     * @return true if the reader may create a value of the class.
+     */
+    protected static boolean isAllowed(Class<?> clazz, byte type, Class<?> declared) {
+        switch (type) {
+        case TYPE_ENUM:
+            return clazz.isEnum();
+        case TYPE_DATE:
+            return clazz == Date.class || (Date.class.isAssignableFrom(clazz) && clazz.getName().startsWith("java.sql."));
+        case TYPE_ARRAY:
+            return clazz.isArray();
+        case TYPE_OBJECT:
+            String name = clazz.getName();
+            if (name.startsWith(s_pkg) || s_valueTypes.contains(clazz)) {
+                return true;
+            }
+            return name.startsWith("com.cloud.") && declared != null && declared != Object.class && declared.isAssignableFrom(clazz);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Cached reflection data for one class.  Fields are ordered by the
+     * class hierarchy, top down, and then by name.
+     */
+    protected static class ClassSchema {
+        final Class<?> _clazz;
+        final Constructor<?> _constructor;
+        final Field[] _fields;
+        final byte[] _types;
+        final String[] _names;
+        final Map<String, Integer> _index;
+
+        ClassSchema(Class<?> clazz) {
+            _clazz = clazz;
+
+            List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                hierarchy.add(0, c);
+            }
+
+            List<Field> fields = new ArrayList<Field>();
+            for (Class<?> c : hierarchy) {
+                Field[] declared = c.getDeclaredFields();
+                Arrays.sort(declared, new Comparator<Field>() {
+                    @Override
+                    public int compare(Field f1, Field f2) {
+                        return f1.getName().compareTo(f2.getName());
+                    }
+                });
+                for (Field field : declared) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+
+            _fields = fields.toArray(new Field[fields.size()]);
+            _types = new byte[_fields.length];
+            _names = new String[_fields.length];
+            _index = new HashMap<String, Integer>();
+            for (int i = 0; i < _fields.length; i++) {
+                Byte type = s_primitives.get(_fields[i].getType());
+                _types[i] = type != null ? type : TYPE_OBJECT;
+                _names[i] = _fields[i].getName();
+                _index.put(_names[i], i);
+            }
+
+            Constructor<?> constructor = null;
+            try {
+                constructor = clazz.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                constructor = null;
+            }
+            _constructor = constructor;
+        }
+
+        Object newInstance() {
+            try {
+                if (_constructor != null) {
+                    return _constructor.newInstance();
+                }
+                if (s_allocateInstance != null) {
+                    return s_allocateInstance.invoke(s_unsafe, _clazz);
+                }
+            } catch (Exception e) {
+                throw new CloudRuntimeException("Unable to create " + _clazz.getName(), e);
+            }
+            throw new CloudRuntimeException("Unable to create " + _clazz.getName() + " without a no-arg constructor");
+        }
+    }
+
+    /**
+     * Output writes into a chain of heap buffers so that growing the
+     * message never copies what was already written.
+     */
+    protected static class Output {
+        static final int INITIAL_CHUNK = 1024;
+        static final int MAX_CHUNK = 64 * 1024;
+
+        final List<ByteBuffer> _chunks = new ArrayList<ByteBuffer>();
+        ByteBuffer _current;
+        int _nextChunkSize = INITIAL_CHUNK;
+
+        Output() {
+            _current = ByteBuffer.allocate(_nextChunkSize);
+            _chunks.add(_current);
+        }
+
+        ByteBuffer ensure(int bytes) {
+            if (_current.remaining() < bytes) {
+                if (_nextChunkSize < MAX_CHUNK) {
+                    _nextChunkSize <<= 1;
+                }
+                _current = ByteBuffer.allocate(Math.max(bytes, _nextChunkSize));
+                _chunks.add(_current);
+            }
+            return _current;
+        }
+
+        void put(byte b) {
+            ensure(1).put(b);
+        }
+
+        void putVarLong(long value) {
+            ByteBuffer buffer = ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte)value);
+        }
+
+        void putVarInt(int value) {
+            ByteBuffer buffer = ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer.put((byte)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte)value);
+        }
+
+        void putString(String str) {
+            int len = str.length();
+            int utfLen = 0;
+            for (int i = 0; i < len; i++) {
+                char c = str.charAt(i);
+                if (c < 0x80) {
+                    utfLen++;
+                } else if (c < 0x800) {
+                    utfLen += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                    utfLen += 4;
+                    i++;
+                } else {
+                    utfLen += 3;
+                }
+            }
+
+            putVarInt(utfLen);
+            ByteBuffer buffer = ensure(utfLen);
+            if (utfLen == len) {
+                for (int i = 0; i < len; i++) {
+                    buffer.put((byte)str.charAt(i));
+                }
+                return;
+            }
+
+            for (int i = 0; i < len; i++) {
+                char c = str.charAt(i);
+                if (c < 0x80) {
+                    buffer.put((byte)c);
+                } else if (c < 0x800) {
+                    buffer.put((byte)(0xC0 | (c >> 6)));
+                    buffer.put((byte)(0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, str.charAt(++i));
+                    buffer.put((byte)(0xF0 | (cp >> 18)));
+                    buffer.put((byte)(0x80 | ((cp >> 12) & 0x3F)));
+                    buffer.put((byte)(0x80 | ((cp >> 6) & 0x3F)));
+                    buffer.put((byte)(0x80 | (cp & 0x3F)));
+                } else {
+                    buffer.put((byte)(0xE0 | (c >> 12)));
+                    buffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put((byte)(0x80 | (c & 0x3F)));
+                }
+            }
+        }
+
+        ByteBuffer[] toBuffers() {
+            ByteBuffer[] buffers = new ByteBuffer[_chunks.size()];
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = _chunks.get(i);
+                buffers[i].flip();
+            }
+            return buffers;
+        }
+    }
+
+    protected static class Writer {
+        final Output _out;
+        final Map<Class<?>, Integer> _classIds = new IdentityHashMap<Class<?>, Integer>();
+
+        Writer(Output out) {
+            _out = out;
+        }
+
+        /**
+         * Refuses what the reader would refuse, so the caller can still send it some other way.
+         */
+        void writeClass(Class<?> clazz, ClassSchema schema, byte type, Class<?> declared) {
+            if (!isLoadable(clazz.getName()) || !isAllowed(clazz, type, declared)) {
+                throw new CloudRuntimeException("Unsupported type for binary serialization: " + clazz.getName()
+                    + (declared != null ? " in " + declared.getName() : ""));
+            }
+
+            Integer id = _classIds.get(clazz);
+            if (id != null) {
+                _out.putVarInt(id + 1);
+                return;
+            }
+            _classIds.put(clazz, _classIds.size());
+            _out.putVarInt(0);
+            _out.putString(clazz.getName());
+            if (schema != null) {
+                _out.putVarInt(schema._names.length);
+                for (String name : schema._names) {
+                    _out.putString(name);
+                }
+            }
+        }
+
+        /**
+         * @param declared the type of the field or array the value is in; null if unknown, as the reader sees it.
+         */
+        @SuppressWarnings("rawtypes")
+        void writeValue(Object value, Class<?> declared) {
+            if (value == null) {
+                _out.put(TYPE_NULL);
+                return;
+            }
+
+            Class<?> clazz = value.getClass();
+            if (clazz == String.class) {
+                _out.put(TYPE_STRING);
+                _out.putString((String)value);
+            } else if (clazz == Long.class) {
+                writeLong((Long)value);
+            } else if (clazz == Integer.class) {
+                writeInt((Integer)value);
+            } else if (clazz == Boolean.class) {
+                _out.put(TYPE_BOOLEAN);
+                _out.put((byte)(((Boolean)value) ? 1 : 0));
+            } else if (clazz == Double.class) {
+                _out.put(TYPE_DOUBLE);
+                _out.ensure(8).putDouble((Double)value);
+            } else if (clazz == Float.class) {
+                _out.put(TYPE_FLOAT);
+                _out.ensure(4).putFloat((Float)value);
+            } else if (clazz == Short.class) {
+                _out.put(TYPE_SHORT);
+                _out.putVarInt(zigzag((Short)value));
+            } else if (clazz == Byte.class) {
+                _out.put(TYPE_BYTE);
+                _out.put((Byte)value);
+            } else if (clazz == Character.class) {
+                _out.put(TYPE_CHAR);
+                _out.putVarInt((Character)value);
+            } else if (value instanceof Enum) {
+                _out.put(TYPE_ENUM);
+                writeClass(((Enum)value).getDeclaringClass(), null, TYPE_ENUM, declared);
+                _out.putString(((Enum)value).name());
+            } else if (clazz == byte[].class) {
+                byte[] bytes = (byte[])value;
+                _out.put(TYPE_BYTES);
+                _out.putVarInt(bytes.length);
+                _out.ensure(bytes.length).put(bytes);
+            } else if (clazz.isArray()) {
+                int len = Array.getLength(value);
+                _out.put(TYPE_ARRAY);
+                writeClass(clazz, null, TYPE_ARRAY, declared);
+                _out.putVarInt(len);
+                for (int i = 0; i < len; i++) {
+                    writeValue(Array.get(value, i), clazz.getComponentType());
+                }
+            } else if (value instanceof Date) {
+                _out.put(TYPE_DATE);
+                writeClass(clazz, null, TYPE_DATE, declared);
+                writeLong(((Date)value).getTime());
+            } else if (clazz == URI.class) {
+                _out.put(TYPE_URI);
+                _out.putString(value.toString());
+            } else if (value instanceof Map) {
+                Map map = (Map)value;
+                _out.put(TYPE_MAP);
+                _out.putVarInt(map.size());
+                for (Object o : map.entrySet()) {
+                    Map.Entry entry = (Map.Entry)o;
+                    writeValue(entry.getKey(), null);
+                    writeValue(entry.getValue(), null);
+                }
+            } else if (value instanceof Collection) {
+                Collection collection = (Collection)value;
+                _out.put(value instanceof Set ? TYPE_SET : TYPE_LIST);
+                _out.putVarInt(collection.size());
+                for (Object o : collection) {
+                    writeValue(o, null);
+                }
+            } else if (clazz.getName().startsWith("java.") || clazz.isAnonymousClass() || clazz.isLocalClass()) {
+                throw new CloudRuntimeException("Unsupported type for binary serialization: " + clazz.getName());
+            } else {
+                writeObject(value, clazz, declared);
+            }
+        }
+
+        void writeObject(Object value, Class<?> clazz, Class<?> declared) {
+            ClassSchema schema = getSchema(clazz);
+            _out.put(TYPE_OBJECT);
+            writeClass(clazz, schema, TYPE_OBJECT, declared);
+            Field[] fields = schema._fields;
+            byte[] types = schema._types;
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    Field field = fields[i];
+                    switch (types[i]) {
+                    case TYPE_INT:
+                        writeInt(field.getInt(value));
+                        break;
+                    case TYPE_LONG:
+                        writeLong(field.getLong(value));
+                        break;
+                    case TYPE_BOOLEAN:
+                        _out.put(TYPE_BOOLEAN);
+                        _out.put((byte)(field.getBoolean(value) ? 1 : 0));
+                        break;
+                    case TYPE_DOUBLE:
+                        _out.put(TYPE_DOUBLE);
+                        _out.ensure(8).putDouble(field.getDouble(value));
+                        break;
+                    case TYPE_FLOAT:
+                        _out.put(TYPE_FLOAT);
+                        _out.ensure(4).putFloat(field.getFloat(value));
+                        break;
+                    case TYPE_SHORT:
+                        _out.put(TYPE_SHORT);
+                        _out.putVarInt(zigzag(field.getShort(value)));
+                        break;
+                    case TYPE_BYTE:
+                        _out.put(TYPE_BYTE);
+                        _out.put(field.getByte(value));
+                        break;
+                    case TYPE_CHAR:
+                        _out.put(TYPE_CHAR);
+                        _out.putVarInt(field.getChar(value));
+                        break;
+                    default:
+                        writeValue(field.get(value), field.getType());
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to read fields of " + clazz.getName(), e);
+            }
+        }
+
+        void writeInt(int value) {
+            _out.put(TYPE_INT);
+            _out.putVarInt(zigzag(value));
+        }
+
+        void writeLong(long value) {
+            _out.put(TYPE_LONG);
+            _out.putVarLong((value << 1) ^ (value >> 63));
+        }
+
+        static int zigzag(int value) {
+            return (value << 1) ^ (value >> 31);
+        }
+    }
+
+    /**
+     * Class as seen in one message: the local schema plus, for plain objects,
+     * where each field on the wire lands locally (-1 if it doesn't exist here).
+     */
+    protected static class ClassEntry {
+        final Class<?> _clazz;
+        final ClassSchema _schema;
+        final int[] _fieldMap;
+
+        ClassEntry(Class<?> clazz, ClassSchema schema, int[] fieldMap) {
+            _clazz = clazz;
+            _schema = schema;
+            _fieldMap = fieldMap;
+        }
+    }
+
+    protected static class Reader {
+        final ByteBuffer _in;
+        final List<ClassEntry> _classes = new ArrayList<ClassEntry>();
+
+        Reader(ByteBuffer in) {
+            _in = in;
+        }
+
+        ClassEntry readClass(byte type, Class<?> declared) {
+            int id = getVarInt();
+            if (id > 0) {
+                return _classes.get(id - 1);
+            }
+
+            String name = getString();
+            Class<?> clazz = findClass(name);
+            if (!isAllowed(clazz, type, declared)) {
+                throw new CloudRuntimeException("Not allowed to deserialize " + name + (declared != null ? " into " + declared.getName() : ""));
+            }
+            ClassEntry entry;
+            if (type == TYPE_OBJECT) {
+                ClassSchema schema = getSchema(clazz);
+                int count = getVarInt();
+                int[] fieldMap = new int[count];
+                for (int i = 0; i < count; i++) {
+                    Integer index = schema._index.get(getString());
+                    fieldMap[i] = index != null ? index : -1;
+                }
+                entry = new ClassEntry(clazz, schema, fieldMap);
+            } else {
+                entry = new ClassEntry(clazz, null, null);
+            }
+            _classes.add(entry);
+            return entry;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Object readValue(Class<?> declared) {
+            byte type = _in.get();
+            switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_BOOLEAN:
+                return _in.get() != 0;
+            case TYPE_BYTE:
+                return _in.get();
+            case TYPE_SHORT:
+                return (short)unzigzag(getVarInt());
+            case TYPE_CHAR:
+                return (char)getVarInt();
+            case TYPE_INT:
+                return unzigzag(getVarInt());
+            case TYPE_LONG: {
+                long value = getVarLong();
+                return (value >>> 1) ^ -(value & 1);
+            }
+            case TYPE_FLOAT:
+                return _in.getFloat();
+            case TYPE_DOUBLE:
+                return _in.getDouble();
+            case TYPE_STRING:
+                return getString();
+            case TYPE_URI:
+                return URI.create(getString());
+            case TYPE_ENUM: {
+                ClassEntry entry = readClass(TYPE_ENUM, declared);
+                return Enum.valueOf((Class<? extends Enum>)entry._clazz, getString());
+            }
+            case TYPE_BYTES: {
+                byte[] bytes = new byte[getVarInt()];
+                _in.get(bytes);
+                return bytes;
+            }
+            case TYPE_ARRAY: {
+                ClassEntry entry = readClass(TYPE_ARRAY, declared);
+                Class<?> component = entry._clazz.getComponentType();
+                int len = getVarInt();
+                Object array = Array.newInstance(component, len);
+                for (int i = 0; i < len; i++) {
+                    Array.set(array, i, readValue(component));
+                }
+                return array;
+            }
+            case TYPE_DATE: {
+                ClassEntry entry = readClass(TYPE_DATE, declared);
+                long time = (Long)readValue(long.class);
+                if (entry._clazz == Date.class) {
+                    return new Date(time);
+                }
+                try {
+                    return entry._clazz.getConstructor(long.class).newInstance(time);
+                } catch (Exception e) {
+                    throw new CloudRuntimeException("Unable to create " + entry._clazz.getName(), e);
+                }
+            }
+            case TYPE_LIST:
+            case TYPE_SET: {
+                int size = getVarInt();
+                Collection collection = (Collection)newContainer(declared, type);
+                for (int i = 0; i < size; i++) {
+                    collection.add(readValue(null));
+                }
+                return collection;
+            }
+            case TYPE_MAP: {
+                int size = getVarInt();
+                Map map = (Map)newContainer(declared, type);
+                for (int i = 0; i < size; i++) {
+                    Object key = readValue(null);
+                    map.put(key, readValue(null));
+                }
+                return map;
+            }
+            case TYPE_OBJECT:
+                return readObject(declared);
+            default:
+                throw new CloudRuntimeException("Unknown type " + type + " at " + (_in.position() - 1));
+            }
+        }
+
+        Object readObject(Class<?> declared) {
+            ClassEntry entry = readClass(TYPE_OBJECT, declared);
+            ClassSchema schema = entry._schema;
+            Object obj = schema.newInstance();
+            int[] fieldMap = entry._fieldMap;
+            for (int i = 0; i < fieldMap.length; i++) {
+                int index = fieldMap[i];
+                Field field = index >= 0 ? schema._fields[index] : null;
+                Object value = readValue(field != null ? field.getType() : null);
+                if (field == null || value == null) {
+                    continue;
+                }
+                try {
+                    field.set(obj, value);
+                } catch (Exception e) {
+                    throw new CloudRuntimeException("Unable to set " + field.getName() + " on " + entry._clazz.getName(), e);
+                }
+            }
+            return obj;
+        }
+
+        Object newContainer(Class<?> declared, byte type) {
+            if (declared != null && !declared.isInterface() && !Modifier.isAbstract(declared.getModifiers()) && declared != Object.class) {
+                try {
+                    return declared.newInstance();
+                } catch (Exception e) {
+                    // fall through to the defaults.
+                }
+            }
+
+            if (type == TYPE_MAP) {
+                return (declared != null && SortedMap.class.isAssignableFrom(declared)) ? new TreeMap<Object, Object>() : new LinkedHashMap<Object, Object>();
+            } else if (type == TYPE_SET) {
+                return (declared != null && SortedSet.class.isAssignableFrom(declared)) ? new TreeSet<Object>() : new LinkedHashSet<Object>();
+            } else if (declared != null && Set.class.isAssignableFrom(declared)) {
+                return new LinkedHashSet<Object>();
+            }
+            return new ArrayList<Object>();
+        }
+
+        int getVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = _in.get();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        long getVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = _in.get();
+                value |= (long)(b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        String getString() {
+            int len = getVarInt();
+            String str;
+            if (_in.hasArray()) {
+                str = new String(_in.array(), _in.arrayOffset() + _in.position(), len, UTF8);
+                _in.position(_in.position() + len);
+            } else {
+                byte[] bytes = new byte[len];
+                _in.get(bytes);
+                str = new String(bytes, UTF8);
+            }
+            return str;
+        }
+
+        static int unzigzag(int value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
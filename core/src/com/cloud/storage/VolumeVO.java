@@ -39,7 +39,7 @@ import com.cloud.utils.db.GenericDao;
 @Table(name = "volumes")
 public class VolumeVO implements Volume {
     @Id
-    @TableGenerator(name = "volume_sq", table = "sequence", pkColumnName = "name", valueColumnName = "value", pkColumnValue = "volume_seq", allocationSize = 1)
+    @TableGenerator(name = "volume_sq", table = "sequence", pkColumnName = "name", valueColumnName = "value", pkColumnValue = "volume_seq", allocationSize = 10)
     @GeneratedValue(strategy = GenerationType.TABLE)
     @Column(name = "id")
     long id;
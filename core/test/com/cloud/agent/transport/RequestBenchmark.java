@@ -0,0 +1,90 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.agent.transport;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.transport.Request.Version;
+import com.cloud.utils.Profiler;
+
+/**
+ * Times the json and binary wire formats, and the compression codecs,
+ * against each other for the commands that dominate agent traffic.  Run it with -Dbenchmark.iterations
+ * to get numbers worth comparing; the default just keeps it honest.
+ */
+public class RequestBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(RequestBenchmark.class);
+
+    private static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 200);
+
+    public void testStartCommand() throws Exception {
+        run("StartCommand", new Command[] { RequestTest.createStartCommand(4) });
+    }
+
+    public void testSecurityIngressRules() throws Exception {
+        run("SecurityIngressRulesCmd", new Command[] { RequestTest.createIngressRulesCommand(1000) });
+    }
+
+    public void testCompressionCodecs() throws Exception {
+        Command[] cmds = new Command[] { RequestTest.createIngressRulesCommand(1000) };
+        try {
+            for (String codec : new String[] { "gzip", "deflate", "lz" }) {
+                Request.setCompressionCodec(codec);
+                long[] binary = measure(cmds, Version.v4);
+                s_logger.info("SecurityIngressRulesCmd with " + codec + ": " + binary[0] + " bytes, " + binary[1] + " ms for " + ITERATIONS + " round trips");
+            }
+        } finally {
+            Request.setCompressionCodec("deflate");
+        }
+    }
+
+    protected void run(String name, Command[] cmds) throws Exception {
+        long[] json = measure(cmds, Version.v1);
+        long[] binary = measure(cmds, Version.v4);
+        s_logger.info(name + ": json " + json[0] + " bytes, " + json[1] + " ms; binary " + binary[0] + " bytes, " + binary[1] + " ms for " + ITERATIONS
+                + " round trips");
+    }
+
+    protected long[] measure(Command[] cmds, Version ver) throws Exception {
+        int size = 0;
+        // warm up the schema caches and the jit first.
+        for (int i = 0; i < ITERATIONS / 10 + 1; i++) {
+            size = roundTrip(cmds, ver);
+        }
+
+        Profiler profiler = new Profiler();
+        profiler.start();
+        for (int i = 0; i < ITERATIONS; i++) {
+            roundTrip(cmds, ver);
+        }
+        profiler.stop();
+        return new long[] { size, profiler.getDuration() };
+    }
+
+    protected int roundTrip(Command[] cmds, Version ver) throws Exception {
+        Request req = new Request(2, 3, cmds, true, true);
+        req.setVersion(ver);
+        byte[] bytes = req.getBytes();
+        Request parsed = Request.parse(bytes);
+        assertEquals(cmds.length, parsed.getCommands().length);
+        return bytes.length;
+    }
+}
@@ -1,6 +1,8 @@
 package com.cloud.agent.transport;
 
+import java.net.URI;
 import java.nio.ByteBuffer;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
@@ -12,16 +14,31 @@ import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.GetHostStatsCommand;
 import com.cloud.agent.api.SecStorageFirewallCfgCommand;
+import com.cloud.agent.api.SecurityIngressRulesCmd;
+import com.cloud.agent.api.SecurityIngressRulesCmd.IpPortAndProto;
+import com.cloud.agent.api.StartCommand;
 import com.cloud.agent.api.UpdateHostPasswordCommand;
 import com.cloud.agent.api.storage.DownloadAnswer;
 import com.cloud.agent.api.storage.DownloadCommand;
+import com.cloud.agent.api.to.NicTO;
+import com.cloud.agent.api.to.VirtualMachineTO;
+import com.cloud.agent.api.to.VolumeTO;
 import com.cloud.exception.UnsupportedVersionException;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.network.Networks.BroadcastDomainType;
+import com.cloud.network.Networks.TrafficType;
+import com.cloud.serializer.BinarySerializer;
 import com.cloud.serializer.GsonHelper;
 import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.Storage.TemplateType;
 import com.cloud.storage.VMTemplateStorageResourceAssoc.Status;
+import com.cloud.storage.Storage.StoragePoolType;
 import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.Volume;
+import com.cloud.template.VirtualMachineTemplate.BootloaderType;
+import com.cloud.utils.Pair;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.vm.VirtualMachine;
 
 /**
  *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
@@ -121,6 +138,171 @@ public class RequestTest extends TestCase {
         compareRequest(cresp, sresp);
     }
 
+    public void testBinarySerDeser() throws Exception {
+        s_logger.info("Testing the binary wire format");
+        UpdateHostPasswordCommand cmd1 = new UpdateHostPasswordCommand("abc", "def");
+        SecStorageFirewallCfgCommand cmd2 = new SecStorageFirewallCfgCommand();
+        cmd2.addPortConfig("abc", "24", true, "eth0");
+        cmd2.addPortConfig("127.0.0.1", "44", false, "eth1");
+        cmd2.setContextParam("job", "job-12");
+        Request sreq = new Request(2, 3, new Command[] { cmd1, cmd2, createStartCommand(3), createIngressRulesCommand(50) }, true, true);
+        sreq.setSequence(892403718);
+        assert sreq.acceptsBinary();
+        sreq.setVersion(Request.Version.v4);
+
+        byte[] bytes = sreq.getBytes();
+        assert Request.getVersion(bytes) == Request.Version.v4;
+        assert Request.getSequence(bytes) == 892403718;
+        assert Request.getViaAgentId(bytes) == 2;
+
+        Request creq = Request.parse(bytes);
+        compareRequest(creq, sreq);
+        assert creq.acceptsBinary();
+        Command[] scmds = sreq.getCommands();
+        Command[] ccmds = creq.getCommands();
+        Assert.assertEquals(scmds.length, ccmds.length);
+        for (int i = 0; i < scmds.length; i++) {
+            Assert.assertEquals(GsonHelper.getGson().toJson(scmds[i]), GsonHelper.getGson().toJson(ccmds[i]));
+        }
+
+        Response sresp = new Response(creq, new Answer(cmd1, true, "No Problem"));
+        assert sresp.getVersion() == Request.Version.v4;
+        Response cresp = Response.parse(sresp.getBytes());
+        compareRequest(sresp, cresp);
+        Assert.assertEquals("No Problem", cresp.getAnswer().getDetails());
+
+        s_logger.info("A request parsed from the binary format can be sent out as json again");
+        creq.setVersion(Request.Version.v1);
+        Request jreq = Request.parse(creq.getBytes());
+        assert jreq.getVersion() == Request.Version.v1;
+        Assert.assertEquals(GsonHelper.getGson().toJson(scmds[2]), GsonHelper.getGson().toJson(jreq.getCommands()[2]));
+    }
+
+    public static class Gadget {
+        int _value = 1;
+    }
+
+    public static class GadgetPortConfig extends SecStorageFirewallCfgCommand.PortConfig {
+        public GadgetPortConfig() {
+            super("10.1.1.1", "80", true, "eth0");
+        }
+    }
+
+    public void testBinaryRefusesUnexpectedClasses() {
+        s_logger.info("The binary reader only creates the classes that are expected");
+        try {
+            BinarySerializer.serialize(new Pair<String, Object>("payload", new Gadget()));
+            fail("Wrote a class the reader won't create");
+        } catch (CloudRuntimeException e) {
+        }
+
+        ByteBuffer bytes = join(BinarySerializer.serialize(new Pair<String, Object>("payload", new GetHostStatsCommand("hostguid", "hostname", 101))));
+        bytes = replaceClassName(bytes, GetHostStatsCommand.class, Gadget.class);
+        try {
+            BinarySerializer.deserialize(bytes, Pair.class);
+            fail("Created a class no field asked for");
+        } catch (CloudRuntimeException e) {
+        }
+
+        bytes = join(BinarySerializer.serialize(new Pair<String, Object>("payload", TrafficType.Guest)));
+        Pair<?, ?> pair = BinarySerializer.deserialize(bytes, Pair.class);
+        Assert.assertEquals(TrafficType.Guest, pair.second());
+    }
+
+    public void testBinaryFallsBackToJson() throws Exception {
+        s_logger.info("A command with something the binary reader would refuse goes out as json");
+        SecStorageFirewallCfgCommand cmd = new SecStorageFirewallCfgCommand();
+        cmd.getPortConfigs().add(new GadgetPortConfig());
+        Request sreq = new Request(2, 3, new Command[] { cmd }, true, true);
+        sreq.setSequence(892403719);
+        sreq.setVersion(Request.Version.v4);
+
+        byte[] bytes = sreq.getBytes();
+        Assert.assertEquals(Request.Version.v1, Request.getVersion(bytes));
+        Request creq = Request.parse(bytes);
+        SecStorageFirewallCfgCommand ccmd = (SecStorageFirewallCfgCommand)creq.getCommands()[0];
+        Assert.assertEquals(1, ccmd.getPortConfigs().size());
+        Assert.assertEquals("10.1.1.1", ccmd.getPortConfigs().get(0).getSourceIp());
+    }
+
+    /**
+     * Puts another class name in the place of one that was written, the way a forged message would.
+     */
+    protected static ByteBuffer replaceClassName(ByteBuffer bytes, Class<?> written, Class<?> forged) {
+        byte[] in = new byte[bytes.remaining()];
+        bytes.get(in);
+        byte[] name = written.getName().getBytes();
+        byte[] replacement = forged.getName().getBytes();
+        // both are shorter than 128 bytes, so their lengths are written as a single byte
+        for (int i = 1; i + name.length <= in.length; i++) {
+            if (in[i - 1] != name.length) {
+                continue;
+            }
+            int j = 0;
+            while (j < name.length && in[i + j] == name[j]) {
+                j++;
+            }
+            if (j == name.length) {
+                ByteBuffer out = ByteBuffer.allocate(in.length - name.length + replacement.length);
+                out.put(in, 0, i - 1);
+                out.put((byte)replacement.length);
+                out.put(replacement);
+                out.put(in, i + name.length, in.length - i - name.length);
+                out.flip();
+                return out;
+            }
+        }
+        fail(written.getName() + " was not written");
+        return null;
+    }
+
+    protected static ByteBuffer join(ByteBuffer[] buffers) {
+        int size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        ByteBuffer joined = ByteBuffer.allocate(size);
+        for (ByteBuffer buffer : buffers) {
+            joined.put(buffer);
+        }
+        joined.flip();
+        return joined;
+    }
+
+    protected static StartCommand createStartCommand(int nics) {
+        VirtualMachineTO vm = new VirtualMachineTO(12, "i-2-12-VM", VirtualMachine.Type.User, 2, 2000, 512L * 1024 * 1024, 1024L * 1024 * 1024, BootloaderType.HVM,
+                "CentOS 5.5 (64-bit)", false, false, "vncpassword");
+        NicTO[] nicTOs = new NicTO[nics];
+        for (int i = 0; i < nics; i++) {
+            NicTO nic = new NicTO();
+            nic.setDeviceId(i);
+            nic.setIp("10.1.1." + (i + 10));
+            nic.setNetmask("255.255.255.0");
+            nic.setGateway("10.1.1.1");
+            nic.setMac("02:00:4c:5a:00:" + (10 + i));
+            nic.setDns1("8.8.8.8");
+            nic.setType(TrafficType.Guest);
+            nic.setBroadcastType(BroadcastDomainType.Vlan);
+            nic.setBroadcastUri(URI.create("vlan://" + (100 + i)));
+            nic.setNetworkRateMbps(200);
+            nic.setDefaultNic(i == 0);
+            nicTOs[i] = nic;
+        }
+        vm.setNics(nicTOs);
+        vm.setDisks(new VolumeTO[] { new VolumeTO(20, Volume.Type.ROOT, StoragePoolType.NetworkFilesystem, "poolUuid", "ROOT-12", "/mnt/pool", "/path/to/vol", 8L * 1024 * 1024 * 1024, null) });
+        return new StartCommand(vm);
+    }
+
+    protected static SecurityIngressRulesCmd createIngressRulesCommand(int cidrs) {
+        String[] allowed = new String[cidrs];
+        for (int i = 0; i < cidrs; i++) {
+            allowed[i] = "10." + (i / 256) + "." + (i % 256) + ".0/24";
+        }
+        IpPortAndProto[] rules = new IpPortAndProto[] { new IpPortAndProto("tcp", 22, 22, allowed), new IpPortAndProto("tcp", 80, 8080, allowed),
+                new IpPortAndProto("udp", 53, 53, allowed) };
+        return new SecurityIngressRulesCmd("10.1.1.10", "02:00:4c:5a:00:10", "i-2-12-VM", 12L, "signature", 100L, rules);
+    }
+
     public void testDownload() {
         s_logger.info("Testing Download answer");
         VMTemplateVO template = new VMTemplateVO(1, "templatename", ImageFormat.QCOW2, true, true, true, TemplateType.USER, "url", true, 32, 1, "chksum", "displayText", true, 30, true,
@@ -157,6 +339,41 @@ public class RequestTest extends TestCase {
         }
     }
     
+    public void testCompressionCodecs() throws Exception {
+        s_logger.info("Testing the compression codecs");
+        Command[] cmds = new Command[] { createIngressRulesCommand(1000) };
+        try {
+            for (String codec : new String[] { "gzip", "deflate", "lz" }) {
+                Request.setCompressionCodec(codec);
+                Request sreq = new Request(2, 3, cmds, true, true);
+                sreq.setVersion(Request.Version.v4);
+                byte[] bytes = sreq.getBytes();
+                Assert.assertEquals(Request.getCompressionCodec().getId(), bytes[1]);
+
+                Request creq = Request.parse(bytes);
+                Assert.assertEquals(GsonHelper.getGson().toJson(cmds[0]), GsonHelper.getGson().toJson(creq.getCommand()));
+
+                s_logger.info("json always goes out as gzip for older peers");
+                creq.setVersion(Request.Version.v1);
+                bytes = creq.getBytes();
+                Assert.assertEquals(0, bytes[1]);
+                Assert.assertEquals(GsonHelper.getGson().toJson(cmds[0]), GsonHelper.getGson().toJson(Request.parse(bytes).getCommand()));
+            }
+        } finally {
+            Request.setCompressionCodec("deflate");
+        }
+
+        boolean found = false;
+        for (Map<String, String> stats : CompressionStats.getInstance().getStatsByCommand()) {
+            if ("SecurityIngressRulesCmd".equals(stats.get("command")) && "lz".equals(stats.get("codec"))) {
+                Assert.assertEquals("1", stats.get("compressed"));
+                Assert.assertEquals("1", stats.get("decompressed"));
+                found = true;
+            }
+        }
+        assert found : "No compression stats for SecurityIngressRulesCmd";
+    }
+
     public void testLogging() {
         s_logger.info("Testing Logging");
         GetHostStatsCommand cmd3 = new GetHostStatsCommand("hostguid", "hostname", 101);
@@ -0,0 +1,211 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import com.cloud.utils.Profiler;
+
+/**
+ * Times reading rrd_updates with RrdUpdates against building the whole dom
+ * and walking it for every column, the way the stats used to be collected.
+ * The small sample is hand-written in the rrd_updates format for a host running
+ * two vms, with made-up uuids and values; the large one repeats its vm columns
+ * to look like a busy host.  Run it with
+ * -Dbenchmark.iterations and -Dbenchmark.vms to get numbers worth comparing.
+ */
+public class RrdUpdatesBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(RrdUpdatesBenchmark.class);
+
+    private static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 20);
+    private static final int VMS = Integer.getInteger("benchmark.vms", 200);
+
+    static final String HOST = "0f1c4d5e-7a26-4b0e-9d3f-3c1b2a6e8f10";
+    static final String VM1 = "2b9c1e4a-5d3f-4e7a-8c6b-1a2d3e4f5a6b";
+    static final String VM2 = "7e6d5c4b-3a29-4817-a6f5-e4d3c2b1a098";
+
+    static final String SAMPLE = "<xport><meta><start>1298937540</start><step>60</step><end>1298937600</end><rows>2</rows><columns>9</columns>"
+        + "<legend><entry>AVERAGE:host:" + HOST + ":cpu0</entry><entry>AVERAGE:host:" + HOST + ":cpu1</entry>"
+        + "<entry>AVERAGE:host:" + HOST + ":memory_total_kib</entry><entry>AVERAGE:host:" + HOST + ":memory_free_kib</entry>"
+        + "<entry>AVERAGE:host:" + HOST + ":pif_eth0_rx</entry><entry>AVERAGE:vm:" + VM1 + ":cpu0</entry>"
+        + "<entry>AVERAGE:vm:" + VM1 + ":vif_0_rx</entry><entry>AVERAGE:vm:" + VM2 + ":cpu0</entry>"
+        + "<entry>AVERAGE:vm:" + VM2 + ":vif_0_tx</entry></legend></meta>"
+        + "<data><row><t>1298937600</t><v>0.0412</v><v>0.0388</v><v>3.6699E6</v><v>1.2091E6</v><v>1240.5</v><v>0.0153</v><v>NaN</v><v>0.2504</v><v>64.0</v></row>"
+        + "<row><t>1298937540</t><v>0.0396</v><v>0.0420</v><v>3.6699E6</v><v>1.2075E6</v><v>1177.1</v><v>0.0147</v><v>NaN</v><v>0.2496</v><v>Infinity</v></row>"
+        + "</data></xport>";
+
+    public void testSmallSample() throws Exception {
+        RrdUpdates host = parse(SAMPLE, "host", null);
+        assertEquals(2, host.getRows());
+        assertEquals(5, host.getColumnCount());
+        assertEquals("memory_total_kib", host.getParam(2));
+        assertEquals(3.6699E6, host.getAverage(2), 0.001);
+        assertEquals(1208.8, host.getAverage(4), 0.001);
+
+        Set<String> uuids = new HashSet<String>();
+        uuids.add(VM2);
+        RrdUpdates vms = parse(SAMPLE, "vm", uuids);
+        assertEquals(2, vms.getColumnCount());
+        assertEquals(VM2, vms.getUuid(0));
+        assertEquals(0.25, vms.getAverage(0), 0.0001);
+        assertEquals("an infinite average counts as 0", 0.0, vms.getAverage(1));
+
+        compare(SAMPLE, "host", null);
+        compare(SAMPLE, "vm", null);
+    }
+
+    public void testBusyHost() throws Exception {
+        String xml = createSample(VMS, 60);
+        Set<String> uuids = new HashSet<String>();
+        for (int i = 0; i < VMS; i += 10) {
+            uuids.add(vmUuid(i));
+        }
+        compare(xml, "vm", uuids);
+
+        // warm up the parsers and the jit first.
+        for (int i = 0; i < ITERATIONS / 10 + 1; i++) {
+            parse(xml, "vm", uuids);
+            parseDom(xml, "vm", uuids);
+        }
+
+        Profiler dom = new Profiler();
+        dom.start();
+        for (int i = 0; i < ITERATIONS; i++) {
+            parseDom(xml, "vm", uuids);
+        }
+        dom.stop();
+
+        Profiler stream = new Profiler();
+        stream.start();
+        for (int i = 0; i < ITERATIONS; i++) {
+            parse(xml, "vm", uuids);
+        }
+        stream.stop();
+
+        s_logger.info("rrd_updates of " + xml.length() + " chars for " + VMS + " vms, keeping " + uuids.size() + ": dom " + dom.getDuration() + " ms, stream "
+                + stream.getDuration() + " ms for " + ITERATIONS + " parses");
+    }
+
+    protected static String vmUuid(int i) {
+        return String.format("%08x-5d3f-4e7a-8c6b-1a2d3e4f5a6b", i);
+    }
+
+    /**
+     * Repeats the vm columns of the small sample, with four vcpus and two vifs each.
+     */
+    protected static String createSample(int vms, int rows) {
+        String[] params = { "cpu0", "cpu1", "cpu2", "cpu3", "vif_0_rx", "vif_0_tx", "vif_1_rx", "vif_1_tx", "vbd_xvda_read", "vbd_xvda_write", "memory" };
+        StringBuilder xml = new StringBuilder("<xport><meta><start>1298937540</start><step>60</step><end>1298937600</end>");
+        xml.append("<rows>").append(rows).append("</rows><columns>").append(vms * params.length).append("</columns><legend>");
+        for (int i = 0; i < vms; i++) {
+            for (String param : params) {
+                xml.append("<entry>AVERAGE:vm:").append(vmUuid(i)).append(':').append(param).append("</entry>");
+            }
+        }
+        xml.append("</legend></meta><data>");
+        for (int row = 0; row < rows; row++) {
+            xml.append("<row><t>").append(1298937600 - row * 60).append("</t>");
+            for (int i = 0; i < vms; i++) {
+                for (int p = 0; p < params.length; p++) {
+                    xml.append("<v>").append(row % 7 == 3 && p == 4 ? "NaN" : String.valueOf((i * 31 + p * 7 + row) % 1000 / 1000.0)).append("</v>");
+                }
+            }
+            xml.append("</row>");
+        }
+        return xml.append("</data></xport>").toString();
+    }
+
+    protected static RrdUpdates parse(String xml, String type, Set<String> uuids) throws Exception {
+        RrdUpdates updates = new RrdUpdates(type, uuids);
+        updates.parse(new StringReader(xml));
+        return updates;
+    }
+
+    protected void compare(String xml, String type, Set<String> uuids) throws Exception {
+        RrdUpdates updates = parse(xml, type, uuids);
+        double[] expected = parseDom(xml, type, uuids);
+        assertEquals(expected.length, updates.getColumnCount());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(updates.getParam(i) + " of " + updates.getUuid(i), expected[i], updates.getAverage(i), 0.000001);
+        }
+    }
+
+    /**
+     * The averages of the columns kept, worked out from the dom as the stats collection used to.
+     */
+    protected static double[] parseDom(String xml, String type, Set<String> uuids) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        NodeList children = doc.getChildNodes().item(0).getChildNodes();
+        Node metaNode = children.item(0);
+        Node dataNode = children.item(1);
+
+        int numRows = 0;
+        int numColumns = 0;
+        Node legend = null;
+        NodeList metaChildren = metaNode.getChildNodes();
+        for (int i = 0; i < metaChildren.getLength(); i++) {
+            Node n = metaChildren.item(i);
+            if (n.getNodeName().equals("rows")) {
+                numRows = Integer.parseInt(n.getFirstChild().getNodeValue());
+            } else if (n.getNodeName().equals("columns")) {
+                numColumns = Integer.parseInt(n.getFirstChild().getNodeValue());
+            } else if (n.getNodeName().equals("legend")) {
+                legend = n;
+            }
+        }
+
+        double[] averages = new double[numColumns];
+        int kept = 0;
+        NodeList legendChildren = legend.getChildNodes();
+        for (int col = 0; col < numColumns; col++) {
+            String[] metadata = legendChildren.item(col).getFirstChild().getNodeValue().split(":");
+            if (!metadata[1].equalsIgnoreCase(type) || (uuids != null && !uuids.contains(metadata[2]))) {
+                continue;
+            }
+
+            double value = 0;
+            int numRowsUsed = 0;
+            for (int row = 0; row < numRows; row++) {
+                Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
+                double current = Double.parseDouble(data.getFirstChild().getNodeValue());
+                if (!Double.isNaN(current)) {
+                    numRowsUsed++;
+                    value += current;
+                }
+            }
+            double average = numRowsUsed == 0 ? value : value / numRowsUsed;
+            averages[kept++] = Double.isInfinite(average) || Double.isNaN(average) ? 0 : average;
+        }
+
+        double[] result = new double[kept];
+        System.arraycopy(averages, 0, result, 0, kept);
+        return result;
+    }
+}
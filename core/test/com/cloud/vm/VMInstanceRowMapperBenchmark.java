@@ -0,0 +1,208 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.vm;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.Profiler;
+import com.cloud.utils.db.Attribute;
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * Maps 10k vm_instance rows from an in-memory result set the way
+ * GenericDaoBase used to, looking up every column of every row, and with the
+ * compiled row mapper, and checks both end up with the same entities.  Run it
+ * with -Dbenchmark.iterations to get numbers worth comparing.
+ */
+public class VMInstanceRowMapperBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(VMInstanceRowMapperBenchmark.class);
+
+    private static final int ROWS = 10000;
+    private static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 5);
+
+    protected static class VMInstanceTestDao extends GenericDaoBase<VMInstanceVO, Long> {
+        protected List<Pair<String, Field>> getColumns() {
+            List<Pair<String, Field>> columns = new ArrayList<Pair<String, Field>>();
+            for (Map.Entry<Pair<String, String>, Attribute> entry : _allColumns.entrySet()) {
+                Attribute attr = entry.getValue();
+                if (attr.isSelectable() && attr.getField() != null && entry.getKey().first().equals("vm_instance")) {
+                    columns.add(new Pair<String, Field>(entry.getKey().second(), attr.getField()));
+                }
+            }
+            return columns;
+        }
+
+        protected List<VMInstanceVO> mapEachColumn(ResultSet rs) throws SQLException {
+            List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>();
+            while (rs.next()) {
+                VMInstanceVO vm = createForUpdate();
+                ResultSetMetaData meta = rs.getMetaData();
+                for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
+                    setField(vm, rs, meta, index);
+                }
+                vms.add(vm);
+            }
+            return vms;
+        }
+
+        protected List<VMInstanceVO> mapCompiled(ResultSet rs) throws SQLException {
+            return toEntityBeans(rs, false);
+        }
+    }
+
+    public void testMapping() throws Exception {
+        VMInstanceTestDao dao = new VMInstanceTestDao();
+        List<Pair<String, Field>> columns = dao.getColumns();
+        Object[][] rows = createRows(columns);
+
+        // warm up and check both give the same vms
+        List<VMInstanceVO> expected = dao.mapEachColumn(createResultSet(columns, rows));
+        List<VMInstanceVO> actual = dao.mapCompiled(createResultSet(columns, rows));
+        assertEquals(ROWS, actual.size());
+        for (int i = 0; i < ROWS; i++) {
+            for (Pair<String, Field> column : columns) {
+                Field field = column.second();
+                field.setAccessible(true);
+                assertEquals(column.first() + " of row " + i, field.get(expected.get(i)), field.get(actual.get(i)));
+            }
+        }
+        assertEquals(State.values()[2], actual.get(2).getState());
+        assertNull(actual.get(1).getHostId());
+
+        Profiler legacy = new Profiler();
+        legacy.start();
+        for (int i = 0; i < ITERATIONS; i++) {
+            dao.mapEachColumn(createResultSet(columns, rows));
+        }
+        legacy.stop();
+
+        Profiler compiled = new Profiler();
+        compiled.start();
+        for (int i = 0; i < ITERATIONS; i++) {
+            dao.mapCompiled(createResultSet(columns, rows));
+        }
+        compiled.stop();
+
+        s_logger.info("Mapped " + ITERATIONS + " x " + ROWS + " vm_instance rows of " + columns.size() + " columns: " + legacy.getDuration()
+                + " ms looking up each column, " + compiled.getDuration() + " ms with the compiled mapper");
+    }
+
+    protected Object[][] createRows(List<Pair<String, Field>> columns) {
+        State[] states = State.values();
+        Object[][] rows = new Object[ROWS][];
+        for (int i = 0; i < ROWS; i++) {
+            Object[] row = new Object[columns.size()];
+            for (int j = 0; j < row.length; j++) {
+                Class<?> type = columns.get(j).second().getType();
+                boolean nullable = !type.isPrimitive() && i % 2 == 1;
+                if (nullable) {
+                    row[j] = null;
+                } else if (type == State.class) {
+                    row[j] = states[i % states.length].name();
+                } else if (type.isEnum()) {
+                    row[j] = type.getEnumConstants()[0].toString().toUpperCase();
+                } else if (type == String.class) {
+                    row[j] = columns.get(j).first() + "-" + i;
+                } else if (type == java.util.Date.class) {
+                    row[j] = "2011-01-02 03:04:05";
+                } else if (type == boolean.class || type == Boolean.class) {
+                    row[j] = i % 3 == 0;
+                } else {
+                    row[j] = (long)i;
+                }
+            }
+            rows[i] = row;
+        }
+        return rows;
+    }
+
+    /**
+     * @return a read only, forward only result set over the rows, answering the calls the mappers make.
+     */
+    protected static ResultSet createResultSet(final List<Pair<String, Field>> columns, final Object[][] rows) {
+        final ResultSetMetaData meta = (ResultSetMetaData)Proxy.newProxyInstance(VMInstanceRowMapperBenchmark.class.getClassLoader(),
+                new Class<?>[] { ResultSetMetaData.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("getColumnCount")) {
+                            return columns.size();
+                        } else if (name.equals("getTableName")) {
+                            return "vm_instance";
+                        } else if (name.equals("getColumnName") || name.equals("getColumnLabel")) {
+                            return columns.get((Integer)args[0] - 1).first();
+                        } else if (name.equals("getCatalogName")) {
+                            return "cloud";
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+
+        return (ResultSet)Proxy.newProxyInstance(VMInstanceRowMapperBenchmark.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+            int _row = -1;
+            Object _last;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("next")) {
+                    return ++_row < rows.length;
+                } else if (name.equals("getMetaData")) {
+                    return meta;
+                } else if (name.equals("wasNull")) {
+                    return _last == null;
+                } else if (name.equals("close")) {
+                    return null;
+                }
+
+                Object value = _last = rows[_row][(Integer)args[0] - 1];
+                if (name.equals("getString") || name.equals("getObject")) {
+                    return value == null ? null : value.toString();
+                } else if (name.equals("getBytes")) {
+                    return value == null ? null : value.toString().getBytes("UTF-8");
+                } else if (name.equals("getDate")) {
+                    return value == null ? null : new java.sql.Date(0);
+                } else if (name.equals("getBoolean")) {
+                    return value != null && (Boolean)value;
+                } else if (name.equals("getLong")) {
+                    return value == null ? 0L : (Long)value;
+                } else if (name.equals("getInt")) {
+                    return value == null ? 0 : ((Long)value).intValue();
+                } else if (name.equals("getShort")) {
+                    return value == null ? (short)0 : ((Long)value).shortValue();
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+}
@@ -17,12 +17,16 @@
 #
 
 import cloud_utils
-from cloud_utils import Command
+from cloud_utils import Command, CalledProcessError
 from cloudutils.configFileOps import configFileOps
 import logging
 import sys
 import os
 import xml.dom.minidom
+try:
+    from hashlib import md5
+except ImportError:
+    from md5 import md5
 from optparse import OptionParser, OptionGroup, OptParseError, BadOptionError, OptionError, OptionConflictError, OptionValueError
 iptables = Command("iptables")
 bash = Command("/bin/bash")
@@ -53,32 +57,128 @@ def can_bridge_firewall(privnic):
     cleanup_rules()
     
     return True
-'''
-def ipset(ipsetname, proto, start, end, ips):
+def ipset_available():
     try:
-        check_call(['ipset', '-N', ipsetname, 'iptreemap'])
+        execute("which ipset")
+        return True
     except:
-        logging.debug("ipset chain already exists" + ipsetname)
+        return False
 
-    result = True
-    ipsettmp = ''.join(''.join(ipsetname.split('-')).split('_')) + str(int(time.time()) % 1000)
+def can_program_ipsets():
+    if not ipset_available():
+        return False
+    testset = "cloud_ipset_probe"
+    try:
+        ipset_create(testset)
+        execute("ipset -X " + testset)
+        return True
+    except:
+        logging.debug("ipset is installed but sets cannot be created")
+        return False
+
+def ipset_create(ipsetname):
+    # iptreemap is the ipset 4.x type, hash:net its replacement in 6.x
+    for settype in ['iptreemap', 'hash:net']:
+        try:
+            execute("ipset -N " + ipsetname + " " + settype)
+            return
+        except:
+            pass
+    raise Exception("Unable to create ipset " + ipsetname)
+
+def ipset_exists(ipsetname):
+    try:
+        execute("ipset -L " + ipsetname)
+        return True
+    except:
+        return False
+
+def ipset_members(ipsetname):
+    members = []
+    inMembers = False
+    for line in execute("ipset -L " + ipsetname).split('\n'):
+        line = line.strip()
+        if line == "Members:":
+            inMembers = True
+        elif inMembers:
+            if line == "":
+                break
+            members.append(line)
+    return members
+
+def ipset_name(vm_name, protocol, start, end):
+    # set names are limited to 31 characters, so the port range only goes in as a hash
+    return vm_name + "_" + md5(':'.join([protocol, start, end])).hexdigest()[:8]
 
-    try: 
-        check_call(['ipset', '-N', ipsettmp, 'iptreemap']) 
+def ipset_names_for_vm(vm_name):
+    try:
+        names = execute("ipset -L | grep '^Name: ' | awk '{print $2}'").split('\n')
+    except:
+        return []
+    return [name for name in names if name.startswith(vm_name + "_")]
+
+def ipset_add(ipsetname, ip):
+    try:
+        execute("ipset -A " + ipsetname + " " + ip)
+    except CalledProcessError, cpe:
+        if cpe.stderr is None or cpe.stderr.rfind('already') == -1:
+            raise
+
+def ipset(ipsetname, ips):
+    if not ipset_exists(ipsetname):
+        ipset_create(ipsetname)
+
+    result = True
+    ipsettmp = ipsetname + "-n"
+    try:
+        if ipset_exists(ipsettmp):
+            execute("ipset -X " + ipsettmp)
+        ipset_create(ipsettmp)
         for ip in ips:
-            try:
-                check_call(['ipset', '-A', ipsettmp, ip])
-            except CommandException, cex:
-                if cex.reason.rfind('already in set') == -1:
-                   raise
-        check_call(['ipset', '-W', ipsettmp, ipsetname]) 
-        check_call(['ipset', '-X', ipsettmp]) 
+            ipset_add(ipsettmp, ip)
+        execute("ipset -W " + ipsettmp + " " + ipsetname)
+        execute("ipset -X " + ipsettmp)
     except:
         logging.debug("Failed to program ipset " + ipsetname)
         result = False
 
     return result
-'''
+
+def destroy_ipsets_for_vm(vm_name, keep=[]):
+    for ipsetname in ipset_names_for_vm(vm_name):
+        if ipsetname in keep:
+            continue
+        try:
+            execute("ipset -X " + ipsetname)
+        except:
+            logging.debug("Ignoring failure to destroy ipset " + ipsetname)
+
+def set_match(ipsetname):
+    return "-m set --match-set " + ipsetname + " src"
+
+def rule_spec(protocol, start, end, match):
+    if protocol == 'all':
+        return "-m state --state NEW " + match + " -j ACCEPT"
+    if protocol == 'icmp':
+        range = start + "/" + end
+        if start == "-1":
+            range = "any"
+        return "-p icmp --icmp-type " + range + " " + match + " -j ACCEPT"
+    return "-p " + protocol + " -m " + protocol + " --dport " + start + ":" + end + " -m state --state NEW " + match + " -j ACCEPT"
+
+def parse_rules(rules):
+    if rules == "" or rules == None:
+        return []
+
+    parsed = []
+    for line in rules.split(';')[:-1]:
+        tokens = line.split(':')
+        if len(tokens) != 4:
+            continue
+        ips = tokens[3].split(",")
+        ips.pop()
+        parsed.append([tokens[0], tokens[1], tokens[2], ips])
+    return parsed
 
 def destroy_network_rules_for_vm(vm_name, vif=None):
     vmchain = vm_name
@@ -111,6 +211,8 @@ def destroy_network_rules_for_vm(vm_name, vif=None):
         execute("iptables -X " + vmchain)
     except:
         logging.debug("Ignoring failure to delete  chain " + vmchain)
+
+    destroy_ipsets_for_vm(vm_name)
     
     if vif is not None:
         try:
@@ -342,7 +444,7 @@ def rewrite_rule_log_for_vm(vm_name, new_domid):
         [_vmName,_vmID,_vmIP,_domID,_signature,_seqno] = line.split(',')
         break
     
-    write_rule_log_for_vm(_vmName, _vmID, '0.0.0.0', new_domid, _signature, '-1')
+    write_rule_log_for_vm(_vmName, _vmID, '0.0.0.0', new_domid, _signature, '-1', check_ipset_fallback_for_vm(vm_name))
 
 def get_rule_log_for_vm(vmName):
     vm_name = vmName;
@@ -521,7 +623,7 @@ def check_rule_log_for_vm(vmName, vmId, vmIP, domID, signature, seqno):
     
     return [(vm_name != _vmName), (vmId != _vmID), (vmIP != _vmIP), (domID != _domID), (signature != _signature),(seqno != _seqno)]
 
-def write_rule_log_for_vm(vmName, vmID, vmIP, domID, signature, seqno):
+def write_rule_log_for_vm(vmName, vmID, vmIP, domID, signature, seqno, ipset_fallback=False):
     vm_name = vmName
     logfilename = "/var/run/cloud/" + vm_name +".log"
     logging.debug("Writing log to " + logfilename)
@@ -531,6 +633,9 @@ def write_rule_log_for_vm(vmName, vmID, vmIP, domID, signature, seqno):
     try:
         logf.write(output)
         logf.write('\n')
+        # readers only parse the first line, the marker goes on its own
+        if ipset_fallback:
+            logf.write('ipset_fallback\n')
     except:
         logging.debug("Failed to write to rule log file " + logfilename)
         result = False
@@ -539,6 +644,17 @@ def write_rule_log_for_vm(vmName, vmID, vmIP, domID, signature, seqno):
     
     return result
 
+def check_ipset_fallback_for_vm(vmName):
+    logfilename = "/var/run/cloud/" + vmName +".log"
+    if not os.path.exists(logfilename):
+        return False
+    try:
+        lines = [line.rstrip() for line in open(logfilename)]
+    except:
+        logging.debug("failed to open " + logfilename)
+        return False
+    return 'ipset_fallback' in lines[1:]
+
 def remove_rule_log_for_vm(vmName):
     vm_name = vmName
     logfilename = "/var/run/cloud/" + vm_name +".log"
@@ -568,62 +684,116 @@ def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif
     if changes[0] or changes[1] or changes[2] or changes[3]:
         default_network_rules(vmName, vm_id, vm_ip, vmMac, vif, brname)
 
-    if rules == "" or rules == None:
-        lines = []
-    else:
-        lines = rules.split(';')[:-1]
+    use_ipsets = can_program_ipsets()
+    ipsets = []
+    ipset_fallback = False
 
     logging.debug("    programming network rules for  IP: " + vm_ip + " vmname=" + vm_name)
     execute("iptables -F " + vmchain)
-    
-    for line in lines:
-	
-        tokens = line.split(':')
-        if len(tokens) != 4:
-          continue
-        protocol = tokens[0]
-        start = tokens[1]
-        end = tokens[2]
-        cidrs = tokens.pop();
-        ips = cidrs.split(",")
-        ips.pop()
-        allow_any = False
-        if  '0.0.0.0/0' in ips:
-            i = ips.index('0.0.0.0/0')
-            del ips[i]
-            allow_any = True
-        range = start + ":" + end
-        if ips:    
-            if protocol == 'all':
-                for ip in ips:
-                    execute("iptables -I " + vmchain + " -m state --state NEW -s " + ip + " -j ACCEPT")
-            elif protocol != 'icmp':
-                for ip in ips:
-                    execute("iptables -I " + vmchain + " -p " + protocol + " -m " + protocol + " --dport " + range + " -m state --state NEW -s " + ip + " -j ACCEPT")
-            else:
-                range = start + "/" + end
-                if start == "-1":
-                    range = "any"
+    try:
+        for [protocol, start, end, ips] in parse_rules(rules):
+            allow_any = False
+            if  '0.0.0.0/0' in ips:
+                ips.remove('0.0.0.0/0')
+                allow_any = True
+            if ips:
+                ipsetname = ipset_name(vm_name, protocol, start, end)
+                if use_ipsets and ipset(ipsetname, ips):
+                    ipsets.append(ipsetname)
+                    execute("iptables -I " + vmchain + " " + rule_spec(protocol, start, end, set_match(ipsetname)))
+                else:
+                    ipset_fallback = True
                     for ip in ips:
-                        execute("iptables -I " + vmchain + " -p icmp --icmp-type " + range + " -s " + ip + " -j ACCEPT")
-        
-        if allow_any and protocol != 'all':
-            if protocol != 'icmp':
-                execute("iptables -I " + vmchain + " -p " + protocol + " -m " +  protocol + " --dport " + range + " -m state --state NEW -j ACCEPT")
-            else:
-                range = start + "/" + end
-                if start == "-1":
-                    range = "any"
-                    execute("iptables -I " + vmchain + " -p icmp --icmp-type " + range + " -j ACCEPT")
-
-    iptables =  "iptables -A " + vmchain + " -j DROP"       
-    execute(iptables)
-    if write_rule_log_for_vm(vmName, vm_id, vm_ip, domId, signature, seqno) == False:
+                        execute("iptables -I " + vmchain + " " + rule_spec(protocol, start, end, "-s " + ip))
+            
+            if allow_any and protocol != 'all':
+                execute("iptables -I " + vmchain + " " + rule_spec(protocol, start, end, ""))
+    finally:
+        # never leave the flushed chain open, whatever failed above
+        iptables =  "iptables -A " + vmchain + " -j DROP"       
+        execute(iptables)
+
+    if use_ipsets:
+        destroy_ipsets_for_vm(vm_name, ipsets)
+    if write_rule_log_for_vm(vmName, vm_id, vm_ip, domId, signature, seqno, ipset_fallback) == False:
         return 'false'
     
     return 'true'
   except:
-    logging.debug("Failed to network rule !: " + sys.exc_type)
+    logging.debug("Failed to network rule !: " + str(sys.exc_type))
+    # the chain only holds part of the rules, so the next update has to be a full one
+    remove_rule_log_for_vm(vm_name)
+    return 'false'
+
+def add_network_rules_delta(vm_name, vm_id, vm_ip, signature, seqno, base_signature, rules, revoked_rules):
+  try:
+    vmchain = vm_name
+    domId = getvmId(vm_name)
+
+    changes = check_rule_log_for_vm(vm_name, vm_id, vm_ip, domId, signature, seqno)
+    if not 1 in changes[:5]:
+        logging.debug("Rules already programmed for vm " + vm_name)
+        write_rule_log_for_vm(vm_name, vm_id, vm_ip, domId, signature, seqno, check_ipset_fallback_for_vm(vm_name))
+        return 'true'
+
+    # a delta only applies on top of exactly the ruleset it was computed from
+    changes = check_rule_log_for_vm(vm_name, vm_id, vm_ip, domId, base_signature, seqno)
+    if 1 in changes[:5]:
+        logging.debug("Rules programmed for vm " + vm_name + " are not the base of the update, a full ruleset is needed")
+        return 'false'
+
+    # rules programmed with per-cidr matches have no ipsets to change
+    if check_ipset_fallback_for_vm(vm_name):
+        logging.debug("Rules for vm " + vm_name + " were programmed without ipsets, a full ruleset is needed")
+        return 'unsupported'
+
+    if not ipset_available():
+        return 'unsupported'
+
+    logging.debug("    programming network rule changes for  IP: " + vm_ip + " vmname=" + vm_name)
+    for [protocol, start, end, ips] in parse_rules(revoked_rules):
+        if '0.0.0.0/0' in ips:
+            ips.remove('0.0.0.0/0')
+            if protocol != 'all':
+                execute("iptables -D " + vmchain + " " + rule_spec(protocol, start, end, ""))
+        if not ips:
+            continue
+        ipsetname = ipset_name(vm_name, protocol, start, end)
+        for ip in ips:
+            try:
+                execute("ipset -D " + ipsetname + " " + ip)
+            except:
+                logging.debug("Ignoring failure to remove " + ip + " from ipset " + ipsetname)
+        if not ipset_members(ipsetname):
+            execute("iptables -D " + vmchain + " " + rule_spec(protocol, start, end, set_match(ipsetname)))
+            execute("ipset -X " + ipsetname)
+
+    for [protocol, start, end, ips] in parse_rules(rules):
+        if '0.0.0.0/0' in ips:
+            ips.remove('0.0.0.0/0')
+            if protocol != 'all':
+                execute("iptables -I " + vmchain + " " + rule_spec(protocol, start, end, ""))
+        if not ips:
+            continue
+        ipsetname = ipset_name(vm_name, protocol, start, end)
+        created = False
+        if not ipset_exists(ipsetname):
+            ipset_create(ipsetname)
+            created = True
+        for ip in ips:
+            ipset_add(ipsetname, ip)
+        if created:
+            execute("iptables -I " + vmchain + " " + rule_spec(protocol, start, end, set_match(ipsetname)))
+
+    if write_rule_log_for_vm(vm_name, vm_id, vm_ip, domId, signature, seqno) == False:
+        return 'false'
+
+    return 'true'
+  except:
+    logging.debug("Failed to apply network rule changes !: " + str(sys.exc_type))
+    # whatever is programmed now no longer matches any signature
+    remove_rule_log_for_vm(vm_name)
+    return 'false'
 
 def getVifs(vmName):
     vifs = []
@@ -707,6 +877,8 @@ if __name__ == '__main__':
     parser.add_option("--sig", dest="sig")
     parser.add_option("--seq", dest="seq")
     parser.add_option("--rules", dest="rules")
+    parser.add_option("--basesig", dest="baseSig")
+    parser.add_option("--revokedrules", dest="revokedRules")
     parser.add_option("--brname", dest="brname")
     parser.add_option("--dhcpSvr", dest="dhcpSvr")
     parser.add_option("--hostIp", dest="hostIp")
@@ -715,6 +887,9 @@ if __name__ == '__main__':
     cmd = args[0]
     if cmd == "can_bridge_firewall":
         can_bridge_firewall(args[1])
+    elif cmd == "can_program_ipsets":
+        if not can_program_ipsets():
+            sys.exit(1)
     elif cmd == "default_network_rules":
         default_network_rules(option.vmName, option.vmID, option.vmIP, option.vmMAC, option.vif, option.brname)
     elif cmd == "destroy_network_rules_for_vm":
@@ -724,7 +899,15 @@ if __name__ == '__main__':
     elif cmd == "get_rule_logs_for_vms":
         get_rule_logs_for_vms()
     elif cmd == "add_network_rules":
-        add_network_rules(option.vmName, option.vmID, option.vmIP, option.sig, option.seq, option.vmMAC, option.rules, option.vif, option.brname)
+        if option.baseSig:
+            result = add_network_rules_delta(option.vmName, option.vmID, option.vmIP, option.sig, option.seq, option.baseSig, option.rules, option.revokedRules)
+            if result == 'unsupported':
+                print "delta_unsupported"
+            if result != 'true':
+                sys.exit(1)
+        else:
+            if add_network_rules(option.vmName, option.vmID, option.vmIP, option.sig, option.seq, option.vmMAC, option.rules, option.vif, option.brname) != 'true':
+                sys.exit(1)
     elif cmd == "cleanup_rules":
         cleanup_rules()
     elif cmd == "post_default_network_rules":
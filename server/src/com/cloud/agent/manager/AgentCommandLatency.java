@@ -0,0 +1,95 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * AgentCommandLatency keeps the command latencies agents send along with
+ * their pings.  Agents only send the types of commands that ran since their
+ * last ping, so what's kept for a host is merged with each ping.
+ */
+public class AgentCommandLatency implements AgentCommandLatencyMBean {
+    private final ConcurrentHashMap<Long, Map<String, String>> _latencies = new ConcurrentHashMap<Long, Map<String, String>>();
+
+    public void update(long hostId, Map<String, String> latencies) {
+        if (latencies == null || latencies.isEmpty()) {
+            return;
+        }
+
+        Map<String, String> current = _latencies.get(hostId);
+        if (current == null) {
+            current = new TreeMap<String, String>();
+            Map<String, String> existing = _latencies.putIfAbsent(hostId, current);
+            if (existing != null) {
+                current = existing;
+            }
+        }
+        synchronized (current) {
+            current.putAll(latencies);
+        }
+    }
+
+    public Map<String, String> getLatencies(long hostId) {
+        Map<String, String> current = _latencies.get(hostId);
+        if (current == null) {
+            return null;
+        }
+        synchronized (current) {
+            return new TreeMap<String, String>(current);
+        }
+    }
+
+    public void forgetHost(long hostId) {
+        _latencies.remove(hostId);
+    }
+
+    @Override
+    public List<Map<String, String>> getCommandLatencies() {
+        List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+        for (Long hostId : new TreeMap<Long, Map<String, String>>(_latencies).keySet()) {
+            Map<String, String> latencies = getLatencies(hostId);
+            if (latencies == null) {
+                continue;
+            }
+            for (Map.Entry<String, String> entry : latencies.entrySet()) {
+                Map<String, String> row = new LinkedHashMap<String, String>();
+                row.put("host", hostId.toString());
+                row.put("command", entry.getKey());
+                row.put("latency", entry.getValue());
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    @Override
+    public int getHostCount() {
+        return _latencies.size();
+    }
+
+    @Override
+    public void resetStatistics() {
+        _latencies.clear();
+    }
+}
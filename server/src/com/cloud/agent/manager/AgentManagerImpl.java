@@ -147,6 +147,7 @@ import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.HypervisorVersionChangedException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.Ip;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.nio.HandlerFactory;
@@ -253,6 +254,7 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
     protected int _pingInterval;
     protected long _pingTimeout;
     protected AgentMonitor _monitor = null;
+    protected final AgentCommandLatency _commandLatency = new AgentCommandLatency();
 
     protected ExecutorService _executor;
 
@@ -309,6 +311,12 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
 
         _connection = new NioServer("AgentManager", _port, workers + 10, this);
 
+        try {
+            JmxUtil.registerMBean("AgentManager", "CommandLatency", _commandLatency);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the agent command latency mbean", e);
+        }
+
         s_logger.info("Listening on " + _port + " with " + workers + " workers");
         return true;
     }
@@ -939,6 +947,7 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
         }
         if (removed != null) {
             removed.disconnect(nextState);
+            _commandLatency.forgetHost(hostId);
         }
     }
 
@@ -2342,6 +2351,7 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
                         handleCommands(attache, request.getSequence(), new Command[] { cmd });
                         if (cmd instanceof PingCommand) {
                             long cmdHostId = ((PingCommand) cmd).getHostId();
+                            _commandLatency.update(attache.getId(), ((PingCommand) cmd).getCommandLatencies());
 
                             // if the router is sending a ping, verify the
                             // gateway was pingable
@@ -2416,6 +2426,10 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
                     final byte[] data = task.getData();
                     try {
                         final Request event = Request.parse(data);
+                        final Object attache = task.getLink().attachment();
+                        if (attache instanceof ConnectedAgentAttache) {
+                            ((ConnectedAgentAttache) attache).setAcceptsBinary(event.acceptsBinary());
+                        }
                         if (event instanceof Response) {
                             processResponse(task.getLink(), (Response) event);
                         } else {
@@ -25,6 +25,7 @@ import org.apache.log4j.Logger;
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.host.Status;
 import com.cloud.utils.nio.Link;
@@ -36,6 +37,7 @@ public class ConnectedAgentAttache extends AgentAttache {
     private static final Logger s_logger = Logger.getLogger(ConnectedAgentAttache.class);
 
     protected Link _link;
+    protected volatile boolean _acceptsBinary;
 
     public ConnectedAgentAttache(AgentManager agentMgr, final long id, final Link link, boolean maintenance) {
         super(agentMgr, id, maintenance);
@@ -45,12 +47,22 @@ public class ConnectedAgentAttache extends AgentAttache {
     @Override
     public synchronized void send(Request req) throws AgentUnavailableException {
         try {
+            if (_acceptsBinary && req.getVersion() == Version.v1) {
+                req.setVersion(Version.v4);
+            }
             _link.send(req.toBytes());
         } catch (ClosedChannelException e) {
             throw new AgentUnavailableException("Channel is closed", _id);
         }
     }
 
+    /**
+     * Called when the agent tells us that it can parse binary requests.
+     */
+    public void setAcceptsBinary(boolean acceptsBinary) {
+        _acceptsBinary = acceptsBinary;
+    }
+
     @Override
     public synchronized boolean isClosed() {
         return _link == null;
@@ -51,18 +51,9 @@ import com.cloud.dc.HostPodVO;
 import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.dc.dao.DataCenterIpAddressDao;
 import com.cloud.dc.dao.HostPodDao;
-import com.cloud.host.HostVO;
-import com.cloud.host.Status;
-import com.cloud.host.dao.HostDao;
 import com.cloud.network.dao.IPAddressDao;
-import com.cloud.service.ServiceOfferingVO;
-import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.StorageManager;
-import com.cloud.storage.StoragePoolVO;
-import com.cloud.storage.dao.StoragePoolDao;
-import com.cloud.storage.dao.VolumeDao;
 import com.cloud.utils.NumbersUtil;
-import com.cloud.utils.Pair;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.Inject;
 import com.cloud.utils.db.DB;
@@ -84,16 +75,12 @@ public class AlertManagerImpl implements AlertManager {
     private String _name = null;
     private EmailAlert _emailAlert;
     @Inject private AlertDao _alertDao;
-    @Inject private HostDao _hostDao;
     @Inject protected StorageManager _storageMgr;
-    @Inject private ServiceOfferingDao _offeringsDao;
     @Inject private CapacityDao _capacityDao;
     @Inject private DataCenterDao _dcDao;
     @Inject private HostPodDao _podDao;
-    @Inject private VolumeDao _volumeDao;
     @Inject private IPAddressDao _publicIPAddressDao;
     @Inject private DataCenterIpAddressDao _privateIPAddressDao;
-    @Inject private StoragePoolDao _storagePoolDao;
     
     private Timer _timer = null;
     private float _cpuOverProvisioningFactor = 1;
@@ -229,37 +216,14 @@ public class AlertManagerImpl implements AlertManager {
 
     @Override @DB
     public void recalculateCapacity() {
-        // FIXME: the right way to do this is to register a listener (see RouterStatsListener, VMSyncListener)
-        //        for the vm sync state.  The listener model has connects/disconnects to keep things in sync much better
-        //        than this model right now, so when a VM is started, we update the amount allocated, and when a VM
-        //        is stopped we updated the amount allocated, and when VM sync reports a changed state, we update
-        //        the amount allocated.  Hopefully it's limited to 3 entry points and will keep the amount allocated
-        //        per host accurate.
-
-        if (s_logger.isTraceEnabled()) {
-            s_logger.trace("recalculating system capacity");
-        }
+        // Host cpu and memory and the storage allocated in each pool are kept up to date as vms change
+        // state and volumes come and go, and audited by CapacityManagerImpl.HostCapacityCollector.  Only
+        // the ip address capacity is recounted here.
 
-        // get all hosts..
-        SearchCriteria<HostVO> sc = _hostDao.createSearchCriteria();
-        sc.addAnd("status", SearchCriteria.Op.EQ, Status.Up.toString());
-
-        // prep the service offerings
-        List<ServiceOfferingVO> offerings = _offeringsDao.listAllIncludingRemoved();
-        Map<Long, ServiceOfferingVO> offeringsMap = new HashMap<Long, ServiceOfferingVO>();
-        for (ServiceOfferingVO offering : offerings) {
-            offeringsMap.put(offering.getId(), offering);
-        }
-        
-        // Calculate storage pool capacity
-        List<StoragePoolVO> storagePools = _storagePoolDao.listAll();
-        for (StoragePoolVO pool : storagePools) {
-            long disk = 0l;
-            Pair<Long, Long> sizes = _volumeDao.getCountAndTotalByPool(pool.getId());
-            disk = sizes.second();
-            _storageMgr.createCapacityEntry(pool, disk);
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("recalculating system capacity");
         }
-
+
         Transaction txn = Transaction.currentTxn();
         try {
         	txn.start();   
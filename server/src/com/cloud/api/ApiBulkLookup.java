@@ -0,0 +1,190 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.db.GenericDao;
+
+/**
+ * ApiBulkLookup resolves the entities a page of list responses refers to.  The ids each response will
+ * need are collected with want() first, and resolve() then loads every entity type with one IN query.
+ * While the lookup is open, the ApiDBUtils find methods look in it before going to the database, so
+ * the per-object response code doesn't have to change.
+ * 
+ * The lookup belongs to the thread that opened it.  Opening it again while it's open returns the same
+ * lookup; it goes away when the outermost open is closed.
+ */
+public class ApiBulkLookup {
+    private static final Logger s_logger = Logger.getLogger(ApiBulkLookup.class);
+
+    public interface Loader<T> {
+        Map<Long, T> load(Collection<Long> ids);
+    }
+
+    private static final Map<Class<?>, Loader<?>> s_loaders = new ConcurrentHashMap<Class<?>, Loader<?>>();
+    private static final ThreadLocal<ApiBulkLookup> s_current = new ThreadLocal<ApiBulkLookup>();
+
+    private final Map<Class<?>, Map<Long, Object>> _entities = new HashMap<Class<?>, Map<Long, Object>>();
+    private final Map<Class<?>, Set<Long>> _wanted = new LinkedHashMap<Class<?>, Set<Long>>();
+    private int _depth;
+    private int _queries;
+    private int _hits;
+
+    /**
+     * Sets how entities of a type are loaded.  Only types that have a loader are collected.
+     */
+    public static <T> void register(Class<T> type, Loader<? extends T> loader) {
+        s_loaders.put(type, loader);
+    }
+
+    public static <T> void register(Class<T> type, final GenericDao<? extends T, Long> dao, final boolean includingRemoved) {
+        register(type, new Loader<T>() {
+            @Override
+            public Map<Long, T> load(Collection<Long> ids) {
+                return new HashMap<Long, T>(includingRemoved ? dao.findByIdsIncludingRemoved(ids) : dao.findByIds(ids));
+            }
+        });
+    }
+
+    public static ApiBulkLookup open() {
+        ApiBulkLookup lookup = s_current.get();
+        if (lookup == null) {
+            lookup = new ApiBulkLookup();
+            s_current.set(lookup);
+        }
+        lookup._depth++;
+        return lookup;
+    }
+
+    public static ApiBulkLookup current() {
+        return s_current.get();
+    }
+
+    /**
+     * @return true if a lookup is open on this thread and has looked for this entity, whether it was found or not.
+     */
+    public static boolean isResolved(Class<?> type, Long id) {
+        ApiBulkLookup lookup = s_current.get();
+        return lookup != null && lookup.has(type, id);
+    }
+
+    public static <T> T find(Class<T> type, Long id) {
+        ApiBulkLookup lookup = s_current.get();
+        return lookup == null ? null : lookup.get(type, id);
+    }
+
+    public void close() {
+        if (--_depth == 0) {
+            s_current.remove();
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Bulk lookup closed after " + _queries + " queries and " + _hits + " hits");
+            }
+        }
+    }
+
+    public void want(Class<?> type, Long id) {
+        if (id == null || !s_loaders.containsKey(type)) {
+            return;
+        }
+        Map<Long, Object> entities = _entities.get(type);
+        if (entities != null && entities.containsKey(id)) {
+            return;
+        }
+        Set<Long> ids = _wanted.get(type);
+        if (ids == null) {
+            ids = new HashSet<Long>();
+            _wanted.put(type, ids);
+        }
+        ids.add(id);
+    }
+
+    /**
+     * Loads everything wanted since the last resolve, one query per type.  The entities loaded can be used to
+     * want the next level, e.g. the domains of the accounts, before resolving again.
+     */
+    public void resolve() {
+        List<Class<?>> types = new ArrayList<Class<?>>(_wanted.keySet());
+        for (Class<?> type : types) {
+            Set<Long> ids = _wanted.remove(type);
+            Loader<?> loader = s_loaders.get(type);
+            Map<Long, Object> entities = _entities.get(type);
+            if (entities == null) {
+                entities = new HashMap<Long, Object>();
+                _entities.put(type, entities);
+            }
+
+            Map<Long, ?> loaded = loader.load(ids);
+            _queries++;
+            for (Long id : ids) {
+                // remember the misses too so they aren't wanted again
+                entities.put(id, loaded.get(id));
+            }
+        }
+    }
+
+    public boolean has(Class<?> type, Long id) {
+        Map<Long, Object> entities = _entities.get(type);
+        return entities != null && entities.containsKey(id);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T get(Class<T> type, Long id) {
+        Map<Long, Object> entities = _entities.get(type);
+        if (entities == null || !entities.containsKey(id)) {
+            return null;
+        }
+        _hits++;
+        return (T)entities.get(id);
+    }
+
+    /**
+     * @return the entities of a type that have been resolved, for wanting the next level.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Collection<T> getAll(Class<T> type) {
+        Map<Long, Object> entities = _entities.get(type);
+        List<T> all = new ArrayList<T>();
+        if (entities != null) {
+            for (Object entity : entities.values()) {
+                if (entity != null) {
+                    all.add((T)entity);
+                }
+            }
+        }
+        return all;
+    }
+
+    public int getQueries() {
+        return _queries;
+    }
+
+    public int getHits() {
+        return _hits;
+    }
+}
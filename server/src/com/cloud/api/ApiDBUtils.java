@@ -77,10 +77,12 @@ import com.cloud.projects.ProjectService;
 import com.cloud.server.Criteria;
 import com.cloud.server.ManagementServer;
 import com.cloud.server.StatsCollector;
+import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.DiskOfferingVO;
 import com.cloud.storage.GuestOS;
 import com.cloud.storage.GuestOSCategoryVO;
+import com.cloud.storage.GuestOSVO;
 import com.cloud.storage.Snapshot;
 import com.cloud.storage.SnapshotVO;
 import com.cloud.storage.StorageManager;
@@ -223,6 +225,22 @@ public class ApiDBUtils {
 
         // Note: stats collector should already have been initialized by this time, otherwise a null instance is returned
         _statsCollector = StatsCollector.getInstance();
+
+        // what list responses can resolve in bulk; the same removed handling as the find methods below
+        ApiBulkLookup.register(AccountVO.class, _accountDao, true);
+        ApiBulkLookup.register(DomainVO.class, _domainDao, true);
+        ApiBulkLookup.register(DataCenterVO.class, _zoneDao, false);
+        ApiBulkLookup.register(VMInstanceVO.class, _vmDao, false);
+        ApiBulkLookup.register(UserVmVO.class, _userVmDao, false);
+        ApiBulkLookup.register(DiskOfferingVO.class, _diskOfferingDao, true);
+        ApiBulkLookup.register(ServiceOfferingVO.class, _serviceOfferingDao, true);
+        ApiBulkLookup.register(StoragePoolVO.class, _storagePoolDao, true);
+        ApiBulkLookup.register(VMTemplateVO.class, _templateDao, true);
+        ApiBulkLookup.register(GuestOSVO.class, _guestOSDao, true);
+        ApiBulkLookup.register(HostVO.class, _hostDao, true);
+        ApiBulkLookup.register(NetworkVO.class, _networkDao, false);
+        ApiBulkLookup.register(NetworkOfferingVO.class, _networkOfferingDao, true);
+        ApiBulkLookup.register(VlanVO.class, _vlanDao, false);
     }
 
     // ///////////////////////////////////////////////////////////
@@ -230,6 +248,9 @@ public class ApiDBUtils {
     // ///////////////////////////////////////////////////////////
 
     public static VMInstanceVO findVMInstanceById(long vmId) {
+        if (ApiBulkLookup.isResolved(VMInstanceVO.class, vmId)) {
+            return ApiBulkLookup.find(VMInstanceVO.class, vmId);
+        }
         return _vmDao.findById(vmId);
     }
 
@@ -360,6 +381,9 @@ public class ApiDBUtils {
     }
 
     public static Account findAccountByIdIncludingRemoved(Long accountId) {
+        if (ApiBulkLookup.isResolved(AccountVO.class, accountId)) {
+            return ApiBulkLookup.find(AccountVO.class, accountId);
+        }
         return _accountDao.findByIdIncludingRemoved(accountId);
     }
 
@@ -372,10 +396,16 @@ public class ApiDBUtils {
     }
 
     public static DiskOfferingVO findDiskOfferingById(Long diskOfferingId) {
+        if (ApiBulkLookup.isResolved(DiskOfferingVO.class, diskOfferingId)) {
+            return ApiBulkLookup.find(DiskOfferingVO.class, diskOfferingId);
+        }
         return _diskOfferingDao.findByIdIncludingRemoved(diskOfferingId);
     }
 
     public static DomainVO findDomainById(Long domainId) {
+        if (ApiBulkLookup.isResolved(DomainVO.class, domainId)) {
+            return ApiBulkLookup.find(DomainVO.class, domainId);
+        }
         return _domainDao.findByIdIncludingRemoved(domainId);
     }
 
@@ -388,6 +418,9 @@ public class ApiDBUtils {
     }
 
     public static GuestOS findGuestOSById(Long id) {
+        if (ApiBulkLookup.isResolved(GuestOSVO.class, id)) {
+            return ApiBulkLookup.find(GuestOSVO.class, id);
+        }
         return _guestOSDao.findByIdIncludingRemoved(id);
     }
 
@@ -396,6 +429,9 @@ public class ApiDBUtils {
     }
     
     public static HostVO findHostById(Long hostId) {
+        if (ApiBulkLookup.isResolved(HostVO.class, hostId)) {
+            return ApiBulkLookup.find(HostVO.class, hostId);
+        }
         return _hostDao.findByIdIncludingRemoved(hostId);
     }
 
@@ -443,6 +479,9 @@ public class ApiDBUtils {
     }
 
     public static ServiceOffering findServiceOfferingById(Long serviceOfferingId) {
+        if (ApiBulkLookup.isResolved(ServiceOfferingVO.class, serviceOfferingId)) {
+            return ApiBulkLookup.find(ServiceOfferingVO.class, serviceOfferingId);
+        }
         return _serviceOfferingDao.findByIdIncludingRemoved(serviceOfferingId);
     }
 
@@ -456,10 +495,16 @@ public class ApiDBUtils {
     }
 
     public static StoragePoolVO findStoragePoolById(Long storagePoolId) {
+        if (ApiBulkLookup.isResolved(StoragePoolVO.class, storagePoolId)) {
+            return ApiBulkLookup.find(StoragePoolVO.class, storagePoolId);
+        }
         return _storagePoolDao.findByIdIncludingRemoved(storagePoolId);
     }
 
     public static VMTemplateVO findTemplateById(Long templateId) {
+        if (ApiBulkLookup.isResolved(VMTemplateVO.class, templateId)) {
+            return ApiBulkLookup.find(VMTemplateVO.class, templateId);
+        }
         return _templateDao.findByIdIncludingRemoved(templateId);
     }
     
@@ -486,10 +531,16 @@ public class ApiDBUtils {
     }
 
     public static UserVm findUserVmById(Long vmId) {
+        if (ApiBulkLookup.isResolved(UserVmVO.class, vmId)) {
+            return ApiBulkLookup.find(UserVmVO.class, vmId);
+        }
         return _userVmDao.findById(vmId);
     }
 
     public static VlanVO findVlanById(long vlanDbId) {
+        if (ApiBulkLookup.isResolved(VlanVO.class, vlanDbId)) {
+            return ApiBulkLookup.find(VlanVO.class, vlanDbId);
+        }
         return _vlanDao.findById(vlanDbId);
     }
 
@@ -502,6 +553,9 @@ public class ApiDBUtils {
     }
 
     public static DataCenterVO findZoneById(Long zoneId) {
+        if (ApiBulkLookup.isResolved(DataCenterVO.class, zoneId)) {
+            return ApiBulkLookup.find(DataCenterVO.class, zoneId);
+        }
         return _zoneDao.findById(zoneId);
     }
 
@@ -562,6 +616,9 @@ public class ApiDBUtils {
     }
 
     public static NetworkOfferingVO findNetworkOfferingById(long networkOfferingId) {
+        if (ApiBulkLookup.isResolved(NetworkOfferingVO.class, networkOfferingId)) {
+            return ApiBulkLookup.find(NetworkOfferingVO.class, networkOfferingId);
+        }
         return _networkOfferingDao.findByIdIncludingRemoved(networkOfferingId);
     }
 
@@ -570,6 +627,9 @@ public class ApiDBUtils {
     }
 
     public static NetworkVO findNetworkById(long id) {
+        if (ApiBulkLookup.isResolved(NetworkVO.class, id)) {
+            return ApiBulkLookup.find(NetworkVO.class, id);
+        }
         return _networkDao.findById(id);
     }
 
@@ -582,7 +642,7 @@ public class ApiDBUtils {
     }
 
     public static Long getVlanNetworkId(long vlanId) {
-        VlanVO vlan = _vlanDao.findById(vlanId);
+        VlanVO vlan = findVlanById(vlanId);
         if (vlan != null) {
             return vlan.getNetworkId();
         } else {
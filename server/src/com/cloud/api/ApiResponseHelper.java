@@ -33,6 +33,7 @@ import org.apache.log4j.Logger;
 
 import com.cloud.acl.ControlledEntity;
 import com.cloud.api.commands.QueryAsyncJobResultCmd;
+import com.cloud.api.commands.QueryAsyncJobResultsCmd;
 import com.cloud.api.response.AccountResponse;
 import com.cloud.api.response.ApiResponseSerializer;
 import com.cloud.api.response.AsyncJobResponse;
@@ -106,6 +107,7 @@ import com.cloud.dc.Vlan;
 import com.cloud.dc.Vlan.VlanType;
 import com.cloud.dc.VlanVO;
 import com.cloud.domain.Domain;
+import com.cloud.domain.DomainVO;
 import com.cloud.event.Event;
 import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.host.Host;
@@ -133,14 +135,17 @@ import com.cloud.network.security.SecurityGroupRules;
 import com.cloud.offering.DiskOffering;
 import com.cloud.offering.NetworkOffering;
 import com.cloud.offering.ServiceOffering;
+import com.cloud.offerings.NetworkOfferingVO;
 import com.cloud.org.Cluster;
 import com.cloud.projects.Project;
 import com.cloud.projects.ProjectAccount;
 import com.cloud.projects.ProjectInvitation;
 import com.cloud.server.Criteria;
+import com.cloud.service.ServiceOfferingVO;
 import com.cloud.storage.DiskOfferingVO;
 import com.cloud.storage.GuestOS;
 import com.cloud.storage.GuestOSCategoryVO;
+import com.cloud.storage.GuestOSVO;
 import com.cloud.storage.Snapshot;
 import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.Storage.StoragePoolType;
@@ -158,17 +163,20 @@ import com.cloud.storage.snapshot.SnapshotPolicy;
 import com.cloud.template.VirtualMachineTemplate;
 import com.cloud.test.PodZoneConfig;
 import com.cloud.user.Account;
+import com.cloud.user.AccountVO;
 import com.cloud.user.User;
 import com.cloud.user.UserAccount;
 import com.cloud.user.UserContext;
 import com.cloud.user.UserStatisticsVO;
 import com.cloud.user.UserVO;
 import com.cloud.uservm.UserVm;
+import com.cloud.utils.Pair;
 import com.cloud.utils.StringUtils;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.ConsoleProxyVO;
 import com.cloud.vm.InstanceGroup;
 import com.cloud.vm.NicProfile;
+import com.cloud.vm.UserVmVO;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
@@ -696,6 +704,28 @@ public class ApiResponseHelper implements ResponseGenerator {
         return ipResponse;
     }
 
+    @Override
+    public List<IPAddressResponse> createIPAddressResponses(List<? extends IpAddress> ipAddresses) {
+        ApiBulkLookup lookup = ApiBulkLookup.open();
+        try {
+            for (IpAddress ipAddress : ipAddresses) {
+                lookup.want(VlanVO.class, ipAddress.getVlanId());
+                lookup.want(DataCenterVO.class, ipAddress.getDataCenterId());
+                lookup.want(UserVmVO.class, ipAddress.getAssociatedWithVmId());
+                wantOwner(lookup, ipAddress);
+            }
+            lookup.resolve();
+
+            List<IPAddressResponse> responses = new ArrayList<IPAddressResponse>(ipAddresses.size());
+            for (IpAddress ipAddress : ipAddresses) {
+                responses.add(createIPAddressResponse(ipAddress));
+            }
+            return responses;
+        } finally {
+            lookup.close();
+        }
+    }
+
     @Override
     public LoadBalancerResponse createLoadBalancerResponse(LoadBalancer loadBalancer) {
         LoadBalancerResponse lbResponse = new LoadBalancerResponse();
@@ -910,6 +940,33 @@ public class ApiResponseHelper implements ResponseGenerator {
         return volResponse;
     }
 
+    @Override
+    public List<VolumeResponse> createVolumeResponses(List<? extends Volume> volumes) {
+        ApiBulkLookup lookup = ApiBulkLookup.open();
+        try {
+            for (Volume volume : volumes) {
+                lookup.want(DataCenterVO.class, volume.getDataCenterId());
+                if (volume.getInstanceId() != null && volume.getState() != Volume.State.Destroy) {
+                    lookup.want(VMInstanceVO.class, volume.getInstanceId());
+                    lookup.want(UserVmVO.class, volume.getInstanceId());
+                }
+                lookup.want(DiskOfferingVO.class, volume.getDiskOfferingId());
+                lookup.want(StoragePoolVO.class, volume.getPoolId());
+                lookup.want(VMTemplateVO.class, volume.getTemplateId());
+                wantOwner(lookup, volume);
+            }
+            lookup.resolve();
+
+            List<VolumeResponse> responses = new ArrayList<VolumeResponse>(volumes.size());
+            for (Volume volume : volumes) {
+                responses.add(createVolumeResponse(volume));
+            }
+            return responses;
+        } finally {
+            lookup.close();
+        }
+    }
+
     @Override
     public InstanceGroupResponse createInstanceGroupResponse(InstanceGroup group) {
         InstanceGroupResponse groupResponse = new InstanceGroupResponse();
@@ -1111,6 +1168,14 @@ public class ApiResponseHelper implements ResponseGenerator {
 
                 Double networkKbWrite = Double.valueOf(vmStats.getNetworkWriteKBs());
                 userVmResponse.setNetworkKbsWrite(networkKbWrite.longValue());
+
+                // left unset rather than 0 when the hypervisor doesn't collect them
+                if (vmStats.isDiskStatsReported()) {
+                    userVmResponse.setDiskKbsRead(Double.valueOf(vmStats.getDiskReadKBs()).longValue());
+                    userVmResponse.setDiskKbsWrite(Double.valueOf(vmStats.getDiskWriteKBs()).longValue());
+                    userVmResponse.setDiskIORead(Double.valueOf(vmStats.getDiskReadIOs()).longValue());
+                    userVmResponse.setDiskIOWrite(Double.valueOf(vmStats.getDiskWriteIOs()).longValue());
+                }
             }
             userVmResponse.setObjectName(objectName);
             
@@ -1187,6 +1252,28 @@ public class ApiResponseHelper implements ResponseGenerator {
         return routerResponse;
     }
 
+    @Override
+    public List<DomainRouterResponse> createDomainRouterResponses(List<? extends VirtualRouter> routers) {
+        ApiBulkLookup lookup = ApiBulkLookup.open();
+        try {
+            for (VirtualRouter router : routers) {
+                lookup.want(HostVO.class, router.getHostId());
+                lookup.want(ServiceOfferingVO.class, router.getServiceOfferingId());
+                lookup.want(DataCenterVO.class, router.getDataCenterIdToDeployIn());
+                wantOwner(lookup, router);
+            }
+            lookup.resolve();
+
+            List<DomainRouterResponse> responses = new ArrayList<DomainRouterResponse>(routers.size());
+            for (VirtualRouter router : routers) {
+                responses.add(createDomainRouterResponse(router));
+            }
+            return responses;
+        } finally {
+            lookup.close();
+        }
+    }
+
     @Override
     public SystemVmResponse createSystemVmResponse(VirtualMachine vm) {
         SystemVmResponse vmResponse = new SystemVmResponse();
@@ -1453,6 +1540,37 @@ public class ApiResponseHelper implements ResponseGenerator {
         responses.add(templateResponse);
         return responses;
     }
+
+    @Override
+    public List<TemplateResponse> createTemplateResponses(Set<Pair<Long, Long>> templateZonePairs, boolean readyOnly) {
+        ApiBulkLookup lookup = ApiBulkLookup.open();
+        try {
+            for (Pair<Long, Long> templateZone : templateZonePairs) {
+                lookup.want(VMTemplateVO.class, templateZone.first());
+                if (templateZone.second() != null && templateZone.second() != -1) {
+                    lookup.want(DataCenterVO.class, templateZone.second());
+                }
+            }
+            lookup.resolve();
+            for (VMTemplateVO template : lookup.getAll(VMTemplateVO.class)) {
+                lookup.want(GuestOSVO.class, template.getGuestOSId());
+                lookup.want(AccountVO.class, template.getAccountId());
+            }
+            lookup.resolve();
+            for (AccountVO account : lookup.getAll(AccountVO.class)) {
+                lookup.want(DomainVO.class, account.getDomainId());
+            }
+            lookup.resolve();
+
+            List<TemplateResponse> responses = new ArrayList<TemplateResponse>();
+            for (Pair<Long, Long> templateZone : templateZonePairs) {
+                responses.addAll(createTemplateResponses(templateZone.first().longValue(), templateZone.second(), readyOnly));
+            }
+            return responses;
+        } finally {
+            lookup.close();
+        }
+    }
     @Override
     public List<TemplateResponse> createIsoResponses(long isoId, Long zoneId, boolean readyOnly) {
         List<TemplateResponse> isoResponses = new ArrayList<TemplateResponse>();
@@ -1939,7 +2057,22 @@ public class ApiResponseHelper implements ResponseGenerator {
 
     @Override
     public AsyncJobResponse queryJobResult(QueryAsyncJobResultCmd cmd) {
-        AsyncJobResult result = ApiDBUtils._asyncMgr.queryAsyncJobResult(cmd);
+        return createAsyncJobResultResponse(ApiDBUtils._asyncMgr.queryAsyncJobResult(cmd));
+    }
+
+    @Override
+    public List<AsyncJobResponse> queryJobResults(QueryAsyncJobResultsCmd cmd) {
+        List<AsyncJobResult> results = ApiDBUtils._asyncMgr.queryAsyncJobResults(cmd);
+        List<AsyncJobResponse> responses = new ArrayList<AsyncJobResponse>(results.size());
+        for (AsyncJobResult result : results) {
+            AsyncJobResponse response = createAsyncJobResultResponse(result);
+            response.setObjectName("asyncjobs");
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    private AsyncJobResponse createAsyncJobResultResponse(AsyncJobResult result) {
         AsyncJobResponse response = new AsyncJobResponse();
         response.setId(result.getJobId());
         response.setJobStatus(result.getJobStatus());
@@ -2222,6 +2355,26 @@ public class ApiResponseHelper implements ResponseGenerator {
         return response;
     }
 
+    @Override
+    public List<NetworkResponse> createNetworkResponses(List<? extends Network> networks) {
+        ApiBulkLookup lookup = ApiBulkLookup.open();
+        try {
+            for (Network network : networks) {
+                lookup.want(NetworkOfferingVO.class, network.getNetworkOfferingId());
+                wantOwner(lookup, network);
+            }
+            lookup.resolve();
+
+            List<NetworkResponse> responses = new ArrayList<NetworkResponse>(networks.size());
+            for (Network network : networks) {
+                responses.add(createNetworkResponse(network));
+            }
+            return responses;
+        } finally {
+            lookup.close();
+        }
+    }
+
     @Override
     public Long getSecurityGroupId (String groupName, long accountId) {
         SecurityGroup sg = ApiDBUtils.getSecurityGroup(groupName, accountId);
@@ -2407,6 +2560,14 @@ public class ApiResponseHelper implements ResponseGenerator {
         return hpvCapabilitiesResponse;
     }
     
+    /**
+     * What populateOwner() looks up.
+     */
+    private void wantOwner(ApiBulkLookup lookup, ControlledEntity object) {
+        lookup.want(AccountVO.class, object.getAccountId());
+        lookup.want(DomainVO.class, object.getDomainId());
+    }
+
     private void populateOwner(ControlledEntityResponse response, ControlledEntity object) {
         Account account = ApiDBUtils.findAccountByIdIncludingRemoved(object.getAccountId());
         
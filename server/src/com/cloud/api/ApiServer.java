@@ -25,6 +25,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -312,6 +313,15 @@ public class ApiServer implements HttpRequestHandler {
 
     @SuppressWarnings("rawtypes")
     public String handleRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb) throws ServerApiException {
+        return handleRequest(params, decode, responseType, auditTrailSb, null);
+    }
+
+    /**
+     * @param out if not null, the responses of list commands are written straight to it and null is returned.
+     *        Nothing is written to it before the command has executed, so errors can still be sent instead.
+     */
+    @SuppressWarnings("rawtypes")
+    public String handleRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb, Writer out) throws ServerApiException {
         String response = null;
         String[] command = null;
         try {
@@ -361,8 +371,12 @@ public class ApiServer implements HttpRequestHandler {
                     cmdObj.setFullUrlParams(paramMap);
                     cmdObj.setResponseType(responseType);
                     // This is where the command is either serialized, or directly dispatched
-                    response = queueCommand(cmdObj, paramMap);
-                    buildAuditTrail(auditTrailSb, command[0], response);
+                    if (out != null && cmdObj instanceof BaseListCmd) {
+                        streamListCommand((BaseListCmd) cmdObj, paramMap, out, auditTrailSb);
+                    } else {
+                        response = queueCommand(cmdObj, paramMap);
+                        buildAuditTrail(auditTrailSb, command[0], response);
+                    }
                 } else {
                     if (!command[0].equalsIgnoreCase("login") && !command[0].equalsIgnoreCase("logout")) {
                         String errorString = "Unknown API command: " + ((command == null) ? "null" : command[0]);
@@ -459,6 +473,16 @@ public class ApiServer implements HttpRequestHandler {
         }
     }
 
+    private void streamListCommand(BaseListCmd cmdObj, Map<String, String> params, Writer out, StringBuffer auditTrailSb) throws IOException {
+        _dispatcher.dispatch(cmdObj, params);
+        buildAsyncListResponse(cmdObj, UserContext.current().getCaller());
+
+        ResponseObject response = (ResponseObject) cmdObj.getResponseObject();
+        ApiResponseSerializer.serialize(response, cmdObj.getResponseType(), out);
+        Integer count = (response instanceof ListResponse) ? ((ListResponse<?>) response).getCount() : null;
+        auditTrailSb.append(" " + HttpServletResponse.SC_OK + " streamed " + (count == null ? 0 : count) + " objects");
+    }
+
     private void buildAsyncListResponse(BaseListCmd command, Account account) {
         List<ResponseObject> responses = ((ListResponse) command.getResponseObject()).getResponses();
         if (responses != null && responses.size() > 0) {
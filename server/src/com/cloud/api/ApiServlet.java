@@ -299,8 +299,13 @@ public class ApiServlet extends HttpServlet {
                                 + ")");
 
                 try {
-                    String response = _apiServer.handleRequest(params, false, responseType, auditTrailSb);
-                    writeResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType);
+                    // list responses can be large so they're streamed rather than built up as a String
+                    setContentType(resp, responseType);
+                    resp.setStatus(HttpServletResponse.SC_OK);
+                    String response = _apiServer.handleRequest(params, false, responseType, auditTrailSb, resp.getWriter());
+                    if (response != null) {
+                        resp.getWriter().print(response);
+                    }
                 } catch (ServerApiException se) {
                     String serializedResponseText = _apiServer.getSerializedApiError(se.getErrorCode(), se.getDescription(), params, responseType);
                     resp.setHeader("X-Description", se.getDescription());
@@ -348,15 +353,18 @@ public class ApiServlet extends HttpServlet {
      * if(accountObj != null) accountId = accountObj.getId(); UserContext.updateContext(userId, accountId, sessionId); }
      */
 
+    private void setContentType(HttpServletResponse resp, String responseType) {
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            resp.setContentType(ApiServer.jsonContentType + "; charset=UTF-8");
+        } else {
+            resp.setContentType("text/xml; charset=UTF-8");
+        }
+    }
+
     // FIXME: rather than isError, we might was to pass in the status code to give more flexibility
     private void writeResponse(HttpServletResponse resp, String response, int responseCode, String responseType) {
         try {
-            if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-                resp.setContentType(ApiServer.jsonContentType + "; charset=UTF-8");
-            } else {
-                resp.setContentType("text/xml; charset=UTF-8");
-            }
-
+            setContentType(resp, responseType);
             resp.setStatus(responseCode);
             resp.getWriter().print(response);
         } catch (IOException ioex) {
@@ -18,12 +18,16 @@
 
 package com.cloud.api.response;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,22 +39,41 @@ import com.cloud.api.ApiResponseGsonHelper;
 import com.cloud.api.ApiServer;
 import com.cloud.api.BaseCmd;
 import com.cloud.api.ResponseObject;
-import com.cloud.configuration.Config;
-import com.cloud.configuration.dao.ConfigurationDao;
-import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.encoding.URLEncoder;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.google.gson.Gson;
-import com.google.gson.annotations.SerializedName;
 
 public class ApiResponseSerializer {
     private static final Logger s_logger = Logger.getLogger(ApiResponseSerializer.class.getName());
 
+    // excludeFieldsWithModifiers() changes the shared builder, so only do it once
+    private static final Gson s_gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+    private static final SimpleDateFormat s_jsonDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
+
     public static String toSerializedString(ResponseObject result, String responseType) {
+        if (result == null && BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            return null;
+        }
+        StringWriter out = new StringWriter();
+        try {
+            serialize(result, responseType, out);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Can't write to a StringWriter?", e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the response straight to out instead of building it up as a String first.  The output is
+     * the same as toSerializedString().
+     */
+    public static void serialize(ResponseObject result, String responseType, Writer out) throws IOException {
         if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-            return toJSONSerializedString(result);
+            if (result != null) {
+                serializeJSON(result, out);
+            }
         } else {
-            return toXMLSerializedString(result);
+            serializeXML(result, ApiDBUtils.getVersion(), out);
         }
     }
 
@@ -65,150 +88,283 @@ public class ApiResponseSerializer {
         return str;
     }
 
-    private static String toJSONSerializedString(ResponseObject result) {
-        if (result != null) {
-            Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
-            StringBuilder sb = new StringBuilder();
-
-            sb.append("{ \"" + result.getResponseName() + "\" : ");
-            if (result instanceof ListResponse) {
-                List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
-                if ((responses != null) && !responses.isEmpty()) {
-
-                    Integer count = ((ListResponse) result).getCount();
-                    String jsonStr = gson.toJson(responses.get(0));
-                    jsonStr = unescape(jsonStr);
-
-                    if (count != null && count != 0) {
-                        sb.append("{ \"" + ApiConstants.COUNT + "\":" + ((ListResponse) result).getCount() + " ,\"" + responses.get(0).getObjectName() + "\" : [  " + jsonStr);
+    static void serializeJSON(ResponseObject result, Writer out) throws IOException {
+        out.write("{ \"");
+        out.write(result.getResponseName());
+        out.write("\" : ");
+        if (result instanceof ListResponse) {
+            List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
+            if ((responses != null) && !responses.isEmpty()) {
+                out.write("{ \"" + ApiConstants.COUNT + "\":");
+                out.write(Integer.toString(responses.size()));
+                out.write(" ,\"");
+                out.write(responses.get(0).getObjectName());
+                out.write("\" : [  ");
+                for (int i = 0; i < responses.size(); i++) {
+                    if (i > 0) {
+                        out.write(", ");
                     }
-                    for (int i = 1; i < count; i++) {
-                        jsonStr = gson.toJson(responses.get(i));
-                        jsonStr = unescape(jsonStr);
-                        sb.append(", " + jsonStr);
+                    if (responses.get(i) == null) {
+                        out.write("null");
+                    } else {
+                        writeJSONObject(responses.get(i), out);
                     }
-                    sb.append(" ] }");
-                } else {
-                    sb.append("{ }");
                 }
-            } else if (result instanceof SuccessResponse) {
-                sb.append("{ \"success\" : \"" + ((SuccessResponse) result).getSuccess() + "\"} ");
-            } else if (result instanceof ExceptionResponse) {
-                sb.append("{\"errorcode\" : " + ((ExceptionResponse) result).getErrorCode() + ", \"errortext\" : \"" + ((ExceptionResponse) result).getErrorText() + "\"} ");
+                out.write(" ] }");
             } else {
-                String jsonStr = gson.toJson(result);
-                if ((jsonStr != null) && !"".equals(jsonStr)) {
-                    jsonStr = unescape(jsonStr);
-                    if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
-                        sb.append(jsonStr);
-                    } else {
-                        sb.append(" { \"" + result.getObjectName() + "\" : " + jsonStr + " } ");
+                out.write("{ }");
+            }
+        } else if (result instanceof SuccessResponse) {
+            out.write("{ \"success\" : \"" + ((SuccessResponse) result).getSuccess() + "\"} ");
+        } else if (result instanceof ExceptionResponse) {
+            out.write("{\"errorcode\" : " + ((ExceptionResponse) result).getErrorCode() + ", \"errortext\" : \"" + ((ExceptionResponse) result).getErrorText() + "\"} ");
+        } else if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
+            writeJSONObject(result, out);
+        } else {
+            out.write(" { \"");
+            out.write(result.getObjectName());
+            out.write("\" : ");
+            writeJSONObject(result, out);
+            out.write(" } ");
+        }
+        out.write(" }");
+    }
+
+    /**
+     * Writes obj the way gson, with the api type adapters, followed by unescape() would.
+     */
+    private static void writeJSONObject(Object obj, Writer out) throws IOException {
+        out.write('{');
+        boolean first = true;
+        for (ResponseFieldWriter writer : ResponseFieldWriter.getJsonWriters(obj.getClass())) {
+            Object value = writer.get(obj);
+            if (value == null) {
+                continue;
+            }
+            ResponseFieldWriter[] sameName = writer.getSameName();
+            if (sameName != null) {
+                // gson collects these in a map: the first one that's set has the position, the last one that's set the value
+                if (isEarlierSet(sameName, writer, obj)) {
+                    continue;
+                }
+                for (int i = sameName.length - 1; i >= 0; i--) {
+                    Object last = sameName[i].get(obj);
+                    if (last != null) {
+                        writer = sameName[i];
+                        value = last;
+                        break;
                     }
+                }
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write(writer.getJsonKey());
+            writeJSONValue(writer, value, out);
+        }
+        out.write('}');
+    }
+
+    private static boolean isEarlierSet(ResponseFieldWriter[] sameName, ResponseFieldWriter writer, Object obj) {
+        for (ResponseFieldWriter other : sameName) {
+            if (other == writer) {
+                return false;
+            }
+            if (other.get(obj) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeJSONValue(ResponseFieldWriter writer, Object value, Writer out) throws IOException {
+        switch (writer.getKind()) {
+        case STRING:
+            writeJSONString(encodeParam((String) value), out);
+            break;
+        case PLAIN:
+            out.write(value.toString());
+            break;
+        case DATE:
+            String date;
+            synchronized (s_jsonDateFormat) {
+                date = s_jsonDateFormat.format((Date) value);
+            }
+            writeJSONString(date, out);
+            break;
+        case RESPONSE:
+            writeJSONObject(value, out);
+            break;
+        case RESPONSE_OBJECT:
+            // what ResponseObjectTypeAdapter does
+            out.write('{');
+            if (value instanceof SuccessResponse) {
+                Boolean success = ((SuccessResponse) value).getSuccess();
+                if (success != null) {
+                    out.write("\"success\":" + success);
+                }
+            } else if (value instanceof ExceptionResponse) {
+                ExceptionResponse error = (ExceptionResponse) value;
+                out.write("\"errorcode\":" + error.getErrorCode() + ",\"errortext\":");
+                writeJSONString(error.getErrorText(), out);
+            } else {
+                writeJSONString(((ResponseObject) value).getObjectName(), out);
+                out.write(':');
+                writeJSONObject(value, out);
+            }
+            out.write('}');
+            break;
+        case RESPONSE_LIST:
+            out.write('[');
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                if (item == null) {
+                    out.write("null");
                 } else {
-                    sb.append("{ }");
+                    writeJSONObject(item, out);
                 }
             }
-            sb.append(" }");
-            return sb.toString();
+            out.write(']');
+            break;
+        default:
+            out.write(unescape(s_gson.toJson(value, writer.getType())));
         }
-        return null;
     }
 
-    private static String toXMLSerializedString(ResponseObject result) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>");
-        sb.append("<" + result.getResponseName() + " cloud-stack-version=\"" + ApiDBUtils.getVersion() + "\">");
+    /**
+     * gson escapes html characters and control characters as unicode escapes, which unescape() then turns
+     * back into the characters themselves, so only the short escapes are left.
+     */
+    private static void writeJSONString(String value, Writer out) throws IOException {
+        out.write('"');
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            switch (c) {
+            case '"':
+                replacement = "\\\"";
+                break;
+            case '\\':
+                replacement = "\\\\";
+                break;
+            case '\t':
+                replacement = "\\t";
+                break;
+            case '\b':
+                replacement = "\\b";
+                break;
+            case '\n':
+                replacement = "\\n";
+                break;
+            case '\r':
+                replacement = "\\r";
+                break;
+            case '\f':
+                replacement = "\\f";
+                break;
+            default:
+                continue;
+            }
+            if (start < i) {
+                out.write(value, start, i - start);
+            }
+            out.write(replacement);
+            start = i + 1;
+        }
+        if (start < length) {
+            out.write(value, start, length - start);
+        }
+        out.write('"');
+    }
+
+    static void serializeXML(ResponseObject result, String version, Writer out) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>");
+        out.write("<" + result.getResponseName() + " cloud-stack-version=\"" + version + "\">");
 
         if (result instanceof ListResponse) {
             Integer count = ((ListResponse) result).getCount();
 
             if (count != null && count != 0) {
-                sb.append("<" + ApiConstants.COUNT + ">" + ((ListResponse) result).getCount() + "</" + ApiConstants.COUNT + ">");
+                out.write("<" + ApiConstants.COUNT + ">" + count + "</" + ApiConstants.COUNT + ">");
             }
             List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
             if ((responses != null) && !responses.isEmpty()) {
                 for (ResponseObject obj : responses) {
-                    serializeResponseObjXML(sb, obj);
+                    serializeResponseObjXML(out, obj);
                 }
             }
         } else {
             if (result instanceof CreateCmdResponse || result instanceof AsyncJobResponse) {
-                serializeResponseObjFieldsXML(sb, result);
+                serializeResponseObjFieldsXML(out, result);
             } else {
-                serializeResponseObjXML(sb, result);
+                serializeResponseObjXML(out, result);
             }
         }
 
-        sb.append("</" + result.getResponseName() + ">");
-        return sb.toString();
+        out.write("</" + result.getResponseName() + ">");
     }
 
-    private static void serializeResponseObjXML(StringBuilder sb, ResponseObject obj) {
-        if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("<" + obj.getObjectName() + ">");
+    private static void serializeResponseObjXML(Writer out, ResponseObject obj) throws IOException {
+        boolean wrap = !(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse);
+        if (wrap) {
+            out.write('<');
+            out.write(obj.getObjectName());
+            out.write('>');
         }
-        serializeResponseObjFieldsXML(sb, obj);
-        if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("</" + obj.getObjectName() + ">");
+        serializeResponseObjFieldsXML(out, obj);
+        if (wrap) {
+            out.write("</");
+            out.write(obj.getObjectName());
+            out.write('>');
         }
     }
 
-    private static void serializeResponseObjFieldsXML(StringBuilder sb, ResponseObject obj) {
+    private static void serializeResponseObjFieldsXML(Writer out, ResponseObject obj) throws IOException {
         boolean isAsync = false;
         if (obj instanceof AsyncJobResponse)
             isAsync = true;
 
-        Field[] fields = obj.getClass().getDeclaredFields();
-        for (Field field : fields) {
-            if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
-                continue; // skip transient fields
-            }
-
-            SerializedName serializedName = field.getAnnotation(SerializedName.class);
-            if (serializedName == null) {
-                continue; // skip fields w/o serialized name
-            }
-
-            field.setAccessible(true);
-            Object fieldValue = null;
-            try {
-                fieldValue = field.get(obj);
-            } catch (IllegalArgumentException e) {
-                throw new CloudRuntimeException("how illegal is it?", e);
-            } catch (IllegalAccessException e) {
-                throw new CloudRuntimeException("come on...we set accessible already", e);
-            }
+        for (ResponseFieldWriter writer : ResponseFieldWriter.getXmlWriters(obj.getClass())) {
+            Object fieldValue = writer.get(obj);
             if (fieldValue != null) {
                 if (fieldValue instanceof ResponseObject) {
                     ResponseObject subObj = (ResponseObject) fieldValue;
                     if (isAsync) {
-                        sb.append("<jobresult>");
+                        out.write("<jobresult>");
                     }
-                    serializeResponseObjXML(sb, subObj);
+                    serializeResponseObjXML(out, subObj);
                     if (isAsync) {
-                        sb.append("</jobresult>");
+                        out.write("</jobresult>");
                     }
                 } else if (fieldValue instanceof List<?>) {
-                    List<?> subResponseList = (List<Object>) fieldValue;
+                    List<?> subResponseList = (List<?>) fieldValue;
                     for (Object value : subResponseList) {
                         if (value instanceof ResponseObject) {
                             ResponseObject subObj = (ResponseObject) value;
-                            if (serializedName != null) {
-                                subObj.setObjectName(serializedName.value());
-                            }
-                            serializeResponseObjXML(sb, subObj);
+                            subObj.setObjectName(writer.getName());
+                            serializeResponseObjXML(out, subObj);
                         }
                     }
 
                 } else if (fieldValue instanceof Date) {
-                    sb.append("<" + serializedName.value() + ">" + BaseCmd.getDateString((Date) fieldValue) + "</" + serializedName.value() + ">");
+                    out.write(writer.getXmlOpen());
+                    out.write(BaseCmd.getDateString((Date) fieldValue));
+                    out.write(writer.getXmlClose());
                 } else {
-                    String resultString = escapeSpecialXmlChars(fieldValue.toString());
-                    if (!(obj instanceof ExceptionResponse)) {
-                        resultString = encodeParam(resultString);
+                    out.write(writer.getXmlOpen());
+                    if (!(obj instanceof ExceptionResponse) && ApiServer.encodeApiResponse) {
+                        out.write(encodeParam(escapeSpecialXmlChars(fieldValue.toString())));
+                    } else {
+                        writeEscapedXml(fieldValue.toString(), out);
                     }
-                    
-                    sb.append("<" + serializedName.value() + ">" + resultString + "</" + serializedName.value() + ">");
+                    out.write(writer.getXmlClose());
                 }
             }
         }
@@ -278,6 +434,41 @@ public class ApiResponseSerializer {
         return resultString.toString();
     }
     
+    private static void writeEscapedXml(String value, Writer out) throws IOException {
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            String replacement;
+            switch (value.charAt(i)) {
+            case '"':
+                replacement = "&quot;";
+                break;
+            case '\'':
+                replacement = "&apos;";
+                break;
+            case '<':
+                replacement = "&lt;";
+                break;
+            case '>':
+                replacement = "&gt;";
+                break;
+            case '&':
+                replacement = "&amp;";
+                break;
+            default:
+                continue;
+            }
+            if (start < i) {
+                out.write(value, start, i - start);
+            }
+            out.write(replacement);
+            start = i + 1;
+        }
+        if (start < length) {
+            out.write(value, start, length - start);
+        }
+    }
+
     private static String encodeParam(String value) {
         if (!ApiServer.encodeApiResponse) {
             return value;
@@ -0,0 +1,198 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.api.response;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.api.ResponseObject;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * ResponseFieldWriter is one serialized field of a ResponseObject class.  The fields of a class are
+ * looked up, made accessible and classified once and then cached, so serializing a response doesn't
+ * go through getDeclaredFields() and getAnnotation() for every object.
+ */
+public class ResponseFieldWriter {
+    enum Kind {
+        STRING,         // goes through the api response encoding
+        PLAIN,          // numbers and booleans, written with toString()
+        DATE,
+        RESPONSE,       // declared as a ResponseObject class, written field by field
+        RESPONSE_OBJECT, // declared as the ResponseObject interface, wrapped in its object name
+        RESPONSE_LIST,  // a collection of ResponseObject classes
+        OTHER           // anything else is left to gson
+    }
+
+    private static final ConcurrentHashMap<Class<?>, ResponseFieldWriter[]> s_jsonWriters = new ConcurrentHashMap<Class<?>, ResponseFieldWriter[]>();
+    private static final ConcurrentHashMap<Class<?>, ResponseFieldWriter[]> s_xmlWriters = new ConcurrentHashMap<Class<?>, ResponseFieldWriter[]>();
+
+    private final Field _field;
+    private final String _name;
+    private final Kind _kind;
+    private final String _jsonKey;
+    private final String _xmlOpen;
+    private final String _xmlClose;
+    private ResponseFieldWriter[] _sameName;
+
+    protected ResponseFieldWriter(Field field, String name) {
+        field.setAccessible(true);
+        _field = field;
+        _name = name;
+        _kind = kindOf(field);
+        _jsonKey = "\"" + name + "\":";
+        _xmlOpen = "<" + name + ">";
+        _xmlClose = "</" + name + ">";
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public Kind getKind() {
+        return _kind;
+    }
+
+    public Type getType() {
+        return _field.getGenericType();
+    }
+
+    public String getJsonKey() {
+        return _jsonKey;
+    }
+
+    public String getXmlOpen() {
+        return _xmlOpen;
+    }
+
+    public String getXmlClose() {
+        return _xmlClose;
+    }
+
+    /**
+     * @return every json field of the class with this field's name, in order, or null if the name is unique.
+     *         A class can shadow a field of its super class, e.g. jobid.
+     */
+    public ResponseFieldWriter[] getSameName() {
+        return _sameName;
+    }
+
+    public Object get(Object obj) {
+        try {
+            return _field.get(obj);
+        } catch (IllegalArgumentException e) {
+            throw new CloudRuntimeException("how illegal is it?", e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("come on...we set accessible already", e);
+        }
+    }
+
+    /**
+     * @return the fields gson would serialize for this class: everything that isn't transient, the class's
+     *         own fields before the ones it inherits, named by @SerializedName if it's there.
+     */
+    public static ResponseFieldWriter[] getJsonWriters(Class<?> clazz) {
+        ResponseFieldWriter[] writers = s_jsonWriters.get(clazz);
+        if (writers == null) {
+            List<ResponseFieldWriter> list = new ArrayList<ResponseFieldWriter>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if ((field.getModifiers() & Modifier.TRANSIENT) != 0 || field.isSynthetic()) {
+                        continue;
+                    }
+                    SerializedName serializedName = field.getAnnotation(SerializedName.class);
+                    list.add(new ResponseFieldWriter(field, serializedName != null ? serializedName.value() : field.getName()));
+                }
+            }
+            writers = list.toArray(new ResponseFieldWriter[list.size()]);
+            for (ResponseFieldWriter writer : writers) {
+                List<ResponseFieldWriter> sameName = new ArrayList<ResponseFieldWriter>();
+                for (ResponseFieldWriter other : writers) {
+                    if (other._name.equals(writer._name)) {
+                        sameName.add(other);
+                    }
+                }
+                if (sameName.size() > 1) {
+                    writer._sameName = sameName.toArray(new ResponseFieldWriter[sameName.size()]);
+                }
+            }
+            s_jsonWriters.put(clazz, writers);
+        }
+        return writers;
+    }
+
+    /**
+     * @return the fields the xml output has for this class: only the ones declared by the class itself that
+     *         have a @SerializedName and aren't transient.
+     */
+    public static ResponseFieldWriter[] getXmlWriters(Class<?> clazz) {
+        ResponseFieldWriter[] writers = s_xmlWriters.get(clazz);
+        if (writers == null) {
+            List<ResponseFieldWriter> list = new ArrayList<ResponseFieldWriter>();
+            for (Field field : clazz.getDeclaredFields()) {
+                if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
+                    continue;
+                }
+                SerializedName serializedName = field.getAnnotation(SerializedName.class);
+                if (serializedName == null) {
+                    continue;
+                }
+                list.add(new ResponseFieldWriter(field, serializedName.value()));
+            }
+            writers = list.toArray(new ResponseFieldWriter[list.size()]);
+            s_xmlWriters.put(clazz, writers);
+        }
+        return writers;
+    }
+
+    protected static Kind kindOf(Field field) {
+        Class<?> type = field.getType();
+        if (type == String.class) {
+            return Kind.STRING;
+        } else if (type.isPrimitive() && type != char.class && type != float.class && type != double.class) {
+            return Kind.PLAIN;
+        } else if (type == Long.class || type == Integer.class || type == Short.class || type == Byte.class || type == Boolean.class) {
+            return Kind.PLAIN;
+        } else if (Date.class.isAssignableFrom(type)) {
+            return Kind.DATE;
+        } else if (type == ResponseObject.class) {
+            return Kind.RESPONSE_OBJECT;
+        } else if (isResponseClass(type)) {
+            return Kind.RESPONSE;
+        } else if (Collection.class.isAssignableFrom(type) && field.getGenericType() instanceof ParameterizedType) {
+            Type[] args = ((ParameterizedType) field.getGenericType()).getActualTypeArguments();
+            if (args.length == 1 && args[0] instanceof Class && isResponseClass((Class<?>) args[0])) {
+                return Kind.RESPONSE_LIST;
+            }
+        }
+        return Kind.OTHER;
+    }
+
+    private static boolean isResponseClass(Class<?> type) {
+        return ResponseObject.class.isAssignableFrom(type) && !type.isInterface();
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.async;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AsyncJobCompletionMonitor lets API threads block until one of a set of
+ * jobs completes on this management server instead of polling the database.
+ * A waiter is registered before the job status is read so a completion that
+ * races with the read is never lost.
+ */
+public class AsyncJobCompletionMonitor {
+    private final Map<Long, List<Waiter>> _waiters = new HashMap<Long, List<Waiter>>();
+    private final AtomicLong _notifications = new AtomicLong();
+    private final AtomicLong _wakeups = new AtomicLong();
+
+    public static class Waiter {
+        private final Collection<Long> _jobIds;
+        private boolean _signalled = false;
+
+        protected Waiter(Collection<Long> jobIds) {
+            _jobIds = jobIds;
+        }
+
+        public Collection<Long> getJobIds() {
+            return _jobIds;
+        }
+
+        protected synchronized void signal() {
+            _signalled = true;
+            notifyAll();
+        }
+
+        public synchronized boolean isSignalled() {
+            return _signalled;
+        }
+
+        /**
+         * Waits until one of the jobs completes.  Once signalled the waiter stays
+         * signalled so calling it again returns immediately.
+         * @return true if a job completed; false if the time ran out.
+         */
+        public synchronized boolean await(long millis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + millis;
+            while (!_signalled) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+            return true;
+        }
+    }
+
+    public Waiter register(Collection<Long> jobIds) {
+        Waiter waiter = new Waiter(jobIds);
+        synchronized (_waiters) {
+            for (Long jobId : jobIds) {
+                List<Waiter> waiters = _waiters.get(jobId);
+                if (waiters == null) {
+                    waiters = new ArrayList<Waiter>(1);
+                    _waiters.put(jobId, waiters);
+                }
+                waiters.add(waiter);
+            }
+        }
+        return waiter;
+    }
+
+    public void unregister(Waiter waiter) {
+        synchronized (_waiters) {
+            for (Long jobId : waiter.getJobIds()) {
+                List<Waiter> waiters = _waiters.get(jobId);
+                if (waiters != null) {
+                    waiters.remove(waiter);
+                    if (waiters.isEmpty()) {
+                        _waiters.remove(jobId);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Wakes up everyone waiting on the job.  The waiters stay registered until
+     * they unregister themselves.
+     */
+    public void completed(long jobId) {
+        _notifications.incrementAndGet();
+        List<Waiter> waiters;
+        synchronized (_waiters) {
+            waiters = _waiters.get(jobId);
+            if (waiters == null) {
+                return;
+            }
+            waiters = new ArrayList<Waiter>(waiters);
+        }
+        for (Waiter waiter : waiters) {
+            _wakeups.incrementAndGet();
+            waiter.signal();
+        }
+    }
+
+    public int getWaitingJobCount() {
+        synchronized (_waiters) {
+            return _waiters.size();
+        }
+    }
+
+    public long getNotifications() {
+        return _notifications.get();
+    }
+
+    public long getWakeups() {
+        return _wakeups.get();
+    }
+}
@@ -21,6 +21,7 @@ package com.cloud.async;
 import java.util.List;
 
 import com.cloud.api.commands.QueryAsyncJobResultCmd;
+import com.cloud.api.commands.QueryAsyncJobResultsCmd;
 import com.cloud.utils.component.Manager;
 
 public interface AsyncJobManager extends Manager {
@@ -49,4 +50,11 @@ public interface AsyncJobManager extends Manager {
      * @return an async-call result object
      */
     public AsyncJobResult queryAsyncJobResult(QueryAsyncJobResultCmd cmd);
+
+    /**
+     * Queries for the status or final result of several async jobs at once.
+     * @param cmd the command that specifies the job ids
+     * @return the async-call result objects in the order the job ids were given
+     */
+    public List<AsyncJobResult> queryAsyncJobResults(QueryAsyncJobResultsCmd cmd);
 }
@@ -21,11 +21,12 @@ package com.cloud.async;
 import java.io.File;
 import java.io.FileInputStream;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -45,6 +46,7 @@ import com.cloud.api.BaseAsyncCmd;
 import com.cloud.api.BaseCmd;
 import com.cloud.api.ServerApiException;
 import com.cloud.api.commands.QueryAsyncJobResultCmd;
+import com.cloud.api.commands.QueryAsyncJobResultsCmd;
 import com.cloud.api.response.ExceptionResponse;
 import com.cloud.async.dao.AsyncJobDao;
 import com.cloud.cluster.ClusterManager;
@@ -57,7 +59,6 @@ import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.user.Account;
 import com.cloud.user.AccountManager;
-import com.cloud.user.User;
 import com.cloud.user.UserContext;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.utils.DateUtil;
@@ -83,6 +84,8 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
     private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;				// 10 seconds
+    private static final int REMOTE_JOB_RECHECK_INTERVAL = 5000;   // 5 seconds
+    private static final int LAST_POLLED_UPDATE_INTERVAL = 30000;  // 30 seconds
     
     private String _name;
     
@@ -94,11 +97,13 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     private AsyncJobDao _jobDao;
     private long _jobExpireSeconds = 86400;						// 1 day
     private long _jobCancelThresholdSeconds = 3600;             // 1 hour
+    private int _maxQueryWaitSeconds = 30;
     private ApiDispatcher _dispatcher;
 
     private final ScheduledExecutorService _heartbeatScheduler =
         Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
     private ExecutorService _executor;
+    private final AsyncJobCompletionMonitor _completionMonitor = new AsyncJobCompletionMonitor();
 
     @Override
 	public AsyncJobExecutorContext getExecutorContext() {
@@ -182,6 +187,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
                 job.setResult(ApiSerializerHelper.toSerializedStringOld(resultObject));
     		}
 
+    		txt.afterCompletion(getCompletionSignal(jobId));
     		job.setLastUpdated(DateUtil.currentGMTTime());
     		_jobDao.update(jobId, job);
     		txt.commit();
@@ -263,22 +269,11 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
             s_logger.debug("Sync job-" + job.getId() + " execution on object " + syncObjType + "." + syncObjId);
         }
 
-    	SyncQueueVO queue = null;
-
-		// to deal with temporary DB exceptions like DB deadlock/Lock-wait time out cased rollbacks
-    	// we retry five times until we throw an exception
-		Random random = new Random();
-
-    	for(int i = 0; i < 5; i++) {
+    	// queueing is a single insert that doesn't wait on row locks, a failure is
+    	// worth one immediate retry (e.g. a deadlock victim) but not sleeping on
+    	SyncQueueVO queue = _queueMgr.queue(syncObjType, syncObjId, "AsyncJob", job.getId());
+    	if(queue == null) {
     		queue = _queueMgr.queue(syncObjType, syncObjId, "AsyncJob", job.getId());
-    		if(queue != null) {
-                break;
-            }
-
-    		try {
-				Thread.sleep(1000 + random.nextInt(5000));
-			} catch (InterruptedException e) {
-			}
     	}
 
 		if (queue == null) {
@@ -290,27 +285,192 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     
     @Override
     public AsyncJobResult queryAsyncJobResult(QueryAsyncJobResultCmd cmd) {
+        List<Long> jobIds = new ArrayList<Long>(1);
+        jobIds.add(cmd.getId());
+        return queryAsyncJobResults(jobIds, cmd.getWait()).get(0);
+    }
+
+    @Override
+    public List<AsyncJobResult> queryAsyncJobResults(QueryAsyncJobResultsCmd cmd) {
+        return queryAsyncJobResults(cmd.getIds(), cmd.getWait());
+    }
+
+    /**
+     * Checks the caller can see the jobs and, if asked to wait, holds on until one of them
+     * completes or the wait runs out.  Jobs completing on this management server wake the
+     * caller up right away; jobs that may complete somewhere else are re-read every
+     * REMOTE_JOB_RECHECK_INTERVAL.
+     */
+    protected List<AsyncJobResult> queryAsyncJobResults(List<Long> jobIds, Integer wait) {
         Account caller = UserContext.current().getCaller();
 
-        AsyncJobVO job = _jobDao.findById(cmd.getId());
-        if (job == null) {
-            throw new InvalidParameterValueException("Unable to find a job by id " + cmd.getId());
+        long waitMs = 0;
+        if (wait != null && wait > 0) {
+            waitMs = Math.min(wait, _maxQueryWaitSeconds) * 1000L;
         }
-       
-        User userJobOwner = _accountMgr.getUser(job.getUserId());
-        Account jobOwner = _accountMgr.getAccount(userJobOwner.getAccountId());
-        
-        //check permissions
+
+        // register before reading the jobs so a completion in between still wakes us up
+        AsyncJobCompletionMonitor.Waiter waiter = waitMs > 0 ? _completionMonitor.register(jobIds) : null;
+        try {
+            List<AsyncJobVO> jobs = findJobs(jobIds);
+
+            Map<Long, Account> jobOwners = new HashMap<Long, Account>();
+            for (AsyncJobVO job : jobs) {
+                checkJobAccess(caller, job, jobOwners);
+            }
+
+            if (waiter != null && !isAnyJobDone(jobs)) {
+                jobs = waitForAnyJob(waiter, jobs, waitMs);
+            }
+
+            List<AsyncJobResult> results = new ArrayList<AsyncJobResult>(jobs.size());
+            for (AsyncJobVO job : jobs) {
+                AsyncJobResult result = new AsyncJobResult(job.getId());
+                fillJobResult(result, job);
+                if (result.getJobStatus() == AsyncJobResult.STATUS_IN_PROGRESS) {
+                    updateLastPolled(job);
+                }
+                results.add(result);
+            }
+            return results;
+        } finally {
+            if (waiter != null) {
+                _completionMonitor.unregister(waiter);
+            }
+        }
+    }
+
+    private List<AsyncJobVO> waitForAnyJob(AsyncJobCompletionMonitor.Waiter waiter, List<AsyncJobVO> jobs, long waitMs) {
+        List<Long> jobIds = new ArrayList<Long>(jobs.size());
+        for (AsyncJobVO job : jobs) {
+            jobIds.add(job.getId());
+        }
+
+        long deadline = System.currentTimeMillis() + waitMs;
+        boolean current = true;
+        try {
+            long left = waitMs;
+            while (left > 0) {
+                boolean elsewhere = isAnyJobElsewhere(jobs);
+                if (waiter.await(elsewhere ? Math.min(left, REMOTE_JOB_RECHECK_INTERVAL) : left)) {
+                    current = false;
+                    break;
+                }
+
+                if (elsewhere) {
+                    jobs = findJobs(jobIds);
+                    if (isAnyJobDone(jobs)) {
+                        return jobs;
+                    }
+                } else {
+                    current = false;
+                }
+                left = deadline - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            current = false;
+        }
+
+        return current ? jobs : findJobs(jobIds);
+    }
+
+    private List<AsyncJobVO> findJobs(List<Long> jobIds) {
+        List<AsyncJobVO> jobs;
+        if (jobIds.size() == 1) {
+            jobs = new ArrayList<AsyncJobVO>(1);
+            AsyncJobVO job = _jobDao.findById(jobIds.get(0));
+            if (job != null) {
+                jobs.add(job);
+            }
+        } else {
+            jobs = _jobDao.listByIds(jobIds);
+        }
+
+        if (jobs.size() != jobIds.size()) {
+            Map<Long, AsyncJobVO> found = new HashMap<Long, AsyncJobVO>();
+            for (AsyncJobVO job : jobs) {
+                found.put(job.getId(), job);
+            }
+
+            jobs = new ArrayList<AsyncJobVO>(jobIds.size());
+            for (Long jobId : jobIds) {
+                AsyncJobVO job = found.get(jobId);
+                if (job == null) {
+                    throw new InvalidParameterValueException("Unable to find a job by id " + jobId);
+                }
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    private void checkJobAccess(Account caller, AsyncJobVO job, Map<Long, Account> jobOwners) {
         if (caller.getType() == Account.ACCOUNT_TYPE_NORMAL) {
             //regular user can see only jobs he owns
-            if (caller.getId() != jobOwner.getId()) {
+            if (caller.getId() != job.getAccountId()) {
                 throw new PermissionDeniedException("Account " + caller + " is not authorized to see job id=" + job.getId());
             }
         } else if (caller.getType() == Account.ACCOUNT_TYPE_DOMAIN_ADMIN) {
+            Account jobOwner = jobOwners.get(job.getAccountId());
+            if (jobOwner == null) {
+                jobOwner = _accountMgr.getAccount(job.getAccountId());
+                jobOwners.put(job.getAccountId(), jobOwner);
+            }
             _accountMgr.checkAccess(caller, null, jobOwner);
         }
-        
-        return queryAsyncJobResult(cmd.getId());
+    }
+
+    private static boolean isAnyJobDone(List<AsyncJobVO> jobs) {
+        for (AsyncJobVO job : jobs) {
+            if (job.getStatus() != AsyncJobResult.STATUS_IN_PROGRESS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Jobs only send completion notifications on the management server running them.  A job
+     * that hasn't been picked up by this server yet may end up running anywhere.
+     */
+    private boolean isAnyJobElsewhere(List<AsyncJobVO> jobs) {
+        long msid = getMsid();
+        for (AsyncJobVO job : jobs) {
+            if (job.getCompleteMsid() == null || job.getCompleteMsid().longValue() != msid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Runnable getCompletionSignal(final long jobId) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                _completionMonitor.completed(jobId);
+            }
+        };
+    }
+
+    private static void fillJobResult(AsyncJobResult jobResult, AsyncJobVO job) {
+        jobResult.setCmdOriginator(job.getCmdOriginator());
+        jobResult.setJobStatus(job.getStatus());
+        jobResult.setProcessStatus(job.getProcessStatus());
+        jobResult.setResult(job.getResult());
+        jobResult.setResultCode(job.getResultCode());
+    }
+
+    /**
+     * last_polled is only informational so it's not written on every poll.
+     */
+    private void updateLastPolled(AsyncJobVO job) {
+        Date now = DateUtil.currentGMTTime();
+        if (job.getLastPolled() == null || now.getTime() - job.getLastPolled().getTime() >= LAST_POLLED_UPDATE_INTERVAL) {
+            AsyncJobVO jobForUpdate = _jobDao.createForUpdate();
+            jobForUpdate.setLastPolled(now);
+            _jobDao.update(job.getId(), jobForUpdate);
+        }
     }
 
     @Override @DB
@@ -326,11 +486,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     		txt.start();
     		AsyncJobVO job = _jobDao.findById(jobId);
     		if(job != null) {
-    			jobResult.setCmdOriginator(job.getCmdOriginator());
-    			jobResult.setJobStatus(job.getStatus());
-    			jobResult.setProcessStatus(job.getProcessStatus());
-    			jobResult.setResult(job.getResult());
-    			jobResult.setResultCode(job.getResultCode());
+    			fillJobResult(jobResult, job);
     			
     			if(job.getStatus() == AsyncJobResult.STATUS_SUCCEEDED ||
     				job.getStatus() == AsyncJobResult.STATUS_FAILED) {
@@ -339,8 +495,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
                         s_logger.debug("Async job-" + jobId + " completed");
                     }
     			} else {
-    				job.setLastPolled(DateUtil.currentGMTTime());
-    				_jobDao.update(jobId, job);
+    				updateLastPolled(job);
     			}
     		} else {
     	    	if(s_logger.isDebugEnabled()) {
@@ -694,6 +849,9 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 		       configDao.getValue(Config.JobCancelThresholdMinutes.key()), 60);
 		_jobCancelThresholdSeconds *= 60;
 
+		_maxQueryWaitSeconds = NumbersUtil.parseInt(
+		       configDao.getValue(Config.JobQueryMaxWait.key()), 30);
+
 		_accountDao = locator.getDao(AccountDao.class);
 		if (_accountDao == null) {
             throw new ConfigurationException("Unable to get " + AccountDao.class.getName());
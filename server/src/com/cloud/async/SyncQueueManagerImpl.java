@@ -18,10 +18,11 @@
 
 package com.cloud.async;
 
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -32,31 +33,39 @@ import com.cloud.async.dao.SyncQueueDao;
 import com.cloud.async.dao.SyncQueueItemDao;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.db.BatchWriter;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
 
+/**
+ * Sync queues serialize jobs on the same object across the cluster, so the
+ * queues and their items live in the database.  In front of that this keeps
+ * the queue row of each object in memory, so queueing is a single insert.
+ * Items queued at the same time by different threads are inserted together,
+ * and queues are claimed with conditional updates instead of locking rows.
+ */
 @Local(value={SyncQueueManager.class})
 public class SyncQueueManagerImpl implements SyncQueueManager {
     public static final Logger s_logger = Logger.getLogger(SyncQueueManagerImpl.class.getName());
     
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final int MAX_CACHED_QUEUES = 10000;
+    
     private String _name;
     
     private SyncQueueDao _syncQueueDao;
     private SyncQueueItemDao _syncQueueItemDao;
+    
+    // sync object (type-id) to its queue
+    private final Map<String, SyncQueueVO> _queues = new ConcurrentHashMap<String, SyncQueueVO>();
+    private BatchWriter<SyncQueueItemVO> _itemWriter;
 
     @Override
     @DB
     public SyncQueueVO queue(String syncObjType, long syncObjId, String itemType, long itemId) {
-        Transaction txn = Transaction.currentTxn();
     	try {
-    		txn.start();
-    		
-    		_syncQueueDao.ensureQueue(syncObjType, syncObjId);
-    		SyncQueueVO queueVO = _syncQueueDao.find(syncObjType, syncObjId);
-    		if(queueVO == null)
-    			throw new CloudRuntimeException("Unable to queue item into DB, DB is full?");
-
+    		SyncQueueVO queueVO = getQueue(syncObjType, syncObjId);
     		
 			Date dt = DateUtil.currentGMTTime();
     		SyncQueueItemVO item = new SyncQueueItemVO();
@@ -65,52 +74,53 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
     		item.setContentId(itemId);
     		item.setCreated(dt);
     		
-    		_syncQueueItemDao.persist(item);
-    		txn.commit();
+    		if(Transaction.currentTxn().dbTxnStarted()) {
+    			// the item has to go in with the caller's transaction
+    			_syncQueueItemDao.persist(item);
+    		} else {
+    			_itemWriter.write(item);
+    		}
     		
     		return queueVO;
     	} catch(Exception e) {
     		s_logger.error("Unexpected exception: ", e);
-    		txn.rollback();
     	}
     	return null;
     }
     
+    /**
+     * The queue returned is only good for its id; the processing details are
+     * whatever they were when it was first looked up.
+     */
+    protected SyncQueueVO getQueue(String syncObjType, long syncObjId) {
+    	String key = syncObjType + "-" + syncObjId;
+    	SyncQueueVO queueVO = _queues.get(key);
+    	if(queueVO == null) {
+    		_syncQueueDao.ensureQueue(syncObjType, syncObjId);
+    		queueVO = _syncQueueDao.find(syncObjType, syncObjId);
+    		if(queueVO == null)
+    			throw new CloudRuntimeException("Unable to queue item into DB, DB is full?");
+    		
+    		if(_queues.size() >= MAX_CACHED_QUEUES)
+    			_queues.clear();
+    		_queues.put(key, queueVO);
+    	}
+    	return queueVO;
+    }
+    
     @Override
-    @DB
     public SyncQueueItemVO dequeueFromOne(long queueId, Long msid) {
-    	Transaction txt = Transaction.currentTxn();
     	try {
-    		txt.start();
-    		
-    		SyncQueueVO queueVO = _syncQueueDao.lockRow(queueId, true);
+    		SyncQueueVO queueVO = _syncQueueDao.findById(queueId);
     		if(queueVO == null) {
     			s_logger.error("Sync queue(id: " + queueId + ") does not exist");
-    			txt.commit();
     			return null;
     		}
     		
     		if(queueVO.getLastProcessTime() == null) {
     			SyncQueueItemVO itemVO = _syncQueueItemDao.getNextQueueItem(queueVO.getId());
     			if(itemVO != null) {
-	    			Long processNumber = queueVO.getLastProcessNumber();
-	    			if(processNumber == null)
-	    				processNumber = new Long(1);
-	    			else
-	    				processNumber = processNumber + 1;
-	    			Date dt = DateUtil.currentGMTTime();
-	    			queueVO.setLastProcessMsid(msid);
-	    			queueVO.setLastProcessNumber(processNumber);
-	    			queueVO.setLastProcessTime(dt);
-	    			queueVO.setLastUpdated(dt);
-	    			_syncQueueDao.update(queueVO.getId(), queueVO);
-	    			
-	    			itemVO.setLastProcessMsid(msid);
-	    			itemVO.setLastProcessNumber(processNumber);
-	    			_syncQueueItemDao.update(itemVO.getId(), itemVO);
-	    			
-	        		txt.commit();
-	    			return itemVO;
+    				return claim(itemVO, msid);
     			} else {
         			if(s_logger.isDebugEnabled())
         				s_logger.debug("Sync queue (" + queueId + ") is currently empty");
@@ -119,60 +129,58 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
     			if(s_logger.isDebugEnabled())
     				s_logger.debug("There is a pending process in sync queue(id: " + queueId + ")");
     		}
-    		txt.commit();
     	} catch(Exception e) {
     		s_logger.error("Unexpected exception: ", e);
-    		txt.rollback();
     	}
     	
     	return null;
     }
     
     @Override
-    @DB
     public List<SyncQueueItemVO> dequeueFromAny(Long msid, int maxItems) {
-    	
-    	List<SyncQueueItemVO> resultList = new ArrayList<SyncQueueItemVO>();
-    	Transaction txt = Transaction.currentTxn();
     	try {
-    		txt.start();
-    		
     		List<SyncQueueItemVO> l = _syncQueueItemDao.getNextQueueItems(maxItems);
-    		if(l != null && l.size() > 0) {
-    			for(SyncQueueItemVO item : l) {
-    				SyncQueueVO queueVO = _syncQueueDao.lockRow(item.getQueueId(), true);
-	    			SyncQueueItemVO itemVO = _syncQueueItemDao.lockRow(item.getId(), true);
-    				if(queueVO.getLastProcessTime() == null && itemVO.getLastProcessNumber() == null) {
-		    			Long processNumber = queueVO.getLastProcessNumber();
-		    			if(processNumber == null)
-		    				processNumber = new Long(1);
-		    			else
-		    				processNumber = processNumber + 1;
-		    			
-		    			Date dt = DateUtil.currentGMTTime();
-		    			queueVO.setLastProcessMsid(msid);
-		    			queueVO.setLastProcessNumber(processNumber);
-		    			queueVO.setLastProcessTime(dt);
-		    			queueVO.setLastUpdated(dt);
-		    			_syncQueueDao.update(queueVO.getId(), queueVO);
-		    			
-		    			itemVO.setLastProcessMsid(msid);
-		    			itemVO.setLastProcessNumber(processNumber);
-		    			_syncQueueItemDao.update(item.getId(), itemVO);
-		    			
-		    			resultList.add(item);
-    				}
+    		for(Iterator<SyncQueueItemVO> it = l.iterator(); it.hasNext();) {
+    			if(claim(it.next(), msid) == null) {
+    				// somebody else got there first
+    				it.remove();
     			}
     		}
-    		txt.commit();
-    		return resultList;
+    		return l;
     	} catch(Exception e) {
     		s_logger.error("Unexpected exception: ", e);
-    		txt.rollback();
     	}
     	return null;
     }
     
+    /**
+     * Takes over the item's queue if nobody is processing it and the item is
+     * still waiting.  Both are conditional updates so racing servers don't
+     * block on each other; the loser just gets nothing.
+     */
+    @DB
+    protected SyncQueueItemVO claim(SyncQueueItemVO item, Long msid) {
+    	Transaction txn = Transaction.currentTxn();
+    	Long processNumber;
+    	try {
+    		txn.start();
+    		processNumber = _syncQueueDao.claimQueue(item.getQueueId(), msid);
+    		if(processNumber == null || !_syncQueueItemDao.claimItem(item.getId(), msid, processNumber)) {
+    			txn.rollback();
+    			return null;
+    		}
+    		txn.commit();
+    	} catch(Exception e) {
+    		s_logger.error("Unexpected exception: ", e);
+    		txn.rollback();
+    		return null;
+    	}
+    	
+    	item.setLastProcessMsid(msid);
+    	item.setLastProcessNumber(processNumber);
+    	return item;
+    }
+    
     @Override
     @DB
     public void purgeItem(long queueItemId) {
@@ -182,13 +190,8 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
     		
 			SyncQueueItemVO itemVO = _syncQueueItemDao.findById(queueItemId);
 			if(itemVO != null) {
-				SyncQueueVO queueVO = _syncQueueDao.lockRow(itemVO.getQueueId(), true);
-				
 				_syncQueueItemDao.expunge(itemVO.getId());
-				
-				queueVO.setLastProcessTime(null);
-				queueVO.setLastUpdated(DateUtil.currentGMTTime());
-				_syncQueueDao.update(queueVO.getId(), queueVO);
+				_syncQueueDao.releaseQueue(itemVO.getQueueId());
 			}
     		txt.commit();
     	} catch(Exception e) {
@@ -206,15 +209,11 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
     		
 			SyncQueueItemVO itemVO = _syncQueueItemDao.findById(queueItemId);
 			if(itemVO != null) {
-				SyncQueueVO queueVO = _syncQueueDao.lockRow(itemVO.getQueueId(), true);
-			
 				itemVO.setLastProcessMsid(null);
 				itemVO.setLastProcessNumber(null);
 				_syncQueueItemDao.update(queueItemId, itemVO);
 				
-				queueVO.setLastProcessTime(null);
-				queueVO.setLastUpdated(DateUtil.currentGMTTime());
-				_syncQueueDao.update(queueVO.getId(), queueVO);
+				_syncQueueDao.releaseQueue(itemVO.getQueueId());
 			}
     		txt.commit();
     	} catch(Exception e) {
@@ -254,6 +253,21 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
 			throw new ConfigurationException("Unable to get "
 					+ SyncQueueDao.class.getName());
 		}
+		
+		_itemWriter = new BatchWriter<SyncQueueItemVO>(MAX_BATCH_SIZE) {
+			@Override
+			protected void write(List<SyncQueueItemVO> items) throws Exception {
+				Transaction txn = Transaction.currentTxn();
+				try {
+					txn.start();
+					_syncQueueItemDao.persistBatch(items);
+					txn.commit();
+				} catch(Exception e) {
+					txn.rollback();
+					throw e;
+				}
+			}
+		};
     	
     	return true;
     }
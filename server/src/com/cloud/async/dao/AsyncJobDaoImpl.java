@@ -44,6 +44,7 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
 	private final SearchBuilder<AsyncJobVO> pendingAsyncJobSearch;	
 	private final SearchBuilder<AsyncJobVO> pendingAsyncJobsSearch;	
 	private final SearchBuilder<AsyncJobVO> expiringAsyncJobSearch;		
+	private final SearchBuilder<AsyncJobVO> idsSearch;
 	
 	public AsyncJobDaoImpl() {
 		pendingAsyncJobSearch = createSearchBuilder();
@@ -68,6 +69,10 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
 		expiringAsyncJobSearch.and("created", expiringAsyncJobSearch.entity().getCreated(), 
 			SearchCriteria.Op.LTEQ);
 		expiringAsyncJobSearch.done();
+
+		idsSearch = createSearchBuilder();
+		idsSearch.and("ids", idsSearch.entity().getId(), SearchCriteria.Op.IN);
+		idsSearch.done();
 	}
 	
 	public AsyncJobVO findInstancePendingAsyncJob(String instanceType, long instanceId) {
@@ -106,6 +111,13 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
 		return listIncludingRemovedBy(sc, filter);
 	}
 
+	@Override
+	public List<AsyncJobVO> listByIds(List<Long> ids) {
+		SearchCriteria<AsyncJobVO> sc = idsSearch.create();
+		sc.setParameters("ids", ids.toArray());
+		return listBy(sc);
+	}
+
 	@DB
 	public void resetJobProcess(long msid, int jobResultCode, String jobResultMessage) {
 		String sql = "UPDATE async_job SET job_status=" + AsyncJobResult.STATUS_FAILED + ", job_result_code=" + jobResultCode 
@@ -25,4 +25,12 @@ public interface SyncQueueDao extends GenericDao<SyncQueueVO, Long>{
 	public void ensureQueue(String syncObjType, long syncObjId);
 	public SyncQueueVO find(String syncObjType, long syncObjId);
 	public void resetQueueProcessing(long msid);
+
+	/**
+	 * Starts processing the queue unless someone is already processing it.
+	 * @return the new process number; null if the queue is being processed.
+	 */
+	public Long claimQueue(long queueId, long msid);
+
+	public void releaseQueue(long queueId);
 }
@@ -19,6 +19,7 @@
 package com.cloud.async.dao;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
 import java.util.TimeZone;
@@ -34,6 +35,7 @@ import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Local(value = { SyncQueueDao.class })
 public class SyncQueueDaoImpl extends GenericDaoBase<SyncQueueVO, Long> implements SyncQueueDao {
@@ -86,6 +88,48 @@ public class SyncQueueDaoImpl extends GenericDaoBase<SyncQueueVO, Long> implemen
         	s_logger.warn("Unable to reset sync queue for management server " + msid, e);
         }
 	}
+
+	@Override @DB
+	public Long claimQueue(long queueId, long msid) {
+		String sql = "UPDATE sync_queue SET queue_proc_msid=?, queue_proc_number=IFNULL(queue_proc_number, 0) + 1, queue_proc_time=?, last_updated=? " +
+			"WHERE id=? AND queue_proc_time IS NULL";
+		String dt = DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), DateUtil.currentGMTTime());
+
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt.setLong(1, msid);
+            pstmt.setString(2, dt);
+            pstmt.setString(3, dt);
+            pstmt.setLong(4, queueId);
+            if (pstmt.executeUpdate() == 0) {
+                return null;
+            }
+
+            // the row is locked by the update so this is the number we just set
+            pstmt = txn.prepareAutoCloseStatement("SELECT queue_proc_number FROM sync_queue WHERE id=?");
+            pstmt.setLong(1, queueId);
+            ResultSet rs = pstmt.executeQuery();
+            return rs.next() ? rs.getLong(1) : null;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to claim sync queue " + queueId, e);
+        }
+	}
+
+	@Override @DB
+	public void releaseQueue(long queueId) {
+		String sql = "UPDATE sync_queue SET queue_proc_time=NULL, last_updated=? WHERE id=?";
+
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt.setString(1, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), DateUtil.currentGMTTime()));
+            pstmt.setLong(2, queueId);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to release sync queue " + queueId, e);
+        }
+	}
 	
 	protected SyncQueueDaoImpl() {
 	    super();
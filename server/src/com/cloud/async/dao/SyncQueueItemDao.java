@@ -28,4 +28,10 @@ public interface SyncQueueItemDao extends GenericDao<SyncQueueItemVO, Long> {
 	public List<SyncQueueItemVO> getNextQueueItems(int maxItems);
 	public List<SyncQueueItemVO> getActiveQueueItems(Long msid, boolean exclusive);
 	public List<SyncQueueItemVO> getBlockedQueueItems(long thresholdMs, boolean exclusive);
+
+	/**
+	 * Marks the item as being processed unless it already is or is gone.
+	 * @return true if the item was claimed.
+	 */
+	public boolean claimItem(long itemId, long msid, long processNumber);
 }
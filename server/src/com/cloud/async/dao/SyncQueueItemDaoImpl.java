@@ -39,6 +39,7 @@ import com.cloud.utils.db.JoinBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Local(value = { SyncQueueItemDao.class })
 public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long> implements SyncQueueItemDao {
@@ -69,12 +70,13 @@ public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long>
 	public List<SyncQueueItemVO> getNextQueueItems(int maxItems) {
 		List<SyncQueueItemVO> l = new ArrayList<SyncQueueItemVO>();
 		
+		// the oldest waiting item of each idle queue
 		String sql = "SELECT i.id, i.queue_id, i.content_type, i.content_id, i.created " +
-					 " FROM sync_queue AS q JOIN sync_queue_item AS i ON q.id = i.queue_id " +
-					 " WHERE q.queue_proc_time IS NULL AND i.queue_proc_number IS NULL " +
-					 " GROUP BY q.id " +
-					 " ORDER BY i.id " +
-					 " LIMIT 0, ?";
+					 " FROM sync_queue_item AS i JOIN " +
+					 " (SELECT MIN(qi.id) AS id FROM sync_queue AS q JOIN sync_queue_item AS qi ON q.id = qi.queue_id " +
+					 "  WHERE q.queue_proc_time IS NULL AND qi.queue_proc_number IS NULL " +
+					 "  GROUP BY q.id ORDER BY 1 LIMIT 0, ?) AS h ON i.id = h.id " +
+					 " ORDER BY i.id";
 
         Transaction txn = Transaction.currentTxn();
         PreparedStatement pstmt = null;
@@ -140,4 +142,20 @@ public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long>
             return lockRows(sc, null, true);
         return listBy(sc, null);
     }
+
+    @Override
+    public boolean claimItem(long itemId, long msid, long processNumber) {
+        String sql = "UPDATE sync_queue_item SET queue_proc_msid=?, queue_proc_number=? WHERE id=? AND queue_proc_number IS NULL";
+
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt.setLong(1, msid);
+            pstmt.setLong(2, processNumber);
+            pstmt.setLong(3, itemId);
+            return pstmt.executeUpdate() == 1;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to claim sync queue item " + itemId, e);
+        }
+    }
 }
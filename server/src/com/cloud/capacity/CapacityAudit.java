@@ -0,0 +1,156 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.utils.DateUtil;
+
+/**
+ * CapacityAudit keeps the numbers of the periodic capacity audit.  The
+ * capacity is kept up to date as vms and volumes change, so anything the
+ * audit has to correct is drift and is counted here rather than just fixed.
+ */
+public class CapacityAudit implements CapacityAuditMBean {
+    public static final int MAX_RECENT = 50;
+
+    protected static class Drift {
+        long count;
+        long total;
+        long lastId;
+        long lastRecorded;
+        long lastActual;
+    }
+
+    private final Map<String, Drift> _drifts = new LinkedHashMap<String, Drift>();
+    private final LinkedList<Map<String, String>> _recent = new LinkedList<Map<String, String>>();
+    private long _runs;
+    private long _lastDuration;
+    private Date _lastTime;
+    private long _hosts;
+    private long _pools;
+
+    /**
+     * @param capacity what was off, e.g. "cpu used".
+     * @param id host or storage pool id.
+     * @param recorded what op_host_capacity said.
+     * @param actual what the vms or volumes add up to.
+     */
+    public synchronized void record(String capacity, long id, long recorded, long actual) {
+        Drift drift = _drifts.get(capacity);
+        if (drift == null) {
+            drift = new Drift();
+            _drifts.put(capacity, drift);
+        }
+        drift.count++;
+        drift.total += Math.abs(actual - recorded);
+        drift.lastId = id;
+        drift.lastRecorded = recorded;
+        drift.lastActual = actual;
+
+        Map<String, String> row = new LinkedHashMap<String, String>();
+        row.put("time", DateUtil.getDateDisplayString(DateUtil.GMT_TIMEZONE, new Date()));
+        row.put("capacity", capacity);
+        row.put("id", Long.toString(id));
+        row.put("recorded", Long.toString(recorded));
+        row.put("actual", Long.toString(actual));
+        _recent.addFirst(row);
+        if (_recent.size() > MAX_RECENT) {
+            _recent.removeLast();
+        }
+    }
+
+    public synchronized void auditDone(long duration, int hosts, int pools) {
+        _runs++;
+        _lastDuration = duration;
+        _lastTime = new Date();
+        _hosts += hosts;
+        _pools += pools;
+    }
+
+    public synchronized long getDiscrepancyCount() {
+        long count = 0;
+        for (Drift drift : _drifts.values()) {
+            count += drift.count;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized long getAuditRuns() {
+        return _runs;
+    }
+
+    @Override
+    public synchronized long getLastAuditDuration() {
+        return _lastDuration;
+    }
+
+    @Override
+    public synchronized String getLastAuditTime() {
+        return _lastTime == null ? null : DateUtil.getDateDisplayString(DateUtil.GMT_TIMEZONE, _lastTime);
+    }
+
+    @Override
+    public synchronized long getHostsAudited() {
+        return _hosts;
+    }
+
+    @Override
+    public synchronized long getPoolsAudited() {
+        return _pools;
+    }
+
+    @Override
+    public synchronized List<Map<String, String>> getDiscrepancies() {
+        List<Map<String, String>> rows = new ArrayList<Map<String, String>>(_drifts.size());
+        for (Map.Entry<String, Drift> entry : _drifts.entrySet()) {
+            Drift drift = entry.getValue();
+            Map<String, String> row = new LinkedHashMap<String, String>();
+            row.put("capacity", entry.getKey());
+            row.put("count", Long.toString(drift.count));
+            row.put("totalDrift", Long.toString(drift.total));
+            row.put("lastId", Long.toString(drift.lastId));
+            row.put("lastRecorded", Long.toString(drift.lastRecorded));
+            row.put("lastActual", Long.toString(drift.lastActual));
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    @Override
+    public synchronized List<Map<String, String>> getRecentDiscrepancies() {
+        return new ArrayList<Map<String, String>>(_recent);
+    }
+
+    @Override
+    public synchronized void resetStatistics() {
+        _drifts.clear();
+        _recent.clear();
+        _runs = 0;
+        _lastDuration = 0;
+        _lastTime = null;
+        _hosts = 0;
+        _pools = 0;
+    }
+}
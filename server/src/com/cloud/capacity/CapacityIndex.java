@@ -0,0 +1,393 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * CapacityIndex keeps the cpu and memory rows of op_host_capacity in memory,
+ * grouped zone -> pod -> cluster -> host, so the deployment planner can
+ * order clusters by "who has room for this vm" without going to the
+ * database on every deploy.  It can be up to a refresh behind what other
+ * management servers allocated, so the final check of whether a host has
+ * room still reads op_host_capacity.
+ * 
+ * The index is written through by the CapacityManager whenever it changes a
+ * host's capacity and is reloaded from the database periodically, which picks
+ * up whatever the other management servers did and repairs any drift.  Until
+ * the first load has happened isLoaded() returns false and callers are
+ * expected to go to the database.
+ */
+public class CapacityIndex {
+    protected static class HostCapacity {
+        final long hostId;
+        long zoneId;
+        Long podId;
+        Long clusterId;
+        CapacityVO cpu;
+        CapacityVO memory;
+        long stamp;
+
+        HostCapacity(long hostId) {
+            this.hostId = hostId;
+        }
+    }
+
+    /**
+     * The hosts of a cluster along with the sums the clusters are ordered by,
+     * which are kept up to date as the hosts change.
+     */
+    protected static class ClusterCapacity {
+        final long clusterId;
+        final long zoneId;
+        final Long podId;
+        final Map<Long, HostCapacity> hosts = new LinkedHashMap<Long, HostCapacity>();
+        long cpuAllocated;
+        long cpuTotal;
+        long memoryAllocated;
+        long memoryTotal;
+
+        ClusterCapacity(long clusterId, long zoneId, Long podId) {
+            this.clusterId = clusterId;
+            this.zoneId = zoneId;
+            this.podId = podId;
+        }
+
+        void add(HostCapacity host, int sign) {
+            if (host.cpu != null) {
+                cpuAllocated += sign * (host.cpu.getUsedCapacity() + host.cpu.getReservedCapacity());
+                cpuTotal += sign * host.cpu.getTotalCapacity();
+            }
+            if (host.memory != null) {
+                memoryAllocated += sign * (host.memory.getUsedCapacity() + host.memory.getReservedCapacity());
+                memoryTotal += sign * host.memory.getTotalCapacity();
+            }
+        }
+
+        double getOrdering(short capacityType, float cpuOverprovisioningFactor) {
+            double total = capacityType == CapacityVO.CAPACITY_TYPE_CPU ? cpuTotal * (double)cpuOverprovisioningFactor : memoryTotal;
+            long allocated = capacityType == CapacityVO.CAPACITY_TYPE_CPU ? cpuAllocated : memoryAllocated;
+            return total == 0 ? Double.MAX_VALUE : allocated / total;
+        }
+    }
+
+    private final Map<Long, HostCapacity> _hosts = new HashMap<Long, HostCapacity>();
+    private final Map<Long, ClusterCapacity> _clusters = new HashMap<Long, ClusterCapacity>();
+    private final Map<Long, Map<Long, ClusterCapacity>> _zoneClusters = new HashMap<Long, Map<Long, ClusterCapacity>>();
+    private final Map<Long, Map<Long, ClusterCapacity>> _podClusters = new HashMap<Long, Map<Long, ClusterCapacity>>();
+    private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+    private long _stamp = 0;
+    private volatile boolean _loaded = false;
+
+    public boolean isLoaded() {
+        return _loaded;
+    }
+
+    /**
+     * Call before reading op_host_capacity for load() so that anything
+     * written through while the rows are being read isn't overwritten by
+     * the older copy from the database.
+     */
+    public long beginLoad() {
+        _lock.writeLock().lock();
+        try {
+            return ++_stamp;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the contents of the index with the capacity rows read from the database.
+     * 
+     * @param capacities cpu and memory capacity rows for all the hosts.
+     * @param stamp what beginLoad() returned before the rows were read.
+     */
+    public void load(List<CapacityVO> capacities, long stamp) {
+        _lock.writeLock().lock();
+        try {
+            Map<Long, HostCapacity> seen = new HashMap<Long, HostCapacity>();
+            for (CapacityVO capacity : capacities) {
+                HostCapacity host = _hosts.get(capacity.getHostOrPoolId());
+                if (host != null && host.stamp > stamp) {
+                    seen.put(host.hostId, host);
+                    continue;
+                }
+                host = set(capacity, stamp);
+                if (host != null) {
+                    seen.put(host.hostId, host);
+                }
+            }
+
+            Iterator<HostCapacity> it = _hosts.values().iterator();
+            while (it.hasNext()) {
+                HostCapacity host = it.next();
+                if (!seen.containsKey(host.hostId) && host.stamp <= stamp) {
+                    it.remove();
+                    detach(host);
+                }
+            }
+            _loaded = true;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Records a cpu or memory capacity row that has just been written to the database.
+     */
+    public void update(CapacityVO capacity) {
+        _lock.writeLock().lock();
+        try {
+            set(capacity, ++_stamp);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long hostId) {
+        _lock.writeLock().lock();
+        try {
+            HostCapacity host = _hosts.remove(hostId);
+            if (host != null) {
+                detach(host);
+            }
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        _lock.writeLock().lock();
+        try {
+            _hosts.clear();
+            _clusters.clear();
+            _zoneClusters.clear();
+            _podClusters.clear();
+            _loaded = false;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    public int getHostCount() {
+        _lock.readLock().lock();
+        try {
+            return _hosts.size();
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the host's capacity of the given type or null if the index doesn't know about it.
+     */
+    public CapacityVO getCapacity(long hostId, short capacityType) {
+        _lock.readLock().lock();
+        try {
+            HostCapacity host = _hosts.get(hostId);
+            if (host == null) {
+                return null;
+            }
+            CapacityVO capacity = capacityType == CapacityVO.CAPACITY_TYPE_CPU ? host.cpu : capacityType == CapacityVO.CAPACITY_TYPE_MEMORY ? host.memory : null;
+            return capacity == null ? null : copy(capacity);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Same answer as CapacityDao.listClustersInZoneOrPodByHostCapacities() with the result put in
+     * the order of CapacityDao.orderClustersByAggregateCapacity(), which is how FirstFitPlanner
+     * uses the two.
+     * 
+     * @param id zone or pod id.
+     * @param requiredCpu
+     * @param requiredRam
+     * @param capacityTypeForOrdering CAPACITY_TYPE_CPU or CAPACITY_TYPE_MEMORY.
+     * @param isZone whether id is a zone or a pod.
+     * @param cpuOverprovisioningFactor
+     * @return ids of the clusters with a host having enough cpu and a host having enough ram, least used cluster first.
+     */
+    public List<Long> listClustersByCapacity(long id, int requiredCpu, long requiredRam, final short capacityTypeForOrdering, boolean isZone, final float cpuOverprovisioningFactor) {
+        List<ClusterCapacity> clusters = new ArrayList<ClusterCapacity>();
+
+        _lock.readLock().lock();
+        try {
+            Map<Long, ClusterCapacity> candidates = isZone ? _zoneClusters.get(id) : _podClusters.get(id);
+            if (candidates == null) {
+                return new ArrayList<Long>();
+            }
+
+            for (ClusterCapacity cluster : candidates.values()) {
+                boolean enoughCpu = false;
+                boolean enoughRam = false;
+                for (HostCapacity host : cluster.hosts.values()) {
+                    // Same expressions as the sql, reserved capacity and all.
+                    if (!enoughCpu && host.cpu != null) {
+                        enoughCpu = (host.cpu.getTotalCapacity() * cpuOverprovisioningFactor) - host.cpu.getUsedCapacity() + host.cpu.getReservedCapacity() >= requiredCpu;
+                    }
+                    if (!enoughRam && host.memory != null) {
+                        enoughRam = host.memory.getTotalCapacity() - host.memory.getUsedCapacity() + host.memory.getReservedCapacity() >= requiredRam;
+                    }
+                    if (enoughCpu && enoughRam) {
+                        clusters.add(cluster);
+                        break;
+                    }
+                }
+            }
+
+            Collections.sort(clusters, new Comparator<ClusterCapacity>() {
+                @Override
+                public int compare(ClusterCapacity c1, ClusterCapacity c2) {
+                    int result = Double.compare(c1.getOrdering(capacityTypeForOrdering, cpuOverprovisioningFactor), c2.getOrdering(capacityTypeForOrdering, cpuOverprovisioningFactor));
+                    return result != 0 ? result : (c1.clusterId < c2.clusterId ? -1 : (c1.clusterId == c2.clusterId ? 0 : 1));
+                }
+            });
+        } finally {
+            _lock.readLock().unlock();
+        }
+
+        List<Long> result = new ArrayList<Long>(clusters.size());
+        for (ClusterCapacity cluster : clusters) {
+            result.add(cluster.clusterId);
+        }
+        return result;
+    }
+
+    /**
+     * Same answer as CapacityDao.listHostsWithEnoughCapacity() minus the host type, which the index doesn't know.
+     */
+    public List<Long> listHostsWithEnoughCapacity(int requiredCpu, long requiredRam, long clusterId, float cpuOverprovisioningFactor) {
+        List<Long> result = new ArrayList<Long>();
+        _lock.readLock().lock();
+        try {
+            ClusterCapacity cluster = _clusters.get(clusterId);
+            if (cluster == null) {
+                return result;
+            }
+            for (HostCapacity host : cluster.hosts.values()) {
+                if (host.cpu != null && host.memory != null && host.cpu.getTotalCapacity() * cpuOverprovisioningFactor - host.cpu.getUsedCapacity() >= requiredCpu
+                        && host.memory.getTotalCapacity() - host.memory.getUsedCapacity() >= requiredRam) {
+                    result.add(host.hostId);
+                }
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    private HostCapacity set(CapacityVO capacity, long stamp) {
+        Long hostId = capacity.getHostOrPoolId();
+        short type = capacity.getCapacityType();
+        if (hostId == null || (type != CapacityVO.CAPACITY_TYPE_CPU && type != CapacityVO.CAPACITY_TYPE_MEMORY)) {
+            return null;
+        }
+
+        HostCapacity host = _hosts.get(hostId);
+        if (host == null) {
+            host = new HostCapacity(hostId);
+            _hosts.put(hostId, host);
+        } else {
+            detach(host);
+        }
+
+        host.zoneId = capacity.getDataCenterId();
+        host.podId = capacity.getPodId();
+        host.clusterId = capacity.getClusterId();
+        host.stamp = stamp;
+        if (type == CapacityVO.CAPACITY_TYPE_CPU) {
+            host.cpu = copy(capacity);
+        } else {
+            host.memory = copy(capacity);
+        }
+
+        attach(host);
+        return host;
+    }
+
+    private void attach(HostCapacity host) {
+        if (host.clusterId == null) {
+            return;
+        }
+        ClusterCapacity cluster = _clusters.get(host.clusterId);
+        if (cluster == null) {
+            cluster = new ClusterCapacity(host.clusterId, host.zoneId, host.podId);
+            _clusters.put(cluster.clusterId, cluster);
+            getClusters(_zoneClusters, cluster.zoneId).put(cluster.clusterId, cluster);
+            if (cluster.podId != null) {
+                getClusters(_podClusters, cluster.podId).put(cluster.clusterId, cluster);
+            }
+        }
+        cluster.hosts.put(host.hostId, host);
+        cluster.add(host, 1);
+    }
+
+    private void detach(HostCapacity host) {
+        if (host.clusterId == null) {
+            return;
+        }
+        ClusterCapacity cluster = _clusters.get(host.clusterId);
+        if (cluster == null || cluster.hosts.remove(host.hostId) == null) {
+            return;
+        }
+        cluster.add(host, -1);
+        if (cluster.hosts.isEmpty()) {
+            _clusters.remove(cluster.clusterId);
+            removeCluster(_zoneClusters, cluster.zoneId, cluster);
+            if (cluster.podId != null) {
+                removeCluster(_podClusters, cluster.podId, cluster);
+            }
+        }
+    }
+
+    private static Map<Long, ClusterCapacity> getClusters(Map<Long, Map<Long, ClusterCapacity>> map, long id) {
+        Map<Long, ClusterCapacity> clusters = map.get(id);
+        if (clusters == null) {
+            clusters = new LinkedHashMap<Long, ClusterCapacity>();
+            map.put(id, clusters);
+        }
+        return clusters;
+    }
+
+    private static void removeCluster(Map<Long, Map<Long, ClusterCapacity>> map, long id, ClusterCapacity cluster) {
+        Map<Long, ClusterCapacity> clusters = map.get(id);
+        if (clusters != null) {
+            clusters.remove(cluster.clusterId);
+            if (clusters.isEmpty()) {
+                map.remove(id);
+            }
+        }
+    }
+
+    private static CapacityVO copy(CapacityVO capacity) {
+        CapacityVO copy = new CapacityVO(capacity.getHostOrPoolId(), capacity.getDataCenterId(), capacity.getPodId(), capacity.getClusterId(),
+                capacity.getUsedCapacity(), capacity.getTotalCapacity(), capacity.getCapacityType());
+        copy.setReservedCapacity(capacity.getReservedCapacity());
+        return copy;
+    }
+}
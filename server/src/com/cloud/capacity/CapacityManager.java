@@ -43,4 +43,9 @@ public interface CapacityManager extends Manager {
     boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOverprovisioningFactor, boolean considerReservedCapacity);
     
 	void updateCapacityForHost(HostVO host);
+
+    /**
+     * @return the in-memory copy of the hosts' cpu and memory capacity.  Check isLoaded() before relying on it.
+     */
+    CapacityIndex getCapacityIndex();
 }
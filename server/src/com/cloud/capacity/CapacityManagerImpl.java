@@ -17,6 +17,7 @@
  */
 package com.cloud.capacity;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -48,6 +49,10 @@ import com.cloud.host.dao.HostDao;
 import com.cloud.offering.ServiceOffering;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
+import com.cloud.storage.StorageManager;
+import com.cloud.storage.StoragePoolVO;
+import com.cloud.storage.dao.StoragePoolDao;
+import com.cloud.storage.dao.VolumeDao;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.Inject;
@@ -56,6 +61,7 @@ import com.cloud.utils.db.DB;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.fsm.StateListener;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.Event;
@@ -78,6 +84,12 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     VMInstanceDao _vmDao;
     @Inject
     AgentManager _agentManager;
+    @Inject
+    StorageManager _storageMgr;
+    @Inject
+    StoragePoolDao _storagePoolDao;
+    @Inject
+    VolumeDao _volumeDao;
 
     private int _hostCapacityCheckerDelay;
     private int _hostCapacityCheckerInterval;
@@ -86,6 +98,9 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     private boolean _stopped;
     private float _storageOverProvisioningFactor = 1.0f;
     private float _cpuOverProvisioningFactor = 1.0f;
+    private int _capacityIndexRefreshInterval;
+    private final CapacityIndex _capacityIndex = new CapacityIndex();
+    private final CapacityAudit _audit = new CapacityAudit();
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
@@ -95,12 +110,18 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
         _vmCapacityReleaseInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacitySkipcountingHours.key()), 3600);
         _storageOverProvisioningFactor = NumbersUtil.parseFloat(_configDao.getValue(Config.StorageOverprovisioningFactor.key()), 1.0f);
         _cpuOverProvisioningFactor = NumbersUtil.parseFloat(_configDao.getValue(Config.CPUOverprovisioningFactor.key()), 1.0f);
+        _capacityIndexRefreshInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacityIndexRefreshInterval.key()), 60);
 
         if (_cpuOverProvisioningFactor < 1.0f) {
             _cpuOverProvisioningFactor = 1.0f;
         }
         _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("HostCapacity-Checker"));
         VirtualMachine.State.getStateMachine().registerListener(this);
+        try {
+            JmxUtil.registerMBean("CapacityManager", "CapacityAudit", _audit);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the capacity audit mbean", e);
+        }
         _agentManager.registerForHostEvents(new StorageCapacityListener(_capacityDao, _storageOverProvisioningFactor), true, false, false);
         _agentManager.registerForHostEvents(new ComputeCapacityListener(_capacityDao, this, _cpuOverProvisioningFactor), true, false, false);
 
@@ -110,6 +131,9 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     @Override
     public boolean start() {
         _executor.scheduleWithFixedDelay(new HostCapacityCollector(), _hostCapacityCheckerDelay, _hostCapacityCheckerInterval, TimeUnit.SECONDS);
+        if (_capacityIndexRefreshInterval > 0) {
+            _executor.scheduleWithFixedDelay(new CapacityIndexLoader(), 0, _capacityIndexRefreshInterval, TimeUnit.SECONDS);
+        }
         return true;
     }
 
@@ -196,6 +220,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
             _capacityDao.update(capacityCpu.getId(), capacityCpu);
             _capacityDao.update(capacityMemory.getId(), capacityMemory);
             txn.commit();
+            _capacityIndex.update(capacityCpu);
+            _capacityIndex.update(capacityMemory);
             return true;
         } catch (Exception e) {
             s_logger.debug("Failed to transit vm's state, due to " + e.getMessage());
@@ -286,6 +312,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
             _capacityDao.update(capacityCpu.getId(), capacityCpu);
             _capacityDao.update(capacityMem.getId(), capacityMem);
             txn.commit();
+            _capacityIndex.update(capacityCpu);
+            _capacityIndex.update(capacityMem);
         } catch (Exception e) {
             txn.rollback();
             return;
@@ -301,6 +329,7 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
                     + " , cpuOverprovisioningFactor: " + cpuOverprovisioningFactor);
         }
 
+        // the final check reads op_host_capacity: the index doesn't see what other management servers allocated since it loaded
         CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
         CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
 
@@ -413,29 +442,106 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
 
     }
 
+    @Override
+    public CapacityIndex getCapacityIndex() {
+        return _capacityIndex;
+    }
+
+    public class CapacityIndexLoader implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                long stamp = _capacityIndex.beginLoad();
+                SearchCriteria<CapacityVO> sc = _capacityDao.createSearchCriteria();
+                sc.addAnd("hostOrPoolId", SearchCriteria.Op.NNULL);
+                sc.addAnd("capacityType", SearchCriteria.Op.IN, new Object[] { CapacityVO.CAPACITY_TYPE_CPU, CapacityVO.CAPACITY_TYPE_MEMORY });
+                List<CapacityVO> capacities = _capacityDao.search(sc, null);
+                _capacityIndex.load(capacities, stamp);
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Loaded capacity index with " + _capacityIndex.getHostCount() + " hosts");
+                }
+            } catch (Exception e) {
+                s_logger.warn("Unable to load the capacity index", e);
+            }
+        }
+    }
+
+    /**
+     * Capacity is kept up to date as vms change state and volumes come and go,
+     * so this only audits it now and then: everything that had to be corrected
+     * is drift, logged and counted in the CapacityAudit mbean.
+     */
     public class HostCapacityCollector implements Runnable {
 
         @Override
         public void run() {
-        	s_logger.debug("HostCapacityCollector is running...");
-            // get all hosts...even if they are not in 'UP' state
-            List<HostVO> hosts = _hostDao.listByType(Host.Type.Routing);
-            for (HostVO host : hosts) {
-            	updateCapacityForHost(host);
+            s_logger.debug("HostCapacityCollector is running...");
+            long start = System.currentTimeMillis();
+            long found = _audit.getDiscrepancyCount();
+            int hostCount = 0;
+            int poolCount = 0;
+            try {
+                Map<Long, ServiceOfferingVO> offeringsMap = listOfferings();
+                // get all hosts...even if they are not in 'UP' state
+                List<HostVO> hosts = _hostDao.listByType(Host.Type.Routing);
+                for (HostVO host : hosts) {
+                    updateCapacityForHost(host, offeringsMap);
+                    hostCount++;
+                }
+
+                List<StoragePoolVO> pools = _storagePoolDao.listAll();
+                for (StoragePoolVO pool : pools) {
+                    auditStoragePool(pool);
+                    poolCount++;
+                }
+            } catch (Exception e) {
+                s_logger.warn("Unable to audit capacity", e);
+            } finally {
+                _audit.auditDone(System.currentTimeMillis() - start, hostCount, poolCount);
             }
 
-        }        
+            found = _audit.getDiscrepancyCount() - found;
+            if (found > 0) {
+                s_logger.info("Capacity audit of " + hostCount + " hosts and " + poolCount + " storage pools corrected " + found + " discrepancies in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            }
+        }
     }
-    
-    @Override
-	public void updateCapacityForHost(HostVO host){
-    	// prep the service offerings
+
+    protected Map<Long, ServiceOfferingVO> listOfferings() {
         List<ServiceOfferingVO> offerings = _offeringsDao.listAllIncludingRemoved();
         Map<Long, ServiceOfferingVO> offeringsMap = new HashMap<Long, ServiceOfferingVO>();
         for (ServiceOfferingVO offering : offerings) {
             offeringsMap.put(offering.getId(), offering);
         }
-        
+        return offeringsMap;
+    }
+
+    protected void auditStoragePool(StoragePoolVO pool) {
+        long allocated = _volumeDao.getCountAndTotalByPool(pool.getId()).second();
+        CapacityVO capacity = _capacityDao.findByHostIdType(pool.getId(), CapacityVO.CAPACITY_TYPE_STORAGE_ALLOCATED);
+        if (capacity == null) {
+            _storageMgr.createCapacityEntry(pool, allocated);
+            return;
+        }
+
+        if (capacity.getUsedCapacity() != allocated) {
+            s_logger.debug("Calibrate allocated storage for pool: " + pool.getId() + " old allocated: " + capacity.getUsedCapacity() + " new allocated: " + allocated);
+            _audit.record("storage allocated", pool.getId(), capacity.getUsedCapacity(), allocated);
+            capacity.setUsedCapacity(allocated);
+            _capacityDao.update(capacity.getId(), capacity);
+        }
+        // picks up changes in the size of the pool.
+        _storageMgr.createCapacityEntry(pool);
+    }
+
+    @Override
+	public void updateCapacityForHost(HostVO host){
+        updateCapacityForHost(host, listOfferings());
+    }
+
+    protected void updateCapacityForHost(HostVO host, Map<Long, ServiceOfferingVO> offeringsMap) {
         long usedCpu = 0;
         long usedMemory = 0;
         long reservedMemory = 0;
@@ -469,42 +575,27 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
         CapacityVO memCap = _capacityDao.findByHostIdType(host.getId(), CapacityVO.CAPACITY_TYPE_MEMORY);
 
         if (cpuCap != null && memCap != null){
-        	if (cpuCap.getUsedCapacity() == usedCpu && cpuCap.getReservedCapacity() == reservedCpu) {
-        		s_logger.debug("No need to calibrate cpu capacity, host:" + host.getId() + " usedCpu: " + cpuCap.getUsedCapacity()
-        				+ " reservedCpu: " + cpuCap.getReservedCapacity());
-        	} else if (cpuCap.getReservedCapacity() != reservedCpu) {
-        		s_logger.debug("Calibrate reserved cpu for host: " + host.getId() + " old reservedCpu:" + cpuCap.getReservedCapacity()
-        				+ " new reservedCpu:" + reservedCpu);
-        		cpuCap.setReservedCapacity(reservedCpu);
-        	} else if (cpuCap.getUsedCapacity() != usedCpu) {
-        		s_logger.debug("Calibrate used cpu for host: " + host.getId() + " old usedCpu:" + cpuCap.getUsedCapacity() + " new usedCpu:"
-        				+ usedCpu);
-        		cpuCap.setUsedCapacity(usedCpu);
-        	}
-	
-	        if (memCap.getUsedCapacity() == usedMemory && memCap.getReservedCapacity() == reservedMemory) {
-	            s_logger.debug("No need to calibrate memory capacity, host:" + host.getId() + " usedMem: " + memCap.getUsedCapacity()
-	                    + " reservedMem: " + memCap.getReservedCapacity());
-	        } else if (memCap.getReservedCapacity() != reservedMemory) {
-	            s_logger.debug("Calibrate reserved memory for host: " + host.getId() + " old reservedMem:" + memCap.getReservedCapacity()
-	                    + " new reservedMem:" + reservedMemory);
-	            memCap.setReservedCapacity(reservedMemory);
-	        } else if (memCap.getUsedCapacity() != usedMemory) {
-	            /*
-	             * Didn't calibrate for used memory, because VMs can be in state(starting/migrating) that I don't know on which host they are
-	             * allocated
-	             */
-	            s_logger.debug("Calibrate used memory for host: " + host.getId() + " old usedMem: " + memCap.getUsedCapacity()
-	                    + " new usedMem: " + usedMemory);
-	            memCap.setUsedCapacity(usedMemory);
-	        }
-	
-	        try {
-	            _capacityDao.update(cpuCap.getId(), cpuCap);
-	            _capacityDao.update(memCap.getId(), memCap);
-	        } catch (Exception e) {
-	
-	        }
+            /*
+             * VMs can be in state(starting/migrating) that I don't know on which host they are allocated, so
+             * a host can be off for a little while without anything being wrong.
+             */
+            try {
+                List<CapacityVO> calibrated = new ArrayList<CapacityVO>(2);
+                if (calibrate(cpuCap, "cpu", usedCpu, reservedCpu)) {
+                    calibrated.add(cpuCap);
+                }
+                if (calibrate(memCap, "memory", usedMemory, reservedMemory)) {
+                    calibrated.add(memCap);
+                }
+                if (calibrated.size() > 0) {
+                    _capacityDao.updateBatch(calibrated);
+                    for (CapacityVO capacity : calibrated) {
+                        _capacityIndex.update(capacity);
+                    }
+                }
+            } catch (Exception e) {
+
+            }
         }else {
         	
         	CapacityVO capacity = new CapacityVO(host.getId(),
@@ -512,7 +603,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
                     host.getTotalMemory(),
                     CapacityVO.CAPACITY_TYPE_MEMORY);
             capacity.setReservedCapacity(reservedMemory);
-            _capacityDao.persist(capacity);
+            List<CapacityVO> capacities = new ArrayList<CapacityVO>(2);
+            capacities.add(capacity);
         	
             capacity = new CapacityVO(
                     host.getId(),
@@ -525,11 +617,41 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
                             * _cpuOverProvisioningFactor),
                             CapacityVO.CAPACITY_TYPE_CPU);
             capacity.setReservedCapacity(reservedCpu);
-            _capacityDao.persist(capacity);
+            capacities.add(capacity);
+            _capacityDao.persistBatch(capacities);
+            for (CapacityVO persisted : capacities) {
+                _capacityIndex.update(persisted);
+            }
             
         }
         
     }
+
+    /**
+     * Sets the used and reserved capacity to what the vms add up to, recording any difference as drift.
+     * 
+     * @return true if the capacity needs to be written back.
+     */
+    private boolean calibrate(CapacityVO capacity, String name, long used, long reserved) {
+        boolean calibrated = false;
+        if (capacity.getReservedCapacity() != reserved) {
+            s_logger.debug("Calibrate reserved " + name + " for host: " + capacity.getHostOrPoolId() + " old reserved: " + capacity.getReservedCapacity()
+                    + " new reserved: " + reserved);
+            _audit.record(name + " reserved", capacity.getHostOrPoolId(), capacity.getReservedCapacity(), reserved);
+            capacity.setReservedCapacity(reserved);
+            calibrated = true;
+        }
+        if (capacity.getUsedCapacity() != used) {
+            s_logger.debug("Calibrate used " + name + " for host: " + capacity.getHostOrPoolId() + " old used: " + capacity.getUsedCapacity() + " new used: " + used);
+            _audit.record(name + " used", capacity.getHostOrPoolId(), capacity.getUsedCapacity(), used);
+            capacity.setUsedCapacity(used);
+            calibrated = true;
+        }
+        if (!calibrated) {
+            s_logger.debug("No need to calibrate " + name + " capacity, host:" + capacity.getHostOrPoolId() + " used: " + used + " reserved: " + reserved);
+        }
+        return calibrated;
+    }
     
     @Override
     public boolean preStateTransitionEvent(State oldState, Event event, State newState, VirtualMachine vm, boolean transitionStatus, Long id) {
@@ -87,6 +87,10 @@ public class ComputeCapacityListener implements Listener {
 
     @Override
     public boolean processDisconnect(long agentId, Status state) {
+        if (state == Status.Removed) {
+            // the host's op_host_capacity rows go with it, so stop offering it to the planner now rather than at the next reload.
+            _capacityMgr.getCapacityIndex().remove(agentId);
+        }
         return false;
     }
 
@@ -34,4 +34,9 @@ public interface CapacityDao extends GenericDao<CapacityVO, Long> {
 	List<SummedCapacity> findByClusterPodZone(Long zoneId, Long podId, Long clusterId);
 	List<SummedCapacity> findNonSharedStorageForClusterPodZone(Long zoneId,Long podId, Long clusterId);
     List<Long> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone, float cpuOverprovisioningFactor);
+
+    /**
+     * Adds delta, which may be negative, to the used capacity of the host or pool in the current transaction.
+     */
+    void adjustUsedCapacity(long hostOrPoolId, short capacityType, long delta);
 }
@@ -155,6 +155,21 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
     }
 
     
+    @Override
+    public void adjustUsedCapacity(long hostOrPoolId, short capacityType, long delta) {
+        Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(ADD_ALLOCATED_SQL);
+            pstmt.setLong(1, delta);
+            pstmt.setLong(2, hostOrPoolId);
+            pstmt.setShort(3, capacityType);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        }
+    }
+
     @Override
     public CapacityVO findByHostIdType(Long hostId, short capacityType) {
     	SearchCriteria<CapacityVO> sc = _hostIdTypeSearch.create();
@@ -33,8 +33,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -68,8 +70,10 @@ import com.cloud.utils.component.Adapters;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.CacheInvalidationBus;
 import com.cloud.utils.db.ConnectionConcierge;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.Merovingian2;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.events.SubscriptionMgr;
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -129,6 +133,8 @@ public class ClusterManagerImpl implements ClusterManager {
     private boolean _agentLBEnabled = false;
     private double _connectedAgentsThreshold = 0.7;
     private static boolean _agentLbHappened = false;
+    private int _cacheInvalidationInterval = CacheInvalidationBus.DEFAULT_FLUSH_INTERVAL;
+    private volatile List<String> _peerNames = new ArrayList<String>();
     
     
     public ClusterManagerImpl() {
@@ -908,6 +914,15 @@ public class ClusterManagerImpl implements ClusterManager {
         if(newNodeList.size() > 0) {
             this.queueNotification(new ClusterManagerMessage(ClusterManagerMessage.MessageType.nodeAdded, newNodeList));
         }
+
+        List<String> peerNames = new ArrayList<String>(activePeers.size());
+        for(ManagementServerHostVO mshost : activePeers.values()) {
+            String peerName = Long.toString(mshost.getMsid());
+            if(!getSelfPeerName().equals(peerName)) {
+                peerNames.add(peerName);
+            }
+        }
+        _peerNames = peerNames;
     }
 
     private static ManagementServerHostVO getInListById(Long id, List<ManagementServerHostVO> l) {
@@ -919,6 +934,86 @@ public class ClusterManagerImpl implements ClusterManager {
         return null;
     }
 
+    /**
+     * Sends entity cache evictions to the peers in parallel and waits for all
+     * of them, so the next batch never overtakes this one on its way to a peer.
+     */
+    protected class CacheInvalidationPublisher implements CacheInvalidationBus.Publisher {
+        @Override
+        public void publish(final CacheInvalidationBus.Batch batch) {
+            List<String> peers = _peerNames;
+            if(peers.isEmpty()) {
+                return;
+            }
+
+            final String json = gson.toJson(batch);
+            final CacheInvalidationBus bus = CacheInvalidationBus.getInstance();
+            List<Future<?>> futures = new ArrayList<Future<?>>(peers.size());
+            for(final String peer : peers) {
+                futures.add(_executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean delivered = false;
+                        try {
+                            ClusterService peerService = getPeerService(peer);
+                            if(peerService != null) {
+                                delivered = peerService.invalidateCache(getSelfPeerName(), json);
+                            }
+                        } catch (RemoteException e) {
+                            s_logger.warn("Unable to send cache invalidations to " + peer + " : " + e.getMessage());
+                            invalidatePeerService(peer);
+                        }
+                        bus.recordDelivery(peer, batch, delivered);
+                    }
+                }));
+            }
+
+            for(Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    s_logger.debug("Interrupted while sending cache invalidations");
+                    return;
+                } catch (ExecutionException e) {
+                    s_logger.warn("Unexpected exception while sending cache invalidations", e.getCause());
+                }
+            }
+        }
+    }
+
+    /**
+     * Carries lock subscriptions and releases to the peers off the caller's thread.
+     */
+    protected class LockPeerNotifier implements Merovingian2.PeerNotifier {
+        @Override
+        public void subscribe(long holderMsId, String key) {
+            send(holderMsId, key, false);
+        }
+
+        @Override
+        public void released(long waiterMsId, String key) {
+            send(waiterMsId, key, true);
+        }
+
+        protected void send(final long msId, final String key, final boolean released) {
+            final String peer = Long.toString(msId);
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ClusterService peerService = getPeerService(peer);
+                        if(peerService != null) {
+                            peerService.notifyLock(getSelfPeerName(), key, released);
+                        }
+                    } catch (RemoteException e) {
+                        s_logger.debug("Unable to send lock " + (released ? "release" : "subscription") + " of " + key + " to " + peer + " : " + e.getMessage());
+                        invalidatePeerService(peer);
+                    }
+                }
+            });
+        }
+    }
+
     @Override
     public String getName() {
         return _name;
@@ -974,6 +1069,19 @@ public class ClusterManagerImpl implements ClusterManager {
             _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
             _notificationExecutor.submit(getNotificationTask());
 
+            CacheInvalidationBus bus = CacheInvalidationBus.getInstance();
+            bus.start(getSelfPeerName(), new CacheInvalidationPublisher(), _cacheInvalidationInterval);
+            try {
+                JmxUtil.registerMBean("ClusterManager", "CacheInvalidation", bus);
+            } catch(Exception e) {
+                s_logger.warn("Unable to register cache invalidation bus into JMX monitoring due to exception " + ExceptionUtil.toString(e));
+            }
+
+            Merovingian2 lockMaster = Merovingian2.getLockMaster();
+            if (lockMaster != null) {
+                lockMaster.setPeerNotifier(new LockPeerNotifier());
+            }
+
         } catch (Throwable e) {
             s_logger.error("Unexpected exception : ", e);
             txn.rollback();
@@ -996,6 +1104,8 @@ public class ClusterManagerImpl implements ClusterManager {
             _mshostDao.update(_mshostId, mshost);
         }
 
+        CacheInvalidationBus.getInstance().stop();
+
         _heartbeatScheduler.shutdownNow();
         _executor.shutdownNow();
 
@@ -1057,6 +1167,8 @@ public class ClusterManagerImpl implements ClusterManager {
             heartbeatThreshold = NumbersUtil.parseInt(value, ClusterManager.DEFAULT_HEARTBEAT_THRESHOLD);
         }
 
+        _cacheInvalidationInterval = NumbersUtil.parseInt(configs.get(Config.ClusterCacheInvalidationInterval.key()), CacheInvalidationBus.DEFAULT_FLUSH_INTERVAL);
+
         File dbPropsFile = PropertiesUtil.findConfigFile("db.properties");
         Properties dbProps = new Properties();
         try {
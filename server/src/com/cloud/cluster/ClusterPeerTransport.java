@@ -0,0 +1,383 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.cluster;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * ClusterPeerTransport carries the calls to one peer management server.
+ *
+ * Connections to the peer are pooled and kept alive.  Small calls are queued
+ * and whoever sends next takes everything queued with it, so concurrent
+ * callers share one round trip; up to one batch per pooled connection is in
+ * flight at a time.  Synchronous agent commands, which can take as long as
+ * the command does, and large payloads are posted on their own, over a
+ * separate pool so they can never hold up the batches.  Calls go as a json
+ * array in the body instead of form encoded parameters.  Waiting for a
+ * pooled connection is bounded by the request timeout.
+ *
+ * A peer that doesn't understand batches answers them with a bad request;
+ * from then on the calls to it are posted one by one, the old way.
+ */
+public class ClusterPeerTransport {
+    private static final Logger s_logger = Logger.getLogger(ClusterPeerTransport.class);
+
+    public static final String BATCH_CONTENT_TYPE = "application/json";
+    public static final int DEFAULT_CONNECTIONS = 4;
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    // calls with more than this many characters of parameters are posted on their own
+    public static final int MAX_BATCHED_CALL_SIZE = 16 * 1024;
+    // the peer drops connections idle for 5 seconds; stop using them before that
+    public static final long IDLE_TIMEOUT = 3000;
+
+    protected static final Type s_callListType = new TypeToken<List<PeerCall>>() {}.getType();
+
+    /**
+     * One call as it goes over the wire.
+     */
+    public static class PeerCall {
+        int method;
+        Map<String, String> params;
+
+        public PeerCall() {
+        }
+
+        public PeerCall(int method) {
+            this.method = method;
+            this.params = new LinkedHashMap<String, String>();
+        }
+
+        public PeerCall add(String name, String value) {
+            params.put(name, value);
+            return this;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public Map<String, String> getParams() {
+            return params;
+        }
+
+        int size() {
+            int size = 0;
+            for (Map.Entry<String, String> entry : params.entrySet()) {
+                size += entry.getKey().length() + (entry.getValue() != null ? entry.getValue().length() : 0);
+            }
+            return size;
+        }
+    }
+
+    protected static class Pending {
+        final PeerCall _call;
+        String _result;
+        boolean _done;
+
+        Pending(PeerCall call) {
+            _call = call;
+        }
+
+        synchronized void complete(String result) {
+            _result = result;
+            _done = true;
+            notifyAll();
+        }
+    }
+
+    private final String _serviceUrl;
+    private final Gson _gson;
+    private final ExecutorService _executor;
+    private final MultiThreadedHttpConnectionManager _batchConnections;
+    private final HttpClient _batchClient;
+    private final MultiThreadedHttpConnectionManager _directConnections;
+    private final HttpClient _directClient;
+    private final int _connections;
+    private final int _batchSize;
+    private final long _timeout;
+
+    private final LinkedList<Pending> _queue = new LinkedList<Pending>();
+    private int _senders;
+    private volatile boolean _legacy;
+
+    private final AtomicLong _calls = new AtomicLong();
+    private final AtomicLong _posts = new AtomicLong();
+    private final AtomicLong _batchedCalls = new AtomicLong();
+    private final AtomicLong _bytesSent = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+
+    /**
+     * @param executor runs the threads that send queued calls; shared between peers.
+     * @param connections connections to keep to the peer, which is also how many batches can be in flight.
+     * @param batchSize most calls to send in one post.
+     */
+    public ClusterPeerTransport(String serviceUrl, int requestTimeoutSeconds, Gson gson, ExecutorService executor, int connections, int batchSize) {
+        _serviceUrl = serviceUrl;
+        _gson = gson;
+        _executor = executor;
+        _connections = Math.max(1, connections);
+        _batchSize = Math.max(1, batchSize);
+        _timeout = requestTimeoutSeconds * 1000L;
+
+        _batchConnections = new MultiThreadedHttpConnectionManager();
+        setParams(_batchConnections.getParams(), _connections, requestTimeoutSeconds);
+        _batchClient = new HttpClient(_batchConnections);
+        _batchClient.getParams().setConnectionManagerTimeout(_timeout);
+
+        // one connection per caller; the callers' threads are what bounds them
+        _directConnections = new MultiThreadedHttpConnectionManager();
+        setParams(_directConnections.getParams(), Integer.MAX_VALUE, requestTimeoutSeconds);
+        _directClient = new HttpClient(_directConnections);
+        _directClient.getParams().setConnectionManagerTimeout(_timeout);
+    }
+
+    protected static void setParams(HttpConnectionManagerParams params, int connections, int requestTimeoutSeconds) {
+        params.setDefaultMaxConnectionsPerHost(connections);
+        params.setMaxTotalConnections(connections);
+        params.setSoTimeout(requestTimeoutSeconds * 1000);
+        params.setStaleCheckingEnabled(true);
+        params.setTcpNoDelay(true);
+    }
+
+    public String getServiceUrl() {
+        return _serviceUrl;
+    }
+
+    /**
+     * @return what the peer returned for the call, null if it failed or didn't answer in time.
+     */
+    public String call(PeerCall call) {
+        _calls.incrementAndGet();
+        if (_legacy) {
+            return postLegacy(call);
+        }
+
+        if (call.getMethod() == RemoteMethodConstants.METHOD_EXECUTE || call.size() > MAX_BATCHED_CALL_SIZE) {
+            List<Pending> single = new ArrayList<Pending>(1);
+            Pending pending = new Pending(call);
+            single.add(pending);
+            send(single, _directConnections, _directClient);
+            return pending._result;
+        }
+
+        Pending pending = new Pending(call);
+        boolean startSender = false;
+        synchronized (_queue) {
+            _queue.add(pending);
+            if (_senders < _connections) {
+                _senders++;
+                startSender = true;
+            }
+        }
+        if (startSender) {
+            try {
+                _executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (_queue) {
+                    _senders--;
+                }
+                // shutting down; send it ourselves rather than leave it stranded
+                drain();
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + _timeout;
+        synchronized (pending) {
+            while (!pending._done) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                try {
+                    pending.wait(wait);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (pending._done) {
+                return pending._result;
+            }
+        }
+
+        synchronized (_queue) {
+            _queue.remove(pending);
+        }
+        s_logger.warn("Timed out waiting for method " + call.getMethod() + " on " + _serviceUrl);
+        return null;
+    }
+
+    protected void drain() {
+        while (true) {
+            List<Pending> batch;
+            synchronized (_queue) {
+                if (_queue.isEmpty()) {
+                    _senders--;
+                    return;
+                }
+                batch = new ArrayList<Pending>(Math.min(_queue.size(), _batchSize));
+                while (!_queue.isEmpty() && batch.size() < _batchSize) {
+                    batch.add(_queue.removeFirst());
+                }
+            }
+            try {
+                send(batch, _batchConnections, _batchClient);
+            } catch (Throwable th) {
+                s_logger.warn("Unable to send " + batch.size() + " calls to " + _serviceUrl, th);
+                for (Pending pending : batch) {
+                    if (!pending._done) {
+                        pending.complete(null);
+                    }
+                }
+            }
+        }
+    }
+
+    protected void send(List<Pending> batch, MultiThreadedHttpConnectionManager connections, HttpClient client) {
+        List<PeerCall> calls = new ArrayList<PeerCall>(batch.size());
+        for (Pending pending : batch) {
+            calls.add(pending._call);
+        }
+
+        String[] results = null;
+        PostMethod method = new PostMethod(_serviceUrl);
+        try {
+            byte[] body = _gson.toJson(calls, s_callListType).getBytes("UTF-8");
+            method.setRequestEntity(new ByteArrayRequestEntity(body, BATCH_CONTENT_TYPE + "; charset=UTF-8"));
+            _posts.incrementAndGet();
+            _bytesSent.addAndGet(body.length);
+            if (batch.size() > 1) {
+                _batchedCalls.addAndGet(batch.size());
+            }
+
+            long startTick = System.currentTimeMillis();
+            connections.closeIdleConnections(IDLE_TIMEOUT);
+            int response = client.executeMethod(method);
+            if (response == HttpStatus.SC_OK) {
+                results = _gson.fromJson(new String(method.getResponseBody(), "UTF-8"), String[].class);
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("POST " + batch.size() + " calls to " + _serviceUrl + " in " + (System.currentTimeMillis() - startTick) + " ms");
+                }
+            } else if (response == HttpStatus.SC_BAD_REQUEST) {
+                s_logger.info("Peer " + _serviceUrl + " doesn't take batched calls, posting calls to it one by one");
+                _legacy = true;
+            } else {
+                s_logger.error("Invalid response code : " + response + ", from : " + _serviceUrl + " for " + batch.size() + " calls, responding time: "
+                        + (System.currentTimeMillis() - startTick));
+            }
+        } catch (IOException e) {
+            s_logger.error("IOException from : " + _serviceUrl + " for " + batch.size() + " calls: " + e.getMessage());
+        } finally {
+            method.releaseConnection();
+        }
+
+        if (_legacy && results == null) {
+            for (Pending pending : batch) {
+                pending.complete(postLegacy(pending._call));
+            }
+            return;
+        }
+
+        if (results == null || results.length != batch.size()) {
+            if (results != null) {
+                s_logger.error("Peer " + _serviceUrl + " returned " + results.length + " results for " + batch.size() + " calls");
+            }
+            _failures.addAndGet(batch.size());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).complete(results != null && i < results.length ? results[i] : null);
+        }
+    }
+
+    protected String postLegacy(PeerCall call) {
+        PostMethod method = new PostMethod(_serviceUrl);
+        method.addParameter("method", Integer.toString(call.getMethod()));
+        for (Map.Entry<String, String> entry : call.getParams().entrySet()) {
+            method.addParameter(entry.getKey(), entry.getValue());
+        }
+
+        _posts.incrementAndGet();
+        try {
+            _directConnections.closeIdleConnections(IDLE_TIMEOUT);
+            int response = _directClient.executeMethod(method);
+            if (response == HttpStatus.SC_OK) {
+                return method.getResponseBodyAsString();
+            }
+            s_logger.error("Invalid response code : " + response + ", from : " + _serviceUrl + ", method : " + call.getMethod());
+        } catch (IOException e) {
+            s_logger.error("IOException from : " + _serviceUrl + ", method : " + call.getMethod());
+        } finally {
+            method.releaseConnection();
+        }
+        _failures.incrementAndGet();
+        return null;
+    }
+
+    public boolean isLegacy() {
+        return _legacy;
+    }
+
+    public long getCalls() {
+        return _calls.get();
+    }
+
+    public long getPosts() {
+        return _posts.get();
+    }
+
+    public long getBatchedCalls() {
+        return _batchedCalls.get();
+    }
+
+    public long getBytesSent() {
+        return _bytesSent.get();
+    }
+
+    public long getFailures() {
+        return _failures.get();
+    }
+
+    public void close() {
+        _batchConnections.shutdown();
+        _directConnections.shutdown();
+    }
+}
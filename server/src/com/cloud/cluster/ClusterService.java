@@ -26,4 +26,6 @@ public interface ClusterService extends Remote {
 	long executeAsync(String callingPeer, long agentId, String gsonPackage, boolean stopOnError) throws RemoteException;
 	boolean onAsyncResult(String executingPeer, long agentId, long seq, String gsonPackage) throws RemoteException;
 	boolean ping(String callingPeer) throws RemoteException;
+	boolean invalidateCache(String callingPeer, String gsonPackage) throws RemoteException;
+	boolean notifyLock(String callingPeer, String key, boolean released) throws RemoteException;
 }
@@ -25,6 +25,9 @@ import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -34,9 +37,11 @@ import org.apache.log4j.Logger;
 import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.serializer.GsonHelper;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 @Local(value={ClusterServiceAdapter.class})
 public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
@@ -57,6 +62,12 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     private int _clusterServicePort = DEFAULT_SERVICE_PORT;
     
     private int _clusterRequestTimeoutSeconds = DEFAULT_REQUEST_TIMEOUT;
+    private int _peerConnections = ClusterPeerTransport.DEFAULT_CONNECTIONS;
+    private int _peerBatchSize = ClusterPeerTransport.DEFAULT_BATCH_SIZE;
+    
+    // one transport per peer url so its pooled connections outlive the ClusterService the manager caches
+    private final Map<String, ClusterPeerTransport> _transports = new ConcurrentHashMap<String, ClusterPeerTransport>();
+    private ExecutorService _senderExecutor;
     
     @Override
 	public ClusterService getPeerService(String strPeer) throws RemoteException {
@@ -71,9 +82,21 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     	if(serviceUrl == null)
     		return null;
     	
-    	return new ClusterServiceServletImpl(serviceUrl, _clusterRequestTimeoutSeconds);
+    	return new ClusterServiceServletImpl(getTransport(serviceUrl), _clusterRequestTimeoutSeconds);
 	}
     
+    private ClusterPeerTransport getTransport(String serviceUrl) {
+    	synchronized(_transports) {
+    		ClusterPeerTransport transport = _transports.get(serviceUrl);
+    		if(transport == null) {
+    			transport = new ClusterPeerTransport(serviceUrl, _clusterRequestTimeoutSeconds, GsonHelper.getGson(), _senderExecutor,
+    				_peerConnections, _peerBatchSize);
+    			_transports.put(serviceUrl, transport);
+    		}
+    		return transport;
+    	}
+    }
+    
     @Override
 	public String getServiceEndpointName(String strPeer) {
     	try {
@@ -127,6 +150,15 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     public boolean stop() {
     	if(_servletContainer != null)
     		_servletContainer.stop();
+    	
+    	synchronized(_transports) {
+    		for(ClusterPeerTransport transport : _transports.values()) {
+    			transport.close();
+    		}
+    		_transports.clear();
+    	}
+    	if(_senderExecutor != null)
+    		_senderExecutor.shutdown();
     	return true;
     }
     
@@ -154,6 +186,10 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
         String value = _configDao.getValue(Config.ClusterMessageTimeOutSeconds.key());
     	_clusterRequestTimeoutSeconds = NumbersUtil.parseInt(value, DEFAULT_REQUEST_TIMEOUT);
     	s_logger.info("Configure cluster request time out. timeout: " + _clusterRequestTimeoutSeconds + " seconds");
+    	
+    	_peerConnections = NumbersUtil.parseInt(_configDao.getValue(Config.ClusterPeerConnections.key()), ClusterPeerTransport.DEFAULT_CONNECTIONS);
+    	_peerBatchSize = NumbersUtil.parseInt(_configDao.getValue(Config.ClusterPeerBatchSize.key()), ClusterPeerTransport.DEFAULT_BATCH_SIZE);
+    	_senderExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("Cluster-Peer-Sender"));
         
         File dbPropsFile = PropertiesUtil.findConfigFile("db.properties");
         Properties dbProps = new Properties();
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -131,13 +132,20 @@ public class ClusterServiceServletContainer {
                             	if(s_logger.isTraceEnabled())
                             		s_logger.trace("dispatching cluster request from " + conn.getRemoteAddress().toString());
                             	
-                                _httpService.handleRequest(conn, context);
+                                // peers keep their connections open, so serve it until they close it or it sits idle
+                                while(!Thread.interrupted() && conn.isOpen()) {
+                                    _httpService.handleRequest(conn, context);
+                                }
                                 
                             	if(s_logger.isTraceEnabled())
                             		s_logger.trace("Cluster request from " + conn.getRemoteAddress().toString() + " is processed");
                                 
                             } catch (ConnectionClosedException ex) {
-                                s_logger.error("Client closed connection", ex);
+                                if(s_logger.isTraceEnabled())
+                                    s_logger.trace("Client closed connection");
+                            } catch (SocketTimeoutException ex) {
+                                if(s_logger.isTraceEnabled())
+                                    s_logger.trace("Closing idle connection from " + conn.getRemoteAddress().toString());
                             } catch (IOException ex) {
                                 s_logger.error("I/O error", ex);
                             } catch (HttpException ex) {
@@ -21,13 +21,18 @@ package com.cloud.cluster;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.http.Header;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 import org.apache.http.util.EntityUtils;
@@ -42,6 +47,8 @@ import com.cloud.agent.api.TransferAgentCommand;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.OperationTimedoutException;
 import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.db.CacheInvalidationBus;
+import com.cloud.utils.db.Merovingian2;
 import com.google.gson.Gson;
 
 public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
@@ -65,8 +72,12 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
                 s_logger.trace("Start Handling cluster HTTP request");
             }
 
-            parseRequest(request);
-            handleRequest(request, response);
+            if(isBatch(request)) {
+                handleBatch(request, response);
+            } else {
+                parseRequest(request);
+                handleRequest(request, response);
+            }
 
             if(s_logger.isTraceEnabled()) {
                 s_logger.trace("Handle cluster HTTP request done");
@@ -123,13 +134,43 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
         BasicHttpEntity body = new BasicHttpEntity();
         body.setContentType("text/html; charset=UTF-8");
 
-        byte[] bodyData = content.getBytes();
+        byte[] bodyData = content.getBytes(Charset.forName("UTF-8"));
         body.setContent(new ByteArrayInputStream(bodyData));
         body.setContentLength(bodyData.length);
         response.setEntity(body);
     }
 
-    protected void handleRequest(HttpRequest req, HttpResponse response) {
+    private boolean isBatch(HttpRequest request) {
+        Header contentType = request.getFirstHeader("Content-Type");
+        return request instanceof HttpEntityEnclosingRequest && contentType != null
+            && contentType.getValue().startsWith(ClusterPeerTransport.BATCH_CONTENT_TYPE);
+    }
+
+    /**
+     * Runs the calls a ClusterPeerTransport batched together, in order, and returns what each of them returned.
+     */
+    private void handleBatch(HttpRequest request, HttpResponse response) throws IOException {
+        String body = EntityUtils.toString(((HttpEntityEnclosingRequest)request).getEntity(), "UTF-8");
+        List<ClusterPeerTransport.PeerCall> calls = gson.fromJson(body, ClusterPeerTransport.s_callListType);
+
+        String[] results = new String[calls.size()];
+        for (int i = 0; i < calls.size(); i++) {
+            ClusterPeerTransport.PeerCall call = calls.get(i);
+            HttpRequest callRequest = new BasicHttpRequest("POST", request.getRequestLine().getUri());
+            callRequest.getParams().setParameter("method", Integer.toString(call.getMethod()));
+            for (Map.Entry<String, String> param : call.getParams().entrySet()) {
+                callRequest.getParams().setParameter(param.getKey(), param.getValue());
+            }
+            results[i] = dispatch(callRequest);
+        }
+
+        if(s_logger.isTraceEnabled()) {
+            s_logger.trace("Handled a batch of " + calls.size() + " cluster calls");
+        }
+        writeResponse(response, HttpStatus.SC_OK, gson.toJson(results));
+    }
+
+    protected String dispatch(HttpRequest req) {
         String method = (String)req.getParams().getParameter("method");
 
         int nMethod = RemoteMethodConstants.METHOD_UNKNOWN;
@@ -156,6 +197,14 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
                 responseContent = handlePingMethodCall(req);
                 break;
 
+            case RemoteMethodConstants.METHOD_INVALIDATE_CACHE :
+                responseContent = handleInvalidateCacheMethodCall(req);
+                break;
+
+            case RemoteMethodConstants.METHOD_LOCK_NOTIFICATION :
+                responseContent = handleLockNotificationMethodCall(req);
+                break;
+
             case RemoteMethodConstants.METHOD_UNKNOWN :
             default :
                 assert(false);
@@ -165,6 +214,11 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
         } catch(Throwable e) {
             s_logger.error("Unexpected exception when processing cluster service request : ", e);
         }
+        return responseContent;
+    }
+
+    protected void handleRequest(HttpRequest req, HttpResponse response) {
+        String responseContent = dispatch(req);
 
         if(responseContent != null) {
         	if(s_logger.isTraceEnabled())
@@ -361,4 +415,46 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
 
         return "true";
     }
+
+    private String handleInvalidateCacheMethodCall(HttpRequest req) {
+        String callingPeer = (String)req.getParams().getParameter("callingPeer");
+        String gsonPackage = (String)req.getParams().getParameter("gsonPackage");
+
+        if(s_logger.isTraceEnabled()) {
+            s_logger.trace("Handle cache invalidation from " + callingPeer + " : " + gsonPackage);
+        }
+
+        CacheInvalidationBus.Batch batch = null;
+        try {
+            batch = gson.fromJson(gsonPackage, CacheInvalidationBus.Batch.class);
+        } catch(Throwable e) {
+            s_logger.error("Excection in gson decoding : ", e);
+            return null;
+        }
+
+        CacheInvalidationBus.getInstance().receive(batch);
+        return "true";
+    }
+
+    private String handleLockNotificationMethodCall(HttpRequest req) {
+        String callingPeer = (String)req.getParams().getParameter("callingPeer");
+        String key = (String)req.getParams().getParameter("key");
+        String released = (String)req.getParams().getParameter("released");
+
+        if(s_logger.isTraceEnabled()) {
+            s_logger.trace("Handle lock notification from " + callingPeer + " for " + key + ", released: " + released);
+        }
+
+        Merovingian2 lockMaster = Merovingian2.getLockMaster();
+        if(callingPeer == null || key == null || lockMaster == null) {
+            return null;
+        }
+
+        if("1".equals(released)) {
+            lockMaster.onPeerRelease(key);
+        } else {
+            lockMaster.onPeerSubscribe(Long.parseLong(callingPeer), key);
+        }
+        return "true";
+    }
 }
@@ -20,6 +20,7 @@ package com.cloud.cluster;
 
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.Map;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
@@ -28,6 +29,7 @@ import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.params.HttpClientParams;
 import org.apache.log4j.Logger;
 
+import com.cloud.cluster.ClusterPeerTransport.PeerCall;
 import com.cloud.serializer.GsonHelper;
 import com.google.gson.Gson;
 
@@ -39,6 +41,7 @@ public class ClusterServiceServletImpl implements ClusterService {
 
     private final Gson _gson;
     private int _requestTimeoutSeconds;
+    private ClusterPeerTransport _transport;
 
     public ClusterServiceServletImpl() {
         _gson = GsonHelper.getGson();
@@ -53,21 +56,23 @@ public class ClusterServiceServletImpl implements ClusterService {
         _gson = GsonHelper.getGson();
     }
 
+    public ClusterServiceServletImpl(ClusterPeerTransport transport, int requestTimeoutSeconds) {
+        this(transport.getServiceUrl(), requestTimeoutSeconds);
+        _transport = transport;
+    }
+
     @Override
     public String execute(String callingPeer, long agentId, String gsonPackage, boolean stopOnError) throws RemoteException {
         if(s_logger.isDebugEnabled()) {
             s_logger.debug("Post (sync-call) " + gsonPackage + " to " + _serviceUrl + " for agent " + agentId + " from " + callingPeer);
         }
 
-        HttpClient client = getHttpClient();
-        PostMethod method = new PostMethod(_serviceUrl);
-
-        method.addParameter("method", Integer.toString(RemoteMethodConstants.METHOD_EXECUTE));
-        method.addParameter("agentId", Long.toString(agentId));
-        method.addParameter("gsonPackage", gsonPackage);
-        method.addParameter("stopOnError", stopOnError ? "1" : "0");
+        PeerCall call = new PeerCall(RemoteMethodConstants.METHOD_EXECUTE);
+        call.add("agentId", Long.toString(agentId));
+        call.add("gsonPackage", gsonPackage);
+        call.add("stopOnError", stopOnError ? "1" : "0");
 
-        return executePostMethod(client, method);
+        return call(call);
     }
     
     @Override
@@ -77,16 +82,13 @@ public class ClusterServiceServletImpl implements ClusterService {
             s_logger.debug("Post (Async-call) " + gsonPackage + " to " + _serviceUrl + " for agent " + agentId + " from " + callingPeer);
         }
 
-        HttpClient client = getHttpClient();
-        PostMethod method = new PostMethod(_serviceUrl);
-
-        method.addParameter("method", Integer.toString(RemoteMethodConstants.METHOD_EXECUTE_ASYNC));
-        method.addParameter("agentId", Long.toString(agentId));
-        method.addParameter("gsonPackage", gsonPackage);
-        method.addParameter("stopOnError", stopOnError ? "1" : "0");
-        method.addParameter("caller", callingPeer);
+        PeerCall call = new PeerCall(RemoteMethodConstants.METHOD_EXECUTE_ASYNC);
+        call.add("agentId", Long.toString(agentId));
+        call.add("gsonPackage", gsonPackage);
+        call.add("stopOnError", stopOnError ? "1" : "0");
+        call.add("caller", callingPeer);
 
-        String result = executePostMethod(client, method);
+        String result = call(call);
         if(result == null) {
             s_logger.error("Empty return from remote async-execution on " + _serviceUrl);
             throw new RemoteException("Invalid result returned from async-execution on peer : " + _serviceUrl);
@@ -107,17 +109,14 @@ public class ClusterServiceServletImpl implements ClusterService {
                     + ", excutingPeer: " + executingPeer
                     + ", seq: " + seq + ", gsonPackage: " + gsonPackage);
         }
-        HttpClient client = getHttpClient();
-        PostMethod method = new PostMethod(_serviceUrl);
-
-        method.addParameter("method", Integer.toString(RemoteMethodConstants.METHOD_ASYNC_RESULT));
-        method.addParameter("agentId", Long.toString(agentId));
-        method.addParameter("gsonPackage", gsonPackage);
-        method.addParameter("seq", Long.toString(seq));
-        method.addParameter("executingPeer", executingPeer);
-
-        String result = executePostMethod(client, method);
-        if(result.contains("recurring=true")) {
+        PeerCall call = new PeerCall(RemoteMethodConstants.METHOD_ASYNC_RESULT);
+        call.add("agentId", Long.toString(agentId));
+        call.add("gsonPackage", gsonPackage);
+        call.add("seq", Long.toString(seq));
+        call.add("executingPeer", executingPeer);
+
+        String result = call(call);
+        if(result != null && result.contains("recurring=true")) {
             if(s_logger.isDebugEnabled()) {
                 s_logger.debug("Remote listener returned recurring=true");
             }
@@ -136,18 +135,63 @@ public class ClusterServiceServletImpl implements ClusterService {
             s_logger.debug("Ping at " + _serviceUrl);
         }
 
-        HttpClient client = getHttpClient();
-        PostMethod method = new PostMethod(_serviceUrl);
-
-        method.addParameter("method", Integer.toString(RemoteMethodConstants.METHOD_PING));
-        method.addParameter("callingPeer", callingPeer);
-        String returnVal =  executePostMethod(client, method);
+        PeerCall call = new PeerCall(RemoteMethodConstants.METHOD_PING);
+        call.add("callingPeer", callingPeer);
+        String returnVal = call(call);
         if("true".equalsIgnoreCase(returnVal)) {
             return true;
         }
         return false;
     }
 
+    @Override
+    public boolean invalidateCache(String callingPeer, String gsonPackage) throws RemoteException {
+        if(s_logger.isTraceEnabled()) {
+            s_logger.trace("Post cache invalidation " + gsonPackage + " to " + _serviceUrl + " from " + callingPeer);
+        }
+
+        PeerCall call = new PeerCall(RemoteMethodConstants.METHOD_INVALIDATE_CACHE);
+        call.add("callingPeer", callingPeer);
+        call.add("gsonPackage", gsonPackage);
+        String returnVal = call(call);
+        if(returnVal == null) {
+            throw new RemoteException("Unable to deliver cache invalidation to peer : " + _serviceUrl);
+        }
+        return "true".equalsIgnoreCase(returnVal);
+    }
+
+    @Override
+    public boolean notifyLock(String callingPeer, String key, boolean released) throws RemoteException {
+        if(s_logger.isTraceEnabled()) {
+            s_logger.trace("Post lock " + (released ? "release" : "subscription") + " of " + key + " to " + _serviceUrl + " from " + callingPeer);
+        }
+
+        PeerCall call = new PeerCall(RemoteMethodConstants.METHOD_LOCK_NOTIFICATION);
+        call.add("callingPeer", callingPeer);
+        call.add("key", key);
+        call.add("released", released ? "1" : "0");
+        String returnVal = call(call);
+        if(returnVal == null) {
+            throw new RemoteException("Unable to deliver lock notification to peer : " + _serviceUrl);
+        }
+        return "true".equalsIgnoreCase(returnVal);
+    }
+
+    private String call(PeerCall call) {
+        if(_transport != null) {
+            return _transport.call(call);
+        }
+
+        HttpClient client = getHttpClient();
+        PostMethod method = new PostMethod(_serviceUrl);
+
+        method.addParameter("method", Integer.toString(call.getMethod()));
+        for(Map.Entry<String, String> param : call.getParams().entrySet()) {
+            method.addParameter(param.getKey(), param.getValue());
+        }
+        return executePostMethod(client, method);
+    }
+
     private String executePostMethod(HttpClient client, PostMethod method) {
         int response = 0;
         String result = null;
@@ -24,4 +24,6 @@ public interface RemoteMethodConstants {
     public static final int METHOD_EXECUTE_ASYNC = 2;
     public static final int METHOD_ASYNC_RESULT = 3;
     public static final int METHOD_PING = 4;
+    public static final int METHOD_INVALIDATE_CACHE = 5;
+    public static final int METHOD_LOCK_NOTIFICATION = 6;
 }
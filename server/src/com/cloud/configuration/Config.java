@@ -84,6 +84,9 @@ public enum Config {
 	SecurityGroupWorkCleanupInterval("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.cleanup.interval", "120", "Time interval (seconds) in which finished work is cleaned up from the work table", null),
 	SecurityGroupWorkerThreads("Network", ManagementServer.class, Integer.class, "network.securitygroups.workers.pool.size", "50", "Number of worker threads processing the security group update work queue", null),
 	SecurityGroupWorkGlobalLockTimeout("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.lock.timeout", "300", "Lock wait timeout (seconds) while updating the security group work queue", null),
+	SecurityGroupWorkBatchSize("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.batch.size", "100", "Maximum number of vm ruleset updates a security group worker takes at once; updates for vms on the same host go out in one request", null),
+	SecurityGroupWorkBatchWindow("Network", ManagementServer.class, Long.class, "network.securitygroups.work.batch.window", "100", "Time (milliseconds) a security group worker waits for more updates to fill its batch", null),
+	SecurityGroupDeltaUpdates("Network", ManagementServer.class, Boolean.class, "network.securitygroups.delta.updates", "true", "Send KVM hosts only the security group rules added and revoked since the ruleset they last acknowledged", null),
 
 	FirewallRuleUiEnabled("Network", ManagementServer.class, Boolean.class, "firewall.rule.ui.enabled", "false", "enable/disable UI that separates firewall rules from NAT/LB rules", null),
 	
@@ -130,6 +133,7 @@ public enum Config {
 	// Advanced
     JobExpireMinutes("Advanced", ManagementServer.class, String.class, "job.expire.minutes", "1440", "Time (in minutes) for async-jobs to be kept in system", null),
     JobCancelThresholdMinutes("Advanced", ManagementServer.class, String.class, "job.cancel.threshold.minutes", "60", "Time (in minutes) for async-jobs to be forcely cancelled if it has been in process for long", null),
+    JobQueryMaxWait("Advanced", ManagementServer.class, Integer.class, "job.query.max.wait", "30", "Maximum time (in seconds) a job result query with the wait parameter is held waiting for a job to complete", null),
 	
 	AccountCleanupInterval("Advanced", ManagementServer.class, Integer.class, "account.cleanup.interval", "86400", "The interval (in seconds) between cleanup for removed accounts", null),
 	AllowPublicUserTemplates("Advanced", ManagementServer.class, Integer.class, "allow.public.user.templates", "true", "If false, users will not be able to create public templates.", null),
@@ -150,6 +154,8 @@ public enum Config {
 	RouterCpuMHz("Advanced", NetworkManager.class, Integer.class, "router.cpu.mhz", String.valueOf(VirtualNetworkApplianceManager.DEFAULT_ROUTER_CPU_MHZ), "Default CPU speed (MHz) for router VM.", null),
 	RestartRetryInterval("Advanced", HighAvailabilityManager.class, Integer.class, "restart.retry.interval", "600", "Time (in seconds) between retries to restart a vm", null),
 	RouterStatsInterval("Advanced", NetworkManager.class, Integer.class, "router.stats.interval", "300", "Interval (in seconds) to report router statistics.", null),
+	RouterStatsCollectionThreads("Advanced", NetworkManager.class, Integer.class, "router.stats.collection.threads", "10", "Maximum number of hosts router statistics are collected from at the same time", null),
+	RouterStatsBatchSize("Advanced", NetworkManager.class, Integer.class, "router.stats.batch.size", "50", "Maximum number of routers on a host asked for their statistics in one request", null),
 	RouterTemplateId("Advanced", NetworkManager.class, Long.class, "router.template.id", "1", "Default ID for template.", null),
 	StartRetry("Advanced", AgentManager.class, Integer.class, "start.retry", "10", "Number of times to retry create and start commands", null),
 	StopRetryInterval("Advanced", HighAvailabilityManager.class, Integer.class, "stop.retry.interval", "600", "Time in seconds between retries to stop or destroy a vm" , null),
@@ -188,9 +194,13 @@ public enum Config {
 	NetworkGcWait("Advanced", ManagementServer.class, Integer.class, "network.gc.wait", "600", "Time (in seconds) to wait before shutting down a network that's not in used", null),
 	NetworkGcInterval("Advanced", ManagementServer.class, Integer.class, "network.gc.interval", "600", "Seconds to wait before checking for networks to shutdown", null),
 	HostCapacityCheckerWait("Advanced", ManagementServer.class, Integer.class, "host.capacity.checker.wait", "3600", "Time (in seconds) to wait before starting host capacity background checker", null),
-	HostCapacityCheckerInterval("Advanced", ManagementServer.class, Integer.class, "host.capacity.checker.interval", "3600", "Time (in seconds) to wait before recalculating host's capacity", null),
+	HostCapacityCheckerInterval("Advanced", ManagementServer.class, Integer.class, "host.capacity.checker.interval", "3600", "Time (in seconds) between audits of host and storage pool capacity against the VMs and volumes using it", null),
 	CapacitySkipcountingHours("Advanced", ManagementServer.class, Integer.class, "capacity.skipcounting.hours", "3600", "Time (in seconds) to wait before release VM's cpu and memory when VM in stopped state", null),
+	CapacityIndexRefreshInterval("Advanced", ManagementServer.class, Integer.class, "capacity.index.refresh.interval", "60", "Time (in seconds) between reloads of the in-memory host capacity index used by the deployment planner; 0 disables the index and the planner queries op_host_capacity directly", null),
 	VmStatsInterval("Advanced", ManagementServer.class, Integer.class, "vm.stats.interval", "60000", "The interval (in milliseconds) when vm stats are retrieved from agents.", null),
+	StatsCollectionMaxParallel("Advanced", ManagementServer.class, Integer.class, "stats.collection.max.parallel", "16", "Maximum number of hosts or storage pools host, vm and volume stats are collected from at the same time", null),
+	StatsCollectionTimeout("Advanced", ManagementServer.class, Long.class, "stats.collection.timeout", "30000", "Time (in milliseconds) a stats collection cycle waits for hosts to answer; hosts that take longer are skipped for a few cycles", null),
+	StatsHistorySize("Advanced", ManagementServer.class, Integer.class, "stats.history.size", "60", "Number of host and vm stats samples kept in memory for each host and vm", null),
 	VmTransitionWaitInterval("Advanced", ManagementServer.class, Integer.class, "vm.tranisition.wait.interval", "3600", "Time (in seconds) to wait before taking over a VM in transition state", null),
 	
 	ControlCidr("Advanced", ManagementServer.class, String.class, "control.cidr", "169.254.0.0/16", "Changes the cidr for the control network traffic.  Defaults to using link local.  Must be unique within pods", null),
@@ -242,6 +252,8 @@ public enum Config {
     DirectNetworkStatsInterval("Premium", ManagementServer.class, Integer.class, "direct.network.stats.interval", "86400", "Interval (in seconds) to collect stats from Traffic Monitor", null),
     UsageSanityCheckInterval("Premium", ManagementServer.class, Integer.class, "usage.sanity.check.interval", null, "Interval (in days) to check sanity of usage data", null),
     UsageAggregationTimezone("Premium", ManagementServer.class, String.class, "usage.aggregation.timezone", "GMT", "The timezone to use for usage stats aggregation", null),
+    UsageParseThreads("Premium", ManagementServer.class, Integer.class, "usage.parse.threads", "4", "Number of threads the usage job uses to parse usage records, accounts are split between them", null),
+    UsageParseBatchSize("Premium", ManagementServer.class, Integer.class, "usage.parse.batch.size", "500", "Number of usage records written to the usage database in one batch", null),
     
 	// Hidden
 	UseSecondaryStorageVm("Hidden", ManagementServer.class, Boolean.class, "secondary.storage.vm", "false", "Deploys a VM per zone to manage secondary storage if true, otherwise secondary storage is mounted on management server", null),
@@ -272,12 +284,15 @@ public enum Config {
 	DirectAgentLoadSize("Advanced", ManagementServer.class, Integer.class, "direct.agent.load.size", "16", "The number of direct agents to load each time", null),
 	
 	AgentLbEnable("Advanced", ClusterManager.class, Boolean.class, "agent.lb.enabled", "true", "If agent load balancing enabled in cluster setup", null),
+	ClusterCacheInvalidationInterval("Advanced", ClusterManager.class, Integer.class, "cluster.cache.invalidation.interval", "100", "Time (in milliseconds) to collect entity cache evictions before sending them to the other management servers", null),
 	SubDomainNetworkAccess("Advanced", NetworkManager.class, Boolean.class, "allow.subdomain.network.access", "true", "Allow subdomains to use networks dedicated to their parent domain(s)", null),
 	UseExternalDnsServers("Advanced", NetworkManager.class, Boolean.class, "use.external.dns", "false", "Bypass internal dns, use exetrnal dns1 and dns2", null),
 	EncodeApiResponse("Advanced", ManagementServer.class, Boolean.class, "encode.api.response", "false", "Do UTF-8 encoding for the api response, false by default", null),
 	DnsBasicZoneUpdates("Advanced", NetworkManager.class, String.class, "network.dns.basiczone.updates", "all", "This parameter can take 2 values: all (default) and pod. It defines if DHCP/DNS requests have to be send to all dhcp servers in cloudstack, or only to the one in the same pod", "all,pod"),
 
 	ClusterMessageTimeOutSeconds("Advanced", ManagementServer.class, Integer.class, "cluster.message.timeout.seconds", "300", "Time (in seconds) to wait before a inter-management server message post times out.", null),
+	ClusterPeerConnections("Advanced", ManagementServer.class, Integer.class, "cluster.peer.connections", "4", "Number of connections each management server keeps open to each of its peers", null),
+	ClusterPeerBatchSize("Advanced", ManagementServer.class, Integer.class, "cluster.peer.batch.size", "50", "Maximum number of small inter-management server messages sent together in one post", null),
 	AgentLoadThreshold("Advanced", ManagementServer.class, Float.class, "agent.load.threshold", "0.7", "Percentage (as a value between 0 and 1) of connected agents after which agent load balancing will start happening", null),
 	
 	JavaScriptDefaultContentType("Advanced", ManagementServer.class, String.class, "json.content.type", "text/javascript", "Http response content type for .js files (default is text/javascript)", null),
@@ -172,28 +172,38 @@ public class DefaultComponentLibrary extends ComponentLibraryBase implements Com
         addDao("StackMaidDao", StackMaidDaoImpl.class);
         addDao("VMTemplateZoneDao", VMTemplateZoneDaoImpl.class);
         addDao("DomainRouterDao", DomainRouterDaoImpl.class);
-        addDao("HostDao", HostDaoImpl.class);
-        addDao("VMInstanceDao", VMInstanceDaoImpl.class);
+        ComponentInfo<? extends GenericDao<?, ? extends Serializable>> info = addDao("HostDao", HostDaoImpl.class);
+        info.addParameter("cache.size", "1000");
+        info.addParameter("cache.time.to.live", "300");
+        info = addDao("VMInstanceDao", VMInstanceDaoImpl.class);
+        info.addParameter("cache.size", "5000");
+        info.addParameter("cache.time.to.live", "300");
         addDao("UserVmDao", UserVmDaoImpl.class);
-        ComponentInfo<? extends GenericDao<?, ? extends Serializable>> info = addDao("ServiceOfferingDao", ServiceOfferingDaoImpl.class);
+        info = addDao("ServiceOfferingDao", ServiceOfferingDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
+        info.addParameter("query.cache.size", "200");
         info = addDao("DiskOfferingDao", DiskOfferingDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
+        info.addParameter("query.cache.size", "200");
         info = addDao("DataCenterDao", DataCenterDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
+        info.addParameter("query.cache.size", "200");
         info = addDao("HostPodDao", HostPodDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
+        info.addParameter("query.cache.size", "200");
         addDao("IPAddressDao", IPAddressDaoImpl.class);
         info = addDao("VlanDao", VlanDaoImpl.class);
         info.addParameter("cache.size", "30");
         info.addParameter("cache.time.to.live", "3600");
         addDao("PodVlanMapDao", PodVlanMapDaoImpl.class);
         addDao("AccountVlanMapDao", AccountVlanMapDaoImpl.class);
-        addDao("VolumeDao", VolumeDaoImpl.class);
+        info = addDao("VolumeDao", VolumeDaoImpl.class);
+        info.addParameter("cache.size", "5000");
+        info.addParameter("cache.time.to.live", "300");
         addDao("EventDao", EventDaoImpl.class);
         info = addDao("UserDao", UserDaoImpl.class);
         info.addParameter("cache.size", "5000");
@@ -226,6 +236,7 @@ public class DefaultComponentLibrary extends ComponentLibraryBase implements Com
         info.addParameter("cache.size", "100");
         info.addParameter("cache.time.to.live", "600");
         info.addParameter("routing.uniquename", "routing");
+        info.addParameter("query.cache.size", "500");
         addDao("HighAvailabilityDao", HighAvailabilityDaoImpl.class);
         addDao("ConsoleProxyDao", ConsoleProxyDaoImpl.class);
         addDao("SecondaryStorageVmDao", SecondaryStorageVmDaoImpl.class);
@@ -108,7 +108,7 @@ public class DataCenterVO implements DataCenter {
     boolean securityGroupEnabled;
     
     @Column(name="mac_address", updatable = false, nullable=false)
-    @TableGenerator(name="mac_address_sq", table="data_center", pkColumnName="id", valueColumnName="mac_address", allocationSize=1)
+    @TableGenerator(name="mac_address_sq", table="data_center", pkColumnName="id", valueColumnName="mac_address", allocationSize=10)
     private long macAddress = 1;
     
 	@Column(name="zone_token")
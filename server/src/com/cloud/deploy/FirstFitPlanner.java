@@ -30,6 +30,7 @@ import javax.ejb.Local;
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.manager.allocator.HostAllocator;
+import com.cloud.capacity.CapacityIndex;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityVO;
 import com.cloud.capacity.dao.CapacityDao;
@@ -471,6 +472,16 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("CPUOverprovisioningFactor considered: " + cpuOverprovisioningFactor);
         }
+
+        CapacityIndex capacityIndex = _capacityMgr.getCapacityIndex();
+        if (capacityIndex.isLoaded()) {
+            List<Long> clusterIds = capacityIndex.listClustersByCapacity(id, requiredCpu, requiredRam, capacityType, isZone, cpuOverprovisioningFactor);
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("ClusterId List from the capacity index having enough CPU and RAM capacity & in order of aggregate capacity: " + clusterIds);
+            }
+            return clusterIds;
+        }
+
         List<Long> clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone, cpuOverprovisioningFactor);
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("ClusterId List having enough CPU and RAM capacity: " + clusterIdswithEnoughCapacity);
@@ -991,6 +991,7 @@ public class NetworkManagerImpl implements NetworkManager, NetworkService, Manag
         Arrays.fill(deviceIds, false);
 
         List<NicVO> nics = new ArrayList<NicVO>(networks.size());
+        List<NetworkVO> nicNetworks = new ArrayList<NetworkVO>(networks.size());
         NicVO defaultNic = null;
 
         for (Pair<NetworkVO, NicProfile> network : networks) {
@@ -1024,8 +1025,6 @@ public class NetworkManagerImpl implements NetworkManager, NetworkService, Manag
 
             deviceId = applyProfileToNic(vo, profile, deviceId);
 
-            vo = _nicDao.persist(vo);
-
             if (vo.isDefaultNic()) {
                 if (defaultNic != null) {
                     throw new IllegalArgumentException("You cannot specify two nics as default nics: nic 1 = " + defaultNic + "; nic 2 = " + vo);
@@ -1043,9 +1042,16 @@ public class NetworkManagerImpl implements NetworkManager, NetworkService, Manag
 
             deviceIds[devId] = true;
             nics.add(vo);
+            nicNetworks.add(config);
+        }
 
+        // all of the vm's nics go in with one insert; the profiles need the ids it hands back
+        _nicDao.persistBatch(nics);
+        for (int i = 0; i < nics.size(); i++) {
+            NicVO vo = nics.get(i);
+            NetworkVO config = nicNetworks.get(i);
             Integer networkRate = getNetworkRate(config.getId(), vm.getId());
-            vm.addNic(new NicProfile(vo, network.first(), vo.getBroadcastUri(), vo.getIsolationUri(), networkRate));
+            vm.addNic(new NicProfile(vo, config, vo.getBroadcastUri(), vo.getIsolationUri(), networkRate));
         }
 
         if (nics.size() != networks.size()) {
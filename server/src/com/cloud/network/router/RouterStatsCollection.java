@@ -0,0 +1,145 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.network.router;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.server.DeadlineCollector;
+
+/**
+ * Keeps count of what the router network usage cycles did.  Hosts are
+ * polled by the collector, the routers on them are counted here.
+ */
+public class RouterStatsCollection implements RouterStatsCollectionMBean {
+    private final DeadlineCollector<Long, Integer> _collector;
+
+    private final AtomicLong _polled = new AtomicLong();
+    private final AtomicLong _updated = new AtomicLong();
+    private final AtomicLong _idle = new AtomicLong();
+    private final AtomicLong _unanswered = new AtomicLong();
+    private final AtomicLong _skipped = new AtomicLong();
+    private final AtomicLong _stale = new AtomicLong();
+    private final AtomicLong _overruns = new AtomicLong();
+    private volatile long _lastCycleMillis;
+
+    public RouterStatsCollection(DeadlineCollector<Long, Integer> collector) {
+        _collector = collector;
+    }
+
+    public DeadlineCollector<Long, Integer> getCollector() {
+        return _collector;
+    }
+
+    public void polled(int routers) {
+        _polled.addAndGet(routers);
+    }
+
+    public void updated(int routers) {
+        _updated.addAndGet(routers);
+    }
+
+    public void idle(int routers) {
+        _idle.addAndGet(routers);
+    }
+
+    public void unanswered(int routers) {
+        _unanswered.addAndGet(routers);
+    }
+
+    public void skipped(int routers) {
+        _skipped.addAndGet(routers);
+    }
+
+    public void stale(int routers) {
+        _stale.addAndGet(routers);
+    }
+
+    /**
+     * @return true if the cycle took longer than the interval.
+     */
+    public boolean cycleDone(long millis, long interval) {
+        _lastCycleMillis = millis;
+        if (millis > interval) {
+            _overruns.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public void shutdown() {
+        _collector.shutdown();
+    }
+
+    @Override
+    public Map<String, String> getHostStatistics() {
+        return _collector.getStatistics();
+    }
+
+    @Override
+    public long getRoutersPolled() {
+        return _polled.get();
+    }
+
+    @Override
+    public long getRoutersUpdated() {
+        return _updated.get();
+    }
+
+    @Override
+    public long getRoutersIdle() {
+        return _idle.get();
+    }
+
+    @Override
+    public long getRoutersUnanswered() {
+        return _unanswered.get();
+    }
+
+    @Override
+    public long getRoutersSkipped() {
+        return _skipped.get();
+    }
+
+    @Override
+    public long getRoutersStale() {
+        return _stale.get();
+    }
+
+    @Override
+    public long getOverruns() {
+        return _overruns.get();
+    }
+
+    @Override
+    public long getLastCycleMillis() {
+        return _lastCycleMillis;
+    }
+
+    @Override
+    public void resetStatistics() {
+        _polled.set(0);
+        _updated.set(0);
+        _idle.set(0);
+        _unanswered.set(0);
+        _skipped.set(0);
+        _stale.set(0);
+        _overruns.set(0);
+        _collector.resetStatistics();
+    }
+}
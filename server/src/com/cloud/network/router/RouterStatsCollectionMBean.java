@@ -0,0 +1,59 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.network.router;
+
+import java.util.Map;
+
+public interface RouterStatsCollectionMBean {
+    /**
+     * @return cycles run, last/avg/p99/max cycle time in ms and how many hosts answered, failed, were late, were
+     *         skipped or never got a thread.
+     */
+    Map<String, String> getHostStatistics();
+
+    long getRoutersPolled();
+
+    long getRoutersUpdated();
+
+    /**
+     * @return routers that reported no traffic at all, which isn't written.
+     */
+    long getRoutersIdle();
+
+    long getRoutersUnanswered();
+
+    /**
+     * @return routers not asked for their statistics, because they had no private ip, had no statistics to update or
+     *         their host was still busy with an earlier cycle.
+     */
+    long getRoutersSkipped();
+
+    /**
+     * @return routers whose statistics changed between reading them and writing what the router reported.
+     */
+    long getRoutersStale();
+
+    /**
+     * @return cycles that took longer than the interval they run at.
+     */
+    long getOverruns();
+
+    long getLastCycleMillis();
+
+    void resetStatistics();
+}
@@ -155,6 +155,7 @@ import com.cloud.offering.NetworkOffering;
 import com.cloud.offering.ServiceOffering;
 import com.cloud.offerings.NetworkOfferingVO;
 import com.cloud.offerings.dao.NetworkOfferingDao;
+import com.cloud.server.DeadlineCollector;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.StorageManager;
@@ -186,6 +187,7 @@ import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.MacAddress;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.DomainRouterVO;
@@ -332,6 +334,8 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
     private long mgmtSrvrId = MacAddress.getMacAddress().toLong();
     
     ScheduledExecutorService _executor;
+    RouterStatsCollection _routerStats;
+    int _routerStatsBatchSize = 50;
     ScheduledExecutorService _checkExecutor;
 
     Account _systemAcct;
@@ -597,6 +601,14 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
 
         value = configs.get("router.stats.interval");
         _routerStatsInterval = NumbersUtil.parseInt(value, 300);
+        _routerStatsBatchSize = NumbersUtil.parseInt(configs.get("router.stats.batch.size"), 50);
+        int routerStatsThreads = NumbersUtil.parseInt(configs.get("router.stats.collection.threads"), 10);
+        _routerStats = new RouterStatsCollection(new DeadlineCollector<Long, Integer>("RouterStatsCollector", routerStatsThreads));
+        try {
+            JmxUtil.registerMBean("VirtualNetworkApplianceManager", "RouterStats", _routerStats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register router stats MBean", e);
+        }
 
         _instance = configs.get("instance.name");
         if (_instance == null) {
@@ -661,6 +673,7 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
 
     @Override
     public boolean stop() {
+        _routerStats.shutdown();
         return true;
     }
 
@@ -722,64 +735,159 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
 
         @Override
         public void run() {
-            
-            final List<DomainRouterVO> routers = _routerDao.listByStateAndNetworkType(State.Running, GuestIpType.Virtual, mgmtSrvrId);
-            s_logger.debug("Found " + routers.size() + " running routers. ");
+            try {
+                collectNetworkUsage();
+            } catch (Throwable t) {
+                s_logger.warn("Unable to collect router network usage", t);
+            }
+        }
+    }
 
-            for (DomainRouterVO router : routers) {
-                String privateIP = router.getPrivateIpAddress();
-                if (privateIP != null) {
-                    final NetworkUsageCommand usageCmd = new NetworkUsageCommand(privateIP, router.getHostName());
-                    UserStatisticsVO previousStats = _statsDao.findBy(router.getAccountId(), router.getDataCenterIdToDeployIn(), router.getNetworkId(), null, router.getId(), router.getType().toString());
-                    final NetworkUsageAnswer answer = (NetworkUsageAnswer) _agentMgr.easySend(router.getHostId(), usageCmd);
-                    if (answer != null) {
-                        Transaction txn = Transaction.open(Transaction.CLOUD_DB);
-                        try {
-                            if ((answer.getBytesReceived() == 0) && (answer.getBytesSent() == 0)) {
-                                s_logger.debug("Recieved and Sent bytes are both 0. Not updating user_statistics");
-                                continue;
-                            }
-                            txn.start();
-                            UserStatisticsVO stats = _statsDao.lock(router.getAccountId(), router.getDataCenterIdToDeployIn(), router.getNetworkId(), null, router.getId(), router.getType().toString());
-                            if (stats == null) {
-                                s_logger.warn("unable to find stats for account: " + router.getAccountId());
-                                continue;
-                            }
-                            
-                            if(previousStats != null 
-                            		&& ((previousStats.getCurrentBytesReceived() != stats.getCurrentBytesReceived()) || (previousStats.getCurrentBytesSent() != stats.getCurrentBytesSent()))){
-                            	s_logger.debug("Router stats changed from the time NetworkUsageCommand was sent. Ignoring current answer. Router: "+answer.getRouterName()+" Rcvd: " + answer.getBytesReceived()+ "Sent: " +answer.getBytesSent());
-                            	continue;
-                            }
-                            
-                            if (stats.getCurrentBytesReceived() > answer.getBytesReceived()) {
-                                if (s_logger.isDebugEnabled()) {
-                                    s_logger.debug("Received # of bytes that's less than the last one.  Assuming something went wrong and persisting it. Router: "+answer.getRouterName()+" Reported: " + answer.getBytesReceived()
-                                            + " Stored: " + stats.getCurrentBytesReceived());
-                                }
-                                stats.setNetBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
-                            }
-                            stats.setCurrentBytesReceived(answer.getBytesReceived());
-                            if (stats.getCurrentBytesSent() > answer.getBytesSent()) {
-                                if (s_logger.isDebugEnabled()) {
-                                    s_logger.debug("Received # of bytes that's less than the last one.  Assuming something went wrong and persisting it. Router: "+answer.getRouterName()+" Reported: " + answer.getBytesSent()
-                                            + " Stored: " + stats.getCurrentBytesSent());
-                                }
-                                stats.setNetBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
-                            }
-                            stats.setCurrentBytesSent(answer.getBytesSent());
-                            _statsDao.update(stats.getId(), stats);
-                            txn.commit();
-                        } catch (Exception e) {
-                            txn.rollback();
-                            s_logger.warn("Unable to update user statistics for account: " + router.getAccountId() + " Rx: " + answer.getBytesReceived() + "; Tx: " + answer.getBytesSent());
-                        } finally {
-                            txn.close();
-                        }
+    /**
+     * Asks the hosts of all running routers for their network usage, a few hosts at a time, and waits for them
+     * until the next cycle is due.  A host that isn't done by then is skipped until it is.
+     */
+    protected void collectNetworkUsage() {
+        long start = System.currentTimeMillis();
+        final List<DomainRouterVO> routers = _routerDao.listByStateAndNetworkType(State.Running, GuestIpType.Virtual, mgmtSrvrId);
+        s_logger.debug("Found " + routers.size() + " running routers. ");
+
+        final Map<Long, List<DomainRouterVO>> routersByHost = new HashMap<Long, List<DomainRouterVO>>();
+        int skipped = 0;
+        for (DomainRouterVO router : routers) {
+            if (router.getPrivateIpAddress() == null || router.getHostId() == null) {
+                skipped++;
+                continue;
+            }
+            List<DomainRouterVO> hostRouters = routersByHost.get(router.getHostId());
+            if (hostRouters == null) {
+                hostRouters = new ArrayList<DomainRouterVO>();
+                routersByHost.put(router.getHostId(), hostRouters);
+            }
+            hostRouters.add(router);
+        }
+
+        final Set<Long> started = Collections.synchronizedSet(new HashSet<Long>());
+        long interval = _routerStatsInterval * 1000L;
+        _routerStats.getCollector().collect(routersByHost.keySet(), new DeadlineCollector.Task<Long, Integer>() {
+            @Override
+            public Integer collect(Long hostId) {
+                started.add(hostId);
+                return collectNetworkUsage(hostId, routersByHost.get(hostId));
+            }
+        }, interval);
+
+        for (Map.Entry<Long, List<DomainRouterVO>> entry : routersByHost.entrySet()) {
+            if (!started.contains(entry.getKey())) {
+                skipped += entry.getValue().size();
+            }
+        }
+        _routerStats.skipped(skipped);
+
+        long millis = System.currentTimeMillis() - start;
+        if (_routerStats.cycleDone(millis, interval)) {
+            s_logger.warn("Router network usage took " + millis + "ms for " + routers.size() + " routers on " + routersByHost.size() + " hosts, longer than router.stats.interval");
+        } else if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Router network usage took " + millis + "ms for " + routers.size() + " routers on " + routersByHost.size() + " hosts, " + skipped + " skipped");
+        }
+    }
+
+    /**
+     * Asks one host for the network usage of its routers, so many routers per request, and writes what they reported.
+     *
+     * @return number of routers whose statistics were updated.
+     */
+    protected Integer collectNetworkUsage(long hostId, List<DomainRouterVO> routers) {
+        Map<Long, DomainRouterVO> routersById = new HashMap<Long, DomainRouterVO>();
+        for (DomainRouterVO router : routers) {
+            routersById.put(router.getId(), router);
+        }
+
+        // read before asking, so anything written in the meantime shows up as a changed row
+        Map<Long, UserStatisticsVO> previousStats = new HashMap<Long, UserStatisticsVO>();
+        for (UserStatisticsVO stats : _statsDao.listByDevices(new ArrayList<Long>(routersById.keySet()), routers.get(0).getType().toString())) {
+            DomainRouterVO router = routersById.get(stats.getDeviceId());
+            if (router != null && stats.getAccountId() == router.getAccountId() && stats.getDataCenterId() == router.getDataCenterIdToDeployIn()
+                    && stats.getNetworkId() != null && stats.getNetworkId() == router.getNetworkId()) {
+                previousStats.put(router.getId(), stats);
+            }
+        }
+
+        int updated = 0;
+        for (int i = 0; i < routers.size(); i += _routerStatsBatchSize) {
+            List<DomainRouterVO> batch = routers.subList(i, Math.min(i + _routerStatsBatchSize, routers.size()));
+            Commands cmds = new Commands(OnError.Continue);
+            for (DomainRouterVO router : batch) {
+                cmds.addCommand(new NetworkUsageCommand(router.getPrivateIpAddress(), router.getHostName()));
+            }
+
+            Answer[] answers;
+            try {
+                answers = _agentMgr.send(hostId, cmds);
+            } catch (AgentUnavailableException e) {
+                s_logger.debug("Unable to get network usage of routers on host " + hostId + ": " + e.getMessage());
+                _routerStats.unanswered(routers.size() - i);
+                break;
+            } catch (OperationTimedoutException e) {
+                s_logger.debug("Timed out getting network usage of " + batch.size() + " routers on host " + hostId);
+                _routerStats.unanswered(batch.size());
+                continue;
+            }
+            _routerStats.polled(batch.size());
+
+            List<UserStatisticsVO> stats = new ArrayList<UserStatisticsVO>(batch.size());
+            long[] bytesReceived = new long[batch.size()];
+            long[] bytesSent = new long[batch.size()];
+            for (int j = 0; j < batch.size(); j++) {
+                DomainRouterVO router = batch.get(j);
+                Answer answer = answers != null && j < answers.length ? answers[j] : null;
+                if (!(answer instanceof NetworkUsageAnswer) || !answer.getResult()) {
+                    _routerStats.unanswered(1);
+                    continue;
+                }
+
+                NetworkUsageAnswer usage = (NetworkUsageAnswer)answer;
+                if ((usage.getBytesReceived() == 0) && (usage.getBytesSent() == 0)) {
+                    s_logger.debug("Recieved and Sent bytes are both 0. Not updating user_statistics");
+                    _routerStats.idle(1);
+                    continue;
+                }
+
+                UserStatisticsVO previous = previousStats.get(router.getId());
+                if (previous == null) {
+                    s_logger.warn("unable to find stats for account: " + router.getAccountId());
+                    _routerStats.skipped(1);
+                    continue;
+                }
+
+                if (s_logger.isDebugEnabled()) {
+                    if (previous.getCurrentBytesReceived() > usage.getBytesReceived()) {
+                        s_logger.debug("Received # of bytes that's less than the last one.  Assuming something went wrong and persisting it. Router: " + usage.getRouterName() + " Reported: " + usage.getBytesReceived()
+                                + " Stored: " + previous.getCurrentBytesReceived());
                     }
+                    if (previous.getCurrentBytesSent() > usage.getBytesSent()) {
+                        s_logger.debug("Received # of bytes that's less than the last one.  Assuming something went wrong and persisting it. Router: " + usage.getRouterName() + " Reported: " + usage.getBytesSent()
+                                + " Stored: " + previous.getCurrentBytesSent());
+                    }
+                }
+                bytesReceived[stats.size()] = usage.getBytesReceived();
+                bytesSent[stats.size()] = usage.getBytesSent();
+                stats.add(previous);
+            }
+
+            try {
+                List<Long> stale = _statsDao.updateCounters(stats, bytesReceived, bytesSent);
+                if (!stale.isEmpty() && s_logger.isDebugEnabled()) {
+                    s_logger.debug("Router stats changed from the time NetworkUsageCommand was sent. Ignoring current answers for user_statistics " + stale);
                 }
+                _routerStats.stale(stale.size());
+                _routerStats.updated(stats.size() - stale.size());
+                updated += stats.size() - stale.size();
+            } catch (Exception e) {
+                s_logger.warn("Unable to update user statistics of " + stats.size() + " routers on host " + hostId, e);
             }
         }
+        return updated;
     }
 
     protected void updateRoutersRedundantState(List<DomainRouterVO> routers) {
@@ -23,6 +23,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -145,12 +146,28 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
     
     @Override
     public List<SecurityGroupWork> getWork(int numberOfWorkItems) throws InterruptedException {
+        return getWork(numberOfWorkItems, 0);
+    }
+
+
+    @Override
+    public List<SecurityGroupWork> getWork(int numberOfWorkItems, long waitForMoreMs) throws InterruptedException {
         List<SecurityGroupWork> work = new ArrayList<SecurityGroupWork>(numberOfWorkItems);
         _lock.lock();
         int i = 0;
         try {
-            while (_count.get() == 0) {
-                _notEmpty.await();
+            while (true) {
+                while (_count.get() == 0) {
+                    _notEmpty.await();
+                }
+                long nanos = TimeUnit.MILLISECONDS.toNanos(waitForMoreMs);
+                while (nanos > 0 && _count.get() < numberOfWorkItems) {
+                    nanos = _notEmpty.awaitNanos(nanos);
+                }
+                if (_count.get() > 0) {
+                    // another worker may have taken it all while we waited
+                    break;
+                }
             }
             int n = Math.min(numberOfWorkItems, _count.get());
             Iterator<SecurityGroupWork> iter = _currentWork.iterator();
@@ -0,0 +1,322 @@
+/**
+ *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.network.security;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+
+/**
+ * Remembers the ruleset each host last acknowledged for a vm, so that the next
+ * update for the vm can be sent as just the cidrs added and revoked since then.
+ *
+ * A ruleset becomes the base for deltas only once its answer comes back; while
+ * an update is outstanding, or after anything went wrong, the next update is a
+ * full one.
+ */
+public class RulesetTracker {
+    public static class Ruleset {
+        final long _hostId;
+        final long _seqNum;
+        final String _signature;
+        final Map<PortAndProto, Set<String>> _rules;  // null if it can't serve as the base of a delta
+
+        public Ruleset(long hostId, long seqNum, String signature, Map<PortAndProto, Set<String>> rules) {
+            _hostId = hostId;
+            _seqNum = seqNum;
+            _signature = signature;
+            _rules = rules;
+        }
+
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public long getSeqNum() {
+            return _seqNum;
+        }
+
+        public String getSignature() {
+            return _signature;
+        }
+
+        public Map<PortAndProto, Set<String>> getRules() {
+            return _rules;
+        }
+    }
+
+    public static class Delta {
+        final Map<PortAndProto, Set<String>> _added = new TreeMap<PortAndProto, Set<String>>();
+        final Map<PortAndProto, Set<String>> _revoked = new TreeMap<PortAndProto, Set<String>>();
+        int _numCidrs = 0;
+
+        public Map<PortAndProto, Set<String>> getAdded() {
+            return _added;
+        }
+
+        public Map<PortAndProto, Set<String>> getRevoked() {
+            return _revoked;
+        }
+
+        public int getNumCidrs() {
+            return _numCidrs;
+        }
+
+        public boolean isEmpty() {
+            return _numCidrs == 0;
+        }
+
+        void add(Map<PortAndProto, Set<String>> side, PortAndProto pAp, String cidr) {
+            Set<String> cidrs = side.get(pAp);
+            if (cidrs == null) {
+                cidrs = new TreeSet<String>(new CidrComparator());
+                side.put(pAp, cidrs);
+            }
+            cidrs.add(cidr);
+            _numCidrs++;
+        }
+    }
+
+    private final Map<Long, Ruleset> _acked = new HashMap<Long, Ruleset>();
+    private final Map<Long, Ruleset> _outstanding = new HashMap<Long, Ruleset>();
+    private final Set<Long> _fullOnlyHosts = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    private final AtomicLong _deltasSent = new AtomicLong();
+    private final AtomicLong _fullSent = new AtomicLong();
+    private final AtomicLong _cidrsSent = new AtomicLong();
+    private final AtomicLong _cidrsSaved = new AtomicLong();
+
+    /**
+     * @return the ruleset a delta for the vm can be computed against, null if the next update has to be in full.
+     */
+    public synchronized Ruleset getBase(long vmId, long hostId) {
+        if (_fullOnlyHosts.contains(hostId) || _outstanding.containsKey(vmId)) {
+            return null;
+        }
+        Ruleset base = _acked.get(vmId);
+        if (base == null || base.getHostId() != hostId || base.getRules() == null) {
+            return null;
+        }
+        return base;
+    }
+
+    /**
+     * Records an update about to go out.  It has to be called before the command
+     * is sent, otherwise the answer could come back before there is anything to match it with.
+     */
+    public synchronized void sent(long vmId, Ruleset ruleset) {
+        _outstanding.put(vmId, ruleset);
+    }
+
+    /**
+     * @return true if this acknowledges the latest update sent for the vm.
+     */
+    public synchronized boolean acked(long vmId, long seqNum) {
+        Ruleset ruleset = _outstanding.get(vmId);
+        if (ruleset == null || ruleset.getSeqNum() != seqNum) {
+            // an answer to an older update; the newer one is still out there.
+            return false;
+        }
+        _outstanding.remove(vmId);
+        _acked.put(vmId, ruleset);
+        return true;
+    }
+
+    /**
+     * @return true if the host acknowledged the ruleset with this sequence number for the vm.
+     */
+    public synchronized boolean isAcked(long vmId, long hostId, long seqNum) {
+        return matches(_acked.get(vmId), hostId, seqNum) && !_outstanding.containsKey(vmId);
+    }
+
+    /**
+     * @return true if the ruleset with this sequence number is on its way to the host.
+     */
+    public synchronized boolean isOutstanding(long vmId, long hostId, long seqNum) {
+        return matches(_outstanding.get(vmId), hostId, seqNum);
+    }
+
+    private static boolean matches(Ruleset ruleset, long hostId, long seqNum) {
+        return ruleset != null && ruleset.getHostId() == hostId && ruleset.getSeqNum() == seqNum;
+    }
+
+    /**
+     * The host's rules for the vm are unknown from now on.
+     */
+    public synchronized void forget(long vmId) {
+        _outstanding.remove(vmId);
+        _acked.remove(vmId);
+    }
+
+    /**
+     * Forgets the vm unless the host reported the sequence number that was acknowledged last.
+     */
+    public synchronized void forgetUnlessAt(long vmId, long seqNum) {
+        Ruleset acked = _acked.get(vmId);
+        if (acked == null || acked.getSeqNum() != seqNum) {
+            forget(vmId);
+        }
+    }
+
+    /**
+     * Forgets every vm on the host, e.g. because it reconnected and may have lost its rules.
+     */
+    public synchronized void forgetHost(long hostId) {
+        removeHost(_acked, hostId);
+        removeHost(_outstanding, hostId);
+        _fullOnlyHosts.remove(hostId);
+    }
+
+    private static void removeHost(Map<Long, Ruleset> rulesets, long hostId) {
+        Iterator<Ruleset> it = rulesets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getHostId() == hostId) {
+                it.remove();
+            }
+        }
+    }
+
+    public void setFullOnly(long hostId, boolean fullOnly) {
+        if (fullOnly) {
+            _fullOnlyHosts.add(hostId);
+        } else {
+            _fullOnlyHosts.remove(hostId);
+        }
+    }
+
+    public boolean isFullOnly(long hostId) {
+        return _fullOnlyHosts.contains(hostId);
+    }
+
+    public synchronized int size() {
+        return _acked.size();
+    }
+
+    public synchronized void clear() {
+        _acked.clear();
+        _outstanding.clear();
+    }
+
+    public void recordFull(int numCidrs) {
+        _fullSent.incrementAndGet();
+        _cidrsSent.addAndGet(numCidrs);
+    }
+
+    public void recordDelta(int numCidrs, int fullNumCidrs) {
+        _deltasSent.incrementAndGet();
+        _cidrsSent.addAndGet(numCidrs);
+        _cidrsSaved.addAndGet(fullNumCidrs - numCidrs);
+    }
+
+    public long getDeltasSent() {
+        return _deltasSent.get();
+    }
+
+    public long getFullSent() {
+        return _fullSent.get();
+    }
+
+    public long getCidrsSent() {
+        return _cidrsSent.get();
+    }
+
+    public long getCidrsSaved() {
+        return _cidrsSaved.get();
+    }
+
+    public void resetStatistics() {
+        _deltasSent.set(0);
+        _fullSent.set(0);
+        _cidrsSent.set(0);
+        _cidrsSaved.set(0);
+    }
+
+    /**
+     * @return what has to be added to and revoked from base to end up with rules.
+     */
+    public static Delta diff(Map<PortAndProto, Set<String>> base, Map<PortAndProto, Set<String>> rules) {
+        Delta delta = new Delta();
+        Set<String> none = Collections.emptySet();
+        for (Map.Entry<PortAndProto, Set<String>> entry : rules.entrySet()) {
+            Set<String> before = base.get(entry.getKey());
+            diff(delta, entry.getKey(), before == null ? none : before, entry.getValue());
+        }
+        for (Map.Entry<PortAndProto, Set<String>> entry : base.entrySet()) {
+            if (!rules.containsKey(entry.getKey())) {
+                diff(delta, entry.getKey(), entry.getValue(), none);
+            }
+        }
+        return delta;
+    }
+
+    private static void diff(Delta delta, PortAndProto pAp, Set<String> before, Set<String> after) {
+        if (before instanceof SortedSet && after instanceof SortedSet && sameOrder((SortedSet<String>)before, (SortedSet<String>)after)) {
+            // cidrs come sorted out of generateRulesForVM, so both sides can be walked in step
+            Comparator<? super String> order = ((SortedSet<String>)after).comparator();
+            Iterator<String> b = before.iterator();
+            Iterator<String> a = after.iterator();
+            String cidrBefore = b.hasNext() ? b.next() : null;
+            String cidrAfter = a.hasNext() ? a.next() : null;
+            while (cidrBefore != null || cidrAfter != null) {
+                int cmp = cidrBefore == null ? 1 : cidrAfter == null ? -1 : order != null ? order.compare(cidrBefore, cidrAfter) : cidrBefore.compareTo(cidrAfter);
+                if (cmp < 0) {
+                    delta.add(delta._revoked, pAp, cidrBefore);
+                    cidrBefore = b.hasNext() ? b.next() : null;
+                } else if (cmp > 0) {
+                    delta.add(delta._added, pAp, cidrAfter);
+                    cidrAfter = a.hasNext() ? a.next() : null;
+                } else {
+                    cidrBefore = b.hasNext() ? b.next() : null;
+                    cidrAfter = a.hasNext() ? a.next() : null;
+                }
+            }
+            return;
+        }
+
+        for (String cidr : after) {
+            if (!before.contains(cidr)) {
+                delta.add(delta._added, pAp, cidr);
+            }
+        }
+        for (String cidr : before) {
+            if (!after.contains(cidr)) {
+                delta.add(delta._revoked, pAp, cidr);
+            }
+        }
+    }
+
+    private static boolean sameOrder(SortedSet<String> before, SortedSet<String> after) {
+        if (before.isEmpty() || after.isEmpty()) {
+            return true;
+        }
+        Comparator<? super String> b = before.comparator();
+        Comparator<? super String> a = after.comparator();
+        return b == null ? a == null : a != null && a.getClass() == b.getClass();
+    }
+}
@@ -89,6 +89,7 @@ public class SecurityGroupListener implements Listener {
         for (Answer ans: answers) {
             if (ans instanceof SecurityIngressRuleAnswer) {
                 SecurityIngressRuleAnswer ruleAnswer = (SecurityIngressRuleAnswer) ans;
+                _securityGroupManager.handleRulesetAnswer(agentId, ruleAnswer);
                 if (ans.getResult()) {
                     s_logger.debug("Successfully programmed rule " + ruleAnswer.toString() + " into host " + agentId);
                     _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Done);
@@ -98,7 +99,10 @@ public class SecurityGroupListener implements Listener {
                     s_logger.debug("Failed to program rule " + ruleAnswer.toString() + " into host " + agentId 
                             +" due to " + ruleAnswer.getDetails()
                             +" and updated  jobs");
-                    if (ruleAnswer.getReason() == FailureReason.CANNOT_BRIDGE_FIREWALL) {
+                    if (ruleAnswer.getReason() == FailureReason.DELTA_UNSUPPORTED) {
+                        s_logger.debug("Host " + agentId + " cannot apply rule changes, resending the full ruleset for vm " + ruleAnswer.getVmId());
+                        affectedVms.add(ruleAnswer.getVmId());
+                    } else if (ruleAnswer.getReason() == FailureReason.CANNOT_BRIDGE_FIREWALL) {
                         s_logger.debug("Not retrying security group rules for vm " + ruleAnswer.getVmId() + " on failure since host " + agentId + " cannot do bridge firewalling");
                     } else if (ruleAnswer.getReason() == FailureReason.PROGRAMMING_FAILED){
                         if (checkShouldRetryOnFailure(ruleAnswer.getVmId())) {
@@ -159,6 +163,7 @@ public class SecurityGroupListener implements Listener {
             s_logger.info("Received a host startup notification");
 
         if (cmd instanceof StartupRoutingCommand) {
+            _securityGroupManager.handleHostConnected(host.getId());
             //if (Boolean.toString(true).equals(host.getDetail("can_bridge_firewall"))) {
             try {
                 int interval = MIN_TIME_BETWEEN_CLEANUPS + _cleanupRandom.nextInt(MIN_TIME_BETWEEN_CLEANUPS/2);
@@ -42,6 +42,7 @@ import org.apache.log4j.Logger;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.NetworkRulesSystemVmCommand;
+import com.cloud.agent.api.SecurityIngressRuleAnswer;
 import com.cloud.agent.api.SecurityIngressRulesCmd;
 import com.cloud.agent.api.SecurityIngressRulesCmd.IpPortAndProto;
 import com.cloud.agent.manager.Commands;
@@ -480,6 +481,10 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
     }
 
     protected SecurityIngressRulesCmd generateRulesetCmd(String vmName, String guestIp, String guestMac, Long vmId, String signature, long seqnum, Map<PortAndProto, Set<String>> rules) {
+        return new SecurityIngressRulesCmd(guestIp, guestMac, vmName, vmId, signature, seqnum, toIpPortAndProtos(rules));
+    }
+
+    protected static IpPortAndProto[] toIpPortAndProtos(Map<PortAndProto, Set<String>> rules) {
         List<IpPortAndProto> result = new ArrayList<IpPortAndProto>();
         for (PortAndProto pAp : rules.keySet()) {
             Set<String> cidrs = rules.get(pAp);
@@ -488,7 +493,16 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
                 result.add(ipPortAndProto);
             }
         }
-        return new SecurityIngressRulesCmd(guestIp, guestMac, vmName, vmId, signature, seqnum, result.toArray(new IpPortAndProto[result.size()]));
+        return result.toArray(new IpPortAndProto[result.size()]);
+    }
+
+    /**
+     * Called with every answer to a ruleset update, before the listener acts on it.
+     */
+    protected void handleRulesetAnswer(long agentId, SecurityIngressRuleAnswer answer) {
+    }
+
+    protected void handleHostConnected(long agentId) {
     }
 
     protected void handleVmStopped(VMInstanceVO vm) {
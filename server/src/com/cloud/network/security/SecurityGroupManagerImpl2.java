@@ -17,25 +17,38 @@
  */
 package com.cloud.network.security;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
 
+import com.cloud.agent.AgentManager.OnError;
+import com.cloud.agent.api.SecurityIngressRuleAnswer;
 import com.cloud.agent.api.SecurityIngressRulesCmd;
 import com.cloud.agent.manager.Commands;
+import com.cloud.configuration.Config;
 import com.cloud.exception.AgentUnavailableException;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.network.security.RulesetTracker.Delta;
+import com.cloud.network.security.RulesetTracker.Ruleset;
 import com.cloud.network.security.SecurityGroupWork.Step;
 import com.cloud.uservm.UserVm;
+import com.cloud.utils.LatencyHistogram;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.Profiler;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
+import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine.State;
 
 
@@ -51,6 +64,17 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
     WorkerThread[] _workers;
     private Set<Long> _disabledVms = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
     private boolean _schedulerDisabled = false;
+    RulesetTracker _rulesetTracker = new RulesetTracker();
+    boolean _deltaUpdates = true;
+    int _batchSize = 100;
+    long _batchWindow = 100;
+
+    // when each vm's oldest update not yet acknowledged was scheduled
+    private final ConcurrentHashMap<Long, Long> _pendingSince = new ConcurrentHashMap<Long, Long>();
+    private final LatencyHistogram _propagationLatency = new LatencyHistogram();
+    private final AtomicLong _hostRequestsSent = new AtomicLong();
+    private final AtomicLong _vmUpdatesSent = new AtomicLong();
+    private final AtomicLong _updatesSkipped = new AtomicLong();
 
     
     protected class WorkerThread extends Thread {
@@ -106,6 +130,10 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
                 throw new CloudRuntimeException("Failed to create ruleset log entries");
             }
         }
+        Long now = System.currentTimeMillis();
+        for (Long vmId : workItems) {
+            _pendingSince.putIfAbsent(vmId, now);
+        }
         int newJobs = _workQueue.submitWorkForVms(workItems);
         _mBean.logScheduledDetails(workItems);
         p.stop();
@@ -131,7 +159,8 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         s_logger.trace("Checking the work queue");
         List<SecurityGroupWork> workItems;
         try {
-            workItems = _workQueue.getWork(1);
+            workItems = _workQueue.getWork(_batchSize, _batchWindow);
+            Map<Long, List<SecurityIngressRulesCmd>> updatesByHost = new HashMap<Long, List<SecurityIngressRulesCmd>>();
             for (SecurityGroupWork work: workItems) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Processing " + work.getInstanceId());
@@ -144,13 +173,26 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
                         continue;
                     }
                     work.setLogsequenceNumber(rulesetLog.getLogsequence());
-                    sendRulesetUpdates(work);
+                    UserVm vm = _userVMDao.findById(work.getInstanceId());
+                    SecurityIngressRulesCmd cmd = generateRulesetUpdate(work, vm);
+                    if (cmd != null) {
+                        List<SecurityIngressRulesCmd> updates = updatesByHost.get(vm.getHostId());
+                        if (updates == null) {
+                            updates = new ArrayList<SecurityIngressRulesCmd>();
+                            updatesByHost.put(vm.getHostId(), updates);
+                        }
+                        updates.add(cmd);
+                    }
                     _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
                 }catch (Exception e) {
                     s_logger.error("Problem during SG work " + work, e);
                     work.setStep(Step.Error);
                 }
             }
+
+            for (Map.Entry<Long, List<SecurityIngressRulesCmd>> entry : updatesByHost.entrySet()) {
+                sendRulesetUpdates(entry.getKey(), entry.getValue());
+            }
         } catch (InterruptedException e1) {
            s_logger.warn("SG work: caught InterruptException", e1);
         }
@@ -159,35 +201,92 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
     }
     
     public void sendRulesetUpdates(SecurityGroupWork work){
+        UserVm vm = _userVMDao.findById(work.getInstanceId());
+        SecurityIngressRulesCmd cmd = generateRulesetUpdate(work, vm);
+        if (cmd != null) {
+            List<SecurityIngressRulesCmd> updates = new ArrayList<SecurityIngressRulesCmd>(1);
+            updates.add(cmd);
+            sendRulesetUpdates(vm.getHostId(), updates);
+        }
+    }
+
+    /**
+     * Sends the updates for vms on one host in a single request.
+     */
+    protected void sendRulesetUpdates(long agentId, List<SecurityIngressRulesCmd> updates) {
+        Commands cmds = new Commands(OnError.Continue);
+        for (SecurityIngressRulesCmd cmd : updates) {
+            cmds.addCommand(cmd);
+        }
+        try {
+            _agentMgr.send(agentId, cmds, _answerListener);
+            _hostRequestsSent.incrementAndGet();
+            _vmUpdatesSent.addAndGet(updates.size());
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("SecurityGroupManager v2: sent ruleset updates for " + updates.size() + " vms to host " + agentId + " curr queue size=" + _workQueue.size());
+            }
+        } catch (AgentUnavailableException e) {
+            for (SecurityIngressRulesCmd cmd : updates) {
+                _rulesetTracker.forget(cmd.getVmId());
+                _pendingSince.remove(cmd.getVmId());
+            }
+            s_logger.debug("Unable to send updates for " + updates.size() + " vms (agentid=" + agentId + ")");
+        }
+    }
+
+    /**
+     * @return the update to send to the vm's host, null if there is nothing to send.
+     */
+    protected SecurityIngressRulesCmd generateRulesetUpdate(SecurityGroupWork work, UserVm vm) {
         Long userVmId = work.getInstanceId();
-        UserVm vm = _userVMDao.findById(userVmId);
 
         if (vm != null && vm.getState() == State.Running) {
             if (s_logger.isTraceEnabled()) { 
                 s_logger.trace("SecurityGroupManager v2: found vm, " + userVmId + " state=" + vm.getState());
             }
-            Map<PortAndProto, Set<String>> rules = generateRulesForVM(userVmId);
             Long agentId = vm.getHostId();
-            if (agentId != null) {
-                SecurityIngressRulesCmd cmd = generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), 
-                        vm.getPrivateMacAddress(), vm.getId(), null, 
-                        work.getLogsequenceNumber(), rules);
-                cmd.setMsId(_serverId);
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + 
-                                   ": num rules=" + cmd.getRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" + cmd.getSignature());
-                }
-                Commands cmds = new Commands(cmd);
-                try {
-                    _agentMgr.send(agentId, cmds, _answerListener);
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace("SecurityGroupManager v2: sent ruleset updates for " + vm.getInstanceName() + " curr queue size=" + _workQueue.size());
-                    }
-                } catch (AgentUnavailableException e) {
-                    s_logger.debug("Unable to send updates for vm: " + userVmId + "(agentid=" + agentId + ")");
+            if (agentId == null) {
+                _pendingSince.remove(userVmId);
+                return null;
+            }
+            long seqNum = work.getLogsequenceNumber();
+            if (_rulesetTracker.isOutstanding(userVmId, agentId, seqNum)) {
+                // rescheduled while the same ruleset is still on its way; its answer settles both.
+                _updatesSkipped.incrementAndGet();
+                return null;
+            }
+            if (_rulesetTracker.isAcked(userVmId, agentId, seqNum)) {
+                _updatesSkipped.incrementAndGet();
+                _pendingSince.remove(userVmId);
+                return null;
+            }
+
+            Map<PortAndProto, Set<String>> rules = generateRulesForVM(userVmId);
+            SecurityIngressRulesCmd cmd = generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), 
+                    vm.getPrivateMacAddress(), vm.getId(), null, seqNum, rules);
+            cmd.setMsId(_serverId);
+            int fullNumCidrs = cmd.getTotalNumCidrs();
+            boolean canDelta = _deltaUpdates && vm.getHypervisorType() == HypervisorType.KVM;
+            if (canDelta) {
+                SecurityIngressRulesCmd deltaCmd = generateDeltaRulesetCmd(cmd, agentId, rules);
+                if (deltaCmd != null) {
+                    cmd = deltaCmd;
                 }
             }
+            // the rules themselves are only kept when they can be the base of a delta
+            _rulesetTracker.sent(userVmId, new Ruleset(agentId, seqNum, cmd.getSignature(), canDelta ? rules : null));
+            if (cmd.isDelta()) {
+                _rulesetTracker.recordDelta(cmd.getTotalNumCidrs(), fullNumCidrs);
+            } else {
+                _rulesetTracker.recordFull(fullNumCidrs);
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("SecurityGroupManager v2: sending ruleset " + (cmd.isDelta() ? "changes" : "update") + " for vm " + vm.getInstanceName() + 
+                               ": num rules=" + cmd.getRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" + cmd.getSignature());
+            }
+            return cmd;
         } else {
+            _pendingSince.remove(userVmId);
             if (s_logger.isDebugEnabled()) {
                 if (vm != null)
                     s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
@@ -195,6 +294,63 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
                     s_logger.debug("Could not find vm: No rules sent to vm " + userVmId );
             }
         }
+        return null;
+    }
+
+    /**
+     * @return the changes since the ruleset the host last acknowledged for the vm, or null if
+     * the full ruleset has to be sent (nothing acknowledged yet, or the changes are no smaller).
+     */
+    protected SecurityIngressRulesCmd generateDeltaRulesetCmd(SecurityIngressRulesCmd full, long agentId, Map<PortAndProto, Set<String>> rules) {
+        Ruleset base = _rulesetTracker.getBase(full.getVmId(), agentId);
+        if (base == null) {
+            return null;
+        }
+        Delta delta = RulesetTracker.diff(base.getRules(), rules);
+        if (delta.getNumCidrs() >= full.getTotalNumCidrs()) {
+            return null;
+        }
+        SecurityIngressRulesCmd cmd = new SecurityIngressRulesCmd(full.getGuestIp(), full.getGuestMac(), full.getVmName(), full.getVmId(), full.getSignature(), full.getSeqNum(),
+                toIpPortAndProtos(delta.getAdded()), toIpPortAndProtos(delta.getRevoked()), base.getSignature());
+        cmd.setMsId(_serverId);
+        return cmd;
+    }
+
+    @Override
+    protected void handleRulesetAnswer(long agentId, SecurityIngressRuleAnswer answer) {
+        if (answer.getResult()) {
+            if (_rulesetTracker.acked(answer.getVmId(), answer.getLogSequenceNumber())) {
+                Long since = _pendingSince.remove(answer.getVmId());
+                if (since != null) {
+                    _propagationLatency.record(System.currentTimeMillis() - since);
+                }
+            }
+            return;
+        }
+        _rulesetTracker.forget(answer.getVmId());
+        _pendingSince.remove(answer.getVmId());
+        if (answer.getReason() == SecurityIngressRuleAnswer.FailureReason.DELTA_UNSUPPORTED) {
+            _rulesetTracker.setFullOnly(agentId, true);
+        }
+    }
+
+    @Override
+    protected void handleHostConnected(long agentId) {
+        _rulesetTracker.forgetHost(agentId);
+    }
+
+    @Override
+    protected void handleVmStopped(VMInstanceVO vm) {
+        _rulesetTracker.forget(vm.getId());
+        super.handleVmStopped(vm);
+    }
+
+    @Override
+    public void fullSync(long agentId, HashMap<String, Pair<Long, Long>> newGroupStates) {
+        for (Pair<Long, Long> state : newGroupStates.values()) {
+            _rulesetTracker.forgetUnlessAt(state.first(), state.second());
+        }
+        super.fullSync(agentId, newGroupStates);
     }
 
     @Override
@@ -252,6 +408,34 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         return _workQueue;
     }
 
+    public RulesetTracker getRulesetTracker() {
+        return _rulesetTracker;
+    }
+
+    public long getHostRequestsSent() {
+        return _hostRequestsSent.get();
+    }
+
+    public long getVmUpdatesSent() {
+        return _vmUpdatesSent.get();
+    }
+
+    public long getUpdatesSkipped() {
+        return _updatesSkipped.get();
+    }
+
+    public LatencyHistogram getPropagationLatency() {
+        return _propagationLatency;
+    }
+
+    public void resetStatistics() {
+        _hostRequestsSent.set(0);
+        _vmUpdatesSent.set(0);
+        _updatesSkipped.set(0);
+        _propagationLatency.reset();
+        _rulesetTracker.resetStatistics();
+    }
+
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
@@ -261,7 +445,13 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         } catch (Exception e){
             s_logger.error("Failed to register MBean", e);
         }
-        return super.configure(name, params);
+        boolean result = super.configure(name, params);
+        String value = _configDao.getValue(Config.SecurityGroupDeltaUpdates.key());
+        _deltaUpdates = value == null || Boolean.parseBoolean(value);
+        _batchSize = Math.max(1, NumbersUtil.parseInt(_configDao.getValue(Config.SecurityGroupWorkBatchSize.key()), 100));
+        _batchWindow = NumbersUtil.parseLong(_configDao.getValue(Config.SecurityGroupWorkBatchWindow.key()), 100);
+        s_logger.info("SecurityGroupManager v2: delta updates=" + _deltaUpdates + ", batch size=" + _batchSize + ", batch window=" + _batchWindow + "ms");
+        return result;
     }
 
     public void disableSchedulerForVm(Long vmId, boolean disable) {
@@ -55,4 +55,45 @@ public interface SecurityGroupManagerMBean {
     boolean isSchedulerDisabledEntirely();
 
     void clearSchedulerQueueVeryDangerous();
+
+    long getDeltaUpdatesSent();
+
+    long getFullUpdatesSent();
+
+    long getCidrsSent();
+
+    long getCidrsSavedByDeltaUpdates();
+
+    int getAcknowledgedRulesetCount();
+
+    /**
+     * Forgets what hosts acknowledged, so every vm gets its full ruleset with its next update.
+     */
+    void clearAcknowledgedRulesets();
+
+    /**
+     * @return requests sent to hosts; each carries the updates for all of the host's vms in one batch.
+     */
+    long getHostRequestsSent();
+
+    long getVmUpdatesSent();
+
+    /**
+     * @return vm updates per host request.
+     */
+    double getCoalescingRatio();
+
+    /**
+     * @return updates not sent because the host already had, or was about to get, the same ruleset.
+     */
+    long getUpdatesSkipped();
+
+    /**
+     * @return time from scheduling a vm's update to the host acknowledging it, in ms.
+     */
+    List<Map<String, String>> getPropagationLatencyHistogram();
+
+    String getPropagationLatencySummary();
+
+    void resetStatistics();
 }
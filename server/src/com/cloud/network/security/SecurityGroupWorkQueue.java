@@ -33,6 +33,12 @@ public interface SecurityGroupWorkQueue {
     int submitWorkForVms(Set<Long> vmIds);
     
     List<SecurityGroupWork> getWork(int numberOfWorkItems) throws InterruptedException;
+
+    /**
+     * Same as getWork(numberOfWorkItems) except that once there is work it waits up to
+     * waitForMoreMs for the rest of the batch to show up before returning.
+     */
+    List<SecurityGroupWork> getWork(int numberOfWorkItems, long waitForMoreMs) throws InterruptedException;
     
     int size();
     
@@ -142,4 +142,70 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
     public void clearSchedulerQueueVeryDangerous() {
         _sgMgr.clearWorkQueue();
     }
+
+    @Override
+    public long getDeltaUpdatesSent() {
+        return _sgMgr.getRulesetTracker().getDeltasSent();
+    }
+
+    @Override
+    public long getFullUpdatesSent() {
+        return _sgMgr.getRulesetTracker().getFullSent();
+    }
+
+    @Override
+    public long getCidrsSent() {
+        return _sgMgr.getRulesetTracker().getCidrsSent();
+    }
+
+    @Override
+    public long getCidrsSavedByDeltaUpdates() {
+        return _sgMgr.getRulesetTracker().getCidrsSaved();
+    }
+
+    @Override
+    public int getAcknowledgedRulesetCount() {
+        return _sgMgr.getRulesetTracker().size();
+    }
+
+    @Override
+    public void clearAcknowledgedRulesets() {
+        _sgMgr.getRulesetTracker().clear();
+    }
+
+    @Override
+    public long getHostRequestsSent() {
+        return _sgMgr.getHostRequestsSent();
+    }
+
+    @Override
+    public long getVmUpdatesSent() {
+        return _sgMgr.getVmUpdatesSent();
+    }
+
+    @Override
+    public double getCoalescingRatio() {
+        long requests = _sgMgr.getHostRequestsSent();
+        return requests == 0 ? 0 : (double)_sgMgr.getVmUpdatesSent() / requests;
+    }
+
+    @Override
+    public long getUpdatesSkipped() {
+        return _sgMgr.getUpdatesSkipped();
+    }
+
+    @Override
+    public List<Map<String, String>> getPropagationLatencyHistogram() {
+        return _sgMgr.getPropagationLatency().getBuckets();
+    }
+
+    @Override
+    public String getPropagationLatencySummary() {
+        return _sgMgr.getPropagationLatency().toString();
+    }
+
+    @Override
+    public void resetStatistics() {
+        _sgMgr.resetStatistics();
+    }
 }
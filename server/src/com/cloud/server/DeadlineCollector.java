@@ -0,0 +1,267 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.LatencyHistogram;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * DeadlineCollector runs one task per key, at most so many at a time, and
+ * waits for them until a deadline, handing back whatever finished in time.
+ * A task still running at the deadline isn't interrupted; its key is skipped
+ * until the task returns, and for a few cycles after that if it keeps
+ * missing the deadline, so one slow host can neither hold up a cycle nor
+ * pile up work.  Tasks that never got a thread before the deadline are
+ * dropped without counting against their key.
+ */
+public class DeadlineCollector<K, V> {
+    private static final Logger s_logger = Logger.getLogger(DeadlineCollector.class);
+
+    public interface Task<K, V> {
+        V collect(K key) throws Exception;
+    }
+
+    protected static final int MAX_SKIP_CYCLES = 8;
+
+    private final String _name;
+    private final ThreadPoolExecutor _executor;
+    private final ConcurrentHashMap<K, Boolean> _inFlight = new ConcurrentHashMap<K, Boolean>();
+
+    // key -> { deadlines missed in a row, cycles left to skip }; only used under the collect() lock
+    private final Map<K, int[]> _misses = new HashMap<K, int[]>();
+
+    private final AtomicLong _cycles = new AtomicLong();
+    private final AtomicLong _completed = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _late = new AtomicLong();
+    private final AtomicLong _skipped = new AtomicLong();
+    private final AtomicLong _unreached = new AtomicLong();
+    private volatile long _lastCycleMillis;
+    private volatile int _lastCycleKeys;
+    private final LatencyHistogram _cycleTimes = new LatencyHistogram();
+
+    public DeadlineCollector(String name, int maxParallel) {
+        _name = name;
+        _executor = new ThreadPoolExecutor(maxParallel, maxParallel, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name));
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the task for every key that isn't being skipped and waits for them for at most timeout milliseconds.
+     *
+     * @return results of the tasks that finished in time; keys whose task failed, was late or returned null are left out.
+     */
+    public synchronized Map<K, V> collect(Collection<K> keys, final Task<K, V> task, long timeout) {
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+
+        Map<K, Future<V>> futures = new LinkedHashMap<K, Future<V>>();
+        Map<K, AtomicBoolean> started = new HashMap<K, AtomicBoolean>();
+        for (final K key : keys) {
+            if (_inFlight.containsKey(key) || skip(key)) {
+                _skipped.incrementAndGet();
+                continue;
+            }
+
+            final AtomicBoolean running = new AtomicBoolean();
+            _inFlight.put(key, Boolean.TRUE);
+            try {
+                futures.put(key, _executor.submit(new Callable<V>() {
+                    @Override
+                    public V call() throws Exception {
+                        running.set(true);
+                        try {
+                            return task.collect(key);
+                        } finally {
+                            _inFlight.remove(key);
+                        }
+                    }
+                }));
+                started.put(key, running);
+            } catch (RejectedExecutionException e) {
+                _inFlight.remove(key);
+                _unreached.incrementAndGet();
+            }
+        }
+
+        Map<K, V> results = new HashMap<K, V>();
+        boolean interrupted = false;
+        for (Map.Entry<K, Future<V>> entry : futures.entrySet()) {
+            K key = entry.getKey();
+            Future<V> future = entry.getValue();
+            try {
+                long remaining = interrupted ? 0 : Math.max(deadline - System.currentTimeMillis(), 0);
+                V result = future.get(remaining, TimeUnit.MILLISECONDS);
+                _misses.remove(key);
+                _completed.incrementAndGet();
+                if (result != null) {
+                    results.put(key, result);
+                }
+            } catch (TimeoutException e) {
+                if (!started.get(key).get() && future.cancel(false)) {
+                    // never got a thread; not the key's fault.
+                    if (!started.get(key).get()) {
+                        _inFlight.remove(key);
+                    }
+                    _unreached.incrementAndGet();
+                } else {
+                    missed(key);
+                    _late.incrementAndGet();
+                }
+            } catch (ExecutionException e) {
+                _misses.remove(key);
+                _failed.incrementAndGet();
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug(_name + " failed for " + key + ": " + e.getCause());
+                }
+            } catch (InterruptedException e) {
+                // hand back what's done and leave the rest running.
+                interrupted = true;
+                missed(key);
+                _late.incrementAndGet();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        _lastCycleMillis = System.currentTimeMillis() - start;
+        _lastCycleKeys = keys.size();
+        _cycleTimes.record(_lastCycleMillis);
+        _cycles.incrementAndGet();
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(_name + " collected " + results.size() + " of " + keys.size() + " in " + _lastCycleMillis + "ms");
+        }
+        return results;
+    }
+
+    private boolean skip(K key) {
+        int[] misses = _misses.get(key);
+        if (misses == null || misses[1] == 0) {
+            return false;
+        }
+        misses[1]--;
+        return true;
+    }
+
+    private void missed(K key) {
+        int[] misses = _misses.get(key);
+        if (misses == null) {
+            misses = new int[2];
+            _misses.put(key, misses);
+        }
+        misses[0]++;
+        misses[1] = Math.min(1 << Math.min(misses[0] - 1, 30), MAX_SKIP_CYCLES);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(_name + " is still waiting on " + key + ", skipping it for " + misses[1] + " cycles after it returns");
+        }
+    }
+
+    public boolean isInFlight(K key) {
+        return _inFlight.containsKey(key);
+    }
+
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public long getCycles() {
+        return _cycles.get();
+    }
+
+    public long getCompleted() {
+        return _completed.get();
+    }
+
+    public long getFailed() {
+        return _failed.get();
+    }
+
+    public long getLate() {
+        return _late.get();
+    }
+
+    public long getSkipped() {
+        return _skipped.get();
+    }
+
+    public long getUnreached() {
+        return _unreached.get();
+    }
+
+    public long getLastCycleMillis() {
+        return _lastCycleMillis;
+    }
+
+    public LatencyHistogram getCycleTimes() {
+        return _cycleTimes;
+    }
+
+    /**
+     * @return the numbers above as one row, with the cycle time percentiles.
+     */
+    public Map<String, String> getStatistics() {
+        Map<String, String> row = new LinkedHashMap<String, String>();
+        row.put("name", _name);
+        row.put("cycles", Long.toString(getCycles()));
+        row.put("lastCycleKeys", Integer.toString(_lastCycleKeys));
+        row.put("lastCycleMs", Long.toString(_lastCycleMillis));
+        row.put("avgCycleMs", Long.toString(_cycleTimes.getAverage()));
+        row.put("p99CycleMs", Long.toString(_cycleTimes.getPercentile(99)));
+        row.put("maxCycleMs", Long.toString(_cycleTimes.getMax()));
+        row.put("completed", Long.toString(getCompleted()));
+        row.put("failed", Long.toString(getFailed()));
+        row.put("late", Long.toString(getLate()));
+        row.put("skipped", Long.toString(getSkipped()));
+        row.put("unreached", Long.toString(getUnreached()));
+        row.put("inFlight", Integer.toString(_inFlight.size()));
+        return row;
+    }
+
+    public void resetStatistics() {
+        _cycles.set(0);
+        _completed.set(0);
+        _failed.set(0);
+        _late.set(0);
+        _skipped.set(0);
+        _unreached.set(0);
+        _cycleTimes.reset();
+    }
+}
@@ -1611,6 +1611,7 @@ public class ManagementServerImpl implements ManagementServer {
 
 
     @Override
+    @DB(readOnly=true)
     public List<EventVO> searchForEvents(ListEventsCmd cmd) {
         Account caller = UserContext.current().getCaller();
         List<Long> permittedAccounts = new ArrayList<Long>();
@@ -2432,6 +2433,7 @@ public class ManagementServerImpl implements ManagementServer {
     }
 
     @Override
+    @DB(readOnly=true)
     public List<? extends Alert> searchForAlerts(ListAlertsCmd cmd) {
         Filter searchFilter = new Filter(AlertVO.class, "lastSent", false, cmd.getStartIndex(), cmd.getPageSizeVal());
         SearchCriteria<AlertVO> sc = _alertDao.createSearchCriteria();
@@ -2474,6 +2476,7 @@ public class ManagementServerImpl implements ManagementServer {
     }
     
     @Override
+    @DB(readOnly=true)
     public List<CapacityVO> listCapacities(ListCapacityCmd cmd) {
 
         Filter searchFilter = new Filter(CapacityVO.class, "capacityType", true, null, null);
@@ -20,10 +20,8 @@ package com.cloud.server;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -40,6 +38,7 @@ import com.cloud.agent.api.HostStatsEntry;
 import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.manager.Commands;
 import com.cloud.exception.AgentUnavailableException;
+import com.cloud.exception.OperationTimedoutException;
 import com.cloud.exception.StorageUnavailableException;
 import com.cloud.host.Host;
 import com.cloud.host.HostStats;
@@ -56,9 +55,12 @@ import com.cloud.storage.dao.StoragePoolDao;
 import com.cloud.storage.dao.StoragePoolHostDao;
 import com.cloud.storage.dao.VolumeDao;
 import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.TimeSeriesRing;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.exception.ExceptionUtil;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.UserVmManager;
 import com.cloud.vm.UserVmVO;
 import com.cloud.vm.VmStats;
@@ -70,9 +72,14 @@ import com.cloud.vm.dao.UserVmDao;
  * @author Will Chan
  *
  */
-public class StatsCollector {
+public class StatsCollector implements StatsCollectorMBean {
 	public static final Logger s_logger = Logger.getLogger(StatsCollector.class.getName());
 
+	// last samples per vm: cpu utilization, network read KBs and network write KBs in the interval
+	public static final int VM_CPU = 0, VM_NETWORK_READ_KBS = 1, VM_NETWORK_WRITE_KBS = 2;
+	// last samples per host: cpu utilization, used memory, network read KBs and network write KBs
+	public static final int HOST_CPU = 0, HOST_USED_MEMORY = 1, HOST_NETWORK_READ_KBS = 2, HOST_NETWORK_WRITE_KBS = 3;
+
 	private static StatsCollector s_instance = null;
 
 	private ScheduledExecutorService _executor = null;
@@ -90,6 +97,15 @@ public class StatsCollector {
 	private ConcurrentHashMap<Long, VolumeStats> _volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
 	private ConcurrentHashMap<Long, StorageStats> _storageStats = new ConcurrentHashMap<Long, StorageStats>();
 	private ConcurrentHashMap<Long, StorageStats> _storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
+
+	private final ConcurrentHashMap<Long, TimeSeriesRing> _vmStatsHistory = new ConcurrentHashMap<Long, TimeSeriesRing>();
+	private final ConcurrentHashMap<Long, TimeSeriesRing> _hostStatsHistory = new ConcurrentHashMap<Long, TimeSeriesRing>();
+	private int _historySize = 60;
+
+	private DeadlineCollector<Long, HostStats> _hostCollector;
+	private DeadlineCollector<Long, Integer> _vmCollector;
+	private DeadlineCollector<Long, Map<Long, VolumeStats>> _volumeCollector;
+	private long _collectionTimeout = 30000L;
 	
 	long hostStatsInterval = -1L;
 	long hostAndVmStatsInterval = -1L;
@@ -121,6 +137,18 @@ public class StatsCollector {
 
 		_executor = Executors.newScheduledThreadPool(3, new NamedThreadFactory("StatsCollector"));
 
+		int maxParallel = NumbersUtil.parseInt(configs.get("stats.collection.max.parallel"), 16);
+		_collectionTimeout = NumbersUtil.parseLong(configs.get("stats.collection.timeout"), 30000L);
+		_historySize = NumbersUtil.parseInt(configs.get("stats.history.size"), 60);
+		_hostCollector = new DeadlineCollector<Long, HostStats>("HostStatsCollector", maxParallel);
+		_vmCollector = new DeadlineCollector<Long, Integer>("VmStatsCollector", maxParallel);
+		_volumeCollector = new DeadlineCollector<Long, Map<Long, VolumeStats>>("VolumeStatsCollector", maxParallel);
+		try {
+		    JmxUtil.registerMBean("StatsCollector", "StatsCollector", this);
+		} catch (Exception e) {
+		    s_logger.warn("Unable to register stats collector into JMX monitoring due to exception " + ExceptionUtil.toString(e));
+		}
+
 		 hostStatsInterval = NumbersUtil.parseLong(configs.get("host.stats.interval"), 60000L);
 		 hostAndVmStatsInterval = NumbersUtil.parseLong(configs.get("vm.stats.interval"), 60000L);
 		 storageStatsInterval = NumbersUtil.parseLong(configs.get("storage.stats.interval"), 60000L);
@@ -162,21 +190,39 @@ public class StatsCollector {
 		        sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.SecondaryStorageVM.toString());
 		        sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.ExternalFirewall.toString());
 		        sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.ExternalLoadBalancer.toString());
-				ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
-				List<HostVO> hosts = _hostDao.search(sc, null);
-				for (HostVO host : hosts)
-				{
-				    HostStatsEntry stats = (HostStatsEntry) _agentMgr.getHostStatistics(host.getId());
-				    if (stats != null)
-				    {
-                        hostStats.put(host.getId(), stats);
+				List<HostVO> hosts = _hostDao.search(sc, null);
+				List<Long> hostIds = new ArrayList<Long>(hosts.size());
+				for (HostVO host : hosts) {
+				    hostIds.add(host.getId());
+				}
+
+				Map<Long, HostStats> collected = _hostCollector.collect(hostIds, new DeadlineCollector.Task<Long, HostStats>() {
+				    @Override
+				    public HostStats collect(Long hostId) {
+				        HostStatsEntry stats = (HostStatsEntry) _agentMgr.getHostStatistics(hostId);
+				        if (stats == null) {
+				            s_logger.warn("Received invalid host stats for host: " + hostId);
+				            return null;
+				        }
+				        TimeSeriesRing history = getHistory(_hostStatsHistory, hostId, 4);
+				        history.add(System.currentTimeMillis(), stats.getCpuUtilization(), stats.getUsedMemory(), stats.getNetworkReadKBs(), stats.getNetworkWriteKBs());
+				        return stats;
 				    }
-				    else
-				    {
-				        s_logger.warn("Received invalid host stats for host: " + host.getId());
-				    }
-				}
-				_hostStats = hostStats;
+				}, getCollectionTimeout(hostStatsInterval));
+
+				// hosts that were late or skipped keep their last stats until they answer again
+				ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
+				for (Long hostId : hostIds) {
+				    HostStats stats = collected.get(hostId);
+				    if (stats == null) {
+				        stats = _hostStats.get(hostId);
+				    }
+				    if (stats != null) {
+				        hostStats.put(hostId, stats);
+				    }
+				}
+				_hostStats = hostStats;
+				expireHistory(_hostStatsHistory, hostStatsInterval);
 			}
 			catch (Throwable t)
 			{
@@ -200,62 +246,119 @@ public class StatsCollector {
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.TrafficMonitor.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.SecondaryStorageVM.toString());
 				List<HostVO> hosts = _hostDao.search(sc, null);
-				
+				List<Long> hostIds = new ArrayList<Long>(hosts.size());
+				final Map<Long, String> hostNames = new HashMap<Long, String>();
 				for (HostVO host : hosts) {
-					List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-					List<Long> vmIds = new ArrayList<Long>();
-					
-					for (UserVmVO vm : vms) {
-						vmIds.add(vm.getId());
-					}
-					
-					try
-					{
-							HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
-							
-							if(vmStatsById != null)
-							{
-								VmStatsEntry statsInMemory = null;
-								
-								Set<Long> vmIdSet = vmStatsById.keySet();
-								for(Long vmId : vmIdSet)
-								{
-									VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
-									statsInMemory = (VmStatsEntry) _VmStats.get(vmId);
-									
-									if(statsInMemory == null)
-									{
-										//no stats exist for this vm, directly persist
-										_VmStats.put(vmId, statsForCurrentIteration);
-									}
-									else
-									{
-										//update each field
-										statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
-										statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
-										statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
-										statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
-										
-										_VmStats.put(vmId, statsInMemory);
-									}
-								}
-							}
-							
-					} catch (Exception e) {
-						s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
-						continue;
-					}
+				    hostIds.add(host.getId());
+				    hostNames.put(host.getId(), host.getName());
 				}
-				
+
+				// a host that answers after the deadline still has its stats merged, they're just not waited for
+				_vmCollector.collect(hostIds, new DeadlineCollector.Task<Long, Integer>() {
+				    @Override
+				    public Integer collect(Long hostId) throws Exception {
+				        return collectVmStats(hostId, hostNames.get(hostId));
+				    }
+				}, getCollectionTimeout(hostAndVmStatsInterval));
+				expireHistory(_vmStatsHistory, hostAndVmStatsInterval);
 			} catch (Throwable t) {
 				s_logger.error("Error trying to retrieve VM stats", t);
 			}
 		}
 	}
 
+	protected Integer collectVmStats(long hostId, String hostName) throws Exception {
+	    List<UserVmVO> vms = _userVmDao.listRunningByHostId(hostId);
+	    List<Long> vmIds = new ArrayList<Long>(vms.size());
+	    for (UserVmVO vm : vms) {
+	        vmIds.add(vm.getId());
+	    }
+
+	    HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(hostId, hostName, vmIds);
+	    if (vmStatsById == null) {
+	        return 0;
+	    }
+
+	    long now = System.currentTimeMillis();
+	    for (Map.Entry<Long, VmStatsEntry> entry : vmStatsById.entrySet()) {
+	        Long vmId = entry.getKey();
+	        VmStatsEntry statsForCurrentIteration = entry.getValue();
+	        synchronized (_VmStats) {
+	            VmStatsEntry statsInMemory = (VmStatsEntry) _VmStats.get(vmId);
+	            if (statsInMemory == null) {
+	                //no stats exist for this vm, directly persist
+	                _VmStats.put(vmId, statsForCurrentIteration);
+	            } else {
+	                //update each field
+	                statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
+	                statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
+	                statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
+	                statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
+	                statsInMemory.setDiskReadKBs(statsInMemory.getDiskReadKBs() + statsForCurrentIteration.getDiskReadKBs());
+	                statsInMemory.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + statsForCurrentIteration.getDiskWriteKBs());
+	                statsInMemory.setDiskReadIOs(statsInMemory.getDiskReadIOs() + statsForCurrentIteration.getDiskReadIOs());
+	                statsInMemory.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + statsForCurrentIteration.getDiskWriteIOs());
+	                statsInMemory.setDiskStatsReported(statsInMemory.isDiskStatsReported() || statsForCurrentIteration.isDiskStatsReported());
+	            }
+	        }
+	        getHistory(_vmStatsHistory, vmId, 3).add(now, statsForCurrentIteration.getCPUUtilization(), statsForCurrentIteration.getNetworkReadKBs(),
+	                statsForCurrentIteration.getNetworkWriteKBs());
+	    }
+	    return vmStatsById.size();
+	}
+
+	private TimeSeriesRing getHistory(ConcurrentHashMap<Long, TimeSeriesRing> histories, long id, int width) {
+	    TimeSeriesRing history = histories.get(id);
+	    if (history == null) {
+	        history = new TimeSeriesRing(_historySize, width);
+	        TimeSeriesRing existing = histories.putIfAbsent(id, history);
+	        if (existing != null) {
+	            history = existing;
+	        }
+	    }
+	    return history;
+	}
+
+	/**
+	 * Drops the history of vms and hosts that haven't reported for longer than a slow host can be skipped.
+	 */
+	private void expireHistory(ConcurrentHashMap<Long, TimeSeriesRing> histories, long interval) {
+	    long expired = System.currentTimeMillis() - (DeadlineCollector.MAX_SKIP_CYCLES + 2) * interval;
+	    for (Map.Entry<Long, TimeSeriesRing> entry : histories.entrySet()) {
+	        if (entry.getValue().getLastTime() < expired) {
+	            histories.remove(entry.getKey(), entry.getValue());
+	        }
+	    }
+	}
+
+	/**
+	 * A cycle has to finish before the next one is due.
+	 */
+	private long getCollectionTimeout(long interval) {
+	    return Math.min(_collectionTimeout, interval);
+	}
+
 	public VmStats getVmStats(long id) {
 		return _VmStats.get(id);
-	}
+	}
+
+	/**
+	 * @return samples of cpu utilization and network read and write KBs, indexed by VM_CPU, VM_NETWORK_READ_KBS and
+	 *         VM_NETWORK_WRITE_KBS, taken after the given time, oldest first.
+	 */
+	public List<TimeSeriesRing.Sample> getVmStatsHistory(long vmId, long since) {
+	    TimeSeriesRing history = _vmStatsHistory.get(vmId);
+	    return history == null ? new ArrayList<TimeSeriesRing.Sample>() : history.getSamples(since);
+	}
+
+	/**
+	 * @return samples of cpu utilization, used memory and network read and write KBs, indexed by HOST_CPU,
+	 *         HOST_USED_MEMORY, HOST_NETWORK_READ_KBS and HOST_NETWORK_WRITE_KBS, taken after the given time, oldest first.
+	 */
+	public List<TimeSeriesRing.Sample> getHostStatsHistory(long hostId, long since) {
+	    TimeSeriesRing history = _hostStatsHistory.get(hostId);
+	    return history == null ? new ArrayList<TimeSeriesRing.Sample>() : history.getSamples(since);
+	}
 
 	class StorageCollector implements Runnable {
 		@Override
@@ -352,48 +455,70 @@ public class StatsCollector {
 					vCommand.command = new GetFileStatsCommand(volume);
 					commands.add(vCommand);
 				}
+				commandsByPool.remove(null);
+
+				final Map<Long, List<VolumeCommand>> commandsToSend = commandsByPool;
+				Map<Long, Map<Long, VolumeStats>> collected = _volumeCollector.collect(commandsByPool.keySet(), new DeadlineCollector.Task<Long, Map<Long, VolumeStats>>() {
+				    @Override
+				    public Map<Long, VolumeStats> collect(Long poolId) {
+				        return collectVolumeStats(poolId, commandsToSend.get(poolId));
+				    }
+				}, getCollectionTimeout(volumeStatsInterval));
+
+				// We replace the existing volumeStats so that it does not grow with no bounds, volumes on pools
+				// that didn't answer in time keep their last stats
 				ConcurrentHashMap<Long, VolumeStats> volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
-				for (Iterator<Long> iter = commandsByPool.keySet().iterator(); iter.hasNext();) {
-					Long poolId = iter.next();
-					if(poolId != null) {
-						List<VolumeCommand> commandsList = commandsByPool.get(poolId);
-						
-						long[] volumeIdArray = new long[commandsList.size()];
-						Commands commands = new Commands(OnError.Continue);
-						for (int i = 0; i < commandsList.size(); i++) {
-							VolumeCommand vCommand = commandsList.get(i);
-							volumeIdArray[i] = vCommand.volumeId;
-							commands.addCommand(vCommand.command);
-						}
-						
-			            List<StoragePoolHostVO> poolhosts = _storagePoolHostDao.listByPoolId(poolId);
-			            for(StoragePoolHostVO poolhost : poolhosts) {
-	    					Answer[] answers = _agentMgr.send(poolhost.getHostId(), commands);
-	    					if (answers != null) {
-	    					    long totalBytes = 0L;
-	    						for (int i = 0; i < answers.length; i++) {
-	    							if (answers[i].getResult()) {
-	    							    VolumeStats vStats = (VolumeStats)answers[i];
-	    								volumeStats.put(volumeIdArray[i], vStats);
-	    								totalBytes += vStats.getBytesUsed();
-	    							}
-	    						}
-	    						break;
-	                        }
-			            }
-					}
+				for (Map.Entry<Long, List<VolumeCommand>> entry : commandsByPool.entrySet()) {
+				    Map<Long, VolumeStats> poolStats = collected.get(entry.getKey());
+				    if (poolStats != null) {
+				        volumeStats.putAll(poolStats);
+				        continue;
+				    }
+				    for (VolumeCommand vCommand : entry.getValue()) {
+				        VolumeStats vStats = _volumeStats.get(vCommand.volumeId);
+				        if (vStats != null) {
+				            volumeStats.put(vCommand.volumeId, vStats);
+				        }
+				    }
 				}
-
-				// We replace the existing volumeStats so that it does not grow with no bounds
 				_volumeStats = volumeStats;
-			} catch (AgentUnavailableException e) {
-			    s_logger.debug(e.getMessage());
 			} catch (Throwable t) {
 				s_logger.error("Error trying to retrieve volume stats", t);
 			}
 		}
 	}
 
+	protected Map<Long, VolumeStats> collectVolumeStats(long poolId, List<VolumeCommand> commandsList) {
+	    long[] volumeIdArray = new long[commandsList.size()];
+	    Commands commands = new Commands(OnError.Continue);
+	    for (int i = 0; i < commandsList.size(); i++) {
+	        VolumeCommand vCommand = commandsList.get(i);
+	        volumeIdArray[i] = vCommand.volumeId;
+	        commands.addCommand(vCommand.command);
+	    }
+
+	    List<StoragePoolHostVO> poolhosts = _storagePoolHostDao.listByPoolId(poolId);
+	    for (StoragePoolHostVO poolhost : poolhosts) {
+	        try {
+	            Answer[] answers = _agentMgr.send(poolhost.getHostId(), commands);
+	            if (answers != null) {
+	                Map<Long, VolumeStats> volumeStats = new HashMap<Long, VolumeStats>();
+	                for (int i = 0; i < answers.length; i++) {
+	                    if (answers[i].getResult()) {
+	                        volumeStats.put(volumeIdArray[i], (VolumeStats)answers[i]);
+	                    }
+	                }
+	                return volumeStats;
+	            }
+	        } catch (AgentUnavailableException e) {
+	            s_logger.debug(e.getMessage());
+	        } catch (OperationTimedoutException e) {
+	            s_logger.debug(e.getMessage());
+	        }
+	    }
+	    return null;
+	}
+
 	private class VolumeCommand {
 		public long volumeId;
 		public GetFileStatsCommand command;
@@ -408,4 +533,29 @@ public class StatsCollector {
 		}
 		return stats;
 	}
+	@Override
+	public List<Map<String, String>> getCollectionCycles() {
+	    List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+	    rows.add(_hostCollector.getStatistics());
+	    rows.add(_vmCollector.getStatistics());
+	    rows.add(_volumeCollector.getStatistics());
+	    return rows;
+	}
+
+	@Override
+	public int getVmStatsHistoryCount() {
+	    return _vmStatsHistory.size();
+	}
+
+	@Override
+	public int getHostStatsHistoryCount() {
+	    return _hostStatsHistory.size();
+	}
+
+	@Override
+	public void resetStatistics() {
+	    _hostCollector.resetStatistics();
+	    _vmCollector.resetStatistics();
+	    _volumeCollector.resetStatistics();
+	}
 }
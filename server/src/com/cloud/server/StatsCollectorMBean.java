@@ -0,0 +1,35 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.server;
+
+import java.util.List;
+import java.util.Map;
+
+public interface StatsCollectorMBean {
+    /**
+     * @return one row per collector: cycles run, last/avg/p99/max cycle time in ms and how many hosts or pools answered,
+     *         failed, were late, were skipped or never got a thread.
+     */
+    List<Map<String, String>> getCollectionCycles();
+
+    int getVmStatsHistoryCount();
+
+    int getHostStatsHistoryCount();
+
+    void resetStatistics();
+}
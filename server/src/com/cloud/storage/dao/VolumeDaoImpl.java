@@ -27,6 +27,8 @@ import javax.ejb.Local;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.dao.CapacityDaoImpl;
 import com.cloud.exception.ConcurrentOperationException;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.storage.Storage.ImageFormat;
@@ -34,6 +36,7 @@ import com.cloud.storage.Volume;
 import com.cloud.storage.Volume.Type;
 import com.cloud.storage.VolumeVO;
 import com.cloud.utils.Pair;
+import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.db.Attribute;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GenericDaoBase;
@@ -59,6 +62,7 @@ public class VolumeDaoImpl extends GenericDaoBase<VolumeVO, Long> implements Vol
     protected final SearchBuilder<VolumeVO> AllFieldsSearch;
     protected GenericSearchBuilder<VolumeVO, Long> CountByAccount;
     protected final Attribute _stateAttr;
+    protected final CapacityDaoImpl _capacityDao = ComponentLocator.inject(CapacityDaoImpl.class);
     
     protected static final String SELECT_VM_SQL = "SELECT DISTINCT instance_id from volumes v where v.host_id = ? and v.mirror_state = ?";
     protected static final String SELECT_HYPERTYPE_FROM_VOLUME = "SELECT c.hypervisor_type from volumes v, storage_pool s, cluster c where v.pool_id = s.id and s.cluster_id = c.id and v.id = ?";
@@ -217,13 +221,87 @@ public class VolumeDaoImpl extends GenericDaoBase<VolumeVO, Long> implements Vol
         sc.setParameters("id", vol.getId());
         sc.setParameters("state", oldState);
         
+        VolumeVO before = changesAllocation(builder) ? findByIdIncludingRemoved(vol.getId()) : null;
         int rows = update(builder, sc, null);
         if (rows != 1) {
             VolumeVO dbVol = findById(vol.getId()); 
             throw new ConcurrentOperationException("Unable to update " + vol + ": Old State=" + oldState + "; New State = " + newState + "; DB State=" + dbVol.getState());
         }
+        if (before != null) {
+            allocationChanged(before, vol);
+        }
         return rows == 1;
     }
+
+    @Override
+    public VolumeVO persist(VolumeVO vol) {
+        VolumeVO result = super.persist(vol);
+        allocationChanged(null, result);
+        return result;
+    }
+
+    @Override
+    public boolean update(Long id, VolumeVO vol) {
+        VolumeVO before = changesAllocation(getUpdateBuilder(vol)) ? findByIdIncludingRemoved(id) : null;
+        boolean result = super.update(id, vol);
+        if (result && before != null) {
+            allocationChanged(before, findByIdIncludingRemoved(id));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean remove(Long id) {
+        VolumeVO before = findByIdIncludingRemoved(id);
+        boolean result = super.remove(id);
+        if (result && before != null) {
+            allocationChanged(before, null);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean expunge(Long id) {
+        VolumeVO before = findByIdIncludingRemoved(id);
+        boolean result = super.expunge(id);
+        if (result && before != null) {
+            allocationChanged(before, null);
+        }
+        return result;
+    }
+
+    protected boolean changesAllocation(UpdateBuilder builder) {
+        return builder.has("poolId") || builder.has("size") || builder.has("removed");
+    }
+
+    /**
+     * Volumes count against the allocated capacity of their storage pool
+     * until they're removed.  This moves a volume's size between pools, in
+     * the caller's transaction if there is one, so the allocated capacity no
+     * longer has to be recounted from all the volumes periodically.
+     * 
+     * @param before the volume before the change or null if it's new.
+     * @param after the volume after the change or null if it's gone.
+     */
+    protected void allocationChanged(VolumeVO before, VolumeVO after) {
+        Long oldPoolId = before == null || before.getRemoved() != null ? null : before.getPoolId();
+        Long newPoolId = after == null || after.getRemoved() != null ? null : after.getPoolId();
+        long oldSize = oldPoolId == null ? 0 : before.getSize();
+        long newSize = newPoolId == null ? 0 : after.getSize();
+
+        if (oldPoolId != null && oldPoolId.equals(newPoolId)) {
+            if (oldSize != newSize) {
+                _capacityDao.adjustUsedCapacity(oldPoolId, Capacity.CAPACITY_TYPE_STORAGE_ALLOCATED, newSize - oldSize);
+            }
+            return;
+        }
+        if (oldSize != 0) {
+            _capacityDao.adjustUsedCapacity(oldPoolId, Capacity.CAPACITY_TYPE_STORAGE_ALLOCATED, -oldSize);
+        }
+        if (newSize != 0) {
+            _capacityDao.adjustUsedCapacity(newPoolId, Capacity.CAPACITY_TYPE_STORAGE_ALLOCATED, newSize);
+        }
+    }
     
     @Override
     @DB
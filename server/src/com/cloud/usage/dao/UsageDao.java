@@ -41,4 +41,27 @@ public interface UsageDao extends GenericDao<UsageVO, Long> {
     Long getLastAccountId() throws UsageServerException;
     Long getLastUserStatsId() throws UsageServerException;
     List<Long> listPublicTemplatesByAccount(long accountId);
+
+    /**
+     * Inserts the usage records with one batched statement.  Runs in the current transaction.
+     */
+    void saveUsageRecords(List<UsageVO> usageRecords) throws UsageServerException;
+
+    /**
+     * Records that all usage for the account up to endMillis has been written.
+     * @param jobEndMillis end of the whole range the job is parsing, used to resume an unfinished job over the same range.
+     */
+    void saveParseCheckpoint(long accountId, long endMillis, long jobEndMillis);
+
+    /**
+     * @return ids of the accounts whose usage for the aggregation range ending at endMillis has already been written.
+     */
+    List<Long> listParsedAccounts(long endMillis);
+
+    /**
+     * @return end of the range of a job that stopped before parsing all accounts, null if there's none.
+     */
+    Long getUnfinishedParseEndMillis();
+
+    void deleteParseCheckpoints(long endMillis);
 }
@@ -21,6 +21,7 @@ package com.cloud.usage.dao;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Date;
@@ -40,6 +41,7 @@ import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Local(value={UsageDao.class})
 public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements UsageDao {
@@ -55,6 +57,11 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
     private static final String GET_LAST_ACCOUNT = "SELECT id FROM cloud_usage.account ORDER BY id DESC LIMIT 1";
     private static final String GET_LAST_USER_STATS = "SELECT id FROM cloud_usage.user_statistics ORDER BY id DESC LIMIT 1";
     private static final String GET_PUBLIC_TEMPLATES_BY_ACCOUNTID = "SELECT id FROM cloud.vm_template WHERE account_id = ? AND public = '1' AND removed IS NULL";
+    private static final String INSERT_USAGE_RECORD = "INSERT INTO cloud_usage.cloud_usage (zone_id, account_id, domain_id, description, usage_display, usage_type, raw_usage, vm_instance_id, vm_name, offering_id, template_id, usage_id, type, size, network_id, start_date, end_date) VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+    private static final String INSERT_PARSE_CHECKPOINT = "INSERT IGNORE INTO cloud_usage.usage_parse_checkpoint (end_millis, account_id, job_end_millis) VALUES (?,?,?)";
+    private static final String LIST_PARSED_ACCOUNTS = "SELECT account_id FROM cloud_usage.usage_parse_checkpoint WHERE end_millis = ?";
+    private static final String GET_UNFINISHED_PARSE_END = "SELECT MAX(job_end_millis) FROM cloud_usage.usage_parse_checkpoint";
+    private static final String DELETE_PARSE_CHECKPOINTS = "DELETE FROM cloud_usage.usage_parse_checkpoint WHERE end_millis <= ?";
 
     protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
@@ -265,4 +272,106 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
         }
         return templateList;
     }
+
+    @Override
+    public void saveUsageRecords(List<UsageVO> usageRecords) throws UsageServerException {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            txn.start();
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(INSERT_USAGE_RECORD);
+            for (UsageVO usageRecord : usageRecords) {
+                setLong(pstmt, 1, usageRecord.getZoneId());
+                setLong(pstmt, 2, usageRecord.getAccountId());
+                setLong(pstmt, 3, usageRecord.getDomainId());
+                pstmt.setString(4, usageRecord.getDescription());
+                pstmt.setString(5, usageRecord.getUsageDisplay());
+                pstmt.setInt(6, usageRecord.getUsageType());
+                pstmt.setDouble(7, usageRecord.getRawUsage());
+                setLong(pstmt, 8, usageRecord.getVmInstanceId());
+                pstmt.setString(9, usageRecord.getVmName());
+                setLong(pstmt, 10, usageRecord.getOfferingId());
+                setLong(pstmt, 11, usageRecord.getTemplateId());
+                setLong(pstmt, 12, usageRecord.getUsageId());
+                pstmt.setString(13, usageRecord.getType());
+                setLong(pstmt, 14, usageRecord.getSize());
+                setLong(pstmt, 15, usageRecord.getNetworkId());
+                pstmt.setString(16, DateUtil.getDateDisplayString(s_gmtTimeZone, usageRecord.getStartDate()));
+                pstmt.setString(17, DateUtil.getDateDisplayString(s_gmtTimeZone, usageRecord.getEndDate()));
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            txn.commit();
+        } catch (Exception ex) {
+            txn.rollback();
+            s_logger.error("error saving usage records to cloud_usage db", ex);
+            throw new UsageServerException(ex.getMessage());
+        }
+    }
+
+    private static void setLong(PreparedStatement pstmt, int index, Long value) throws SQLException {
+        if (value == null) {
+            pstmt.setNull(index, Types.BIGINT);
+        } else {
+            pstmt.setLong(index, value.longValue());
+        }
+    }
+
+    @Override
+    public void saveParseCheckpoint(long accountId, long endMillis, long jobEndMillis) {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(INSERT_PARSE_CHECKPOINT);
+            pstmt.setLong(1, endMillis);
+            pstmt.setLong(2, accountId);
+            pstmt.setLong(3, jobEndMillis);
+            pstmt.executeUpdate();
+        } catch (SQLException ex) {
+            throw new CloudRuntimeException("Unable to save the usage parse checkpoint for account " + accountId, ex);
+        }
+    }
+
+    @Override
+    public List<Long> listParsedAccounts(long endMillis) {
+        Transaction txn = Transaction.currentTxn();
+        List<Long> accountIds = new ArrayList<Long>();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(LIST_PARSED_ACCOUNTS);
+            pstmt.setLong(1, endMillis);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                accountIds.add(rs.getLong(1));
+            }
+        } catch (SQLException ex) {
+            throw new CloudRuntimeException("Unable to list the usage parse checkpoints", ex);
+        }
+        return accountIds;
+    }
+
+    @Override
+    public Long getUnfinishedParseEndMillis() {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(GET_UNFINISHED_PARSE_END);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                long endMillis = rs.getLong(1);
+                return rs.wasNull() ? null : endMillis;
+            }
+        } catch (SQLException ex) {
+            throw new CloudRuntimeException("Unable to get the usage parse checkpoints", ex);
+        }
+        return null;
+    }
+
+    @Override
+    public void deleteParseCheckpoints(long endMillis) {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(DELETE_PARSE_CHECKPOINTS);
+            pstmt.setLong(1, endMillis);
+            pstmt.executeUpdate();
+        } catch (SQLException ex) {
+            throw new CloudRuntimeException("Unable to delete the usage parse checkpoints", ex);
+        }
+    }
 }
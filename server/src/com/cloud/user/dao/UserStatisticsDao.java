@@ -32,4 +32,20 @@ public interface UserStatisticsDao extends GenericDao<UserStatisticsVO, Long> {
     List<UserStatisticsVO> listBy(long accountId);
 
     List<UserStatisticsVO> listActiveAndRecentlyDeleted(Date minRemovedDate, int startIndex, int limit);
+
+    /**
+     * @return statistics of the given devices that aren't kept per public ip, i.e. what each router counts for its network.
+     */
+    List<UserStatisticsVO> listByDevices(List<Long> deviceIds, String deviceType);
+
+    /**
+     * Writes the byte counters the devices reported in one batch.  A row is only written if its current counters are
+     * still the ones it was read with, so a row somebody else updated in the meantime isn't counted twice.
+     *
+     * @param stats rows as they were read.
+     * @param bytesReceived bytes received the device of each row reported, by position in stats.
+     * @param bytesSent bytes sent the device of each row reported, by position in stats.
+     * @return ids of the rows that had changed and were left alone.
+     */
+    List<Long> updateCounters(List<UserStatisticsVO> stats, long[] bytesReceived, long[] bytesSent);
 }
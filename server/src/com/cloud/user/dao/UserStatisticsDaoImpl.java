@@ -20,6 +20,7 @@ package com.cloud.user.dao;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -31,10 +32,12 @@ import org.apache.log4j.Logger;
 
 import com.cloud.user.UserStatisticsVO;
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Local(value={UserStatisticsDao.class})
 public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long> implements UserStatisticsDao {
@@ -43,8 +46,12 @@ public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long
                                                                      "FROM user_statistics us, account a " +
                                                                      "WHERE us.account_id = a.id AND (a.removed IS NULL OR a.removed >= ?) " +
                                                                      "ORDER BY us.id";
+    // a counter that went down was reset on the device, so what it had counted so far is added to the net bytes
+    private static final String UPDATE_COUNTERS = "UPDATE user_statistics SET net_bytes_received = net_bytes_received + ?, net_bytes_sent = net_bytes_sent + ?, " +
+                                                  "current_bytes_received = ?, current_bytes_sent = ? WHERE id = ? AND current_bytes_received = ? AND current_bytes_sent = ?";
     private final SearchBuilder<UserStatisticsVO> AllFieldsSearch;
     private final SearchBuilder<UserStatisticsVO> AccountSearch;
+    private final SearchBuilder<UserStatisticsVO> DevicesSearch;
     
     public UserStatisticsDaoImpl() {
     	AccountSearch = createSearchBuilder();
@@ -59,6 +66,12 @@ public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long
         AllFieldsSearch.and("device", AllFieldsSearch.entity().getDeviceId(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("deviceType", AllFieldsSearch.entity().getDeviceType(), SearchCriteria.Op.EQ);        
         AllFieldsSearch.done();
+
+        DevicesSearch = createSearchBuilder();
+        DevicesSearch.and("devices", DevicesSearch.entity().getDeviceId(), SearchCriteria.Op.IN);
+        DevicesSearch.and("deviceType", DevicesSearch.entity().getDeviceType(), SearchCriteria.Op.EQ);
+        DevicesSearch.and("ip", DevicesSearch.entity().getPublicIpAddress(), SearchCriteria.Op.NULL);
+        DevicesSearch.done();
     }
     
     @Override
@@ -112,4 +125,54 @@ public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long
         }
         return userStats;
     }
+
+    @Override
+    public List<UserStatisticsVO> listByDevices(List<Long> deviceIds, String deviceType) {
+        if (deviceIds.isEmpty()) {
+            return new ArrayList<UserStatisticsVO>();
+        }
+        SearchCriteria<UserStatisticsVO> sc = DevicesSearch.create();
+        sc.setParameters("devices", deviceIds.toArray());
+        sc.setParameters("deviceType", deviceType);
+        return listBy(sc);
+    }
+
+    @Override @DB
+    public List<Long> updateCounters(List<UserStatisticsVO> stats, long[] bytesReceived, long[] bytesSent) {
+        List<Long> stale = new ArrayList<Long>();
+        if (stats.isEmpty()) {
+            return stale;
+        }
+
+        Transaction txn = Transaction.currentTxn();
+        try {
+            txn.start();
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(UPDATE_COUNTERS);
+            List<Long> ids = new ArrayList<Long>(stats.size());
+            for (int i = 0; i < stats.size(); i++) {
+                UserStatisticsVO stat = stats.get(i);
+                pstmt.setLong(1, stat.getCurrentBytesReceived() > bytesReceived[i] ? stat.getCurrentBytesReceived() : 0);
+                pstmt.setLong(2, stat.getCurrentBytesSent() > bytesSent[i] ? stat.getCurrentBytesSent() : 0);
+                pstmt.setLong(3, bytesReceived[i]);
+                pstmt.setLong(4, bytesSent[i]);
+                pstmt.setLong(5, stat.getId());
+                pstmt.setLong(6, stat.getCurrentBytesReceived());
+                pstmt.setLong(7, stat.getCurrentBytesSent());
+                pstmt.addBatch();
+                ids.add(stat.getId());
+            }
+            int[] counts = pstmt.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    stale.add(ids.get(i));
+                }
+            }
+            evictCachedEntities(txn, ids);
+            txn.commit();
+        } catch (SQLException e) {
+            txn.rollback();
+            throw new CloudRuntimeException("Unable to update the counters of " + stats.size() + " user statistics", e);
+        }
+        return stale;
+    }
 }
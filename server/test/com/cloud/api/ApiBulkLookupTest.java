@@ -0,0 +1,143 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.api;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class ApiBulkLookupTest extends TestCase {
+    static class Zone {
+        long id;
+
+        Zone(long id) {
+            this.id = id;
+        }
+    }
+
+    static class Account {
+        long id;
+        long domainId;
+
+        Account(long id) {
+            this.id = id;
+            this.domainId = id % 3;
+        }
+    }
+
+    static class Domain {
+        long id;
+
+        Domain(long id) {
+            this.id = id;
+        }
+    }
+
+    static class CountingLoader<T> implements ApiBulkLookup.Loader<T> {
+        int queries;
+        int rows;
+        Class<T> type;
+
+        CountingLoader(Class<T> type) {
+            this.type = type;
+        }
+
+        @Override
+        public Map<Long, T> load(Collection<Long> ids) {
+            queries++;
+            Map<Long, T> found = new HashMap<Long, T>();
+            for (Long id : ids) {
+                if (id == 404) {
+                    continue;
+                }
+                rows++;
+                try {
+                    found.put(id, type.getDeclaredConstructor(long.class).newInstance(id));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return found;
+        }
+    }
+
+    CountingLoader<Zone> _zones;
+    CountingLoader<Account> _accounts;
+    CountingLoader<Domain> _domains;
+
+    @Override
+    protected void setUp() {
+        _zones = new CountingLoader<Zone>(Zone.class);
+        _accounts = new CountingLoader<Account>(Account.class);
+        _domains = new CountingLoader<Domain>(Domain.class);
+        ApiBulkLookup.register(Zone.class, _zones);
+        ApiBulkLookup.register(Account.class, _accounts);
+        ApiBulkLookup.register(Domain.class, _domains);
+    }
+
+    public void testQueriesPerPage() {
+        ApiBulkLookup lookup = ApiBulkLookup.open();
+        try {
+            // a page of 500 objects in 4 zones owned by 50 accounts
+            for (long i = 0; i < 500; i++) {
+                lookup.want(Zone.class, i % 4);
+                lookup.want(Account.class, i % 50);
+                lookup.want(String.class, i);
+            }
+            lookup.want(Zone.class, 404L);
+            lookup.want(Zone.class, null);
+            lookup.resolve();
+            for (Account account : lookup.getAll(Account.class)) {
+                lookup.want(Domain.class, account.domainId);
+            }
+            lookup.resolve();
+
+            assertEquals("one query per type, however big the page", 3, lookup.getQueries());
+            assertEquals(1, _zones.queries);
+            assertEquals(4, _zones.rows);
+            assertEquals(50, _accounts.rows);
+            assertEquals(3, _domains.rows);
+
+            for (long i = 0; i < 500; i++) {
+                assertTrue(ApiBulkLookup.isResolved(Zone.class, i % 4));
+                assertEquals(i % 4, ApiBulkLookup.find(Zone.class, i % 4).id);
+                assertEquals(i % 50, ApiBulkLookup.find(Account.class, i % 50).id);
+            }
+            assertTrue("a miss is resolved too", ApiBulkLookup.isResolved(Zone.class, 404L));
+            assertNull(ApiBulkLookup.find(Zone.class, 404L));
+            assertFalse("types without a loader aren't collected", ApiBulkLookup.isResolved(String.class, 1L));
+
+            ApiBulkLookup nested = ApiBulkLookup.open();
+            assertSame(lookup, nested);
+            nested.want(Zone.class, 1L);
+            nested.want(Zone.class, 7L);
+            nested.resolve();
+            nested.close();
+            assertEquals("only the new zone is loaded", 5, _zones.rows);
+            assertSame(lookup, ApiBulkLookup.current());
+        } finally {
+            lookup.close();
+        }
+
+        assertNull(ApiBulkLookup.current());
+        assertFalse(ApiBulkLookup.isResolved(Zone.class, 1L));
+        assertNull(ApiBulkLookup.find(Zone.class, 1L));
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.api.response;
+
+import java.io.StringWriter;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.api.ApiResponseGsonHelper;
+import com.cloud.api.ResponseObject;
+import com.google.gson.Gson;
+
+public class ApiResponseSerializerTest extends TestCase {
+
+    protected static UserVmResponse createVm(int i) {
+        UserVmResponse vm = new UserVmResponse();
+        vm.setObjectName("virtualmachine");
+        vm.setId((long) i);
+        vm.setName("i-2-" + i + "-VM");
+        vm.setDisplayName("vm \"" + i + "\" <web> & db's\ttab\\");
+        vm.setAccountName("admin");
+        vm.setDomainId(1L);
+        vm.setDomainName("ROOT");
+        vm.setCreated(new Date(1300000000000L + i * 1000L));
+        vm.setState("Running");
+        vm.setHaEnable(i % 2 == 0);
+        vm.setZoneId(1L);
+        vm.setZoneName("zone1");
+        vm.setHostId(3L);
+        vm.setHostName("host-" + (i % 10));
+        vm.setTemplateId(2L);
+        vm.setTemplateName("CentOS 5.3(64-bit) no GUI");
+        vm.setTemplateDisplayText("CentOS 5.3(64-bit) no GUI\nsecond line");
+        vm.setPasswordEnabled(false);
+        vm.setServiceOfferingId(1L);
+        vm.setServiceOfferingName("Small Instance");
+        vm.setCpuNumber(1);
+        vm.setCpuSpeed(500);
+        vm.setMemory(512);
+        vm.setCpuUsed("1.5%");
+        vm.setNetworkKbsRead(1024L * i);
+        vm.setNetworkKbsWrite(2048L * i);
+        vm.setGuestOsId(12L);
+        vm.setRootDeviceId(0L);
+        vm.setRootDeviceType("NetworkFilesystem");
+        vm.setHypervisor("XenServer");
+        if (i % 3 == 0) {
+            vm.setJobId(100L + i);
+        }
+
+        List<NicResponse> nics = new ArrayList<NicResponse>();
+        NicResponse nic = new NicResponse();
+        nic.setId(10L + i);
+        nic.setNetworkid(204L);
+        nic.setNetmask("255.255.255.0");
+        nic.setGateway("10.1.1.1");
+        nic.setIpaddress("10.1.1." + (i % 250));
+        nic.setTrafficType("Guest");
+        nic.setType("Virtual");
+        nic.setIsDefault(true);
+        nic.setMacAddress("02:00:0a:01:01:" + Integer.toHexString(i % 250));
+        nics.add(nic);
+        vm.setNics(nics);
+
+        List<SecurityGroupResponse> groups = new ArrayList<SecurityGroupResponse>();
+        SecurityGroupResponse group = new SecurityGroupResponse();
+        group.setId(1L);
+        group.setName("default");
+        group.setDescription("Default Security Group");
+        groups.add(group);
+        vm.setSecurityGroupList(groups);
+        return vm;
+    }
+
+    protected static ListResponse<UserVmResponse> createVmList(int count) {
+        List<UserVmResponse> vms = new ArrayList<UserVmResponse>();
+        for (int i = 0; i < count; i++) {
+            vms.add(createVm(i));
+        }
+        ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
+        response.setResponses(vms);
+        response.setResponseName("listvirtualmachinesresponse");
+        return response;
+    }
+
+    /**
+     * What the json serialization used to be: a gson per call, one string per object.
+     */
+    protected static String toGsonString(ListResponse<? extends ResponseObject> result) {
+        Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{ \"" + result.getResponseName() + "\" : ");
+        List<? extends ResponseObject> responses = result.getResponses();
+        sb.append("{ \"count\":" + result.getCount() + " ,\"" + responses.get(0).getObjectName() + "\" : [  " + ApiResponseSerializer.unescape(gson.toJson(responses.get(0))));
+        for (int i = 1; i < result.getCount(); i++) {
+            sb.append(", " + ApiResponseSerializer.unescape(gson.toJson(responses.get(i))));
+        }
+        sb.append(" ] }");
+        sb.append(" }");
+        return sb.toString();
+    }
+
+    public void testJsonSameAsGson() throws Exception {
+        ListResponse<UserVmResponse> vms = createVmList(10);
+        assertEquals(toGsonString(vms), ApiResponseSerializer.toSerializedString(vms, "json"));
+
+        AsyncJobResponse job = new AsyncJobResponse();
+        job.setResponseName("queryasyncjobresultresponse");
+        job.setId(7L);
+        job.setJobStatus(1);
+        job.setCreated(new Date(1300000000000L));
+        job.setJobResult(createVm(3));
+        String expected = ApiResponseSerializer.unescape(ApiResponseGsonHelper.getBuilder().create().toJson(job));
+        assertEquals("{ \"queryasyncjobresultresponse\" : " + expected + " }", ApiResponseSerializer.toSerializedString(job, "json"));
+
+        SuccessResponse success = new SuccessResponse("deletevolumeresponse");
+        job.setJobResult(success);
+        expected = ApiResponseSerializer.unescape(ApiResponseGsonHelper.getBuilder().create().toJson(job));
+        assertEquals("{ \"queryasyncjobresultresponse\" : " + expected + " }", ApiResponseSerializer.toSerializedString(job, "json"));
+
+        assertEquals("{ \"deletevolumeresponse\" : { \"success\" : \"true\"}  }", ApiResponseSerializer.toSerializedString(success, "json"));
+    }
+
+    public void testXml() throws Exception {
+        UserVmResponse vm = createVm(1);
+        vm.setNics(null);
+        vm.setSecurityGroupList(null);
+        vm.setCreated(null);
+        ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
+        List<UserVmResponse> vms = new ArrayList<UserVmResponse>();
+        vms.add(vm);
+        response.setResponses(vms);
+        response.setResponseName("listvirtualmachinesresponse");
+
+        StringWriter out = new StringWriter();
+        ApiResponseSerializer.serializeXML(response, "3.0.0", out);
+        String xml = out.toString();
+        assertTrue(xml.startsWith("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><listvirtualmachinesresponse cloud-stack-version=\"3.0.0\"><count>1</count><virtualmachine><id>1</id>"));
+        assertTrue(xml.contains("<displayname>vm &quot;1&quot; &lt;web&gt; &amp; db&apos;s\ttab\\</displayname>"));
+        assertTrue(xml.endsWith("</virtualmachine></listvirtualmachinesresponse>"));
+    }
+
+    public void testThroughput() throws Exception {
+        ListResponse<UserVmResponse> vms = createVmList(2000);
+        int rounds = 20;
+        for (int i = 0; i < 5; i++) {
+            toGsonString(vms);
+            ApiResponseSerializer.serializeJSON(vms, new StringWriter());
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            toGsonString(vms);
+        }
+        long gson = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            ApiResponseSerializer.serializeJSON(vms, new StringWriter());
+        }
+        long compiled = System.nanoTime() - start;
+
+        System.out.println("2000 vms: gson " + gson / rounds / 1000000 + "ms, compiled " + compiled / rounds / 1000000 + "ms per response");
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class AsyncJobCompletionMonitorTest extends TestCase {
+    public void testWakesWaiterOnAnyJob() throws Exception {
+        final AsyncJobCompletionMonitor monitor = new AsyncJobCompletionMonitor();
+        final AsyncJobCompletionMonitor.Waiter waiter = monitor.register(Arrays.asList(new Long[] { 1L, 2L }));
+        AsyncJobCompletionMonitor.Waiter other = monitor.register(Arrays.asList(new Long[] { 2L }));
+        assertEquals(2, monitor.getWaitingJobCount());
+
+        final List<Long> woken = new ArrayList<Long>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    if (waiter.await(10000)) {
+                        woken.add(System.currentTimeMillis() - start);
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        thread.start();
+
+        Thread.sleep(100);
+        monitor.completed(3L);
+        monitor.completed(1L);
+        thread.join(5000);
+
+        assertEquals(1, woken.size());
+        assertTrue("woken up by the completion, not the timeout", woken.get(0) < 5000);
+        assertFalse(other.isSignalled());
+        assertTrue("a signalled waiter stays signalled", waiter.await(0));
+
+        monitor.unregister(waiter);
+        assertEquals(1, monitor.getWaitingJobCount());
+        monitor.completed(2L);
+        assertTrue(other.isSignalled());
+        monitor.unregister(other);
+        assertEquals(0, monitor.getWaitingJobCount());
+        assertEquals(3, monitor.getNotifications());
+        assertEquals(2, monitor.getWakeups());
+    }
+
+    public void testTimesOut() throws Exception {
+        AsyncJobCompletionMonitor monitor = new AsyncJobCompletionMonitor();
+        AsyncJobCompletionMonitor.Waiter waiter = monitor.register(Arrays.asList(new Long[] { 5L }));
+        long start = System.currentTimeMillis();
+        assertFalse(waiter.await(200));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        monitor.unregister(waiter);
+    }
+}
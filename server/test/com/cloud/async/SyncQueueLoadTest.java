@@ -0,0 +1,316 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.async;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.ConfigurationException;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.async.dao.SyncQueueDao;
+import com.cloud.async.dao.SyncQueueItemDao;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.db.DB;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.testcase.ComponentSetup;
+import com.cloud.utils.testcase.ComponentTestCase;
+
+/**
+ * Storm of jobs on a handful of objects, the way VM operations pile up on the
+ * same router or host.  Jobs are queued and dispatched the way
+ * AsyncJobManagerImpl does it and the jobs/sec are printed for the current
+ * sync queue and for the row locking one it replaced.
+ */
+@ComponentSetup(managerName="management-server", setupXml="sync-queue-component.xml")
+public class SyncQueueLoadTest extends ComponentTestCase {
+    public static final Logger s_logger = Logger.getLogger(SyncQueueLoadTest.class.getName());
+
+    private static final int JOBS = 2000;
+    private static final int OBJECTS = 5;
+    private static final int SUBMITTERS = 20;
+    private static final int EXECUTORS = 20;
+    private static final long MSID = 1L;
+
+    public void testJobsPerSecond() throws Exception {
+        SyncQueueManager mgr = ComponentLocator.getCurrentLocator().getManager(SyncQueueManager.class);
+        LegacySyncQueueManager legacy = ComponentLocator.inject(LegacySyncQueueManager.class);
+
+        double legacyRate = run(legacy, "load-legacy-" + System.currentTimeMillis());
+        double rate = run(mgr, "load-" + System.currentTimeMillis());
+
+        String summary = "Sync queue with " + JOBS + " jobs on " + OBJECTS + " objects: " + (long)rate + " jobs/sec, row locking sync queue: " + (long)legacyRate + " jobs/sec";
+        s_logger.info(summary);
+        System.out.println(summary);
+    }
+
+    protected double run(final SyncQueueManager mgr, final String objType) throws Exception {
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final Map<Long, Long> running = new ConcurrentHashMap<Long, Long>();
+        final ExecutorService executor = Executors.newFixedThreadPool(EXECUTORS);
+
+        class Dispatcher {
+            void checkQueue(long queueId) {
+                SyncQueueItemVO item;
+                while ((item = mgr.dequeueFromOne(queueId, MSID)) != null) {
+                    execute(item);
+                }
+            }
+
+            void execute(final SyncQueueItemVO item) {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (running.put(item.getQueueId(), item.getId()) != null) {
+                            overlaps.incrementAndGet();
+                        }
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                        }
+                        running.remove(item.getQueueId());
+                        mgr.purgeItem(item.getId());
+                        completed.incrementAndGet();
+                        checkQueue(item.getQueueId());
+                    }
+                });
+            }
+        }
+        final Dispatcher d = new Dispatcher();
+
+        long start = System.currentTimeMillis();
+        List<Thread> submitters = new ArrayList<Thread>();
+        for (int t = 0; t < SUBMITTERS; t++) {
+            final int base = t * (JOBS / SUBMITTERS);
+            Thread submitter = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < JOBS / SUBMITTERS; i++) {
+                        SyncQueueVO queue = mgr.queue(objType, (base + i) % OBJECTS, "AsyncJob", base + i);
+                        if (queue != null) {
+                            d.checkQueue(queue.getId());
+                        }
+                    }
+                }
+            };
+            submitters.add(submitter);
+            submitter.start();
+        }
+
+        // the heartbeat picks up whatever slipped through
+        while (completed.get() < JOBS && System.currentTimeMillis() - start < 600000) {
+            List<SyncQueueItemVO> l = mgr.dequeueFromAny(MSID, 50);
+            if (l != null) {
+                for (SyncQueueItemVO item : l) {
+                    d.execute(item);
+                }
+            }
+            Thread.sleep(100);
+        }
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+        executor.shutdown();
+        executor.awaitTermination(60, TimeUnit.SECONDS);
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        assertEquals(objType + " didn't finish", JOBS, completed.get());
+        assertEquals("jobs on the same object ran at the same time", 0, overlaps.get());
+        return JOBS * 1000.0 / elapsed;
+    }
+
+    /**
+     * The sync queue as it was: every queue call makes sure the queue exists,
+     * every dequeue locks the queue and item rows, and a failed queue call is
+     * retried after sleeping.
+     */
+    public static class LegacySyncQueueManager implements SyncQueueManager {
+        private final SyncQueueDao _syncQueueDao;
+        private final SyncQueueItemDao _syncQueueItemDao;
+        private final Random _random = new Random();
+
+        public LegacySyncQueueManager() {
+            ComponentLocator locator = ComponentLocator.getCurrentLocator();
+            _syncQueueDao = locator.getDao(SyncQueueDao.class);
+            _syncQueueItemDao = locator.getDao(SyncQueueItemDao.class);
+        }
+
+        @Override
+        public SyncQueueVO queue(String syncObjType, long syncObjId, String itemType, long itemId) {
+            for (int i = 0; i < 5; i++) {
+                SyncQueueVO queue = queueOnce(syncObjType, syncObjId, itemType, itemId);
+                if (queue != null) {
+                    return queue;
+                }
+                try {
+                    Thread.sleep(1000 + _random.nextInt(5000));
+                } catch (InterruptedException e) {
+                }
+            }
+            return null;
+        }
+
+        @DB
+        public SyncQueueVO queueOnce(String syncObjType, long syncObjId, String itemType, long itemId) {
+            Transaction txn = Transaction.currentTxn();
+            try {
+                txn.start();
+                _syncQueueDao.ensureQueue(syncObjType, syncObjId);
+                SyncQueueVO queueVO = _syncQueueDao.find(syncObjType, syncObjId);
+
+                SyncQueueItemVO item = new SyncQueueItemVO();
+                item.setQueueId(queueVO.getId());
+                item.setContentType(itemType);
+                item.setContentId(itemId);
+                item.setCreated(DateUtil.currentGMTTime());
+                _syncQueueItemDao.persist(item);
+                txn.commit();
+                return queueVO;
+            } catch (Exception e) {
+                txn.rollback();
+            }
+            return null;
+        }
+
+        @Override @DB
+        public SyncQueueItemVO dequeueFromOne(long queueId, Long msid) {
+            Transaction txt = Transaction.currentTxn();
+            try {
+                txt.start();
+                SyncQueueVO queueVO = _syncQueueDao.lockRow(queueId, true);
+                if (queueVO != null && queueVO.getLastProcessTime() == null) {
+                    SyncQueueItemVO itemVO = _syncQueueItemDao.getNextQueueItem(queueVO.getId());
+                    if (itemVO != null) {
+                        process(queueVO, itemVO, msid);
+                        txt.commit();
+                        return itemVO;
+                    }
+                }
+                txt.commit();
+            } catch (Exception e) {
+                txt.rollback();
+            }
+            return null;
+        }
+
+        @Override @DB
+        public List<SyncQueueItemVO> dequeueFromAny(Long msid, int maxItems) {
+            List<SyncQueueItemVO> resultList = new ArrayList<SyncQueueItemVO>();
+            Transaction txt = Transaction.currentTxn();
+            try {
+                txt.start();
+                for (SyncQueueItemVO item : _syncQueueItemDao.getNextQueueItems(maxItems)) {
+                    SyncQueueVO queueVO = _syncQueueDao.lockRow(item.getQueueId(), true);
+                    SyncQueueItemVO itemVO = _syncQueueItemDao.lockRow(item.getId(), true);
+                    if (queueVO.getLastProcessTime() == null && itemVO.getLastProcessNumber() == null) {
+                        process(queueVO, itemVO, msid);
+                        resultList.add(itemVO);
+                    }
+                }
+                txt.commit();
+            } catch (Exception e) {
+                txt.rollback();
+            }
+            return resultList;
+        }
+
+        private void process(SyncQueueVO queueVO, SyncQueueItemVO itemVO, Long msid) {
+            Long processNumber = queueVO.getLastProcessNumber() == null ? 1 : queueVO.getLastProcessNumber() + 1;
+            Date dt = DateUtil.currentGMTTime();
+            queueVO.setLastProcessMsid(msid);
+            queueVO.setLastProcessNumber(processNumber);
+            queueVO.setLastProcessTime(dt);
+            queueVO.setLastUpdated(dt);
+            _syncQueueDao.update(queueVO.getId(), queueVO);
+
+            itemVO.setLastProcessMsid(msid);
+            itemVO.setLastProcessNumber(processNumber);
+            _syncQueueItemDao.update(itemVO.getId(), itemVO);
+        }
+
+        @Override @DB
+        public void purgeItem(long queueItemId) {
+            Transaction txt = Transaction.currentTxn();
+            try {
+                txt.start();
+                SyncQueueItemVO itemVO = _syncQueueItemDao.findById(queueItemId);
+                if (itemVO != null) {
+                    SyncQueueVO queueVO = _syncQueueDao.lockRow(itemVO.getQueueId(), true);
+                    _syncQueueItemDao.expunge(itemVO.getId());
+                    queueVO.setLastProcessTime(null);
+                    queueVO.setLastUpdated(DateUtil.currentGMTTime());
+                    _syncQueueDao.update(queueVO.getId(), queueVO);
+                }
+                txt.commit();
+            } catch (Exception e) {
+                txt.rollback();
+            }
+        }
+
+        @Override
+        public void returnItem(long queueItemId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<SyncQueueItemVO> getActiveQueueItems(Long msid, boolean exclusive) {
+            return _syncQueueItemDao.getActiveQueueItems(msid, exclusive);
+        }
+
+        @Override
+        public List<SyncQueueItemVO> getBlockedQueueItems(long thresholdMs, boolean exclusive) {
+            return _syncQueueItemDao.getBlockedQueueItems(thresholdMs, exclusive);
+        }
+
+        @Override
+        public void resetQueueProcess(long msid) {
+            _syncQueueDao.resetQueueProcessing(msid);
+        }
+
+        @Override
+        public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+            return true;
+        }
+
+        @Override
+        public boolean start() {
+            return true;
+        }
+
+        @Override
+        public boolean stop() {
+            return true;
+        }
+
+        @Override
+        public String getName() {
+            return "LegacySyncQueueManager";
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.capacity;
+
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class CapacityAuditTest extends TestCase {
+    public void testRecord() {
+        CapacityAudit audit = new CapacityAudit();
+        audit.record("cpu used", 1, 2000, 1000);
+        audit.record("cpu used", 2, 0, 500);
+        audit.record("storage allocated", 7, 10, 10);
+        audit.auditDone(25, 2, 1);
+
+        assertEquals(3, audit.getDiscrepancyCount());
+        assertEquals(1, audit.getAuditRuns());
+        assertEquals(25, audit.getLastAuditDuration());
+        assertEquals(2, audit.getHostsAudited());
+        assertEquals(1, audit.getPoolsAudited());
+        assertNotNull(audit.getLastAuditTime());
+
+        List<Map<String, String>> rows = audit.getDiscrepancies();
+        assertEquals(2, rows.size());
+        assertEquals("cpu used", rows.get(0).get("capacity"));
+        assertEquals("2", rows.get(0).get("count"));
+        assertEquals("1500", rows.get(0).get("totalDrift"));
+        assertEquals("2", rows.get(0).get("lastId"));
+        assertEquals("500", rows.get(0).get("lastActual"));
+
+        assertEquals("newest first", "7", audit.getRecentDiscrepancies().get(0).get("id"));
+
+        for (int i = 0; i < CapacityAudit.MAX_RECENT; i++) {
+            audit.record("memory reserved", i, 1, 0);
+        }
+        assertEquals(CapacityAudit.MAX_RECENT, audit.getRecentDiscrepancies().size());
+
+        audit.resetStatistics();
+        assertEquals(0, audit.getDiscrepancyCount());
+        assertEquals(0, audit.getRecentDiscrepancies().size());
+        assertNull(audit.getLastAuditTime());
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class CapacityIndexTest extends TestCase {
+    static final long GB = 1024L * 1024L * 1024L;
+
+    static CapacityVO cpu(long hostId, long zoneId, long podId, long clusterId, long used, long reserved, long total) {
+        CapacityVO capacity = new CapacityVO(hostId, zoneId, podId, clusterId, used, total, CapacityVO.CAPACITY_TYPE_CPU);
+        capacity.setReservedCapacity(reserved);
+        return capacity;
+    }
+
+    static CapacityVO memory(long hostId, long zoneId, long podId, long clusterId, long used, long reserved, long total) {
+        CapacityVO capacity = new CapacityVO(hostId, zoneId, podId, clusterId, used, total, CapacityVO.CAPACITY_TYPE_MEMORY);
+        capacity.setReservedCapacity(reserved);
+        return capacity;
+    }
+
+    /**
+     * zones x 5 pods x 20 clusters x 10 hosts, each host 8 x 2000Mhz and 32G.
+     */
+    static List<CapacityVO> topology(int zones) {
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        long hostId = 1;
+        for (long zone = 1; zone <= zones; zone++) {
+            for (long pod = 1; pod <= 5; pod++) {
+                for (long cluster = 1; cluster <= 20; cluster++) {
+                    for (int i = 0; i < 10; i++, hostId++) {
+                        long podId = zone * 100 + pod;
+                        long clusterId = podId * 100 + cluster;
+                        capacities.add(cpu(hostId, zone, podId, clusterId, 0, 0, 16000));
+                        capacities.add(memory(hostId, zone, podId, clusterId, 0, 0, 32 * GB));
+                    }
+                }
+            }
+        }
+        return capacities;
+    }
+
+    public void testListClusters() {
+        CapacityIndex index = new CapacityIndex();
+        assertFalse(index.isLoaded());
+
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        // cluster 10: lots of room.
+        capacities.add(cpu(1, 1, 1, 10, 1000, 0, 8000));
+        capacities.add(memory(1, 1, 1, 10, GB, 0, 8 * GB));
+        // cluster 20: one host with cpu, the other with ram, which is enough for the sql.
+        capacities.add(cpu(2, 1, 1, 20, 3000, 0, 4000));
+        capacities.add(memory(2, 1, 1, 20, 8 * GB, 0, 8 * GB));
+        capacities.add(cpu(3, 1, 1, 20, 4000, 0, 4000));
+        capacities.add(memory(3, 1, 1, 20, 0, 0, 8 * GB));
+        // cluster 30: full, but reserved capacity counts as free like in the sql.
+        capacities.add(cpu(4, 1, 2, 30, 4000, 2000, 4000));
+        capacities.add(memory(4, 1, 2, 30, 8 * GB, 2 * GB, 8 * GB));
+        // cluster 40 is in another zone.
+        capacities.add(cpu(5, 2, 3, 40, 0, 0, 4000));
+        capacities.add(memory(5, 2, 3, 40, 0, 0, 8 * GB));
+        index.load(capacities, index.beginLoad());
+        assertTrue(index.isLoaded());
+        assertEquals(5, index.getHostCount());
+
+        assertEquals(Arrays.asList(10L, 20L, 30L), index.listClustersByCapacity(1, 1000, GB, CapacityVO.CAPACITY_TYPE_CPU, true, 1.0f));
+        assertEquals(Arrays.asList(10L), index.listClustersByCapacity(1, 3000, GB, CapacityVO.CAPACITY_TYPE_CPU, true, 1.0f));
+        assertEquals(Arrays.asList(30L), index.listClustersByCapacity(2, 1000, GB, CapacityVO.CAPACITY_TYPE_CPU, false, 1.0f));
+        assertEquals("overprovisioning makes room", Arrays.asList(10L, 20L, 30L), index.listClustersByCapacity(1, 3000, GB, CapacityVO.CAPACITY_TYPE_MEMORY, true, 2.0f));
+        assertEquals(Arrays.asList(40L), index.listClustersByCapacity(2, 4000, 8 * GB, CapacityVO.CAPACITY_TYPE_CPU, true, 1.0f));
+
+        assertEquals(Arrays.asList(1L), index.listHostsWithEnoughCapacity(1000, GB, 10, 1.0f));
+        assertEquals(0, index.listHostsWithEnoughCapacity(1000, GB, 20, 1.0f).size());
+
+        CapacityVO capacity = index.getCapacity(4, CapacityVO.CAPACITY_TYPE_MEMORY);
+        assertEquals(2 * GB, capacity.getReservedCapacity());
+        capacity.setUsedCapacity(0);
+        assertEquals("callers get a copy", 8 * GB, index.getCapacity(4, CapacityVO.CAPACITY_TYPE_MEMORY).getUsedCapacity());
+        assertNull(index.getCapacity(99, CapacityVO.CAPACITY_TYPE_CPU));
+
+        index.remove(5);
+        assertEquals(0, index.listClustersByCapacity(2, 0, 0, CapacityVO.CAPACITY_TYPE_CPU, true, 1.0f).size());
+    }
+
+    public void testWriteThroughDuringLoad() {
+        CapacityIndex index = new CapacityIndex();
+        index.load(topology(1), index.beginLoad());
+        assertEquals(1000, index.getHostCount());
+
+        long stamp = index.beginLoad();
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>(topology(1).subList(0, 4));
+        // host 1 gets a vm while the rows are being read.
+        index.update(cpu(1, 1, 101, 10101, 2000, 0, 16000));
+        index.load(capacities, stamp);
+
+        assertEquals("the written through copy isn't replaced by the older one read from the db", 2000, index.getCapacity(1, CapacityVO.CAPACITY_TYPE_CPU).getUsedCapacity());
+        assertEquals("hosts no longer in the db are dropped", 2, index.getHostCount());
+
+        // hosts moving clusters.
+        index.update(cpu(2, 1, 102, 10201, 0, 0, 16000));
+        assertEquals(Arrays.asList(10101L), index.listClustersByCapacity(101, 1000, GB, CapacityVO.CAPACITY_TYPE_CPU, false, 1.0f));
+        index.update(memory(2, 1, 102, 10201, 0, 0, 32 * GB));
+        assertEquals(Arrays.asList(10201L), index.listClustersByCapacity(102, 1000, GB, CapacityVO.CAPACITY_TYPE_CPU, false, 1.0f));
+
+        index.clear();
+        assertFalse(index.isLoaded());
+    }
+
+    /**
+     * Plans 10k deploys against 2000 hosts the way FirstFitPlanner and FirstFitAllocator do
+     * it: pick the clusters in the zone, check hosts in the first one for room and then take
+     * the capacity like CapacityManagerImpl.allocateVmCapacity() does.
+     */
+    public void testPlanningThroughput() {
+        CapacityIndex index = new CapacityIndex();
+        index.load(topology(2), index.beginLoad());
+        assertEquals(2000, index.getHostCount());
+
+        Random random = new Random(1);
+        int deploys = 10000;
+        int placed = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < deploys; i++) {
+            long zoneId = 1 + random.nextInt(2);
+            int cpu = 500 * (1 + random.nextInt(4));
+            long ram = GB * (1 + random.nextInt(4));
+            List<Long> clusterIds = index.listClustersByCapacity(zoneId, cpu, ram, CapacityVO.CAPACITY_TYPE_CPU, true, 1.0f);
+            for (Long clusterId : clusterIds) {
+                Long hostId = null;
+                for (Long candidate : index.listHostsWithEnoughCapacity(cpu, ram, clusterId, 1.0f)) {
+                    hostId = candidate;
+                    break;
+                }
+                if (hostId != null) {
+                    CapacityVO capacityCpu = index.getCapacity(hostId, CapacityVO.CAPACITY_TYPE_CPU);
+                    CapacityVO capacityMem = index.getCapacity(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
+                    capacityCpu.setUsedCapacity(capacityCpu.getUsedCapacity() + cpu);
+                    capacityMem.setUsedCapacity(capacityMem.getUsedCapacity() + ram);
+                    index.update(capacityCpu);
+                    index.update(capacityMem);
+                    placed++;
+                    break;
+                }
+            }
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        System.out.println("Planned " + deploys + " deploys over 2000 hosts in " + elapsed + "ms, " + placed + " placed");
+
+        assertEquals("there's room for all of them", deploys, placed);
+        // least used cluster first spreads the vms around so every cluster still has room.
+        List<Long> clusterIds = index.listClustersByCapacity(1, 0, 0, CapacityVO.CAPACITY_TYPE_CPU, true, 1.0f);
+        assertEquals(100, clusterIds.size());
+    }
+}
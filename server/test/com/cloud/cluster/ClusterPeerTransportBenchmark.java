@@ -0,0 +1,105 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.cluster;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.CheckHealthCommand;
+import com.cloud.agent.api.Command;
+import com.cloud.utils.Profiler;
+
+/**
+ * Times commands forwarded from one management server to another in the
+ * same process, one post per call with a new HttpClient each time against
+ * the pooled, batching ClusterPeerTransport.  Run it with
+ * -Dbenchmark.iterations to get numbers worth comparing.
+ */
+public class ClusterPeerTransportBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(ClusterPeerTransportBenchmark.class);
+
+    private static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 200);
+    private static final int THREADS = 16;
+
+    public void testForwardedCommands() throws Exception {
+        AtomicInteger executed = new AtomicInteger();
+        int port = ClusterPeerTransportTest.startPeer(new ClusterServiceServletHttpHandler(ClusterPeerTransportTest.createManager(executed)));
+        String url = ClusterPeerTransportTest.getUrl(port);
+        String gsonPackage = ClusterPeerTransportTest.s_gson.toJson(new Command[] { new CheckHealthCommand() }, Command[].class);
+
+        long legacy = measure(new ClusterServiceServletImpl(url, 30), gsonPackage);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ClusterPeerTransport transport = new ClusterPeerTransport(url, 30, ClusterPeerTransportTest.s_gson, executor, ClusterPeerTransport.DEFAULT_CONNECTIONS,
+                ClusterPeerTransport.DEFAULT_BATCH_SIZE);
+        try {
+            long pooled = measure(new ClusterServiceServletImpl(transport, 30), gsonPackage);
+            s_logger.info("Forwarded " + THREADS * ITERATIONS + " async and " + THREADS * ITERATIONS + " sync commands from " + THREADS + " threads: "
+                    + legacy + " ms posting each on its own connection, " + pooled + " ms over the peer transport (" + transport.getPosts() + " posts for "
+                    + transport.getCalls() + " calls, " + transport.getBatchedCalls() + " of them batched)");
+            assertEquals(0, transport.getFailures());
+        } finally {
+            transport.close();
+            executor.shutdown();
+        }
+        assertEquals(4 * THREADS * (ITERATIONS + ITERATIONS / 10 + 1), executed.get());
+    }
+
+    protected long measure(final ClusterService service, final String gsonPackage) throws Exception {
+        // warm up
+        run(service, gsonPackage, ITERATIONS / 10 + 1);
+
+        Profiler profiler = new Profiler();
+        profiler.start();
+        run(service, gsonPackage, ITERATIONS);
+        profiler.stop();
+        return profiler.getDuration();
+    }
+
+    protected void run(final ClusterService service, final String gsonPackage, final int iterations) throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final long agentId = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < iterations; j++) {
+                        try {
+                            if (service.executeAsync("1", agentId, gsonPackage, true) <= 0 || service.execute("1", agentId, gsonPackage, true) == null) {
+                                failures.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.cluster;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.CheckHealthCommand;
+import com.cloud.agent.api.Command;
+import com.cloud.serializer.GsonHelper;
+import com.google.gson.Gson;
+
+public class ClusterPeerTransportTest extends TestCase {
+    protected static final Gson s_gson = GsonHelper.getGson();
+
+    /**
+     * A management server that answers every agent command itself.
+     */
+    protected static ClusterManager createManager(final AtomicInteger executed) {
+        return (ClusterManager)Proxy.newProxyInstance(ClusterManager.class.getClassLoader(), new Class<?>[] { ClusterManager.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("sendToAgent")) {
+                    Command[] cmds = (Command[])args[1];
+                    executed.addAndGet(cmds.length);
+                    if (args.length == 3) {
+                        Answer[] answers = new Answer[cmds.length];
+                        for (int i = 0; i < cmds.length; i++) {
+                            answers[i] = new Answer(cmds[i], true, "done by " + args[0]);
+                        }
+                        return answers;
+                    }
+                    return executed.longValue();
+                }
+                if (method.getReturnType() == boolean.class) {
+                    return false;
+                }
+                return null;
+            }
+        });
+    }
+
+    protected static int startPeer(HttpRequestHandler handler) throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        new ClusterServiceServletContainer().start(handler, port);
+        return port;
+    }
+
+    protected static String getUrl(int port) {
+        return "http://localhost:" + port + "/clusterservice";
+    }
+
+    public void testCalls() throws Exception {
+        AtomicInteger executed = new AtomicInteger();
+        int port = startPeer(new ClusterServiceServletHttpHandler(createManager(executed)));
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ClusterPeerTransport transport = new ClusterPeerTransport(getUrl(port), 30, s_gson, executor, 2, 50);
+        try {
+            final ClusterServiceServletImpl service = new ClusterServiceServletImpl(transport, 30);
+            assertTrue(service.ping("1"));
+
+            String result = service.execute("1", 7, s_gson.toJson(new Command[] { new CheckHealthCommand() }, Command[].class), true);
+            Answer[] answers = s_gson.fromJson(result, Answer[].class);
+            assertEquals(1, answers.length);
+            assertEquals("done by 7", answers[0].getDetails());
+
+            final List<Long> seqs = new ArrayList<Long>();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < 20; i++) {
+                final long agentId = i;
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            long seq = service.executeAsync("1", agentId, s_gson.toJson(new Command[] { new CheckHealthCommand() }, Command[].class), true);
+                            synchronized (seqs) {
+                                seqs.add(seq);
+                            }
+                        } catch (Exception e) {
+                        }
+                    }
+                };
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(20, seqs.size());
+            assertEquals(21, executed.get());
+            assertEquals(22, transport.getCalls());
+            assertFalse(transport.isLegacy());
+            assertEquals(0, transport.getFailures());
+        } finally {
+            transport.close();
+            executor.shutdown();
+        }
+    }
+
+    public void testSlowExecutesDontHoldUpPings() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ClusterManager manager = createManager(new AtomicInteger());
+        ClusterManager slow = (ClusterManager)Proxy.newProxyInstance(ClusterManager.class.getClassLoader(), new Class<?>[] { ClusterManager.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("sendToAgent") && args.length == 3) {
+                    release.await();
+                }
+                return method.invoke(manager, args);
+            }
+        });
+        int port = startPeer(new ClusterServiceServletHttpHandler(slow));
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ClusterPeerTransport transport = new ClusterPeerTransport(getUrl(port), 30, s_gson, executor, 2, 50);
+        try {
+            final ClusterServiceServletImpl service = new ClusterServiceServletImpl(transport, 30);
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < 10; i++) {
+                final long agentId = i;
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            service.execute("1", agentId, s_gson.toJson(new Command[] { new CheckHealthCommand() }, Command[].class), true);
+                        } catch (Exception e) {
+                        }
+                    }
+                };
+                threads.add(thread);
+                thread.start();
+            }
+            Thread.sleep(500);
+
+            long start = System.currentTimeMillis();
+            assertTrue(service.ping("1"));
+            assertTrue("pings wait behind the agent commands", System.currentTimeMillis() - start < 5000);
+
+            release.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(0, transport.getFailures());
+        } finally {
+            release.countDown();
+            transport.close();
+            executor.shutdown();
+        }
+    }
+
+    public void testLegacyPeer() throws Exception {
+        AtomicInteger executed = new AtomicInteger();
+        final ClusterServiceServletHttpHandler handler = new ClusterServiceServletHttpHandler(createManager(executed));
+        // a peer from before batching: it only knows form posts
+        int port = startPeer(new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+                Header contentType = request.getFirstHeader("Content-Type");
+                if (contentType != null && contentType.getValue().startsWith(ClusterPeerTransport.BATCH_CONTENT_TYPE)) {
+                    response.setStatusCode(HttpStatus.SC_BAD_REQUEST);
+                    return;
+                }
+                handler.handle(request, response, context);
+            }
+        });
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ClusterPeerTransport transport = new ClusterPeerTransport(getUrl(port), 30, s_gson, executor, 2, 50);
+        try {
+            ClusterServiceServletImpl service = new ClusterServiceServletImpl(transport, 30);
+            assertTrue(service.ping("1"));
+            assertTrue(transport.isLegacy());
+            assertTrue(service.executeAsync("1", 3, s_gson.toJson(new Command[] { new CheckHealthCommand() }, Command[].class), true) > 0);
+            assertEquals(1, executed.get());
+        } finally {
+            transport.close();
+            executor.shutdown();
+        }
+    }
+}
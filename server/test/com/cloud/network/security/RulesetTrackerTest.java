@@ -0,0 +1,145 @@
+/**
+ *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.network.security;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.SecurityIngressRulesCmd;
+import com.cloud.network.security.RulesetTracker.Delta;
+import com.cloud.network.security.RulesetTracker.Ruleset;
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+
+public class RulesetTrackerTest extends TestCase {
+    static final PortAndProto SSH = new PortAndProto("tcp", 22, 22);
+    static final PortAndProto HTTP = new PortAndProto("tcp", 80, 80);
+
+    protected static Map<PortAndProto, Set<String>> rules(int firstMember, int numMembers) {
+        Map<PortAndProto, Set<String>> rules = new TreeMap<PortAndProto, Set<String>>();
+        Set<String> cidrs = new TreeSet<String>(new CidrComparator());
+        for (int i = firstMember; i < firstMember + numMembers; i++) {
+            cidrs.add("10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff) + "/32");
+        }
+        rules.put(SSH, cidrs);
+        Set<String> http = new TreeSet<String>(new CidrComparator());
+        http.add("0.0.0.0/0");
+        rules.put(HTTP, http);
+        return rules;
+    }
+
+    public void testDiff() {
+        Map<PortAndProto, Set<String>> before = rules(0, 10);
+        Map<PortAndProto, Set<String>> after = rules(1, 10);
+        after.remove(HTTP);
+        Set<String> icmp = new TreeSet<String>();
+        icmp.add("192.168.0.0/16");
+        after.put(new PortAndProto("icmp", -1, -1), icmp);
+
+        Delta delta = RulesetTracker.diff(before, after);
+        assertEquals(4, delta.getNumCidrs());
+        assertEquals(2, delta.getAdded().size());
+        assertTrue(delta.getAdded().get(SSH).contains("10.0.0.10/32"));
+        assertEquals(2, delta.getRevoked().size());
+        assertTrue(delta.getRevoked().get(SSH).contains("10.0.0.0/32"));
+        assertTrue(delta.getRevoked().get(HTTP).contains("0.0.0.0/0"));
+
+        assertTrue(RulesetTracker.diff(after, rules(1, 10)).getNumCidrs() == 2);
+        assertTrue(RulesetTracker.diff(after, after).isEmpty());
+    }
+
+    public void testAcknowledgement() {
+        RulesetTracker tracker = new RulesetTracker();
+        assertNull(tracker.getBase(1, 10));
+
+        tracker.sent(1, new Ruleset(10, 5, "sig5", rules(0, 2)));
+        assertNull("nothing acknowledged yet", tracker.getBase(1, 10));
+        assertFalse(tracker.acked(1, 4));
+        assertNull("answer to an older update", tracker.getBase(1, 10));
+        tracker.acked(1, 5);
+        assertEquals("sig5", tracker.getBase(1, 10).getSignature());
+        assertNull("vm moved to another host", tracker.getBase(1, 11));
+
+        tracker.sent(1, new Ruleset(10, 6, "sig6", rules(0, 3)));
+        assertNull("an update is outstanding", tracker.getBase(1, 10));
+        tracker.acked(1, 6);
+        assertEquals("sig6", tracker.getBase(1, 10).getSignature());
+
+        tracker.forgetUnlessAt(1, 6);
+        assertNotNull(tracker.getBase(1, 10));
+        tracker.forgetUnlessAt(1, 5);
+        assertNull(tracker.getBase(1, 10));
+
+        tracker.sent(1, new Ruleset(10, 7, "sig7", rules(0, 3)));
+        assertTrue(tracker.isOutstanding(1, 10, 7));
+        assertFalse(tracker.isAcked(1, 10, 7));
+        assertTrue(tracker.acked(1, 7));
+        assertFalse(tracker.isOutstanding(1, 10, 7));
+        assertTrue(tracker.isAcked(1, 10, 7));
+        assertFalse(tracker.isAcked(1, 11, 7));
+        tracker.setFullOnly(10, true);
+        assertNull(tracker.getBase(1, 10));
+        tracker.forgetHost(10);
+        assertFalse(tracker.isFullOnly(10));
+        assertEquals(0, tracker.size());
+
+        tracker.sent(2, new Ruleset(10, 1, "sig1", null));
+        tracker.acked(2, 1);
+        assertTrue(tracker.isAcked(2, 10, 1));
+        assertNull("no rules kept to compute a delta from", tracker.getBase(2, 10));
+    }
+
+    /**
+     * A group of members that allows ssh from itself: one more vm joins and every member's
+     * rules change.  Compares what goes to the hosts with full rulesets and with deltas.
+     */
+    public void testFanOut() {
+        int members = 2000;
+        Map<PortAndProto, Set<String>> before = rules(0, members);
+        Map<PortAndProto, Set<String>> after = rules(0, members + 1);
+        String baseSig = new SecurityIngressRulesCmd("10.0.0.1", "mac", "i-2-1-VM", 1L, null, 1L, SecurityGroupManagerImpl.toIpPortAndProtos(before)).getSignature();
+
+        long fullBytes = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < members + 1; i++) {
+            SecurityIngressRulesCmd cmd = new SecurityIngressRulesCmd("10.0.0.1", "mac", "i-2-1-VM", 1L, null, 2L, SecurityGroupManagerImpl.toIpPortAndProtos(after));
+            fullBytes += cmd.stringifyRules().length();
+        }
+        long fullMs = System.currentTimeMillis() - start;
+
+        long deltaBytes = 0;
+        start = System.currentTimeMillis();
+        for (int i = 0; i < members + 1; i++) {
+            SecurityIngressRulesCmd full = new SecurityIngressRulesCmd("10.0.0.1", "mac", "i-2-1-VM", 1L, null, 2L, SecurityGroupManagerImpl.toIpPortAndProtos(after));
+            Delta delta = RulesetTracker.diff(before, after);
+            SecurityIngressRulesCmd cmd = new SecurityIngressRulesCmd("10.0.0.1", "mac", "i-2-1-VM", 1L, full.getSignature(), 2L,
+                    SecurityGroupManagerImpl.toIpPortAndProtos(delta.getAdded()), SecurityGroupManagerImpl.toIpPortAndProtos(delta.getRevoked()), baseSig);
+            assertTrue(cmd.isDelta());
+            assertEquals(1, cmd.getTotalNumCidrs());
+            deltaBytes += cmd.stringifyRules().length() + cmd.stringifyRevokedRules().length();
+        }
+        long deltaMs = System.currentTimeMillis() - start;
+
+        System.out.println("Fan-out to " + (members + 1) + " vms: full rulesets " + fullBytes + " bytes in " + fullMs + "ms, deltas " + deltaBytes + " bytes in " + deltaMs + "ms");
+        assertTrue(deltaBytes * 100 < fullBytes);
+    }
+}
@@ -200,4 +200,36 @@ public class SecurityGroupQueueTest extends TestCase {
         _testDequeueOneJob(10,1,10);
     }
 
+    public void testBatchWindow() throws InterruptedException {
+        queue.clear();
+        queue.submitWorkForVm(1, 1);
+        Thread late = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                Set<Long> more = new HashSet<Long>();
+                for (long i = 2; i <= 10; i++) {
+                    more.add(i);
+                }
+                queue.submitWorkForVms(more);
+            }
+        };
+        late.start();
+        List<SecurityGroupWork> work = queue.getWork(10, 5000);
+        late.join();
+        assertEquals("work that showed up within the window comes in the same batch", 10, work.size());
+
+        queue.submitWorkForVm(11, 1);
+        Profiler p = new Profiler();
+        p.start();
+        work = queue.getWork(10, 100);
+        p.stop();
+        assertEquals(1, work.size());
+        assertTrue(p.getDuration() >= 90);
+        assertEquals(0, queue.size());
+    }
+
 }
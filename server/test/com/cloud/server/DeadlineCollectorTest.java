@@ -0,0 +1,101 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.server;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+public class DeadlineCollectorTest extends TestCase {
+
+    public void testSlowKeys() throws Exception {
+        final CountDownLatch slow = new CountDownLatch(1);
+        DeadlineCollector.Task<Long, String> task = new DeadlineCollector.Task<Long, String>() {
+            @Override
+            public String collect(Long key) throws Exception {
+                if (key == 3) {
+                    slow.await();
+                } else if (key == 4) {
+                    throw new Exception("host is down");
+                }
+                return "stats-" + key;
+            }
+        };
+
+        DeadlineCollector<Long, String> collector = new DeadlineCollector<Long, String>("Test-Collector", 4);
+        try {
+            Map<Long, String> results = collector.collect(Arrays.asList(1L, 2L, 3L, 4L), task, 200);
+            assertEquals(2, results.size());
+            assertEquals("stats-1", results.get(1L));
+            assertEquals(1, collector.getLate());
+            assertEquals(1, collector.getFailed());
+            assertTrue(collector.isInFlight(3L));
+
+            results = collector.collect(Arrays.asList(1L, 3L), task, 200);
+            assertEquals("still waiting on the last call", 1, collector.getSkipped());
+            assertEquals(1, results.size());
+
+            slow.countDown();
+            for (int i = 0; i < 100 && collector.isInFlight(3L); i++) {
+                Thread.sleep(10);
+            }
+            assertFalse(collector.isInFlight(3L));
+
+            results = collector.collect(Arrays.asList(3L), task, 200);
+            assertTrue("backing off after missing the deadline", results.isEmpty());
+            assertEquals(2, collector.getSkipped());
+
+            results = collector.collect(Arrays.asList(3L), task, 200);
+            assertEquals("stats-3", results.get(3L));
+            assertEquals(4, collector.getCycles());
+            assertEquals("4", collector.getStatistics().get("cycles"));
+        } finally {
+            collector.shutdown();
+        }
+    }
+
+    public void testUnreached() throws Exception {
+        final CountDownLatch slow = new CountDownLatch(1);
+        DeadlineCollector.Task<Long, String> task = new DeadlineCollector.Task<Long, String>() {
+            @Override
+            public String collect(Long key) throws Exception {
+                if (key == 1) {
+                    slow.await();
+                }
+                return "stats-" + key;
+            }
+        };
+
+        DeadlineCollector<Long, String> collector = new DeadlineCollector<Long, String>("Test-Collector", 1);
+        try {
+            Map<Long, String> results = collector.collect(Arrays.asList(1L, 2L), task, 100);
+            assertTrue(results.isEmpty());
+            assertEquals(1, collector.getLate());
+            assertEquals(1, collector.getUnreached());
+            assertFalse("never ran so it isn't held against the key", collector.isInFlight(2L));
+
+            slow.countDown();
+            results = collector.collect(Arrays.asList(2L), task, 1000);
+            assertEquals("stats-2", results.get(2L));
+        } finally {
+            collector.shutdown();
+        }
+    }
+}
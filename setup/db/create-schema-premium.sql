@@ -12,6 +12,7 @@ DROP TABLE IF EXISTS `cloud_usage`.`usage_load_balancer_policy`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_port_forwarding`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_network_offering`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_event`;
+DROP TABLE IF EXISTS `cloud_usage`.`usage_parse_checkpoint`;
 
 CREATE TABLE  `cloud_usage`.`cloud_usage` (
   `id` bigint unsigned NOT NULL auto_increment,
@@ -232,6 +233,13 @@ ALTER TABLE `cloud_usage`.`usage_network_offering` ADD INDEX `i_usage_network_of
 ALTER TABLE `cloud_usage`.`usage_network_offering` ADD INDEX `i_usage_network_offering__created`(`created`);
 ALTER TABLE `cloud_usage`.`usage_network_offering` ADD INDEX `i_usage_network_offering__deleted`(`deleted`);
 
+CREATE TABLE  `cloud_usage`.`usage_parse_checkpoint` (
+  `end_millis` bigint unsigned NOT NULL COMMENT 'end time in milliseconds of the aggregation range that was parsed',
+  `account_id` bigint unsigned NOT NULL,
+  `job_end_millis` bigint unsigned NOT NULL COMMENT 'end time in milliseconds of the range the usage job was parsing',
+  PRIMARY KEY  (`end_millis`, `account_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
 CREATE TABLE `cloud`.`netapp_volume` (
   `id` bigint unsigned NOT NULL UNIQUE AUTO_INCREMENT COMMENT 'id',
   `ip_address` varchar(255) NOT NULL COMMENT 'ip address/fqdn of the volume',
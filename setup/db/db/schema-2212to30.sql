@@ -96,3 +96,9 @@ INSERT IGNORE INTO configuration VALUES ('Advanced', 'DEFAULT', 'management-serv
 ALTER TABLE `cloud`.`domain_router` ADD COLUMN `template_version` varchar(100) COMMENT 'template version' AFTER role;
 ALTER TABLE `cloud`.`domain_router` ADD COLUMN `scripts_version` varchar(100) COMMENT 'scripts version' AFTER template_version;
 
+CREATE TABLE IF NOT EXISTS `cloud_usage`.`usage_parse_checkpoint` (
+  `end_millis` bigint unsigned NOT NULL COMMENT 'end time in milliseconds of the aggregation range that was parsed',
+  `account_id` bigint unsigned NOT NULL,
+  `job_end_millis` bigint unsigned NOT NULL COMMENT 'end time in milliseconds of the range the usage job was parsing',
+  PRIMARY KEY  (`end_millis`, `account_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -66,6 +66,7 @@ import com.cloud.user.AccountVO;
 import com.cloud.user.UserStatisticsVO;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserStatisticsDao;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
@@ -88,6 +89,8 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	private static final int DAILY_TIME = 60 * 24;
 	private static final int THREE_DAYS_IN_MINUTES = 60 * 24 * 3;
 	private static final int USAGE_AGGREGATION_RANGE_MIN = 10;
+	private static final int DEFAULT_PARSE_THREADS = 4;
+	private static final int DEFAULT_PARSE_BATCH_SIZE = 500;
 
 	private final ComponentLocator _locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
 	private final AccountDao m_accountDao = _locator.getDao(AccountDao.class);
@@ -121,6 +124,23 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	private Future m_scheduledFuture = null;
 	private Future m_heartbeat = null;
 	private Future m_sanity = null;
+	private UsageParseEngine m_parseEngine = null;
+
+	private final UsageParseEngine.AccountParser m_activeAccountParser = new UsageParseEngine.AccountParser() {
+	    @Override
+	    public boolean parse(AccountVO account, Date startDate, Date endDate) {
+	        return parseHelperTables(account, startDate, endDate);
+	    }
+	};
+
+	private final UsageParseEngine.AccountParser m_deletedAccountParser = new UsageParseEngine.AccountParser() {
+	    @Override
+	    public boolean parse(AccountVO account, Date startDate, Date endDate) {
+	        boolean parsed = parseHelperTables(account, startDate, endDate);
+	        markPublicTemplatesDeleted(account);
+	        return parsed;
+	    }
+	};
 
 	protected UsageManagerImpl() {
 	}
@@ -172,6 +192,10 @@ public class UsageManagerImpl implements UsageManager, Runnable {
             m_sanityCheckInterval = Integer.parseInt(sanityCheckInterval);
         }
 
+        int parseThreads = NumbersUtil.parseInt(configs.get("usage.parse.threads"), DEFAULT_PARSE_THREADS);
+        int parseBatchSize = NumbersUtil.parseInt(configs.get("usage.parse.batch.size"), DEFAULT_PARSE_BATCH_SIZE);
+        m_parseEngine = new UsageParseEngine(m_usageDao, Math.max(parseThreads, 1), Math.max(parseBatchSize, 1));
+
         m_usageTimezone = TimeZone.getTimeZone(aggreagationTimeZone);
         s_logger.debug("Usage stats aggregation time zone: "+aggreagationTimeZone);
         
@@ -266,6 +290,7 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	public boolean stop() {
 	    m_heartbeat.cancel(true);
 	    m_scheduledFuture.cancel(true);
+	    m_parseEngine.shutdown();
 	    m_sanity.cancel(true);
 		return true;
 	}
@@ -357,6 +382,22 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 startDateMillis = lastSuccess+1; // 1 millisecond after
             }
 
+            // if the last job stopped part way through, finish its range first so the accounts it did
+            // line up with their checkpoints and aren't parsed again
+            Long unfinishedEndMillis = null;
+            Transaction checkpointTxn = Transaction.open(Transaction.USAGE_DB);
+            try {
+                unfinishedEndMillis = m_usageDao.getUnfinishedParseEndMillis();
+            } finally {
+                checkpointTxn.close();
+            }
+            if ((unfinishedEndMillis != null) && (unfinishedEndMillis.longValue() > startDateMillis) && (unfinishedEndMillis.longValue() < endDateMillis)) {
+                if (s_logger.isInfoEnabled()) {
+                    s_logger.info("resuming the unfinished usage job ending at " + new Date(unfinishedEndMillis));
+                }
+                endDateMillis = unfinishedEndMillis.longValue();
+            }
+
             if (startDateMillis >= endDateMillis) {
                 if (s_logger.isInfoEnabled()) {
                     s_logger.info("not parsing usage records since start time mills (" + startDateMillis + ") is on or after end time millis (" + endDateMillis + ")");
@@ -576,6 +617,8 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 usageTxn.start();
 
                 boolean parsed = false;
+                boolean failed = false;
+                long lastParsedEndMillis = endDateMillis;
                 numAcctsProcessed = 0;
                 
                 Date currentStartDate = startDate;
@@ -599,10 +642,12 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                         Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
                         accounts = m_accountDao.listAll(filter);
                         if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                numAcctsProcessed++;
+                            if (m_parseEngine.parse(accounts, currentStartDate, currentEndDate, endDateMillis, m_activeAccountParser)) {
+                                parsed = true;
+                            } else {
+                                failed = true;
                             }
+                            numAcctsProcessed += accounts.size();
                         }
                         offset = new Long(offset.longValue() + limit.longValue());
                     } while ((accounts != null) && !accounts.isEmpty());
@@ -621,29 +666,17 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                         accounts = m_accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
 
                         if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                List<Long> publicTemplates = m_usageDao.listPublicTemplatesByAccount(account.getId());
-                                for(Long templateId : publicTemplates){
-                                    //mark public templates owned by deleted accounts as deleted
-                                    List<UsageStorageVO> storageVOs = m_usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
-                                    if (storageVOs.size() > 1) {
-                                        s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() + "; marking them all as deleted...");
-                                    }
-                                    for (UsageStorageVO storageVO : storageVOs) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
-                                        }
-                                        storageVO.setDeleted(account.getRemoved()); 
-                                        m_usageStorageDao.update(storageVO);
-                                    }
-                                }
-                                numAcctsProcessed++;
+                            if (m_parseEngine.parse(accounts, currentStartDate, currentEndDate, endDateMillis, m_deletedAccountParser)) {
+                                parsed = true;
+                            } else {
+                                failed = true;
                             }
+                            numAcctsProcessed += accounts.size();
                         }
                         offset = new Long(offset.longValue() + limit.longValue());
                     } while ((accounts != null) && !accounts.isEmpty());
 
+                    lastParsedEndMillis = currentEndDate.getTime();
                     currentStartDate = new Date(currentEndDate.getTime() + 1);
                     aggregateCal.setTime(currentEndDate);
                     aggregateCal.add(Calendar.MINUTE, m_aggregationDuration);                        
@@ -653,12 +686,17 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("processed Usage for " + numAcctsProcessed + " RECENTLY DELETED accts");
                 }
+                if (s_logger.isInfoEnabled()) {
+                    s_logger.info("usage parse statistics: " + m_parseEngine);
+                }
+                m_parseEngine.resetStatistics();
 
-                // FIXME: we don't break the above loop if something fails to parse, so it gets reset every account,
-                //        do we want to break out of processing accounts and rollback if there are errors?
-                if (!parsed) {
+                // every account is committed on its own along with its checkpoint; if any of them failed the
+                // checkpoints stay so the next job picks up the ones that are left
+                if (!parsed || failed) {
                     usageTxn.rollback();
                 } else {
+                    m_usageDao.deleteParseCheckpoints(lastParsedEndMillis);
                     success = true;
                 }
             } catch (Exception ex) {
@@ -752,6 +790,24 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         return parsed;
 	}
 
+	private void markPublicTemplatesDeleted(AccountVO account) {
+	    List<Long> publicTemplates = m_usageDao.listPublicTemplatesByAccount(account.getId());
+	    for(Long templateId : publicTemplates){
+	        //mark public templates owned by deleted accounts as deleted
+	        List<UsageStorageVO> storageVOs = m_usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
+	        if (storageVOs.size() > 1) {
+	            s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() + "; marking them all as deleted...");
+	        }
+	        for (UsageStorageVO storageVO : storageVOs) {
+	            if (s_logger.isDebugEnabled()) {
+	                s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
+	            }
+	            storageVO.setDeleted(account.getRemoved()); 
+	            m_usageStorageDao.update(storageVO);
+	        }
+	    }
+	}
+
 	private void createHelperRecord(UsageEventVO event) {
 	    String eventType = event.getType();
 	    if (isVMEvent(eventType)) {
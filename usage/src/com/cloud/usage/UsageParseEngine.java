@@ -0,0 +1,228 @@
+
+/**
+ * *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved
+*
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.LatencyHistogram;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * UsageParseEngine parses the usage of a set of accounts for one aggregation
+ * range on a pool of worker threads.  Each account is parsed in its own
+ * transaction; its usage records go out in batches and a checkpoint is saved
+ * with them, so a job that dies half way can be run again without the
+ * accounts it already did getting their usage twice.
+ */
+public class UsageParseEngine {
+    public static final Logger s_logger = Logger.getLogger(UsageParseEngine.class.getName());
+
+    public interface AccountParser {
+        /**
+         * Creates the usage records of the account between the two dates.  Called on a worker thread inside a transaction on the usage db.
+         */
+        boolean parse(AccountVO account, Date startDate, Date endDate);
+    }
+
+    private final UsageDao _usageDao;
+    private final int _batchSize;
+    private final ExecutorService _executor;
+
+    private final AtomicLong _accountsParsed = new AtomicLong();
+    private final AtomicLong _accountsSkipped = new AtomicLong();
+    private final AtomicLong _accountsFailed = new AtomicLong();
+    private final AtomicLong _recordsWritten = new AtomicLong();
+    private final AtomicLong _batchesWritten = new AtomicLong();
+    private final LatencyHistogram _accountLatency = new LatencyHistogram();
+
+    public UsageParseEngine(UsageDao usageDao, int threads, int batchSize) {
+        _usageDao = usageDao;
+        _batchSize = batchSize;
+        _executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Usage-Parse"));
+    }
+
+    /**
+     * Parses the accounts for the aggregation range ending at endDate and waits for all of them.  The accounts are
+     * handed out one at a time so a few big accounts don't hold up a worker's share of small ones.
+     *
+     * @param jobEndMillis end of the range the whole job covers.
+     * @return true if every account was parsed or had been parsed before.
+     */
+    public boolean parse(List<AccountVO> accounts, final Date startDate, final Date endDate, final long jobEndMillis, final AccountParser parser) {
+        Set<Long> parsedAccounts = new HashSet<Long>(listParsedAccounts(endDate.getTime()));
+
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(accounts.size());
+        for (final AccountVO account : accounts) {
+            if (parsedAccounts.contains(account.getId())) {
+                _accountsSkipped.incrementAndGet();
+                continue;
+            }
+
+            futures.add(_executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return parseAccount(account, startDate, endDate, jobEndMillis, parser);
+                }
+            }));
+        }
+
+        boolean success = true;
+        for (Future<Boolean> future : futures) {
+            try {
+                if (!future.get()) {
+                    success = false;
+                }
+            } catch (ExecutionException e) {
+                s_logger.warn("Unable to parse usage between " + startDate + " and " + endDate, e.getCause());
+                success = false;
+            } catch (InterruptedException e) {
+                s_logger.warn("Interrupted while waiting for the usage to be parsed");
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    protected boolean parseAccount(AccountVO account, Date startDate, Date endDate, long jobEndMillis, AccountParser parser) {
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            txn.start();
+            if (parseInBatch(account, startDate, endDate, jobEndMillis, parser)) {
+                txn.commit();
+                return true;
+            }
+            txn.rollback();
+            return false;
+        } catch (RuntimeException e) {
+            txn.rollback();
+            throw e;
+        } finally {
+            txn.close();
+        }
+    }
+
+    /**
+     * Runs the parser with a record batch open on the thread, then writes what's left of the batch and the checkpoint.
+     */
+    protected boolean parseInBatch(AccountVO account, Date startDate, Date endDate, long jobEndMillis, AccountParser parser) {
+        long start = System.currentTimeMillis();
+        UsageRecordBatch batch = createBatch();
+        batch.open();
+        boolean parsed = false;
+        try {
+            parsed = parser.parse(account, startDate, endDate);
+            if (parsed) {
+                batch.flush();
+                saveCheckpoint(account.getId(), endDate.getTime(), jobEndMillis);
+                _recordsWritten.addAndGet(batch.getWritten());
+                _batchesWritten.addAndGet(batch.getFlushes());
+            }
+            return parsed;
+        } finally {
+            batch.close();
+            if (parsed) {
+                _accountsParsed.incrementAndGet();
+            } else {
+                _accountsFailed.incrementAndGet();
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Usage for account " + account.getId() + " between " + startDate + " and " + endDate + " was not parsed");
+                }
+            }
+            _accountLatency.record(System.currentTimeMillis() - start);
+        }
+    }
+
+    protected UsageRecordBatch createBatch() {
+        return new UsageRecordBatch(_usageDao, _batchSize);
+    }
+
+    protected List<Long> listParsedAccounts(long endMillis) {
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            return _usageDao.listParsedAccounts(endMillis);
+        } finally {
+            txn.close();
+        }
+    }
+
+    protected void saveCheckpoint(long accountId, long endMillis, long jobEndMillis) {
+        _usageDao.saveParseCheckpoint(accountId, endMillis, jobEndMillis);
+    }
+
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+
+    public long getAccountsParsed() {
+        return _accountsParsed.get();
+    }
+
+    public long getAccountsSkipped() {
+        return _accountsSkipped.get();
+    }
+
+    public long getAccountsFailed() {
+        return _accountsFailed.get();
+    }
+
+    public long getRecordsWritten() {
+        return _recordsWritten.get();
+    }
+
+    public long getBatchesWritten() {
+        return _batchesWritten.get();
+    }
+
+    public LatencyHistogram getAccountLatency() {
+        return _accountLatency;
+    }
+
+    public void resetStatistics() {
+        _accountsParsed.set(0);
+        _accountsSkipped.set(0);
+        _accountsFailed.set(0);
+        _recordsWritten.set(0);
+        _batchesWritten.set(0);
+        _accountLatency.reset();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("accounts parsed=").append(getAccountsParsed()).append(", skipped=").append(getAccountsSkipped())
+            .append(", failed=").append(getAccountsFailed()).append(", records=").append(getRecordsWritten())
+            .append(", batches=").append(getBatchesWritten()).append(", per account: ").append(_accountLatency).toString();
+    }
+}
@@ -0,0 +1,116 @@
+
+/**
+ * *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved
+*
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloud.exception.UsageServerException;
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * UsageRecordBatch collects the usage records the parsers create on a thread
+ * and writes them with one batched insert instead of one round trip each.
+ * The parsers call persist(); when no batch is open on the thread the
+ * record is written right away as before.
+ */
+public class UsageRecordBatch {
+    private static final ThreadLocal<UsageRecordBatch> s_current = new ThreadLocal<UsageRecordBatch>();
+
+    private final UsageDao _usageDao;
+    private final int _maxSize;
+    private final List<UsageVO> _records;
+    private int _written;
+    private int _flushes;
+
+    public UsageRecordBatch(UsageDao usageDao, int maxSize) {
+        _usageDao = usageDao;
+        _maxSize = maxSize;
+        _records = new ArrayList<UsageVO>(maxSize);
+    }
+
+    public static void persist(UsageVO usageRecord) {
+        UsageRecordBatch batch = s_current.get();
+        if (batch != null) {
+            batch.add(usageRecord);
+        } else {
+            ComponentLocator locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
+            locator.getDao(UsageDao.class).persist(usageRecord);
+        }
+    }
+
+    /**
+     * Makes this the batch persist() adds to on the current thread.
+     */
+    public void open() {
+        s_current.set(this);
+    }
+
+    /**
+     * Detaches the batch from the thread, dropping whatever hasn't been flushed.
+     */
+    public void close() {
+        if (s_current.get() == this) {
+            s_current.remove();
+        }
+        _records.clear();
+    }
+
+    public void add(UsageVO usageRecord) {
+        _records.add(usageRecord);
+        if (_records.size() >= _maxSize) {
+            flush();
+        }
+    }
+
+    public void flush() {
+        if (_records.isEmpty()) {
+            return;
+        }
+
+        write(_records);
+        _written += _records.size();
+        _flushes++;
+        _records.clear();
+    }
+
+    protected void write(List<UsageVO> usageRecords) {
+        try {
+            _usageDao.saveUsageRecords(usageRecords);
+        } catch (UsageServerException e) {
+            throw new CloudRuntimeException("Unable to save " + usageRecords.size() + " usage records", e);
+        }
+    }
+
+    public int getPending() {
+        return _records.size();
+    }
+
+    public int getWritten() {
+        return _written;
+    }
+
+    public int getFlushes() {
+        return _flushes;
+    }
+}
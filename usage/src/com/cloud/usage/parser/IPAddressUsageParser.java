@@ -29,10 +29,10 @@ import java.util.Map;
 import org.apache.log4j.Logger;
 
 import com.cloud.usage.UsageIPAddressVO;
+import com.cloud.usage.UsageRecordBatch;
 import com.cloud.usage.UsageServer;
 import com.cloud.usage.UsageTypes;
 import com.cloud.usage.UsageVO;
-import com.cloud.usage.dao.UsageDao;
 import com.cloud.usage.dao.UsageIPAddressDao;
 import com.cloud.user.AccountVO;
 import com.cloud.utils.Pair;
@@ -42,7 +42,6 @@ public class IPAddressUsageParser {
     public static final Logger s_logger = Logger.getLogger(IPAddressUsageParser.class.getName());
 
     private static ComponentLocator _locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
-    private static UsageDao m_usageDao = _locator.getDao(UsageDao.class);
     private static UsageIPAddressDao m_usageIPAddressDao = _locator.getDao(UsageIPAddressDao.class);
 
 
@@ -143,7 +142,7 @@ public class IPAddressUsageParser {
 
         UsageVO usageRecord = new UsageVO(zoneId, account.getAccountId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", 
                 UsageTypes.IP_ADDRESS, new Double(usage), null, null, null, null, IpId, startDate, endDate, (isSourceNat?"SourceNat":""));
-        m_usageDao.persist(usageRecord);
+        UsageRecordBatch.persist(usageRecord);
     }
 
     private static class IpInfo {
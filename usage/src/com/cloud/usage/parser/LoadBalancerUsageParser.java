@@ -29,10 +29,10 @@ import java.util.Map;
 import org.apache.log4j.Logger;
 
 import com.cloud.usage.UsageLoadBalancerPolicyVO;
+import com.cloud.usage.UsageRecordBatch;
 import com.cloud.usage.UsageServer;
 import com.cloud.usage.UsageTypes;
 import com.cloud.usage.UsageVO;
-import com.cloud.usage.dao.UsageDao;
 import com.cloud.usage.dao.UsageLoadBalancerPolicyDao;
 import com.cloud.user.AccountVO;
 import com.cloud.utils.Pair;
@@ -42,7 +42,6 @@ public class LoadBalancerUsageParser {
 	public static final Logger s_logger = Logger.getLogger(LoadBalancerUsageParser.class.getName());
 	
 	private static ComponentLocator _locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
-	private static UsageDao m_usageDao = _locator.getDao(UsageDao.class);
 	private static UsageLoadBalancerPolicyDao m_usageLoadBalancerPolicyDao = _locator.getDao(UsageLoadBalancerPolicyDao.class);
 	
 	public static boolean parse(AccountVO account, Date startDate, Date endDate) {
@@ -141,7 +140,7 @@ public class LoadBalancerUsageParser {
         //ToDo: get zone id
         UsageVO usageRecord = new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type,
                 new Double(usage), null, null, null, null, lbId, null, startDate, endDate);
-        m_usageDao.persist(usageRecord);
+        UsageRecordBatch.persist(usageRecord);
     }
 	
 	private static class LBInfo {
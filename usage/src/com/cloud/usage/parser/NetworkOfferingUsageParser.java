@@ -29,10 +29,10 @@ import java.util.Map;
 import org.apache.log4j.Logger;
 
 import com.cloud.usage.UsageNetworkOfferingVO;
+import com.cloud.usage.UsageRecordBatch;
 import com.cloud.usage.UsageServer;
 import com.cloud.usage.UsageTypes;
 import com.cloud.usage.UsageVO;
-import com.cloud.usage.dao.UsageDao;
 import com.cloud.usage.dao.UsageNetworkOfferingDao;
 import com.cloud.user.AccountVO;
 import com.cloud.utils.Pair;
@@ -42,7 +42,6 @@ public class NetworkOfferingUsageParser {
 	public static final Logger s_logger = Logger.getLogger(NetworkOfferingUsageParser.class.getName());
 	
 	private static ComponentLocator _locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
-	private static UsageDao m_usageDao = _locator.getDao(UsageDao.class);
 	private static UsageNetworkOfferingDao m_usageNetworkOfferingDao = _locator.getDao(UsageNetworkOfferingDao.class);
 	
 	public static boolean parse(AccountVO account, Date startDate, Date endDate) {
@@ -142,7 +141,7 @@ public class NetworkOfferingUsageParser {
         long defaultNic = (isDefault) ? 1 : 0;
         UsageVO usageRecord = new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type,
                 new Double(usage), vmId, null, noId, null, defaultNic, null, startDate, endDate);
-        m_usageDao.persist(usageRecord);
+        UsageRecordBatch.persist(usageRecord);
     }
 	
 	private static class NOInfo {
@@ -29,11 +29,11 @@ import java.util.Map;
 import org.apache.log4j.Logger;
 
 import com.cloud.usage.StorageTypes;
+import com.cloud.usage.UsageRecordBatch;
 import com.cloud.usage.UsageServer;
 import com.cloud.usage.UsageStorageVO;
 import com.cloud.usage.UsageTypes;
 import com.cloud.usage.UsageVO;
-import com.cloud.usage.dao.UsageDao;
 import com.cloud.usage.dao.UsageStorageDao;
 import com.cloud.user.AccountVO;
 import com.cloud.utils.Pair;
@@ -43,7 +43,6 @@ public class StorageUsageParser {
 	public static final Logger s_logger = Logger.getLogger(StorageUsageParser.class.getName());
 	
 	private static ComponentLocator _locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
-	private static UsageDao m_usageDao = _locator.getDao(UsageDao.class);
 	private static UsageStorageDao m_usageStorageDao = _locator.getDao(UsageStorageDao.class);
 	
 	public static boolean parse(AccountVO account, Date startDate, Date endDate) {
@@ -167,7 +166,7 @@ public class StorageUsageParser {
         //ToDo: get zone id
         UsageVO usageRecord = new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", usage_type,
                 new Double(usage), null, null, null, tmplSourceId, storageId, size, startDate, endDate);
-        m_usageDao.persist(usageRecord);
+        UsageRecordBatch.persist(usageRecord);
     }
 
 	private static class StorageInfo {
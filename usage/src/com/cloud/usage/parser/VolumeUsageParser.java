@@ -28,11 +28,11 @@ import java.util.Map;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.usage.UsageRecordBatch;
 import com.cloud.usage.UsageServer;
 import com.cloud.usage.UsageTypes;
 import com.cloud.usage.UsageVO;
 import com.cloud.usage.UsageVolumeVO;
-import com.cloud.usage.dao.UsageDao;
 import com.cloud.usage.dao.UsageVolumeDao;
 import com.cloud.user.AccountVO;
 import com.cloud.utils.Pair;
@@ -42,7 +42,6 @@ public class VolumeUsageParser {
 	public static final Logger s_logger = Logger.getLogger(VolumeUsageParser.class.getName());
 	
 	private static ComponentLocator _locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
-	private static UsageDao m_usageDao = _locator.getDao(UsageDao.class);
 	private static UsageVolumeDao m_usageVolumeDao = _locator.getDao(UsageVolumeDao.class);
 	
 	public static boolean parse(AccountVO account, Date startDate, Date endDate) {
@@ -151,7 +150,7 @@ public class VolumeUsageParser {
         
         UsageVO usageRecord = new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type,
                 new Double(usage), null, null, doId, templateId, volId, size, startDate, endDate);
-        m_usageDao.persist(usageRecord);
+        UsageRecordBatch.persist(usageRecord);
     }
 
 	private static class VolInfo {
@@ -0,0 +1,186 @@
+
+/**
+ * *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved
+*
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.usage;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.parser.VMInstanceUsageParser;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * Fills usage_vm_instance with synthetic vms for a few thousand accounts and
+ * parses a day of their usage, first the way the usage job used to (one
+ * thread, one insert per record) and then with the worker pool and batched
+ * inserts.  Needs the usage db and usage-components.xml on the classpath, the
+ * way the usage server runs.
+ */
+public class UsageParseLoadTest extends TestCase {
+    public static final Logger s_logger = Logger.getLogger(UsageParseLoadTest.class.getName());
+
+    private static final long FIRST_ACCOUNT_ID = 900000;
+    private static final int ACCOUNTS = 2000;
+    private static final int VMS_PER_ACCOUNT = 5;
+    private static final int THREADS = 8;
+    private static final int BATCH_SIZE = 500;
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private static final String INSERT_VM_INSTANCE = "INSERT INTO cloud_usage.usage_vm_instance (usage_type, zone_id, account_id, vm_instance_id, vm_name, service_offering_id, template_id, hypervisor_type, start_date, end_date) VALUES (?,?,?,?,?,?,?,?,?,?)";
+
+    private UsageDao _usageDao;
+    private List<AccountVO> _accounts;
+    private Date _startDate;
+    private Date _endDate;
+
+    @Override
+    protected void setUp() throws Exception {
+        ComponentLocator locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
+        _usageDao = locator.getDao(UsageDao.class);
+
+        _endDate = new Date((System.currentTimeMillis() / DAY) * DAY - 1);
+        _startDate = new Date(_endDate.getTime() - DAY + 1);
+        _accounts = new ArrayList<AccountVO>(ACCOUNTS);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            _accounts.add(new AccountVO(FIRST_ACCOUNT_ID + i));
+        }
+
+        cleanup();
+
+        TimeZone gmt = TimeZone.getTimeZone("GMT");
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            txn.start();
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(INSERT_VM_INSTANCE);
+            long vmId = FIRST_ACCOUNT_ID * 10;
+            for (AccountVO account : _accounts) {
+                for (int i = 0; i < VMS_PER_ACCOUNT; i++, vmId++) {
+                    // every vm was created the day before and half of them stopped half way through the day
+                    Date created = new Date(_startDate.getTime() - DAY / 2);
+                    Date stopped = (i % 2 == 0) ? new Date(_startDate.getTime() + DAY / 2) : null;
+                    for (int usageType : new int[] { UsageTypes.RUNNING_VM, UsageTypes.ALLOCATED_VM }) {
+                        pstmt.setInt(1, usageType);
+                        pstmt.setLong(2, 1);
+                        pstmt.setLong(3, account.getId());
+                        pstmt.setLong(4, vmId);
+                        pstmt.setString(5, "i-" + account.getId() + "-" + vmId + "-VM");
+                        pstmt.setLong(6, 1 + i % 3);
+                        pstmt.setLong(7, 2);
+                        pstmt.setString(8, "XenServer");
+                        pstmt.setString(9, DateUtil.getDateDisplayString(gmt, created));
+                        pstmt.setString(10, stopped == null ? null : DateUtil.getDateDisplayString(gmt, stopped));
+                        pstmt.addBatch();
+                    }
+                }
+                pstmt.executeBatch();
+            }
+            txn.commit();
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cleanup();
+    }
+
+    public void testParse() throws Exception {
+        UsageParseEngine.AccountParser parser = new UsageParseEngine.AccountParser() {
+            @Override
+            public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return VMInstanceUsageParser.parse(account, startDate, endDate);
+            }
+        };
+
+        long serial = run(new UsageParseEngine(_usageDao, 1, 1), parser, "one thread, one insert per record");
+        clearRecords();
+        UsageParseEngine engine = new UsageParseEngine(_usageDao, THREADS, BATCH_SIZE);
+        long parallel = run(engine, parser, THREADS + " threads, " + BATCH_SIZE + " records per insert");
+        assertEquals(ACCOUNTS * VMS_PER_ACCOUNT * 2, countRecords());
+
+        // running the same range again is what a restarted job does; nothing should be parsed twice.
+        engine.resetStatistics();
+        run(engine, parser, "restarted job");
+        assertEquals(ACCOUNTS, engine.getAccountsSkipped());
+        assertEquals(ACCOUNTS * VMS_PER_ACCOUNT * 2, countRecords());
+        engine.shutdown();
+
+        String summary = "Parsed " + ACCOUNTS + " accounts with " + VMS_PER_ACCOUNT + " vms each: serial " + serial + "ms, parallel " + parallel + "ms";
+        s_logger.info(summary);
+        System.out.println(summary);
+    }
+
+    protected long run(UsageParseEngine engine, UsageParseEngine.AccountParser parser, String name) {
+        long start = System.currentTimeMillis();
+        assertTrue(engine.parse(_accounts, _startDate, _endDate, _endDate.getTime(), parser));
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println(name + ": " + elapsed + "ms, " + engine);
+        return elapsed;
+    }
+
+    protected int countRecords() throws Exception {
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement("SELECT COUNT(*) FROM cloud_usage.cloud_usage WHERE account_id >= ? AND account_id < ?");
+            pstmt.setLong(1, FIRST_ACCOUNT_ID);
+            pstmt.setLong(2, FIRST_ACCOUNT_ID + ACCOUNTS);
+            ResultSet rs = pstmt.executeQuery();
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            txn.close();
+        }
+    }
+
+    protected void clearRecords() throws Exception {
+        execute("DELETE FROM cloud_usage.cloud_usage WHERE account_id >= ? AND account_id < ?");
+        execute("DELETE FROM cloud_usage.usage_parse_checkpoint WHERE account_id >= ? AND account_id < ?");
+    }
+
+    protected void cleanup() throws Exception {
+        clearRecords();
+        execute("DELETE FROM cloud_usage.usage_vm_instance WHERE account_id >= ? AND account_id < ?");
+    }
+
+    protected void execute(String sql) throws Exception {
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt.setLong(1, FIRST_ACCOUNT_ID);
+            pstmt.setLong(2, FIRST_ACCOUNT_ID + ACCOUNTS);
+            pstmt.executeUpdate();
+        } finally {
+            txn.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts durations, in milliseconds, into fixed buckets.
+ * Recording is lock free so it can sit on hot paths; the numbers read back
+ * are only approximately consistent with each other while recording goes on.
+ */
+public class LatencyHistogram {
+    public static final long[] DEFAULT_BOUNDS = { 1, 5, 10, 50, 100, 500, 1000, 5000, 10000, 30000, 60000 };
+
+    private final long[] _bounds;
+    private final AtomicLongArray _counts;
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _sum = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(DEFAULT_BOUNDS);
+    }
+
+    /**
+     * @param bounds inclusive upper bounds of the buckets in ascending order.  Anything larger goes into an overflow bucket.
+     */
+    public LatencyHistogram(long[] bounds) {
+        _bounds = bounds.clone();
+        _counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+
+        int i = 0;
+        while (i < _bounds.length && millis > _bounds[i]) {
+            i++;
+        }
+        _counts.incrementAndGet(i);
+        _count.incrementAndGet();
+        _sum.addAndGet(millis);
+
+        long max = _max.get();
+        while (millis > max && !_max.compareAndSet(max, millis)) {
+            max = _max.get();
+        }
+    }
+
+    public long getCount() {
+        return _count.get();
+    }
+
+    public long getMax() {
+        return _max.get();
+    }
+
+    public long getAverage() {
+        long count = _count.get();
+        return count == 0 ? 0 : _sum.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return upper bound of the bucket the percentile falls into; the max if it's in the overflow bucket.
+     */
+    public long getPercentile(double percentile) {
+        long count = _count.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = (long)Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < _bounds.length; i++) {
+            seen += _counts.get(i);
+            if (seen >= target) {
+                return _bounds[i];
+            }
+        }
+        return _max.get();
+    }
+
+    /**
+     * @return one row per bucket with its upper bound as "le" and the number of samples in it as "count".
+     */
+    public List<Map<String, String>> getBuckets() {
+        List<Map<String, String>> rows = new ArrayList<Map<String, String>>(_bounds.length + 1);
+        for (int i = 0; i <= _bounds.length; i++) {
+            Map<String, String> row = new LinkedHashMap<String, String>();
+            row.put("le", i < _bounds.length ? Long.toString(_bounds[i]) : "+Inf");
+            row.put("count", Long.toString(_counts.get(i)));
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    public void reset() {
+        for (int i = 0; i < _counts.length(); i++) {
+            _counts.set(i, 0);
+        }
+        _count.set(0);
+        _sum.set(0);
+        _max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("count=").append(getCount()).append(", avg=").append(getAverage()).append("ms, p50=").append(getPercentile(50))
+            .append("ms, p99=").append(getPercentile(99)).append("ms, max=").append(getMax()).append("ms").toString();
+    }
+}
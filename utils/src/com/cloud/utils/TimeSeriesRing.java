@@ -0,0 +1,123 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TimeSeriesRing keeps the last samples of a fixed set of values, the oldest
+ * being overwritten first.  Samples live in flat primitive arrays so keeping
+ * a ring for every VM doesn't cost an object per sample.
+ */
+public class TimeSeriesRing {
+    public static class Sample {
+        private final long _time;
+        private final double[] _values;
+
+        public Sample(long time, double[] values) {
+            _time = time;
+            _values = values;
+        }
+
+        public long getTime() {
+            return _time;
+        }
+
+        public double getValue(int index) {
+            return _values[index];
+        }
+
+        public double[] getValues() {
+            return _values;
+        }
+    }
+
+    private final int _width;
+    private final long[] _times;
+    private final double[] _values;
+    private int _next;
+    private int _size;
+
+    /**
+     * @param capacity number of samples kept.
+     * @param width number of values in each sample.
+     */
+    public TimeSeriesRing(int capacity, int width) {
+        _width = width;
+        _times = new long[capacity];
+        _values = new double[capacity * width];
+    }
+
+    public synchronized void add(long time, double... values) {
+        assert values.length == _width : "Expected " + _width + " values but got " + values.length;
+
+        _times[_next] = time;
+        System.arraycopy(values, 0, _values, _next * _width, _width);
+        _next = (_next + 1) % _times.length;
+        if (_size < _times.length) {
+            _size++;
+        }
+    }
+
+    public synchronized int size() {
+        return _size;
+    }
+
+    public int getCapacity() {
+        return _times.length;
+    }
+
+    /**
+     * @return time of the latest sample, 0 if there's none.
+     */
+    public synchronized long getLastTime() {
+        return _size == 0 ? 0 : _times[(_next - 1 + _times.length) % _times.length];
+    }
+
+    /**
+     * @return the latest sample, null if there's none.
+     */
+    public synchronized Sample getLast() {
+        if (_size == 0) {
+            return null;
+        }
+        return sampleAt((_next - 1 + _times.length) % _times.length);
+    }
+
+    /**
+     * @return samples taken after the given time, oldest first.
+     */
+    public synchronized List<Sample> getSamples(long since) {
+        List<Sample> samples = new ArrayList<Sample>(_size);
+        int first = (_next - _size + _times.length) % _times.length;
+        for (int i = 0; i < _size; i++) {
+            int slot = (first + i) % _times.length;
+            if (_times[slot] > since) {
+                samples.add(sampleAt(slot));
+            }
+        }
+        return samples;
+    }
+
+    private Sample sampleAt(int slot) {
+        double[] values = new double[_width];
+        System.arraycopy(_values, slot * _width, values, 0, _width);
+        return new Sample(_times[slot], values);
+    }
+}
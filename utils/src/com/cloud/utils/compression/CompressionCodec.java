@@ -0,0 +1,54 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.compression;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CompressionCodec compresses a message held in ByteBuffers without first
+ * copying it into a stream.  Implementations are stateless from the
+ * caller's point of view and safe to share between threads.
+ */
+public interface CompressionCodec {
+    /**
+     * @return id that goes over the wire to identify this codec.
+     */
+    byte getId();
+
+    String getName();
+
+    /**
+     * Compresses the remaining bytes of the buffers.  The positions of the
+     * input buffers are moved to their limits.
+     * 
+     * @param input buffers to compress, in order.
+     * @return flipped buffers holding the compressed data.
+     */
+    ByteBuffer[] compress(ByteBuffer[] input);
+
+    /**
+     * Decompresses the remaining bytes of the buffer.
+     * 
+     * @param input compressed data.
+     * @param expectedSize size of the uncompressed data if known, 0 otherwise.
+     *        Only used as a sizing hint.
+     * @return flipped buffer holding the uncompressed data.
+     * @throws com.cloud.utils.exception.CloudRuntimeException if the data is corrupted.
+     */
+    ByteBuffer decompress(ByteBuffer input, int expectedSize);
+}
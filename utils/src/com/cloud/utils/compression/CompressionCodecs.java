@@ -0,0 +1,54 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.compression;
+
+/**
+ * Looks up the codecs by wire id or by name.  The codecs are stateless so
+ * the same instances are handed to everyone.
+ */
+public class CompressionCodecs {
+    public static final CompressionCodec GZIP = new GzipCodec();
+    public static final CompressionCodec DEFLATE = new DeflateCodec();
+    public static final CompressionCodec LZ = new LzCodec();
+
+    private static final CompressionCodec[] s_codecs = new CompressionCodec[] { GZIP, DEFLATE, LZ };
+
+    /**
+     * @return the codec or null if there's no codec with that id.
+     */
+    public static CompressionCodec get(byte id) {
+        for (CompressionCodec codec : s_codecs) {
+            if (codec.getId() == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the codec or null if there's no codec with that name.
+     */
+    public static CompressionCodec get(String name) {
+        for (CompressionCodec codec : s_codecs) {
+            if (codec.getName().equalsIgnoreCase(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.compression;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Raw deflate.  Each thread keeps its own Deflater and Inflater and resets
+ * them between messages; creating one per message allocates the native
+ * zlib state every time, which is most of the cost for small messages.
+ */
+public class DeflateCodec implements CompressionCodec {
+    public static final byte ID = 1;
+
+    private static final ThreadLocal<Deflater> s_deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> s_inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public ByteBuffer[] compress(ByteBuffer[] input) {
+        OutputChunks output = new OutputChunks();
+        deflate(input, output);
+        return output.toBuffers();
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer input, int expectedSize) {
+        return inflate(input, expectedSize);
+    }
+
+    protected void deflate(ByteBuffer[] input, OutputChunks output) {
+        Deflater deflater = s_deflaters.get();
+        try {
+            for (ByteBuffer buffer : input) {
+                if (!buffer.hasRemaining()) {
+                    continue;
+                }
+                byte[] array;
+                int offset;
+                int length = buffer.remaining();
+                if (buffer.hasArray()) {
+                    array = buffer.array();
+                    offset = buffer.arrayOffset() + buffer.position();
+                } else {
+                    array = new byte[length];
+                    buffer.duplicate().get(array);
+                    offset = 0;
+                }
+                deflater.setInput(array, offset, length);
+                while (!deflater.needsInput()) {
+                    drain(deflater, output);
+                }
+                buffer.position(buffer.limit());
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                drain(deflater, output);
+            }
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    private static void drain(Deflater deflater, OutputChunks output) {
+        ByteBuffer out = output.current();
+        int n = deflater.deflate(out.array(), out.arrayOffset() + out.position(), out.remaining());
+        out.position(out.position() + n);
+    }
+
+    protected ByteBuffer inflate(ByteBuffer input, int expectedSize) {
+        Inflater inflater = s_inflaters.get();
+        try {
+            int length = input.remaining();
+            byte[] array;
+            int offset;
+            if (input.hasArray()) {
+                array = input.array();
+                offset = input.arrayOffset() + input.position();
+            } else {
+                array = new byte[length];
+                input.duplicate().get(array);
+                offset = 0;
+            }
+            inflater.setInput(array, offset, length);
+
+            byte[] out = new byte[initialSize(expectedSize, length)];
+            int size = 0;
+            boolean padded = false;
+            while (!inflater.finished()) {
+                if (size == out.length) {
+                    byte[] bigger = new byte[out.length << 1];
+                    System.arraycopy(out, 0, bigger, 0, size);
+                    out = bigger;
+                }
+                int n = inflater.inflate(out, size, out.length - size);
+                if (n == 0 && inflater.needsInput()) {
+                    // without the zlib wrapper, the inflater wants one byte past
+                    // the end of the data before it reports finished.
+                    if (padded) {
+                        throw new CloudRuntimeException("Compressed data is truncated");
+                    }
+                    inflater.setInput(new byte[1]);
+                    padded = true;
+                } else if (n == 0 && inflater.needsDictionary()) {
+                    throw new CloudRuntimeException("Compressed data needs a dictionary");
+                }
+                size += n;
+            }
+            input.position(padded ? input.limit() : input.limit() - inflater.getRemaining());
+            return ByteBuffer.wrap(out, 0, size);
+        } catch (DataFormatException e) {
+            throw new CloudRuntimeException("Compressed data is corrupted", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * The expected size comes off the wire, so it is only trusted up to a
+     * sane multiple of the compressed size.
+     */
+    static int initialSize(int expectedSize, int compressedSize) {
+        int size = expectedSize;
+        if (size <= 0 || size / 1024 > compressedSize) {
+            size = compressedSize * 4;
+        }
+        return Math.max(size, 64);
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.compression;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Gzip framing around the pooled deflate.  The bytes are the same as what
+ * GZIPOutputStream writes, so this is what goes to peers that predate codec
+ * negotiation.
+ */
+public class GzipCodec extends DeflateCodec {
+    public static final byte ID = 0;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final byte[] HEADER = new byte[] { (byte)GZIP_MAGIC, (byte)(GZIP_MAGIC >> 8), 8, 0, 0, 0, 0, 0, 0, 0 };
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public ByteBuffer[] compress(ByteBuffer[] input) {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        for (ByteBuffer buffer : input) {
+            size += buffer.remaining();
+            if (buffer.hasArray()) {
+                crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.duplicate().get(bytes);
+                crc.update(bytes);
+            }
+        }
+
+        OutputChunks output = new OutputChunks();
+        output.ensure(HEADER.length).put(HEADER);
+        deflate(input, output);
+        ByteBuffer out = output.ensure(8);
+        ByteOrder order = out.order();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt((int)crc.getValue());
+        out.putInt((int)size);
+        out.order(order);
+        return output.toBuffers();
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer input, int expectedSize) {
+        readHeader(input);
+        ByteBuffer output = inflate(input, expectedSize);
+        readTrailer(input, output);
+        return output;
+    }
+
+    protected void readHeader(ByteBuffer input) {
+        ByteOrder order = input.order();
+        input.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (input.remaining() < HEADER.length || (input.getShort() & 0xffff) != GZIP_MAGIC) {
+                throw new CloudRuntimeException("Not in gzip format");
+            }
+            if (input.get() != 8) {
+                throw new CloudRuntimeException("Unsupported gzip compression method");
+            }
+            int flags = input.get() & 0xff;
+            input.position(input.position() + 6);
+            if ((flags & FEXTRA) != 0) {
+                input.position(input.position() + (input.getShort() & 0xffff));
+            }
+            if ((flags & FNAME) != 0) {
+                while (input.get() != 0) {
+                }
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (input.get() != 0) {
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                input.getShort();
+            }
+        } finally {
+            input.order(order);
+        }
+    }
+
+    protected void readTrailer(ByteBuffer input, ByteBuffer output) {
+        if (input.remaining() < 8) {
+            throw new CloudRuntimeException("Gzip trailer is truncated");
+        }
+        ByteOrder order = input.order();
+        input.order(ByteOrder.LITTLE_ENDIAN);
+        long expectedCrc = input.getInt() & 0xffffffffL;
+        int expectedSize = input.getInt();
+        input.order(order);
+
+        CRC32 crc = new CRC32();
+        crc.update(output.array(), output.arrayOffset() + output.position(), output.remaining());
+        if (crc.getValue() != expectedCrc || expectedSize != output.remaining()) {
+            throw new CloudRuntimeException("Gzip checksum mismatch");
+        }
+    }
+}
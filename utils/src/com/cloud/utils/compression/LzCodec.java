@@ -0,0 +1,277 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.compression;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * A byte-oriented LZ77 codec in the style of LZ4: no entropy coding, a
+ * single hash probe per position and a 64KB window.  It gives up some ratio
+ * against deflate in exchange for compressing several times faster, which
+ * is the better trade on a LAN where the cpu is the bottleneck.
+ *
+ * The stream starts with the uncompressed size as a varint, followed by a
+ * series of sequences.  Each starts with a token byte whose
+ * high nibble is the literal count and low nibble is the match length minus
+ * MIN_MATCH; a nibble of 15 means more length bytes follow, each adding up
+ * to 255.  The literals come next, then a two byte little endian offset back
+ * into the output and any extra match length bytes.  The last sequence has
+ * literals only and ends the input.
+ */
+public class LzCodec implements CompressionCodec {
+    public static final byte ID = 2;
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xffff;
+    // The tail of the input is always emitted as literals so the match
+    // loop never has to check bounds when it reads four bytes ahead.
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_LIMIT = 12;
+    private static final int HASH_BITS = 14;
+
+    private static final ThreadLocal<int[]> s_tables = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << HASH_BITS];
+        }
+    };
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "lz";
+    }
+
+    @Override
+    public ByteBuffer[] compress(ByteBuffer[] input) {
+        // matches reach back across chunk boundaries, so the encoder works
+        // on one contiguous array.
+        byte[] src;
+        int start;
+        int end;
+        if (input.length == 1 && input[0].hasArray()) {
+            src = input[0].array();
+            start = input[0].arrayOffset() + input[0].position();
+            end = start + input[0].remaining();
+            input[0].position(input[0].limit());
+        } else {
+            int size = 0;
+            for (ByteBuffer buffer : input) {
+                size += buffer.remaining();
+            }
+            src = new byte[size];
+            int offset = 0;
+            for (ByteBuffer buffer : input) {
+                int length = buffer.remaining();
+                buffer.get(src, offset, length);
+                offset += length;
+            }
+            start = 0;
+            end = size;
+        }
+
+        OutputChunks output = new OutputChunks();
+        ByteBuffer out = output.ensure(5);
+        int size = end - start;
+        while ((size & ~0x7f) != 0) {
+            out.put((byte)((size & 0x7f) | 0x80));
+            size >>>= 7;
+        }
+        out.put((byte)size);
+
+        int[] table = s_tables.get();
+        Arrays.fill(table, -1);
+
+        int anchor = start;
+        int i = start;
+        int limit = end - MATCH_LIMIT;
+        while (i < limit) {
+            int sequence = readInt(src, i);
+            int h = hash(sequence);
+            int ref = table[h];
+            table[h] = i;
+            if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                i++;
+                continue;
+            }
+
+            int matchEnd = i + MIN_MATCH;
+            int matchLimit = end - LAST_LITERALS;
+            int r = ref + MIN_MATCH;
+            while (matchEnd < matchLimit && src[matchEnd] == src[r]) {
+                matchEnd++;
+                r++;
+            }
+            writeSequence(output, src, anchor, i - anchor, i - ref, matchEnd - i);
+            i = matchEnd;
+            anchor = i;
+        }
+        writeSequence(output, src, anchor, end - anchor, 0, 0);
+        return output.toBuffers();
+    }
+
+    private static void writeSequence(OutputChunks output, byte[] src, int literalStart, int literals, int offset, int matchLength) {
+        int extraMatch = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        ByteBuffer out = output.ensure(1 + literals / 255 + 1);
+        int token = (Math.min(literals, 15) << 4) | Math.min(extraMatch, 15);
+        out.put((byte)token);
+        writeLength(out, literals);
+
+        int copied = 0;
+        while (copied < literals) {
+            out = output.current();
+            int n = Math.min(out.remaining(), literals - copied);
+            out.put(src, literalStart + copied, n);
+            copied += n;
+        }
+
+        if (matchLength > 0) {
+            out = output.ensure(2 + extraMatch / 255 + 1);
+            out.put((byte)offset);
+            out.put((byte)(offset >>> 8));
+            writeLength(out, extraMatch);
+        }
+    }
+
+    private static void writeLength(ByteBuffer out, int length) {
+        if (length < 15) {
+            return;
+        }
+        length -= 15;
+        while (length >= 255) {
+            out.put((byte)255);
+            length -= 255;
+        }
+        out.put((byte)length);
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer input, int expectedSize) {
+        byte[] src;
+        int i;
+        int end;
+        if (input.hasArray()) {
+            src = input.array();
+            i = input.arrayOffset() + input.position();
+            end = i + input.remaining();
+        } else {
+            src = new byte[input.remaining()];
+            input.duplicate().get(src);
+            i = 0;
+            end = src.length;
+        }
+        input.position(input.limit());
+
+        byte[] out;
+        int size = 0;
+        try {
+            int expected = 0;
+            int v;
+            int shift = 0;
+            do {
+                v = src[i++] & 0xff;
+                expected |= (v & 0x7f) << shift;
+                shift += 7;
+            } while ((v & 0x80) != 0 && shift < 35);
+            if (expected < 0) {
+                throw new CloudRuntimeException("Compressed data is corrupted: bad size " + expected);
+            }
+            out = new byte[DeflateCodec.initialSize(expected, end - i)];
+
+            while (i < end) {
+                int token = src[i++] & 0xff;
+
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[i++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (literals > end - i) {
+                    throw new CloudRuntimeException("Compressed data is truncated");
+                }
+                out = ensure(out, size, literals);
+                System.arraycopy(src, i, out, size, literals);
+                i += literals;
+                size += literals;
+
+                if (i == end) {
+                    break;
+                }
+
+                int offset = (src[i++] & 0xff) | ((src[i++] & 0xff) << 8);
+                int length = token & 0x0f;
+                if (length == 15) {
+                    int b;
+                    do {
+                        b = src[i++] & 0xff;
+                        length += b;
+                    } while (b == 255);
+                }
+                length += MIN_MATCH;
+                if (offset == 0 || offset > size) {
+                    throw new CloudRuntimeException("Compressed data is corrupted: bad offset " + offset);
+                }
+
+                out = ensure(out, size, length);
+                int from = size - offset;
+                if (offset >= length) {
+                    System.arraycopy(out, from, out, size, length);
+                    size += length;
+                } else {
+                    // overlapping match, i.e. a run; has to go byte by byte.
+                    for (int k = 0; k < length; k++) {
+                        out[size++] = out[from++];
+                    }
+                }
+            }
+            if (size != expected) {
+                throw new CloudRuntimeException("Compressed data is truncated: expected " + expected + " bytes but got " + size);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new CloudRuntimeException("Compressed data is truncated", e);
+        }
+        return ByteBuffer.wrap(out, 0, size);
+    }
+
+    private static byte[] ensure(byte[] out, int size, int needed) {
+        if (out.length - size >= needed) {
+            return out;
+        }
+        byte[] bigger = new byte[Math.max(out.length << 1, size + needed)];
+        System.arraycopy(out, 0, bigger, 0, size);
+        return bigger;
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xff) | ((src[i + 1] & 0xff) << 8) | ((src[i + 2] & 0xff) << 16) | (src[i + 3] << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.compression;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Growing chain of heap buffers for compressor output.  It starts small and
+ * doubles the chunk size so the output is never sized from the input and
+ * never copied when it grows.
+ */
+class OutputChunks {
+    static final int INITIAL_CHUNK = 4096;
+    static final int MAX_CHUNK = 64 * 1024;
+
+    private final List<ByteBuffer> _chunks = new ArrayList<ByteBuffer>();
+    private ByteBuffer _current;
+    private int _nextChunkSize;
+
+    OutputChunks() {
+        _nextChunkSize = INITIAL_CHUNK;
+        _current = ByteBuffer.allocate(_nextChunkSize);
+        _chunks.add(_current);
+    }
+
+    /**
+     * @return the buffer to write into, with at least one byte left.
+     */
+    ByteBuffer current() {
+        return ensure(1);
+    }
+
+    /**
+     * @return the buffer to write into, with at least bytes left.
+     */
+    ByteBuffer ensure(int bytes) {
+        if (_current.remaining() < bytes) {
+            if (_nextChunkSize < MAX_CHUNK) {
+                _nextChunkSize <<= 1;
+            }
+            _current = ByteBuffer.allocate(Math.max(bytes, _nextChunkSize));
+            _chunks.add(_current);
+        }
+        return _current;
+    }
+
+    ByteBuffer[] toBuffers() {
+        ByteBuffer[] buffers = new ByteBuffer[_chunks.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = _chunks.get(i);
+            buffers[i].flip();
+        }
+        return buffers;
+    }
+}
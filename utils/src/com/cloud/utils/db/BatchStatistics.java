@@ -0,0 +1,113 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BatchStatistics counts the statements a DAO's batch operations sent to
+ * the database and the rows they carried, so it can be seen whether the
+ * callers actually hand over enough rows for batching to pay off.
+ */
+public class BatchStatistics implements BatchStatisticsMBean {
+    private final String _name;
+
+    private final AtomicLong _insertRoundTrips = new AtomicLong();
+    private final AtomicLong _insertedRows = new AtomicLong();
+    private final AtomicLong _updateRoundTrips = new AtomicLong();
+    private final AtomicLong _updatedRows = new AtomicLong();
+    private final AtomicLong _upsertRoundTrips = new AtomicLong();
+    private final AtomicLong _upsertedRows = new AtomicLong();
+
+    public BatchStatistics(String name) {
+        _name = name;
+    }
+
+    public void recordInsert(int rows) {
+        _insertRoundTrips.incrementAndGet();
+        _insertedRows.addAndGet(rows);
+    }
+
+    public void recordUpdate(int rows) {
+        _updateRoundTrips.incrementAndGet();
+        _updatedRows.addAndGet(rows);
+    }
+
+    public void recordUpsert(int rows) {
+        _upsertRoundTrips.incrementAndGet();
+        _upsertedRows.addAndGet(rows);
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public long getInsertRoundTrips() {
+        return _insertRoundTrips.get();
+    }
+
+    @Override
+    public long getInsertedRows() {
+        return _insertedRows.get();
+    }
+
+    @Override
+    public long getUpdateRoundTrips() {
+        return _updateRoundTrips.get();
+    }
+
+    @Override
+    public long getUpdatedRows() {
+        return _updatedRows.get();
+    }
+
+    @Override
+    public long getUpsertRoundTrips() {
+        return _upsertRoundTrips.get();
+    }
+
+    @Override
+    public long getUpsertedRows() {
+        return _upsertedRows.get();
+    }
+
+    @Override
+    public String getRowsPerRoundTrip() {
+        long trips = getInsertRoundTrips() + getUpdateRoundTrips() + getUpsertRoundTrips();
+        long rows = getInsertedRows() + getUpdatedRows() + getUpsertedRows();
+        return trips == 0 ? "-" : String.format("%.2f", (double)rows / trips);
+    }
+
+    @Override
+    public void resetStatistics() {
+        _insertRoundTrips.set(0);
+        _insertedRows.set(0);
+        _updateRoundTrips.set(0);
+        _updatedRows.set(0);
+        _upsertRoundTrips.set(0);
+        _upsertedRows.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("inserts=").append(getInsertedRows()).append("/").append(getInsertRoundTrips()).append(", updates=").append(getUpdatedRows())
+            .append("/").append(getUpdateRoundTrips()).append(", upserts=").append(getUpsertedRows()).append("/").append(getUpsertRoundTrips()).toString();
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * BatchWriter lets concurrent threads share database round trips.  A thread
+ * calling write() hands its item over and waits; whichever thread finds no
+ * write in progress takes everything handed over so far and writes it in
+ * one go.  Callers only return once their own item is written, so this is
+ * group commit rather than write-behind.
+ */
+public abstract class BatchWriter<T> {
+    private final int _maxBatchSize;
+    private final Object _lock = new Object();
+    private List<Entry<T>> _pending = new ArrayList<Entry<T>>();
+    private boolean _writing = false;
+
+    private final AtomicLong _batches = new AtomicLong();
+    private final AtomicLong _items = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+
+    protected static class Entry<T> {
+        final T item;
+        boolean done = false;
+        Throwable error = null;
+
+        Entry(T item) {
+            this.item = item;
+        }
+    }
+
+    public BatchWriter(int maxBatchSize) {
+        _maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Writes the items.  It's only called by one thread at a time.
+     */
+    protected abstract void write(List<T> items) throws Exception;
+
+    /**
+     * Writes the item, possibly together with items from other threads.
+     * @throws CloudRuntimeException if the batch the item went out in failed.
+     */
+    public void write(T item) {
+        Entry<T> entry = new Entry<T>(item);
+        boolean interrupted = false;
+        synchronized (_lock) {
+            _pending.add(entry);
+        }
+
+        while (true) {
+            List<Entry<T>> batch;
+            synchronized (_lock) {
+                while (!entry.done && _writing) {
+                    try {
+                        _lock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (entry.done) {
+                    break;
+                }
+
+                _writing = true;
+                if (_pending.size() <= _maxBatchSize) {
+                    batch = _pending;
+                    _pending = new ArrayList<Entry<T>>();
+                } else {
+                    batch = new ArrayList<Entry<T>>(_pending.subList(0, _maxBatchSize));
+                    _pending.subList(0, _maxBatchSize).clear();
+                }
+            }
+
+            flush(batch);
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (entry.error != null) {
+            throw new CloudRuntimeException("Unable to write " + item, entry.error);
+        }
+    }
+
+    private void flush(List<Entry<T>> batch) {
+        List<T> items = new ArrayList<T>(batch.size());
+        for (Entry<T> entry : batch) {
+            items.add(entry.item);
+        }
+
+        Throwable error = null;
+        try {
+            write(items);
+            _batches.incrementAndGet();
+            _items.addAndGet(items.size());
+        } catch (Throwable th) {
+            _failures.incrementAndGet();
+            error = th;
+        } finally {
+            synchronized (_lock) {
+                for (Entry<T> entry : batch) {
+                    entry.error = error;
+                    entry.done = true;
+                }
+                _writing = false;
+                _lock.notifyAll();
+            }
+        }
+    }
+
+    public long getBatches() {
+        return _batches.get();
+    }
+
+    public long getItems() {
+        return _items.get();
+    }
+
+    public long getFailures() {
+        return _failures.get();
+    }
+}
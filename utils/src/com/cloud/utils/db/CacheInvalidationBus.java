@@ -0,0 +1,479 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * CacheInvalidationBus carries the entity cache evictions done on this
+ * management server over to the other management servers in the cluster.
+ * Evictions are collected per table and shipped every flush interval as one
+ * Batch, so a burst of host or vm updates turns into a handful of messages.
+ * The transport is whatever Publisher the cluster manager plugs in; without
+ * one the bus stays quiet and only the local caches are maintained.
+ *
+ * A receiver that notices a hole in a peer's sequence numbers has lost
+ * evictions and drops all of its entity caches to be safe.
+ */
+public class CacheInvalidationBus implements CacheInvalidationBusMBean {
+    private static final Logger s_logger = Logger.getLogger(CacheInvalidationBus.class);
+
+    public static final int DEFAULT_FLUSH_INTERVAL = 100;   // milliseconds
+    public static final int MAX_IDS_PER_TABLE = 1000;       // past this we ask the peers to drop the whole table
+
+    private static final CacheInvalidationBus s_instance = new CacheInvalidationBus();
+
+    public interface Publisher {
+        /**
+         * Sends the batch to every other node in the cluster.  Called from
+         * the flusher thread one batch at a time so peers see them in order.
+         */
+        void publish(Batch batch);
+    }
+
+    public static class Batch {
+        String origin;
+        long seq;
+        long created;
+        Map<String, List<String>> ids;
+        List<String> flushes;
+
+        public Batch() {
+        }
+
+        public Batch(String origin, long seq, long created, Map<String, List<String>> ids, List<String> flushes) {
+            this.origin = origin;
+            this.seq = seq;
+            this.created = created;
+            this.ids = ids;
+            this.flushes = flushes;
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        /**
+         * @return when, on the origin's clock, the oldest eviction in this batch was made.
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * @return ids to evict per table.  An empty list means only the query results on that table are stale.
+         */
+        public Map<String, List<String>> getIds() {
+            return ids;
+        }
+
+        /**
+         * @return tables whose entity caches should be dropped altogether.
+         */
+        public List<String> getFlushes() {
+            return flushes;
+        }
+
+        public int getEvictionCount() {
+            int count = flushes != null ? flushes.size() : 0;
+            if (ids != null) {
+                for (List<String> list : ids.values()) {
+                    count += list.size();
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder("Batch[").append(origin).append("-").append(seq).append(", ids=").append(ids).append(", flushes=").append(flushes).append("]").toString();
+        }
+    }
+
+    protected static class PeerStats {
+        long received;
+        long evictions;
+        long lastSeq;
+        long gaps;
+        long lastLag;
+        long maxLag;
+        long totalLag;
+
+        long delivered;
+        long failed;
+        long lastDelivery;
+        long maxDelivery;
+        long totalDelivery;
+    }
+
+    private String _origin;
+    private Publisher _publisher;
+    private ScheduledExecutorService _flusher;
+
+    private Map<String, Set<String>> _pendingIds = new LinkedHashMap<String, Set<String>>();
+    private Set<String> _pendingFlushes = new LinkedHashSet<String>();
+    private long _pendingSince;
+    private int _pendingCount;
+    private long _seq;
+
+    private final Map<String, PeerStats> _peers = new ConcurrentHashMap<String, PeerStats>();
+    private final AtomicLong _batchesSent = new AtomicLong();
+    private final AtomicLong _evictionsSent = new AtomicLong();
+    private final AtomicLong _publishFailures = new AtomicLong();
+    private final AtomicLong _batchesReceived = new AtomicLong();
+    private final AtomicLong _evictionsReceived = new AtomicLong();
+
+    public static CacheInvalidationBus getInstance() {
+        return s_instance;
+    }
+
+    protected CacheInvalidationBus() {
+    }
+
+    /**
+     * Starts shipping evictions through the publisher.
+     *
+     * @param origin name of this node as the peers know it.
+     * @param publisher transport to the other nodes.
+     * @param flushInterval milliseconds to collect evictions before sending them.
+     */
+    public synchronized void start(String origin, Publisher publisher, int flushInterval) {
+        if (_flusher != null) {
+            return;
+        }
+
+        _origin = origin;
+        _publisher = publisher;
+        _seq = 0;
+        _flusher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("CacheInvalidation"));
+        _flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Throwable th) {
+                    s_logger.warn("Unable to publish cache invalidations", th);
+                }
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        s_logger.info("Cache invalidation bus started for " + origin + " with a flush interval of " + flushInterval + " ms");
+    }
+
+    public void stop() {
+        ScheduledExecutorService flusher;
+        synchronized (this) {
+            flusher = _flusher;
+            _flusher = null;
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            flush();
+        }
+        synchronized (this) {
+            _publisher = null;
+            _pendingIds.clear();
+            _pendingFlushes.clear();
+            _pendingCount = 0;
+        }
+    }
+
+    @Override
+    public synchronized boolean isEnabled() {
+        return _publisher != null;
+    }
+
+    /**
+     * Queues up evictions for the other nodes.
+     *
+     * @param table table the entities live in.
+     * @param ids ids of the entities changed; null if it's not known which.
+     */
+    public synchronized void evict(String table, Collection<?> ids) {
+        if (_publisher == null) {
+            return;
+        }
+
+        if (_pendingCount == 0) {
+            _pendingSince = System.currentTimeMillis();
+        }
+
+        if (_pendingFlushes.contains(table)) {
+            return;
+        }
+
+        Set<String> pending = _pendingIds.get(table);
+        if (ids == null || (pending != null && pending.size() + ids.size() > MAX_IDS_PER_TABLE) || ids.size() > MAX_IDS_PER_TABLE) {
+            if (pending != null) {
+                _pendingCount -= pending.size();
+                _pendingIds.remove(table);
+            }
+            _pendingFlushes.add(table);
+            _pendingCount++;
+            return;
+        }
+
+        if (pending == null) {
+            pending = new LinkedHashSet<String>();
+            _pendingIds.put(table, pending);
+        }
+        for (Object id : ids) {
+            if (pending.add(id.toString())) {
+                _pendingCount++;
+            }
+        }
+    }
+
+    /**
+     * Lets the other nodes know that query results on these tables are stale.
+     */
+    public synchronized void invalidate(String[] tables) {
+        if (_publisher == null) {
+            return;
+        }
+
+        if (_pendingCount == 0) {
+            _pendingSince = System.currentTimeMillis();
+        }
+
+        for (String table : tables) {
+            if (!_pendingFlushes.contains(table) && !_pendingIds.containsKey(table)) {
+                _pendingIds.put(table, new LinkedHashSet<String>());
+            }
+        }
+    }
+
+    /**
+     * @return the batch of everything queued so far or null if there's nothing to send.
+     */
+    protected synchronized Batch drain() {
+        if (_pendingIds.isEmpty() && _pendingFlushes.isEmpty()) {
+            return null;
+        }
+
+        Map<String, List<String>> ids = new HashMap<String, List<String>>(_pendingIds.size());
+        for (Map.Entry<String, Set<String>> entry : _pendingIds.entrySet()) {
+            ids.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+        }
+        Batch batch = new Batch(_origin, ++_seq, _pendingSince, ids, new ArrayList<String>(_pendingFlushes));
+
+        _pendingIds = new LinkedHashMap<String, Set<String>>();
+        _pendingFlushes = new LinkedHashSet<String>();
+        _pendingCount = 0;
+        return batch;
+    }
+
+    /**
+     * Sends whatever is queued up right now.
+     */
+    public void flush() {
+        Publisher publisher;
+        Batch batch;
+        synchronized (this) {
+            publisher = _publisher;
+            batch = drain();
+        }
+        if (publisher == null || batch == null) {
+            return;
+        }
+
+        publisher.publish(batch);
+        _batchesSent.incrementAndGet();
+        _evictionsSent.addAndGet(batch.getEvictionCount());
+    }
+
+    /**
+     * Called by the publisher once a peer has accepted, or failed to accept, a batch.
+     */
+    public void recordDelivery(String peer, Batch batch, boolean success) {
+        PeerStats stats = getPeerStats(peer);
+        long lag = System.currentTimeMillis() - batch.getCreated();
+        synchronized (stats) {
+            if (success) {
+                stats.delivered++;
+                stats.lastDelivery = lag;
+                stats.totalDelivery += lag;
+                if (lag > stats.maxDelivery) {
+                    stats.maxDelivery = lag;
+                }
+            } else {
+                stats.failed++;
+            }
+        }
+        if (!success) {
+            _publishFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Applies a batch sent by another node to the caches here.
+     */
+    public void receive(Batch batch) {
+        long lag = System.currentTimeMillis() - batch.getCreated();
+        PeerStats stats = getPeerStats(batch.getOrigin());
+        boolean lost = false;
+        synchronized (stats) {
+            if (stats.lastSeq != 0 && batch.getSeq() > stats.lastSeq + 1) {
+                stats.gaps += batch.getSeq() - stats.lastSeq - 1;
+                lost = true;
+            }
+            stats.lastSeq = batch.getSeq();
+            stats.received++;
+            stats.evictions += batch.getEvictionCount();
+            stats.lastLag = lag;
+            stats.totalLag += Math.max(lag, 0);
+            if (lag > stats.maxLag) {
+                stats.maxLag = lag;
+            }
+        }
+        _batchesReceived.incrementAndGet();
+        _evictionsReceived.addAndGet(batch.getEvictionCount());
+
+        if (lost) {
+            s_logger.warn("Missed cache invalidations from " + batch.getOrigin() + " before " + batch.getSeq() + ", dropping all entity caches");
+            GenericDaoBase.evictAllFromLocalCaches();
+        }
+
+        TreeSet<String> tables = new TreeSet<String>();
+        if (batch.getIds() != null) {
+            for (Map.Entry<String, List<String>> entry : batch.getIds().entrySet()) {
+                if (entry.getValue().size() > 0) {
+                    GenericDaoBase.evictFromLocalCaches(entry.getKey(), entry.getValue());
+                }
+                tables.add(entry.getKey());
+            }
+        }
+        if (batch.getFlushes() != null) {
+            for (String table : batch.getFlushes()) {
+                GenericDaoBase.evictFromLocalCaches(table, null);
+                tables.add(table);
+            }
+        }
+        QueryCache.invalidate(tables.toArray(new String[tables.size()]));
+
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Applied " + batch + " with a lag of " + lag + " ms");
+        }
+    }
+
+    protected PeerStats getPeerStats(String peer) {
+        PeerStats stats = _peers.get(peer);
+        if (stats == null) {
+            synchronized (_peers) {
+                stats = _peers.get(peer);
+                if (stats == null) {
+                    stats = new PeerStats();
+                    _peers.put(peer, stats);
+                }
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public synchronized int getPendingCount() {
+        return _pendingCount;
+    }
+
+    @Override
+    public long getBatchesSent() {
+        return _batchesSent.get();
+    }
+
+    @Override
+    public long getEvictionsSent() {
+        return _evictionsSent.get();
+    }
+
+    @Override
+    public long getPublishFailures() {
+        return _publishFailures.get();
+    }
+
+    @Override
+    public long getBatchesReceived() {
+        return _batchesReceived.get();
+    }
+
+    @Override
+    public long getEvictionsReceived() {
+        return _evictionsReceived.get();
+    }
+
+    @Override
+    public List<Map<String, String>> getPeerLag() {
+        List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+        for (Map.Entry<String, PeerStats> entry : _peers.entrySet()) {
+            PeerStats stats = entry.getValue();
+            Map<String, String> row = new LinkedHashMap<String, String>();
+            row.put("peer", entry.getKey());
+            synchronized (stats) {
+                row.put("batchesReceived", Long.toString(stats.received));
+                row.put("evictionsReceived", Long.toString(stats.evictions));
+                row.put("lastLagMs", Long.toString(stats.lastLag));
+                row.put("avgLagMs", Long.toString(stats.received > 0 ? stats.totalLag / stats.received : 0));
+                row.put("maxLagMs", Long.toString(stats.maxLag));
+                row.put("sequenceGaps", Long.toString(stats.gaps));
+                row.put("batchesDelivered", Long.toString(stats.delivered));
+                row.put("deliveryFailures", Long.toString(stats.failed));
+                row.put("lastDeliveryMs", Long.toString(stats.lastDelivery));
+                row.put("avgDeliveryMs", Long.toString(stats.delivered > 0 ? stats.totalDelivery / stats.delivered : 0));
+                row.put("maxDeliveryMs", Long.toString(stats.maxDelivery));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    @Override
+    public void resetStatistics() {
+        for (PeerStats stats : _peers.values()) {
+            synchronized (stats) {
+                long lastSeq = stats.lastSeq;
+                stats.received = stats.evictions = stats.gaps = stats.lastLag = stats.maxLag = stats.totalLag = 0;
+                stats.delivered = stats.failed = stats.lastDelivery = stats.maxDelivery = stats.totalDelivery = 0;
+                stats.lastSeq = lastSeq;
+            }
+        }
+        _batchesSent.set(0);
+        _evictionsSent.set(0);
+        _publishFailures.set(0);
+        _batchesReceived.set(0);
+        _evictionsReceived.set(0);
+    }
+}
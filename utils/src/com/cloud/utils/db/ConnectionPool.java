@@ -0,0 +1,110 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import com.cloud.utils.LatencyHistogram;
+
+/**
+ * ConnectionPool is a dbcp pool with a name that keeps how long callers
+ * waited for a connection and how long Transaction held on to it.
+ * Connections handed out through getStandaloneConnection() are returned
+ * by whoever took them so their hold time isn't known.
+ */
+public class ConnectionPool {
+    private final String _name;
+    private final GenericObjectPool _pool;
+    private final DataSource _ds;
+
+    private final LatencyHistogram _wait = new LatencyHistogram();
+    private final LatencyHistogram _held = new LatencyHistogram();
+    private final AtomicLong _failures = new AtomicLong();
+
+    public ConnectionPool(String name, GenericObjectPool pool, DataSource ds) {
+        _name = name;
+        _pool = pool;
+        _ds = ds;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public Connection getConnection() throws SQLException {
+        long start = System.currentTimeMillis();
+        try {
+            return _ds.getConnection();
+        } catch (SQLException e) {
+            _failures.incrementAndGet();
+            throw e;
+        } finally {
+            _wait.record(System.currentTimeMillis() - start);
+        }
+    }
+
+    public void returned(long heldMillis) {
+        _held.record(heldMillis);
+    }
+
+    public LatencyHistogram getWaitTimes() {
+        return _wait;
+    }
+
+    public LatencyHistogram getHoldTimes() {
+        return _held;
+    }
+
+    public Map<String, String> getStatistics() {
+        Map<String, String> row = new LinkedHashMap<String, String>();
+        row.put("pool", _name);
+        if (_pool != null) {
+            row.put("active", Integer.toString(_pool.getNumActive()));
+            row.put("idle", Integer.toString(_pool.getNumIdle()));
+            row.put("maxActive", Integer.toString(_pool.getMaxActive()));
+        }
+        row.put("borrowed", Long.toString(_wait.getCount()));
+        row.put("failures", Long.toString(_failures.get()));
+        row.put("waitAvgMs", Long.toString(_wait.getAverage()));
+        row.put("waitP99Ms", Long.toString(_wait.getPercentile(99)));
+        row.put("waitMaxMs", Long.toString(_wait.getMax()));
+        row.put("heldAvgMs", Long.toString(_held.getAverage()));
+        row.put("heldP99Ms", Long.toString(_held.getPercentile(99)));
+        row.put("heldMaxMs", Long.toString(_held.getMax()));
+        return row;
+    }
+
+    public void resetStatistics() {
+        _wait.reset();
+        _held.reset();
+        _failures.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return _name;
+    }
+}
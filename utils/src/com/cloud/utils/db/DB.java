@@ -48,6 +48,10 @@ import java.lang.annotation.Target;
  *    While this is not required, it helps when you're debugging
  *    the code and it saves on method calls during runtime.
  *
+ * 4. Annotate methods that only read, such as list APIs and
+ *    reports, with @DB(readOnly=true) so their selects can be
+ *    answered by a replica of the database.
+ *
  */
 @Target({TYPE, METHOD})
 @Retention(RUNTIME)
@@ -60,4 +64,13 @@ public @interface DB {
      * the method is not surrounded with transaction code.
      */
     boolean txn() default true;
+
+    /**
+     * (Optional) Specifies that the method only reads.  Selects
+     * made within it go to a replica of the database that has
+     * caught up with what the transaction wrote, if there's one.
+     * Writes and anything within a DB transaction still go to the
+     * primary.
+     */
+    boolean readOnly() default false;
 }
\ No newline at end of file
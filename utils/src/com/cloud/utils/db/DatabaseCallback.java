@@ -19,6 +19,7 @@ package com.cloud.utils.db;
 
 import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.sf.cglib.proxy.Callback;
 import net.sf.cglib.proxy.MethodInterceptor;
@@ -27,6 +28,7 @@ import net.sf.cglib.proxy.MethodProxy;
 import com.cloud.utils.component.AnnotationInterceptor;
 
 public class DatabaseCallback implements MethodInterceptor, AnnotationInterceptor<Transaction> {
+    private static final ConcurrentHashMap<AnnotatedElement, Boolean> s_readOnly = new ConcurrentHashMap<AnnotatedElement, Boolean>();
 
     @Override
     public Object intercept(Object object, Method method, Object[] args, MethodProxy methodProxy) throws Throwable {
@@ -44,36 +46,60 @@ public class DatabaseCallback implements MethodInterceptor, AnnotationIntercepto
             return false;
             
         }
-        Method method = (Method)element;
+        DB db = getAnnotation((Method)element);
+        return db != null && db.txn();
+    }
+
+    protected static DB getAnnotation(Method method) {
         DB db = method.getAnnotation(DB.class);
         if (db != null) {
-            return db.txn();
+            return db;
         }
         
         Class<?> clazz = method.getDeclaringClass();
         do {
             db = clazz.getAnnotation(DB.class);
             if (db != null) {
-                return db.txn();
+                return db;
             }
             clazz = clazz.getSuperclass();
         } while (clazz != Object.class && clazz != null);
         
-        return false;
+        return null;
+    }
+
+    protected static boolean isReadOnly(AnnotatedElement element) {
+        Boolean readOnly = s_readOnly.get(element);
+        if (readOnly == null) {
+            DB db = getAnnotation((Method)element);
+            readOnly = db != null && db.readOnly();
+            s_readOnly.put(element, readOnly);
+        }
+        return readOnly;
     }
 
     @Override
     public Transaction interceptStart(AnnotatedElement element) {
-        return Transaction.open(((Method)element).getName());
+        Transaction txn = Transaction.open(((Method)element).getName());
+        if (isReadOnly(element)) {
+            txn.startReadOnly();
+        }
+        return txn;
     }
 
     @Override
     public void interceptComplete(AnnotatedElement element, Transaction txn) {
+        if (isReadOnly(element)) {
+            txn.endReadOnly();
+        }
         txn.close();
     }
 
     @Override
     public void interceptException(AnnotatedElement element, Transaction txn) {
+        if (isReadOnly(element)) {
+            txn.endReadOnly();
+        }
         txn.close();
     }
 
@@ -35,6 +35,7 @@ import com.cloud.utils.exception.CloudRuntimeException;
 public class EcInfo {
     protected String insertSql;
     protected String selectSql;
+    protected String selectInSql;
     protected String clearSql;
     protected Class<?> targetClass;
     protected Class<?> rawClass;
@@ -97,6 +98,8 @@ public class EcInfo {
         }
 
         selectSql = selectBuf.append(idAttr.table).append(".").append(idAttr.columnName).append("=?").toString();
+        // same select for many ids at once, returning the id with each value; the ids and the closing paren are added when used
+        selectInSql = "SELECT " + idAttr.table + "." + idAttr.columnName + ", " + selectSql.substring("SELECT ".length(), selectSql.length() - "=?".length()) + " IN (";
         insertBuf.append(attr.columnName).append(") ");
         valuesBuf.append("? FROM ").append(attr.table);
         valuesBuf.append(" WHERE ").append(idAttr.table).append(".").append(idAttr.columnName).append("=?");
@@ -18,6 +18,7 @@
 package com.cloud.utils.db;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -56,6 +57,15 @@ public interface GenericDao<T, ID extends Serializable> {
     T findByIdIncludingRemoved(ID id);
     
     T findById(ID id, boolean fresh);
+
+    /**
+     * Looks up many entity beans with IN queries instead of one query per id.  Does not lock the rows.
+     * @param ids database ids; duplicates and nulls are ignored.
+     * @return the entity beans found, by id.  Ids that aren't found or are removed aren't in the map.
+     */
+    Map<ID, T> findByIds(Collection<ID> ids);
+
+    Map<ID, T> findByIdsIncludingRemoved(Collection<ID> ids);
     
     /**
      * @return VO object ready to be used for update.  It won't have any fields filled in.
@@ -183,7 +193,35 @@ public interface GenericDao<T, ID extends Serializable> {
      * there's no primary key specified in the VO object.
      **/
     T persist(T entity);
-    
+
+    /**
+     * Persist many entity beans, sending the rows of each table as multi-row
+     * inserts.  The id field of each entity is updated with the new id.
+     * Entity beans that came from this dao are updated instead.  Unlike
+     * persist() the rows aren't read back.
+     * @param entities the beans to persist.
+     * @return the same beans.
+     **/
+    List<T> persistBatch(List<T> entities);
+
+    /**
+     * Write the changes made to many entity beans that came from this dao.
+     * Beans with the same fields changed are sent as one JDBC batch.
+     * @param entities the beans that were changed.
+     * @return rows updated for each bean, in the order given, as reported by the driver.
+     **/
+    int[] updateBatch(List<T> entities);
+
+    /**
+     * Insert the entity beans, overwriting the updatable columns of any row
+     * they collide with on the primary key or a unique key.  Generated ids
+     * are not set on the beans since the database doesn't say which rows
+     * were inserted.  Only works on entities that live in one table.
+     * @param entities the beans to write.
+     * @return rows affected as MySQL counts them: 1 per insert, 2 per row changed.
+     **/
+    int upsert(List<T> entities);
+
     /**
      * remove the entity bean.  This will call delete automatically if
      * the entity bean does not have a removed field.
@@ -21,6 +21,7 @@ import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.net.MalformedURLException;
@@ -38,11 +39,15 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.naming.ConfigurationException;
 import javax.persistence.AttributeOverride;
@@ -70,6 +75,7 @@ import com.cloud.utils.Pair;
 import com.cloud.utils.Ternary;
 import com.cloud.utils.db.SearchCriteria.SelectType;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.Ip;
 import com.cloud.utils.net.NetUtils;
 
@@ -103,6 +109,12 @@ import edu.emory.mathcs.backport.java.util.Collections;
  *    5. Id
  *    6. SecondaryTable
  * 
+ *  Besides the findById cache, a DAO can turn on a QueryCache for the
+ *  results of its searches with the query.cache.size parameter.  Every
+ *  write that goes through GenericDaoBase invalidates the results read
+ *  from the tables it touched once it is committed.  Nothing read from a
+ *  replica is cached, since it can be behind what was committed.
+ * 
  *  Sometime later, I might look into injecting the SQLs as needed but right
  *  now we have to construct them at construction time.  The good thing is that
  *  the DAOs are suppose to be one per jvm so the time is all during the
@@ -116,6 +128,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     protected final static Map<Class<?>, GenericDaoBase<?, ? extends Serializable>> s_daoMaps = new ConcurrentHashMap<Class<?>, GenericDaoBase<?, ? extends Serializable>>(71);
+    protected final static Map<String, List<GenericDaoBase<?, ? extends Serializable>>> s_tableDaos = new ConcurrentHashMap<String, List<GenericDaoBase<?, ? extends Serializable>>>(71);
 
     protected Class<T> _entityBeanType;
     protected String _table;
@@ -141,10 +154,23 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     protected final Map<String, Attribute> _allAttributes;
     protected final List<Attribute> _ecAttributes;
     protected final Map<Pair<String, String>, Attribute> _allColumns;
+    // every instance field of the entity, for handing out copies of the cached entities
+    protected final List<Field> _entityFields = new ArrayList<Field>();
+    // compiled for the column lists this dao has read so far; there are only a few, so the list stays short
+    protected final List<RowMapper> _rowMappers = new CopyOnWriteArrayList<RowMapper>();
     protected Enhancer _enhancer;
     protected Factory _factory;
     protected Enhancer _searchEnhancer;
     protected int _timeoutSeconds;
+    protected String[] _queryTables;
+    protected String[] _entityTables;
+    protected final Runnable _queryCacheInvalidator = new Runnable() {
+        @Override
+        public void run() {
+            QueryCache.invalidate(_queryTables);
+            CacheInvalidationBus.getInstance().invalidate(_queryTables);
+        }
+    };
 
     protected final static CallbackFilter s_callbackFilter = new UpdateFilter();
 
@@ -152,10 +178,17 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     protected static final String SHARE_MODE_CLAUSE = " LOCK IN SHARE MODE";
     protected static final String SELECT_LAST_INSERT_ID_SQL = "SELECT LAST_INSERT_ID()";
 
+    protected static final int MAX_IDS_PER_QUERY = 500;
+    protected static final int MAX_ROW_MAPPERS = 16;
+    protected static final int DEFAULT_BATCH_SIZE = 100;
     protected static final SequenceFetcher s_seqFetcher = SequenceFetcher.getInstance();
 
     protected String _name;
 
+    // rows sent in one statement by persistBatch, updateBatch and upsert
+    protected int _batchSize = DEFAULT_BATCH_SIZE;
+    protected final BatchStatistics _batchStats;
+
     public static <J> GenericDaoBase<? extends J, ? extends Serializable> getDao(Class<J> entityType) {
         @SuppressWarnings("unchecked")
         GenericDaoBase<? extends J, ? extends Serializable> dao = (GenericDaoBase<? extends J, ? extends Serializable>)s_daoMaps.get(entityType);
@@ -218,6 +251,38 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         _removed = generator.getRemovedAttribute();
         _tgs = generator.getTableGenerators();
         _ecAttributes = generator.getElementCollectionAttributes();
+        _batchStats = new BatchStatistics(_table);
+
+        TreeSet<String> tables = new TreeSet<String>();
+        for (Attribute attr : _allAttributes.values()) {
+            tables.add(attr.table);
+        }
+        _entityTables = tables.toArray(new String[tables.size()]);
+        for (Class<?> clazz = _entityBeanType; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    _entityFields.add(field);
+                }
+            }
+        }
+        for (String table : _entityTables) {
+            List<GenericDaoBase<?, ? extends Serializable>> daos = s_tableDaos.get(table);
+            if (daos == null) {
+                synchronized (s_tableDaos) {
+                    daos = s_tableDaos.get(table);
+                    if (daos == null) {
+                        daos = new CopyOnWriteArrayList<GenericDaoBase<?, ? extends Serializable>>();
+                        s_tableDaos.put(table, daos);
+                    }
+                }
+            }
+            daos.add(this);
+        }
+        for (Attribute attr : _ecAttributes) {
+            tables.add(attr.table);
+        }
+        _queryTables = tables.toArray(new String[tables.size()]);
 
         TableGenerator tg = this.getClass().getAnnotation(TableGenerator.class);
         if (tg != null) {
@@ -345,10 +410,23 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
         final String sql = str.toString();
 
+        Object[] params = null;
+        String[] tables = null;
+        long[] versions = null;
+        if (lock == null && isQueryCacheable(txn)) {
+            params = getQueryParams(sc, clause != null, joins, groupByValues);
+            List<T> cached = _queryCache.get(sql, params);
+            if (cached != null) {
+                return cached;
+            }
+            tables = getQueryTables(joins);
+            versions = QueryCache.getVersions(tables);
+        }
+
         PreparedStatement pstmt = null;
         final List<T> result = new ArrayList<T>();
         try {
-            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt = txn.prepareAutoCloseReadStatement(sql);
             int i = 0;
             if (clause != null) {
                 for (final Pair<Attribute, Object> value : sc.getValues()) {
@@ -370,8 +448,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 txn.registerLock(pstmt.toString());
             }
             final ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                result.add(toEntityBean(rs, cache));
+            // nothing read from a replica goes into the caches; it may be older than what the others have seen committed
+            final boolean replica = txn.isReplicaStatement(pstmt);
+            result.addAll(toEntityBeans(rs, cache && !replica));
+            if (versions != null && !replica) {
+                _queryCache.put(sql, params, tables, versions, result);
             }
             return result;
         } catch (final SQLException e) {
@@ -407,9 +488,22 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         final String sql = str.toString();
 
         final Transaction txn = Transaction.currentTxn();
+        Object[] params = null;
+        String[] tables = null;
+        long[] versions = null;
+        if (isQueryCacheable(txn)) {
+            params = getQueryParams(sc, clause != null, joins, groupByValues);
+            List<M> cached = _queryCache.get(sql, params);
+            if (cached != null) {
+                return cached;
+            }
+            tables = getQueryTables(joins);
+            versions = QueryCache.getVersions(tables);
+        }
+
         PreparedStatement pstmt = null;
         try {
-            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt = txn.prepareAutoCloseReadStatement(sql);
             int i = 0;
             if (clause != null) {
                 for (final Pair<Attribute, Object> value : sc.getValues()) {
@@ -431,20 +525,25 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             SelectType st = sc.getSelectType();
             ArrayList<M> results = new ArrayList<M>();
             List<Field> fields = sc.getSelectFields();
-            while (rs.next()) {
-                if (st == SelectType.Entity) {
-                    results.add((M)toEntityBean(rs, false));
-                } else if (st == SelectType.Fields || st == SelectType.Result) {
-                    M m = sc.getResultType().newInstance();
-                    for (int j = 1; j <= fields.size(); j++) {
-                        setField(m, fields.get(j - 1), rs, j);
+            if (st == SelectType.Entity) {
+                results.addAll((List<M>)toEntityBeans(rs, false));
+            } else {
+                while (rs.next()) {
+                    if (st == SelectType.Fields || st == SelectType.Result) {
+                        M m = sc.getResultType().newInstance();
+                        for (int j = 1; j <= fields.size(); j++) {
+                            setField(m, fields.get(j - 1), rs, j);
+                        }
+                        results.add(m);
+                    } else if (st == SelectType.Single) {
+                        results.add(getObject(sc.getResultType(), rs, 1));
                     }
-                    results.add(m);
-                } else if (st == SelectType.Single) {
-                    results.add(getObject(sc.getResultType(), rs, 1));
                 }
             }
 
+            if (versions != null && !txn.isReplicaStatement(pstmt)) {
+                _queryCache.put(sql, params, tables, versions, results);
+            }
             return results;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -770,6 +869,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             int result = pstmt.executeUpdate();
+            invalidateQueryCache(txn);
+            evictCachedEntities(txn, getCachedIds(sc));
             txn.commit();
             ub.clear();
             return result;
@@ -855,7 +956,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     public T findById(final ID id) {
         if (_cache != null) {
             final Element element = _cache.get(id);
-            return element == null ? lockRow(id, null) : (T)element.getObjectValue();
+            return element == null ? lockRow(id, null) : copyOf((T)element.getObjectValue());
         } else {
             return lockRow(id, null);
         }
@@ -875,7 +976,43 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         if (_cache != null) {
             _cache.remove(id);
         }
-        return lockRow(id, null);
+        return findById(id, false, null, true);
+    }
+
+    @Override @DB(txn=false)
+    public Map<ID, T> findByIds(Collection<ID> ids) {
+        return findByIds(ids, false);
+    }
+
+    @Override @DB(txn=false)
+    public Map<ID, T> findByIdsIncludingRemoved(Collection<ID> ids) {
+        return findByIds(ids, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Map<ID, T> findByIds(Collection<ID> ids, boolean removed) {
+        Map<ID, T> entities = new HashMap<ID, T>();
+        List<Object> unique = new ArrayList<Object>(new LinkedHashSet<Object>(ids));
+        unique.remove(null);
+        if (unique.isEmpty()) {
+            return entities;
+        }
+        assert _idField != null && _idField.getAnnotation(EmbeddedId.class) == null : "Only simple ids can be looked up in bulk";
+
+        try {
+            for (int i = 0; i < unique.size(); i += MAX_IDS_PER_QUERY) {
+                List<Object> chunk = unique.subList(i, Math.min(i + MAX_IDS_PER_QUERY, unique.size()));
+                SearchCriteria<T> sc = createSearchCriteria();
+                sc.addAnd(_idField.getName(), SearchCriteria.Op.IN, chunk.toArray());
+                List<T> found = removed ? searchIncludingRemoved(sc, null, null, false) : search(sc, null, null, false);
+                for (T entity : found) {
+                    entities.put((ID)_idField.get(entity), entity);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to get the id of " + _entityBeanType, e);
+        }
+        return entities;
     }
 
     @Override @DB(txn=false)
@@ -884,6 +1021,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     protected T findById(ID id, boolean removed, Boolean lock) {
+        return findById(id, removed, lock, false);
+    }
+
+    protected T findById(ID id, boolean removed, Boolean lock, boolean fresh) {
         StringBuilder sql = new StringBuilder(_selectByIdSql);
         if (!removed && _removed != null) {
             sql.append(" AND ").append(_removed.first());
@@ -892,16 +1033,38 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             sql.append(lock ? FOR_UPDATE_CLAUSE : SHARE_MODE_CLAUSE);
         }
         Transaction txn = Transaction.currentTxn();
+
+        Object[] params = null;
+        long[] versions = null;
+        if (lock == null && isQueryCacheable(txn)) {
+            params = new Object[] { id };
+            if (!fresh) {
+                List<T> cached = _queryCache.get(sql.toString(), params);
+                if (cached != null) {
+                    return cached.isEmpty() ? null : cached.get(0);
+                }
+            }
+            versions = QueryCache.getVersions(_queryTables);
+        }
+
         PreparedStatement pstmt = null;
         try {
-            pstmt = txn.prepareAutoCloseStatement(sql.toString());
+            pstmt = txn.prepareAutoClosePrimaryStatement(sql.toString());
 
             if (_idField.getAnnotation(EmbeddedId.class) == null) {
                 prepareAttribute(1, pstmt, _idAttributes.get(_table)[0], id);
             }
 
             ResultSet rs = pstmt.executeQuery();
-            return rs.next() ? toEntityBean(rs, true) : null;
+            T entity = rs.next() ? toEntityBean(rs, true) : null;
+            if (versions != null) {
+                List<T> result = new ArrayList<T>(1);
+                if (entity != null) {
+                    result.add(entity);
+                }
+                _queryCache.put(sql.toString(), params, _queryTables, versions, result);
+            }
+            return entity;
         } catch (SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         }
@@ -997,18 +1160,29 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     protected List<T> executeList(final String sql, final Object... params) {
         final Transaction txn = Transaction.currentTxn();
+        long[] versions = null;
+        if (isQueryCacheable(txn)) {
+            List<T> cached = _queryCache.get(sql, params);
+            if (cached != null) {
+                return cached;
+            }
+            versions = QueryCache.getVersions(_queryTables);
+        }
+
         PreparedStatement pstmt = null;
         final List<T> result = new ArrayList<T>();
         try {
-            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt = txn.prepareAutoCloseReadStatement(sql);
             int i = 0;
             for (final Object param : params) {
                 pstmt.setObject(++i, param);
             }
 
             final ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                result.add(toEntityBean(rs, true));
+            final boolean replica = txn.isReplicaStatement(pstmt);
+            result.addAll(toEntityBeans(rs, !replica));
+            if (versions != null && !replica) {
+                _queryCache.put(sql, params, _queryTables, versions, result);
             }
             return result;
         } catch (final SQLException e) {
@@ -1055,6 +1229,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 pstmt.executeUpdate();
             }
 
+            invalidateQueryCache(txn);
+            evictCachedEntities(txn, Collections.singletonList(id));
             txn.commit();
             if (_cache != null) {
                 _cache.remove(id);
@@ -1086,7 +1262,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            int result = pstmt.executeUpdate();
+            invalidateQueryCache(txn);
+            evictCachedEntities(txn, getCachedIds(sc));
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1234,6 +1413,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 
                 insertElementCollection(entity, _idAttributes.get(_table)[0], id, ecAttributes);
             }
+            invalidateQueryCache(txn);
             txn.commit();
         } catch (final SQLException e) {
             if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
@@ -1250,6 +1430,245 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override
+    public List<T> persistBatch(final List<T> entities) {
+        assert _idField != null && _idField.getAnnotation(EmbeddedId.class) == null : "Only entities with simple ids can be persisted in bulk";
+
+        // rows that bring their own ids can't share an insert with rows that get theirs from the database;
+        // the driver only knows the first id generated and counts up from there.
+        List<T> assigned = new ArrayList<T>();
+        List<T> generated = new ArrayList<T>();
+        List<T> existing = new ArrayList<T>();
+        try {
+            for (T entity : entities) {
+                if (Enhancer.isEnhanced(entity.getClass())) {
+                    existing.add(entity);
+                } else if (isIdAssigned(_idField.get(entity))) {
+                    assigned.add(entity);
+                } else {
+                    generated.add(entity);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to get the id of " + _entityBeanType, e);
+        }
+
+        final Transaction txn = Transaction.currentTxn();
+        txn.start();
+        if (existing.size() > 0) {
+            updateBatch(existing);
+        }
+        insertRows(txn, assigned, false);
+        insertRows(txn, generated, true);
+        invalidateQueryCache(txn);
+        txn.commit();
+        return entities;
+    }
+
+    protected boolean isIdAssigned(Object id) {
+        // a primitive id that's still 0 is left to auto increment just like a null one.
+        return id != null && !(id instanceof Number && ((Number)id).longValue() == 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void insertRows(Transaction txn, List<T> entities, boolean generateIds) {
+        if (entities.isEmpty()) {
+            return;
+        }
+
+        PreparedStatement pstmt = null;
+        try {
+            boolean first = true;
+            for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                final Attribute[] attrs = pair.second();
+                for (int start = 0; start < entities.size(); start += _batchSize) {
+                    List<T> chunk = entities.subList(start, Math.min(start + _batchSize, entities.size()));
+                    String sql = SqlGenerator.buildMultiRowInsertSql(pair.first(), attrs.length, chunk.size()).toString();
+                    pstmt = txn.prepareAutoCloseStatement(sql, Statement.RETURN_GENERATED_KEYS);
+
+                    int index = 1;
+                    for (T entity : chunk) {
+                        index = prepareAttributes(pstmt, entity, attrs, index) + 1;
+                    }
+                    pstmt.executeUpdate();
+                    _batchStats.recordInsert(chunk.size());
+
+                    if (first && generateIds) {
+                        final ResultSet rs = pstmt.getGeneratedKeys();
+                        for (T entity : chunk) {
+                            if (rs == null || !rs.next()) {
+                                throw new CloudRuntimeException("Expected " + chunk.size() + " generated keys from " + pstmt);
+                            }
+                            _idField.set(entity, (ID)rs.getObject(1));
+                        }
+                    }
+                }
+                first = false;
+            }
+
+            if (_ecAttributes != null && _ecAttributes.size() > 0) {
+                for (T entity : entities) {
+                    HashMap<Attribute, Object> ecAttributes = new HashMap<Attribute, Object>();
+                    for (Attribute attr : _ecAttributes) {
+                        Object ec = attr.field.get(entity);
+                        if (ec != null) {
+                            ecAttributes.put(attr, ec);
+                        }
+                    }
+                    insertElementCollection(entity, _idAttributes.get(_table)[0], (ID)_idField.get(entity), ecAttributes);
+                }
+            }
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Problem with setting the id or getting the ec attribute ", e);
+        }
+    }
+
+    @Override
+    public int[] updateBatch(final List<T> entities) {
+        final int[] rows = new int[entities.size()];
+
+        // entities with the same changes can share the statement
+        Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+        List<Integer> collections = new ArrayList<Integer>();
+        for (int i = 0; i < entities.size(); i++) {
+            UpdateBuilder ub = getUpdateBuilder(entities.get(i));
+            if (ub.getCollectionChanges() != null) {
+                collections.add(i);
+            }
+            if (ub.getChanges().isEmpty()) {
+                continue;
+            }
+            StringBuilder key = new StringBuilder();
+            for (Ternary<Attribute, Boolean, Object> change : ub.getChanges()) {
+                key.append(change.first().field.getName()).append(change.second() == null ? "=" : change.second() ? "+" : "-");
+            }
+            List<Integer> group = groups.get(key.toString());
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(key.toString(), group);
+            }
+            group.add(i);
+        }
+        if (groups.isEmpty() && collections.isEmpty()) {
+            return rows;
+        }
+
+        final Attribute idAttr = _idAttributes.get(_table)[0];
+        final List<Object> ids = new ArrayList<Object>(entities.size());
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            for (Integer i : collections) {
+                T entity = entities.get(i);
+                @SuppressWarnings("unchecked")
+                ID id = (ID)idAttr.field.get(entity);
+                insertElementCollection(entity, idAttr, id, getUpdateBuilder(entity).getCollectionChanges());
+                ids.add(id);
+            }
+
+            for (List<Integer> group : groups.values()) {
+                StringBuilder sql = null;
+                for (int start = 0; start < group.size(); start += _batchSize) {
+                    List<Integer> chunk = group.subList(start, Math.min(start + _batchSize, group.size()));
+                    for (Integer i : chunk) {
+                        Object id = idAttr.field.get(entities.get(i));
+                        SearchCriteria<T> sc = createSearchCriteria();
+                        sc.addAnd(idAttr, SearchCriteria.Op.EQ, id);
+                        UpdateBuilder ub = getUpdateBuilder(entities.get(i));
+                        if (sql == null) {
+                            sql = ub.toSql(_tables).append(sc.getWhereClause());
+                        }
+                        if (pstmt == null) {
+                            pstmt = txn.prepareAutoCloseStatement(sql.toString());
+                        }
+
+                        int j = 1;
+                        for (final Ternary<Attribute, Boolean, Object> value : ub.getChanges()) {
+                            prepareAttribute(j++, pstmt, value.first(), value.third());
+                        }
+                        for (Pair<Attribute, Object> value : sc.getValues()) {
+                            prepareAttribute(j++, pstmt, value.first(), value.second());
+                        }
+                        pstmt.addBatch();
+                        ids.add(id);
+                    }
+
+                    int[] counts = pstmt.executeBatch();
+                    _batchStats.recordUpdate(chunk.size());
+                    for (int k = 0; k < counts.length && k < chunk.size(); k++) {
+                        rows[chunk.get(k)] = counts[k];
+                    }
+                }
+                pstmt = null;
+            }
+
+            invalidateQueryCache(txn);
+            evictCachedEntities(txn, ids);
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists ", e);
+            }
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to get the id of " + _entityBeanType, e);
+        }
+
+        for (T entity : entities) {
+            getUpdateBuilder(entity).clear();
+        }
+        return rows;
+    }
+
+    @Override
+    public int upsert(final List<T> entities) {
+        assert _insertSqls.size() == 1 : "Only entities in a single table can be upserted";
+        if (entities.isEmpty()) {
+            return 0;
+        }
+
+        final Pair<String, Attribute[]> pair = _insertSqls.get(0);
+        final Attribute[] attrs = pair.second();
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        int rows = 0;
+        try {
+            txn.start();
+            for (int start = 0; start < entities.size(); start += _batchSize) {
+                List<T> chunk = entities.subList(start, Math.min(start + _batchSize, entities.size()));
+                StringBuilder sql = SqlGenerator.buildMultiRowInsertSql(pair.first(), attrs.length, chunk.size());
+                pstmt = txn.prepareAutoCloseStatement(SqlGenerator.buildUpsertSql(sql, attrs).toString());
+
+                int index = 1;
+                for (T entity : chunk) {
+                    index = prepareAttributes(pstmt, entity, attrs, index) + 1;
+                }
+                rows += pstmt.executeUpdate();
+                _batchStats.recordUpsert(chunk.size());
+            }
+
+            // the rows may have collided on any unique key so it's not known which ids changed.
+            invalidateQueryCache(txn);
+            evictCachedEntities(txn, null);
+            txn.commit();
+        } catch (final SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        }
+        return rows;
+    }
+
+    @DB(txn=false)
+    public BatchStatistics getBatchStatistics() {
+        return _batchStats;
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         Transaction txn = Transaction.currentTxn();
         txn.start();
@@ -1419,26 +1838,98 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
         toEntityBean(result, entity);
 
-        if (cache && _cache != null) {
+        if (cache) {
+            putInCache(entity);
+        }
+
+        return entity;
+    }
+
+    @DB(txn=false)
+    protected void toEntityBean(final ResultSet result, final T entity) throws SQLException {
+        getRowMapper(result).map(result, entity);
+        for (Attribute attr : _ecAttributes) {
+            loadCollection(entity, attr);
+        }
+    }
+
+    /**
+     * Reads the rest of the result set.  The columns are mapped the same way for every row and the element
+     * collections of all the entities are loaded together afterwards.
+     */
+    @SuppressWarnings("unchecked") @DB(txn=false)
+    protected List<T> toEntityBeans(final ResultSet result, final boolean cache) throws SQLException {
+        List<T> entities = new ArrayList<T>();
+        if (!result.next()) {
+            return entities;
+        }
+
+        RowMapper mapper = getRowMapper(result);
+        do {
+            final T entity = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
+            mapper.map(result, entity);
+            entities.add(entity);
+        } while (result.next());
+
+        if (_ecAttributes.size() > 0) {
+            loadCollections(entities);
+        }
+
+        if (cache) {
+            for (T entity : entities) {
+                putInCache(entity);
+            }
+        }
+        return entities;
+    }
+
+    @DB(txn=false)
+    protected void putInCache(T entity) {
+        if (_cache != null) {
             try {
-                _cache.put(new Element(_idField.get(entity), entity));
+                _cache.put(new Element(_idField.get(entity), copyOf(entity)));
             } catch (final Exception e) {
                 s_logger.debug("Can't put it in the cache", e);
             }
         }
+    }
 
-        return entity;
+    /**
+     * The cache never hands out the entity it keeps.  Callers change the VOs
+     * they get, updateState() bumps the updated counter for its optimistic
+     * check, so two threads can't be given the same object.  The copy is
+     * shallow: the field values themselves are shared.
+     */
+    @SuppressWarnings("unchecked") @DB(txn=false)
+    protected T copyOf(final T entity) {
+        final T copy = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
+        try {
+            for (Field field : _entityFields) {
+                field.set(copy, field.get(entity));
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to copy " + entity, e);
+        }
+        return copy;
     }
 
+    /**
+     * @return the mapper for the columns of the result set, compiled the first time they're seen.
+     */
     @DB(txn=false)
-    protected void toEntityBean(final ResultSet result, final T entity) throws SQLException {
+    protected RowMapper getRowMapper(final ResultSet result) throws SQLException {
         ResultSetMetaData meta = result.getMetaData();
-        for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
-            setField(entity, result, meta, index);
+        for (RowMapper mapper : _rowMappers) {
+            if (mapper.matches(meta)) {
+                return mapper;
+            }
         }
-        for (Attribute attr : _ecAttributes) {
-            loadCollection(entity, attr);
+
+        RowMapper mapper = new RowMapper(meta, _allColumns, this);
+        if (_rowMappers.size() < MAX_ROW_MAPPERS) {
+            _rowMappers.add(mapper);
         }
+        return mapper;
     }
 
     @DB(txn = true)
@@ -1454,55 +1945,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             pstmt.setObject(1, _idField.get(entity));
             rs = pstmt.executeQuery();
             ArrayList lst = new ArrayList();
-            if (ec.targetClass == Integer.class) {
-                while (rs.next()) {
-                    lst.add(rs.getInt(1));
-                }
-            } else if (ec.targetClass == Long.class) {
-                while (rs.next()) {
-                    lst.add(rs.getLong(1));
-                }
-            } else if (ec.targetClass == String.class) {
-                while (rs.next()) {
-                    lst.add(rs.getString(1));
-                }
-            } else if (ec.targetClass == Short.class) {
-                while (rs.next()) {
-                    lst.add(rs.getShort(1));
-                }
-            } else if (ec.targetClass == Date.class) {
-                while (rs.next()) {
-                    lst.add(DateUtil.parseDateString(s_gmtTimeZone, rs.getString(1)));
-                }
-            } else if (ec.targetClass == Boolean.class) {
-                while (rs.next()) {
-                    lst.add(rs.getBoolean(1));
-                }
-            } else {
-                assert (false) : "You'll need to add more classeses";
-            }
-    
-            if (ec.rawClass == null) {
-                Object[] array = (Object[])Array.newInstance(ec.targetClass);
-                lst.toArray(array);
-                try {
-                    attr.field.set(entity, array);
-                } catch (IllegalArgumentException e) {
-                    throw new CloudRuntimeException("Come on we screen for this stuff, don't we?", e);
-                } catch (IllegalAccessException e) {
-                    throw new CloudRuntimeException("Come on we screen for this stuff, don't we?", e);
-                }
-            } else {
-                try {
-                    Collection coll = (Collection)ec.rawClass.newInstance();
-                    coll.addAll(lst);
-                    attr.field.set(entity, coll);
-                } catch (IllegalAccessException e) {
-                    throw new CloudRuntimeException("Come on we screen for this stuff, don't we?", e);
-                } catch (InstantiationException e) {
-                    throw new CloudRuntimeException("Never should happen", e);
-                }
+            while (rs.next()) {
+                lst.add(getCollectionValue(ec, rs, 1));
             }
+            setCollection(entity, attr, lst);
         } catch (SQLException e) {
             throw new CloudRuntimeException("Error executing " + pstmt, e);
         } catch (IllegalArgumentException e) {
@@ -1523,6 +1969,115 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         }
     }
 
+    /**
+     * Loads the element collections of many entities with one query per collection for every MAX_IDS_PER_QUERY of them,
+     * instead of one per entity.
+     */
+    @DB(txn = true)
+    @SuppressWarnings("unchecked")
+    protected void loadCollections(List<T> entities) {
+        Transaction txn = Transaction.currentTxn();
+        for (Attribute attr : _ecAttributes) {
+            EcInfo ec = (EcInfo)attr.attache;
+            for (int start = 0; start < entities.size(); start += MAX_IDS_PER_QUERY) {
+                List<T> batch = entities.subList(start, Math.min(start + MAX_IDS_PER_QUERY, entities.size()));
+                StringBuilder sql = new StringBuilder(ec.selectInSql);
+                for (int i = 0; i < batch.size(); i++) {
+                    sql.append(i == 0 ? "?" : ",?");
+                }
+                sql.append(")");
+
+                PreparedStatement pstmt = null;
+                ResultSet rs = null;
+                try {
+                    pstmt = txn.prepareStatement(sql.toString());
+                    Map<Object, ArrayList> values = new HashMap<Object, ArrayList>();
+                    for (int i = 0; i < batch.size(); i++) {
+                        Object id = _idField.get(batch.get(i));
+                        pstmt.setObject(i + 1, id);
+                        values.put(id, new ArrayList());
+                    }
+
+                    rs = pstmt.executeQuery();
+                    while (rs.next()) {
+                        ArrayList lst = values.get(getObject(_idField.getType(), rs, 1));
+                        if (lst != null) {
+                            lst.add(getCollectionValue(ec, rs, 2));
+                        }
+                    }
+
+                    for (T entity : batch) {
+                        setCollection(entity, attr, values.get(_idField.get(entity)));
+                    }
+                } catch (SQLException e) {
+                    throw new CloudRuntimeException("Error executing " + pstmt, e);
+                } catch (IllegalArgumentException e) {
+                    throw new CloudRuntimeException("Error executing " + pstmt, e);
+                } catch (IllegalAccessException e) {
+                    throw new CloudRuntimeException("Error executing " + pstmt, e);
+                } finally {
+                    try {
+                        if (rs != null) {
+                            rs.close();
+                        }
+                        if (pstmt != null) {
+                            pstmt.close();
+                        }
+                    } catch (SQLException e) {
+                        s_logger.error("Why are we getting an exception at close? ", e);
+                    }
+                }
+            }
+        }
+    }
+
+    @DB(txn=false)
+    protected Object getCollectionValue(EcInfo ec, ResultSet rs, int index) throws SQLException {
+        if (ec.targetClass == Integer.class) {
+            return rs.getInt(index);
+        } else if (ec.targetClass == Long.class) {
+            return rs.getLong(index);
+        } else if (ec.targetClass == String.class) {
+            return rs.getString(index);
+        } else if (ec.targetClass == Short.class) {
+            return rs.getShort(index);
+        } else if (ec.targetClass == Date.class) {
+            return DateUtil.parseDateString(s_gmtTimeZone, rs.getString(index));
+        } else if (ec.targetClass == Boolean.class) {
+            return rs.getBoolean(index);
+        } else {
+            assert (false) : "You'll need to add more classeses";
+            return null;
+        }
+    }
+
+    @DB(txn=false)
+    @SuppressWarnings("unchecked")
+    protected void setCollection(T entity, Attribute attr, List<?> lst) {
+        EcInfo ec = (EcInfo)attr.attache;
+        if (ec.rawClass == null) {
+            Object[] array = (Object[])Array.newInstance(ec.targetClass, lst.size());
+            lst.toArray(array);
+            try {
+                attr.field.set(entity, array);
+            } catch (IllegalArgumentException e) {
+                throw new CloudRuntimeException("Come on we screen for this stuff, don't we?", e);
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Come on we screen for this stuff, don't we?", e);
+            }
+        } else {
+            try {
+                Collection coll = (Collection)ec.rawClass.newInstance();
+                coll.addAll(lst);
+                attr.field.set(entity, coll);
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Come on we screen for this stuff, don't we?", e);
+            } catch (InstantiationException e) {
+                throw new CloudRuntimeException("Never should happen", e);
+            }
+        }
+    }
+
     @Override
     public void expunge() {
         if (_removed == null) {
@@ -1537,6 +2092,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             pstmt = txn.prepareAutoCloseStatement(sql.toString());
 
             pstmt.executeUpdate();
+            invalidateQueryCache(txn);
+            evictCachedEntities(txn, null);
             txn.commit();
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on " + pstmt, e);
@@ -1569,6 +2126,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             final int result = pstmt.executeUpdate();
+            invalidateQueryCache(txn);
+            evictCachedEntities(txn, Collections.singletonList(id));
             txn.commit();
             if (_cache != null) {
                 _cache.remove(id);
@@ -1610,6 +2169,240 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         }
     }
 
+    protected QueryCache _queryCache;
+    @DB(txn=false)
+    protected void createQueryCache(final Map<String, ? extends Object> params) {
+        final int size = NumbersUtil.parseInt((String)params.get("query.cache.size"), 0);
+        if (size <= 0) {
+            _queryCache = null;
+            return;
+        }
+
+        final int live = NumbersUtil.parseInt((String)params.get("query.cache.time.to.live"), 60);
+        final int negative = NumbersUtil.parseInt((String)params.get("query.cache.negative.time.to.live"), live);
+        _queryCache = new QueryCache(getName(), size, live, negative);
+        try {
+            JmxUtil.registerMBean("QueryCache", getName(), _queryCache);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register " + getName() + " query cache for JMX", e);
+        }
+        s_logger.info("Query cache created: " + _queryCache.toString());
+    }
+
+    @DB(txn=false)
+    protected boolean isQueryCacheable(Transaction txn) {
+        // inside a transaction we may see our own uncommitted writes.
+        return _queryCache != null && !txn.dbTxnStarted();
+    }
+
+    /**
+     * Lets the query caches drop what was read from this DAO's tables once
+     * the transaction doing the write is over.
+     */
+    @DB(txn=false)
+    protected void invalidateQueryCache(Transaction txn) {
+        txn.afterCompletion(_queryCacheInvalidator);
+    }
+
+    /**
+     * Drops changed entities from the entity caches of every DAO mapping the
+     * same tables.  It's done right away, so nobody in this transaction reads
+     * the old copy, and again once the transaction is over, so nobody else
+     * caches what was there before the commit.  Then the other management
+     * servers are told about it.
+     *
+     * @param ids ids of the entities changed or null if it's not known which.
+     */
+    @DB(txn=false)
+    protected void evictCachedEntities(Transaction txn, final Collection<?> ids) {
+        if (!isEntityCached()) {
+            return;
+        }
+
+        for (String table : _entityTables) {
+            evictFromLocalCaches(table, ids);
+        }
+        txn.afterCompletion(new Runnable() {
+            @Override
+            public void run() {
+                CacheInvalidationBus bus = CacheInvalidationBus.getInstance();
+                for (String table : _entityTables) {
+                    evictFromLocalCaches(table, ids);
+                    bus.evict(table, ids);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if any DAO keeps an entity cache over the tables this DAO writes.
+     */
+    @DB(txn=false)
+    protected boolean isEntityCached() {
+        for (String table : _entityTables) {
+            List<GenericDaoBase<?, ? extends Serializable>> daos = s_tableDaos.get(table);
+            if (daos != null) {
+                for (GenericDaoBase<?, ? extends Serializable> dao : daos) {
+                    if (dao._cache != null) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return ids the search criteria is limited to or null if they can't be told.
+     */
+    @DB(txn=false)
+    protected List<Object> getCachedIds(SearchCriteria<?> sc) {
+        if (sc == null || _idField == null || _idField.getAnnotation(EmbeddedId.class) != null) {
+            return null;
+        }
+        return sc.getIdValues();
+    }
+
+    @DB(txn=false)
+    protected void evictCached(Collection<?> ids) {
+        final Cache cache = _cache;
+        if (cache == null) {
+            return;
+        }
+
+        if (ids != null) {
+            for (Object id : ids) {
+                Object key = toIdValue(id);
+                if (key == null) {
+                    ids = null;
+                    break;
+                }
+                cache.remove(key);
+            }
+        }
+
+        if (ids == null) {
+            cache.removeAll();
+        }
+    }
+
+    /**
+     * Ids coming from the other management servers are strings.  This turns
+     * them back into what the entity cache is keyed by.
+     *
+     * @return the id or null if it can't be converted.
+     */
+    @DB(txn=false)
+    protected Object toIdValue(Object id) {
+        if (_idField == null) {
+            return null;
+        }
+
+        Class<?> type = _idField.getType();
+        if (type.isInstance(id)) {
+            return id;
+        }
+
+        String str = id.toString();
+        try {
+            if (type == Long.class || type == long.class) {
+                return Long.valueOf(str);
+            } else if (type == Integer.class || type == int.class) {
+                return Integer.valueOf(str);
+            } else if (type == Short.class || type == short.class) {
+                return Short.valueOf(str);
+            } else if (type == String.class) {
+                return str;
+            }
+        } catch (NumberFormatException e) {
+            s_logger.debug("Unable to convert " + str + " to " + type);
+        }
+        return null;
+    }
+
+    /**
+     * Evicts entities from every DAO on this node that maps the table.
+     *
+     * @param ids ids to evict, as Objects or Strings, or null to drop the caches altogether.
+     */
+    public static void evictFromLocalCaches(String table, Collection<?> ids) {
+        List<GenericDaoBase<?, ? extends Serializable>> daos = s_tableDaos.get(table);
+        if (daos == null) {
+            return;
+        }
+        for (GenericDaoBase<?, ? extends Serializable> dao : daos) {
+            dao.evictCached(ids);
+        }
+    }
+
+    public static void evictAllFromLocalCaches() {
+        for (List<GenericDaoBase<?, ? extends Serializable>> daos : s_tableDaos.values()) {
+            for (GenericDaoBase<?, ? extends Serializable> dao : daos) {
+                dao.evictCached(null);
+            }
+        }
+    }
+
+    @DB(txn=false)
+    protected Object[] getQueryParams(SearchCriteria<?> sc, boolean clause, Collection<JoinBuilder<SearchCriteria<?>>> joins, List<Object> groupByValues) {
+        List<Object> params = new ArrayList<Object>();
+        if (clause) {
+            for (Pair<Attribute, Object> value : sc.getValues()) {
+                params.add(value.second());
+            }
+        }
+        if (joins != null) {
+            addJoinParams(params, joins);
+        }
+        if (groupByValues != null) {
+            params.addAll(groupByValues);
+        }
+        return params.toArray();
+    }
+
+    @DB(txn=false)
+    protected void addJoinParams(List<Object> params, Collection<JoinBuilder<SearchCriteria<?>>> joins) {
+        for (JoinBuilder<SearchCriteria<?>> join : joins) {
+            for (Pair<Attribute, Object> value : join.getT().getValues()) {
+                params.add(value.second());
+            }
+        }
+        for (JoinBuilder<SearchCriteria<?>> join : joins) {
+            if (join.getT().getJoins() != null) {
+                addJoinParams(params, join.getT().getJoins());
+            }
+        }
+    }
+
+    @DB(txn=false)
+    protected String[] getQueryTables(Collection<JoinBuilder<SearchCriteria<?>>> joins) {
+        if (joins == null) {
+            return _queryTables;
+        }
+        TreeSet<String> tables = new TreeSet<String>();
+        for (String table : _queryTables) {
+            tables.add(table);
+        }
+        addJoinTables(tables, joins);
+        return tables.toArray(new String[tables.size()]);
+    }
+
+    @DB(txn=false)
+    protected void addJoinTables(TreeSet<String> tables, Collection<JoinBuilder<SearchCriteria<?>>> joins) {
+        for (JoinBuilder<SearchCriteria<?>> join : joins) {
+            tables.add(join.getFirstAttribute().table);
+            tables.add(join.getSecondAttribute().table);
+            if (join.getT().getJoins() != null) {
+                addJoinTables(tables, join.getT().getJoins());
+            }
+        }
+    }
+
+    @DB(txn=false)
+    public QueryCache getQueryCache() {
+        return _queryCache;
+    }
+
     @Override @DB(txn=false)
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
         _name = name;
@@ -1618,6 +2411,13 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         _timeoutSeconds = NumbersUtil.parseInt(value, 300);
 
         createCache(params);
+        createQueryCache(params);
+        _batchSize = NumbersUtil.parseInt((String)params.get("batch.size"), DEFAULT_BATCH_SIZE);
+        try {
+            JmxUtil.registerMBean("DaoBatches", getName(), _batchStats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register " + getName() + " batch statistics for JMX", e);
+        }
         final boolean load = Boolean.parseBoolean((String)params.get("cache.preload"));
         if (load) {
             listAll();
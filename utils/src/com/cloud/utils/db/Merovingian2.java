@@ -21,18 +21,25 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.StandardMBean;
 
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.LatencyHistogram;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.time.InaccurateClock;
@@ -53,6 +60,54 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
     private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
 
+    // Waiters are woken up as soon as a lock is let go of, here or on another
+    // management server.  This is only the safety net for a lost wakeup.
+    private static final long POLL_INTERVAL = 5000;
+
+    /**
+     * Carries lock wakeups between management servers.  Both calls must
+     * return right away; the delivery can happen later.
+     */
+    public interface PeerNotifier {
+        /**
+         * Asks the management server holding the lock to tell us when it lets go of it.
+         */
+        void subscribe(long holderMsId, String key);
+
+        /**
+         * Tells a management server waiting on the lock that it has been let go of.
+         */
+        void released(long waiterMsId, String key);
+    }
+
+    protected static class Waiters {
+        int count = 0;
+        long signals = 0;
+
+        synchronized void signal() {
+            signals++;
+            notifyAll();
+        }
+
+        /**
+         * @return true if signalled since the caller looked at signals, false if it timed out.
+         */
+        synchronized boolean await(long signalsSeen, long millis) {
+            if (signals != signalsSeen) {
+                return true;
+            }
+            try {
+                wait(millis);
+            } catch (InterruptedException e) {
+            }
+            return signals != signalsSeen;
+        }
+
+        synchronized long getSignals() {
+            return signals;
+        }
+    }
+
     TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     private final long _msId;
@@ -61,6 +116,18 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
+    private volatile PeerNotifier _notifier = null;
+    private final Map<String, Waiters> _waiters = new HashMap<String, Waiters>();
+    private final Map<String, Integer> _localHolders = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Set<Long>> _remoteWaiters = new HashMap<String, Set<Long>>();
+
+    private final LatencyHistogram _waitTimes = new LatencyHistogram();
+    private final LatencyHistogram _timeoutWaitTimes = new LatencyHistogram();
+    private final AtomicLong _contended = new AtomicLong();
+    private final AtomicLong _localWakeups = new AtomicLong();
+    private final AtomicLong _remoteWakeups = new AtomicLong();
+    private final AtomicLong _polls = new AtomicLong();
+
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
         _msId = msId;
@@ -92,6 +159,10 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return s_instance;
     }
 
+    public void setPeerNotifier(PeerNotifier notifier) {
+        _notifier = notifier;
+    }
+
 
     protected void incrCount() {
         Count count = s_tls.get();
@@ -121,32 +192,172 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
-        long startTime = InaccurateClock.getTime();
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + timeInSeconds * 1000L;
 
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000)) {
-            int count = owns(key);
+        Waiters waiters = null;
+        long subscribedTo = -1;
+        boolean polled = true;
+        try {
+            while (true) {
+                long signals = waiters != null ? waiters.getSignals() : 0;
+
+                // If another thread here has it, there's no point asking the db until it lets go.
+                Integer holder = _localHolders.get(key);
+                if (polled || holder == null || holder.intValue() == threadId) {
+                    Map<String, String> owner = isLocked(key);
+                    if (owner == null) {
+                        if (doAcquire(key, threadName, threadId)) {
+                            _waitTimes.record(System.currentTimeMillis() - startTime);
+                            return true;
+                        }
+                    } else if (owner.get("mgmt").equals(Long.toString(_msId)) && owner.get("tid").equals(Integer.toString(threadId))) {
+                        return increment(key, threadName, threadId);
+                    } else {
+                        long holderMsId = Long.parseLong(owner.get("mgmt"));
+                        PeerNotifier notifier = _notifier;
+                        if (holderMsId != _msId && holderMsId != subscribedTo && notifier != null) {
+                            notifier.subscribe(holderMsId, key);
+                            subscribedTo = holderMsId;
+                        }
+                    }
+                }
 
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
-                    return true;
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
                 }
-            }
-            try {
+
+                if (waiters == null) {
+                    // Get in line and take another look so a release in between is not missed.
+                    _contended.incrementAndGet();
+                    waiters = join(key);
+                    continue;
+                }
+
                 if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                    s_logger.trace("Waiting for lck-" + key);
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
+                polled = !waiters.await(signals, Math.min(remaining, POLL_INTERVAL));
+                if (polled) {
+                    _polls.incrementAndGet();
+                }
+                // A subscription only lasts until the holder lets go; subscribe again to whoever holds it next.
+                subscribedTo = -1;
+            }
+        } finally {
+            if (waiters != null) {
+                leave(key, waiters);
             }
         }
+
+        long waited = System.currentTimeMillis() - startTime;
+        _timeoutWaitTimes.record(waited);
         if (s_logger.isTraceEnabled()) {
-            s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (InaccurateClock.getTime() - startTime));
+            s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + waited);
         }
         return false;
     }
 
+    protected Waiters join(String key) {
+        synchronized (_waiters) {
+            Waiters waiters = _waiters.get(key);
+            if (waiters == null) {
+                waiters = new Waiters();
+                _waiters.put(key, waiters);
+            }
+            waiters.count++;
+            return waiters;
+        }
+    }
+
+    protected void leave(String key, Waiters waiters) {
+        synchronized (_waiters) {
+            if (--waiters.count == 0) {
+                _waiters.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Wakes up the threads here waiting on the lock.
+     */
+    protected boolean signal(String key) {
+        Waiters waiters;
+        synchronized (_waiters) {
+            waiters = _waiters.get(key);
+        }
+        if (waiters == null) {
+            return false;
+        }
+        waiters.signal();
+        return true;
+    }
+
+    protected void signalAll() {
+        List<Waiters> all;
+        synchronized (_waiters) {
+            all = new ArrayList<Waiters>(_waiters.values());
+        }
+        for (Waiters waiters : all) {
+            waiters.signal();
+        }
+    }
+
+    /**
+     * The lock is gone from op_lock.  Lets everyone waiting on it know.
+     */
+    protected void released(String key) {
+        Set<Long> peers;
+        synchronized (_remoteWaiters) {
+            _localHolders.remove(key);
+            peers = _remoteWaiters.remove(key);
+        }
+
+        if (signal(key)) {
+            _localWakeups.incrementAndGet();
+        }
+
+        PeerNotifier notifier = _notifier;
+        if (peers != null && notifier != null) {
+            for (Long peer : peers) {
+                notifier.released(peer, key);
+            }
+        }
+    }
+
+    /**
+     * Another management server wants to know when we let go of the lock.
+     */
+    public void onPeerSubscribe(long waiterMsId, String key) {
+        boolean held;
+        synchronized (_remoteWaiters) {
+            held = _localHolders.containsKey(key);
+            if (held) {
+                Set<Long> peers = _remoteWaiters.get(key);
+                if (peers == null) {
+                    peers = new HashSet<Long>();
+                    _remoteWaiters.put(key, peers);
+                }
+                peers.add(waiterMsId);
+            }
+        }
+
+        PeerNotifier notifier = _notifier;
+        if (!held && notifier != null) {
+            // let go of it before the subscription got here.
+            notifier.released(waiterMsId, key);
+        }
+    }
+
+    /**
+     * Another management server let go of a lock we are waiting on.
+     */
+    public void onPeerRelease(String key) {
+        _remoteWakeups.incrementAndGet();
+        signal(key);
+    }
+
     protected boolean increment(String key, String threadName, int threadId) {
         PreparedStatement pstmt = null;
         try {
@@ -194,6 +405,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("Acquired for lck-" + key);
                     }
+                    _localHolders.put(key, threadId);
                     incrCount();
                     return true;
                 }
@@ -258,6 +470,10 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt.setLong(1, msId);
             int rows = pstmt.executeUpdate();
             s_logger.info("Released " + rows + " locks for " + msId);
+            if (msId == _msId) {
+                _localHolders.clear();
+            }
+            signalAll();
         } catch (SQLException e) {
             throw new CloudRuntimeException("Unable to clear the locks", e);
         } finally {
@@ -294,8 +510,11 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                 pstmt.setString(1, key);
                 pstmt.setLong(2, _msId);
                 int result = pstmt.executeUpdate();
-                if (result == 1 && s_logger.isTraceEnabled()) {
-                    s_logger.trace("lck-" + key + " removed");
+                if (result == 1) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("lck-" + key + " removed");
+                    }
+                    released(key);
                 }
                 decrCount();
             } else  if (rows < 1) {
@@ -429,6 +648,13 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt.setString(2, threadName);
             pstmt.setInt(3, threadId);
             int rows = pstmt.executeUpdate();
+            Iterator<Map.Entry<String, Integer>> it = _localHolders.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Integer> entry = it.next();
+                if (entry.getValue().intValue() == threadId) {
+                    released(entry.getKey());
+                }
+            }
             assert (false) : "Abandon hope, all ye who enter here....There were still " + rows + ":" + c + " locks not released when the transaction ended, check for lock not released or @DB is not added to the code that using the locks!";
         } catch (SQLException e) {
             throw new CloudRuntimeException("Can't clear locks " + pstmt, e);
@@ -450,12 +676,79 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt = _concierge.conn().prepareStatement(RELEASE_LOCK_SQL);
             pstmt.setString(1, key);
             int rows = pstmt.executeUpdate();
+            released(key);
             return rows > 0;
         } catch (SQLException e) {
             s_logger.error("Unable to release lock " + key, e);
             return false;
         }
     }
+    @Override
+    public List<Map<String, String>> getWaitTimeHistogram() {
+        return _waitTimes.getBuckets();
+    }
+
+    @Override
+    public List<Map<String, String>> getTimedOutWaitTimeHistogram() {
+        return _timeoutWaitTimes.getBuckets();
+    }
+
+    @Override
+    public String getWaitTimeSummary() {
+        return _waitTimes.toString();
+    }
+
+    @Override
+    public long getAcquires() {
+        return _waitTimes.getCount();
+    }
+
+    @Override
+    public long getContendedAcquires() {
+        return _contended.get();
+    }
+
+    @Override
+    public long getTimedOutAcquires() {
+        return _timeoutWaitTimes.getCount();
+    }
+
+    @Override
+    public long getLocalWakeups() {
+        return _localWakeups.get();
+    }
+
+    @Override
+    public long getRemoteWakeups() {
+        return _remoteWakeups.get();
+    }
+
+    @Override
+    public long getPolls() {
+        return _polls.get();
+    }
+
+    @Override
+    public int getWaitingThreads() {
+        int count = 0;
+        synchronized (_waiters) {
+            for (Waiters waiters : _waiters.values()) {
+                count += waiters.count;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void resetStatistics() {
+        _waitTimes.reset();
+        _timeoutWaitTimes.reset();
+        _contended.set(0);
+        _localWakeups.set(0);
+        _remoteWakeups.set(0);
+        _polls.set(0);
+    }
+
     protected static class Count {
         public int count = 0;
     }
@@ -30,4 +30,32 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
     
     void cleanupForServer(long msId);
+    
+    /**
+     * @return how long acquires that got the lock waited for it, in ms buckets.
+     */
+    List<Map<String, String>> getWaitTimeHistogram();
+    
+    /**
+     * @return how long acquires that gave up waited, in ms buckets.
+     */
+    List<Map<String, String>> getTimedOutWaitTimeHistogram();
+    
+    String getWaitTimeSummary();
+    
+    long getAcquires();
+    
+    long getContendedAcquires();
+    
+    long getTimedOutAcquires();
+    
+    long getLocalWakeups();
+    
+    long getRemoteWakeups();
+    
+    long getPolls();
+    
+    int getWaitingThreads();
+    
+    void resetStatistics();
 }
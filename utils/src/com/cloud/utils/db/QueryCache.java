@@ -0,0 +1,287 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * QueryCache holds the results of a DAO's select statements keyed by the
+ * sql and the parameters bound to it.  Empty results are cached as well so
+ * repeated lookups of things that aren't there stay off the database too.
+ * 
+ * Every table has a write version that GenericDaoBase bumps once a change
+ * to it is committed.  A result remembers the versions of the tables it
+ * was read from, taken before the query ran, and is thrown away as soon as
+ * any of them moves.  Writes that go around GenericDaoBase (hand written
+ * sql, other management servers) are not seen, which is why the cache is
+ * opt-in per DAO and every result also has a time to live.
+ */
+public class QueryCache implements QueryCacheMBean {
+    private static final ConcurrentHashMap<String, AtomicLong> s_versions = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final String _name;
+    private final int _maxSize;
+    private final long _ttl;
+    private final long _negativeTtl;
+    private final Map<Key, Entry> _entries;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _negativeHits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    private final AtomicLong _invalidations = new AtomicLong();
+
+    /**
+     * @param name name of the cache, usually the DAO name.
+     * @param maxSize maximum number of results kept.
+     * @param ttlSeconds how long a result is kept.
+     * @param negativeTtlSeconds how long an empty result is kept.
+     */
+    public QueryCache(String name, final int maxSize, long ttlSeconds, long negativeTtlSeconds) {
+        _name = name;
+        _maxSize = maxSize;
+        _ttl = ttlSeconds * 1000;
+        _negativeTtl = negativeTtlSeconds * 1000;
+        _entries = new LinkedHashMap<Key, Entry>(Math.min(maxSize, 1024), 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, QueryCache.Entry> eldest) {
+                if (size() > _maxSize) {
+                    _evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Marks the tables as changed, which invalidates every cached result
+     * read from them in every QueryCache.
+     */
+    public static void invalidate(String[] tables) {
+        for (String table : tables) {
+            getVersion(table).incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the current write versions of the tables.  Take them before
+     *         running the query whose result is going to be cached.
+     */
+    public static long[] getVersions(String[] tables) {
+        long[] versions = new long[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            versions[i] = getVersion(tables[i]).get();
+        }
+        return versions;
+    }
+
+    protected static AtomicLong getVersion(String table) {
+        AtomicLong version = s_versions.get(table);
+        if (version == null) {
+            version = new AtomicLong();
+            AtomicLong existing = s_versions.putIfAbsent(table, version);
+            if (existing != null) {
+                version = existing;
+            }
+        }
+        return version;
+    }
+
+    /**
+     * @return the cached result or null if there isn't a current one.
+     */
+    public <T> List<T> get(String sql, Object[] params) {
+        Key key = new Key(sql, params);
+        Entry entry;
+        synchronized (_entries) {
+            entry = _entries.get(key);
+        }
+
+        if (entry == null) {
+            _misses.incrementAndGet();
+            return null;
+        }
+
+        if (entry.expires < System.currentTimeMillis() || !entry.isCurrent()) {
+            synchronized (_entries) {
+                if (_entries.get(key) == entry) {
+                    _entries.remove(key);
+                }
+            }
+            _invalidations.incrementAndGet();
+            _misses.incrementAndGet();
+            return null;
+        }
+
+        if (entry.result.isEmpty()) {
+            _negativeHits.incrementAndGet();
+        } else {
+            _hits.incrementAndGet();
+        }
+
+        @SuppressWarnings("unchecked")
+        List<T> result = new ArrayList<T>((List<T>)entry.result);
+        return result;
+    }
+
+    /**
+     * @param tables tables the result was read from.
+     * @param versions versions of the tables from before the query ran.
+     */
+    public void put(String sql, Object[] params, String[] tables, long[] versions, List<?> result) {
+        long ttl = result.isEmpty() ? _negativeTtl : _ttl;
+        if (ttl <= 0) {
+            return;
+        }
+        Entry entry = new Entry(tables, versions, System.currentTimeMillis() + ttl, Collections.unmodifiableList(new ArrayList<Object>(result)));
+        if (!entry.isCurrent()) {
+            // somebody wrote while we were reading.
+            return;
+        }
+        synchronized (_entries) {
+            _entries.put(new Key(sql, params), entry);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (_entries) {
+            return _entries.size();
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return _maxSize;
+    }
+
+    @Override
+    public long getTimeToLiveSeconds() {
+        return _ttl / 1000;
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getNegativeHits() {
+        return _negativeHits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return _evictions.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return _invalidations.get();
+    }
+
+    @Override
+    public String getHitRatio() {
+        long hits = getHits() + getNegativeHits();
+        long total = hits + getMisses();
+        return total == 0 ? "-" : String.format("%.2f", (double)hits / total);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (_entries) {
+            _entries.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("QueryCache[").append(_name).append(", size=").append(getSize()).append(", hits=").append(getHits())
+            .append(", negativeHits=").append(getNegativeHits()).append(", misses=").append(getMisses()).append(", evictions=").append(getEvictions())
+            .append(", invalidations=").append(getInvalidations()).append("]").toString();
+    }
+
+    protected static class Key {
+        final String sql;
+        final Object[] params;
+        final int hash;
+
+        Key(String sql, Object[] params) {
+            this.sql = sql;
+            this.params = params;
+            this.hash = sql.hashCode() * 31 + Arrays.deepHashCode(params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key that = (Key)obj;
+            return hash == that.hash && sql.equals(that.sql) && Arrays.deepEquals(params, that.params);
+        }
+    }
+
+    protected static class Entry {
+        final String[] tables;
+        final long[] versions;
+        final long expires;
+        final List<?> result;
+
+        Entry(String[] tables, long[] versions, long expires, List<?> result) {
+            this.tables = tables;
+            this.versions = versions;
+            this.expires = expires;
+            this.result = result;
+        }
+
+        boolean isCurrent() {
+            for (int i = 0; i < tables.length; i++) {
+                if (getVersion(tables[i]).get() != versions[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
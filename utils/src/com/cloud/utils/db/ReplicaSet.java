@@ -0,0 +1,226 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * ReplicaSet spreads reads over MySQL replicas of the cloud database.
+ * 
+ * How far behind each replica is gets checked every check interval with
+ * SHOW SLAVE STATUS.  A replica that isn't replicating, can't be reached or
+ * is more than the max lag behind isn't used until it catches up.  To let
+ * a thread read what it wrote, it only reads from a replica once the
+ * replica has caught up to its last write; until then it stays on the
+ * primary.  If no replica fits the caller reads from the primary.
+ */
+public class ReplicaSet {
+    private static final Logger s_logger = Logger.getLogger(ReplicaSet.class);
+
+    // Seconds_Behind_Master is in whole seconds
+    protected static final long LAG_RESOLUTION = 1000;
+
+    public static class Replica {
+        final ConnectionPool _pool;
+        volatile long _lag = -1;
+        final AtomicLong _reads = new AtomicLong();
+
+        public Replica(ConnectionPool pool) {
+            _pool = pool;
+        }
+
+        public ConnectionPool getPool() {
+            return _pool;
+        }
+
+        /**
+         * @return milliseconds the replica is behind the primary; -1 if it isn't usable.
+         */
+        public long getLag() {
+            return _lag;
+        }
+
+        public void setLag(long lag) {
+            _lag = lag;
+        }
+
+        public long getReads() {
+            return _reads.get();
+        }
+
+        @Override
+        public String toString() {
+            return _pool.getName();
+        }
+    }
+
+    private final List<Replica> _replicas;
+    private final long _maxLag;
+    private final long _checkInterval;
+    private final AtomicInteger _next = new AtomicInteger();
+    private ScheduledExecutorService _checker;
+
+    /**
+     * @param maxLag milliseconds a replica can be behind and still be read from.
+     * @param checkInterval milliseconds between lag checks.
+     */
+    public ReplicaSet(List<Replica> replicas, long maxLag, long checkInterval) {
+        _replicas = new ArrayList<Replica>(replicas);
+        _maxLag = maxLag;
+        _checkInterval = checkInterval;
+    }
+
+    public List<Replica> getReplicas() {
+        return _replicas;
+    }
+
+    /**
+     * @param lastWrite when the caller last wrote to the primary; 0 if it hasn't.
+     * @return the next replica that's within the max lag and has caught up to lastWrite, or null if none has.
+     */
+    public Replica pick(long lastWrite) {
+        int size = _replicas.size();
+        int start = (_next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        for (int i = 0; i < size; i++) {
+            Replica replica = _replicas.get((start + i) % size);
+            if (isCaughtUp(replica, lastWrite)) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    public boolean isCaughtUp(Replica replica, long lastWrite) {
+        long lag = replica._lag;
+        if (lag < 0 || lag > _maxLag) {
+            return false;
+        }
+        // the lag was measured up to one check interval ago
+        return lastWrite == 0 || System.currentTimeMillis() - lag - LAG_RESOLUTION - _checkInterval > lastWrite;
+    }
+
+    public Connection getConnection(Replica replica) throws SQLException {
+        try {
+            Connection conn = replica._pool.getConnection();
+            replica._reads.incrementAndGet();
+            return conn;
+        } catch (SQLException e) {
+            replica._lag = -1;
+            throw e;
+        }
+    }
+
+    public void checkLag() {
+        for (Replica replica : _replicas) {
+            long lag;
+            try {
+                lag = fetchLag(replica);
+            } catch (SQLException e) {
+                s_logger.warn("Unable to check how far " + replica + " is behind: " + e.getMessage());
+                lag = -1;
+            }
+            if (lag < 0 && replica._lag >= 0) {
+                s_logger.warn("Not reading from " + replica + " until it replicates again");
+            } else if (lag > _maxLag && replica._lag <= _maxLag) {
+                s_logger.warn("Not reading from " + replica + " until it catches up: " + lag + " ms behind");
+            }
+            replica._lag = lag;
+        }
+    }
+
+    /**
+     * @return milliseconds the replica is behind; -1 if it isn't replicating.
+     */
+    protected long fetchLag(Replica replica) throws SQLException {
+        Connection conn = replica._pool.getConnection();
+        try {
+            PreparedStatement pstmt = conn.prepareStatement("SHOW SLAVE STATUS");
+            try {
+                ResultSet rs = pstmt.executeQuery();
+                if (!rs.next()) {
+                    return -1;
+                }
+                long seconds = rs.getLong("Seconds_Behind_Master");
+                if (rs.wasNull()) {
+                    return -1;
+                }
+                return seconds * 1000;
+            } finally {
+                pstmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    public synchronized void start() {
+        if (_checker != null) {
+            return;
+        }
+        // nothing is read from the replicas until their first check is done
+        _checker = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ReplicaLag"));
+        _checker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkLag();
+                } catch (Throwable th) {
+                    s_logger.warn("Unable to check replica lag", th);
+                }
+            }
+        }, 0, _checkInterval, TimeUnit.MILLISECONDS);
+        s_logger.info("Reading from " + _replicas + " when they're within " + _maxLag + " ms of the primary");
+    }
+
+    public synchronized void stop() {
+        if (_checker != null) {
+            _checker.shutdownNow();
+            _checker = null;
+        }
+    }
+
+    /**
+     * @return the pool statistics of each replica along with its lag and the reads routed to it.
+     */
+    public List<Map<String, String>> getStatistics() {
+        List<Map<String, String>> rows = new ArrayList<Map<String, String>>(_replicas.size());
+        for (Replica replica : _replicas) {
+            Map<String, String> row = replica._pool.getStatistics();
+            row.put("lagMs", Long.toString(replica._lag));
+            row.put("usable", Boolean.toString(isCaughtUp(replica, 0)));
+            row.put("reads", Long.toString(replica._reads.get()));
+            rows.add(row);
+        }
+        return rows;
+    }
+}
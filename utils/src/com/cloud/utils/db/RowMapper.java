@@ -0,0 +1,232 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * RowMapper copies the columns of a result set into an entity.  It's
+ * compiled once for the columns of a select: the attribute behind each
+ * column position and how to read its type are worked out up front, so a
+ * row is mapped without looking anything up.  Types without a setter of
+ * their own go through GenericDaoBase.setField() like before.
+ */
+public class RowMapper {
+    // what DateUtil.parseDateString() does, without building a new format for every date read
+    private static final ThreadLocal<DateFormat> s_gmtFormat = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
+
+    protected interface Setter {
+        void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException;
+    }
+
+    private final String[] _tables;
+    private final String[] _columns;
+    private final Setter[] _setters;
+
+    public RowMapper(ResultSetMetaData meta, Map<Pair<String, String>, Attribute> allColumns, GenericDaoBase<?, ?> dao) throws SQLException {
+        int count = meta.getColumnCount();
+        _tables = new String[count];
+        _columns = new String[count];
+        _setters = new Setter[count];
+        for (int i = 0; i < count; i++) {
+            _tables[i] = meta.getTableName(i + 1);
+            _columns[i] = meta.getColumnName(i + 1);
+            Attribute attr = allColumns.get(new Pair<String, String>(_tables[i], _columns[i]));
+            assert (attr != null) : "How come I can't find " + _tables[i] + "." + _columns[i];
+            _setters[i] = createSetter(attr.field, dao);
+        }
+    }
+
+    /**
+     * @return true if the result set has the columns this was compiled for.
+     */
+    public boolean matches(ResultSetMetaData meta) throws SQLException {
+        if (meta.getColumnCount() != _columns.length) {
+            return false;
+        }
+        for (int i = 0; i < _columns.length; i++) {
+            if (!_columns[i].equals(meta.getColumnName(i + 1)) || !_tables[i].equals(meta.getTableName(i + 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void map(ResultSet rs, Object entity) throws SQLException {
+        try {
+            for (int i = 0; i < _setters.length; i++) {
+                _setters[i].set(entity, rs, i + 1);
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        }
+    }
+
+    public int getColumnCount() {
+        return _columns.length;
+    }
+
+    protected static Setter createSetter(final Field field, final GenericDaoBase<?, ?> dao) {
+        Class<?> type = field.getType();
+        if (type == String.class) {
+            return new Setter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    byte[] bytes = rs.getBytes(index);
+                    try {
+                        field.set(entity, bytes != null ? new String(bytes, "UTF-8") : null);
+                    } catch (UnsupportedEncodingException e) {
+                        throw new CloudRuntimeException("UnsupportedEncodingException when converting UTF-8 data");
+                    }
+                }
+            };
+        } else if (type == long.class) {
+            return new Setter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    field.setLong(entity, rs.getLong(index));
+                }
+            };
+        } else if (type == Long.class) {
+            return new Setter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    long value = rs.getLong(index);
+                    field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == int.class) {
+            return new Setter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    field.setInt(entity, rs.getInt(index));
+                }
+            };
+        } else if (type == Integer.class) {
+            return new Setter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    int value = rs.getInt(index);
+                    field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == boolean.class) {
+            return new Setter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    field.setBoolean(entity, rs.getBoolean(index));
+                }
+            };
+        } else if (type == Boolean.class) {
+            return new Setter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    boolean value = rs.getBoolean(index);
+                    field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == Date.class) {
+            return new Setter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    if (rs.getDate(index) == null) {
+                        field.set(entity, null);
+                        return;
+                    }
+                    try {
+                        field.set(entity, s_gmtFormat.get().parse(rs.getString(index)));
+                    } catch (ParseException e) {
+                        throw new CloudRuntimeException("why why ", e);
+                    }
+                }
+            };
+        } else if (type.isEnum()) {
+            Enumerated enumerated = field.getAnnotation(Enumerated.class);
+            final Enum<?>[] enums = (Enum<?>[])type.getEnumConstants();
+            if (enumerated != null && enumerated.value() == EnumType.ORDINAL) {
+                return new Setter() {
+                    @Override
+                    public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                        int ordinal = rs.getInt(index);
+                        if (ordinal >= 0 && ordinal < enums.length) {
+                            field.set(entity, enums[ordinal]);
+                        }
+                    }
+                };
+            }
+
+            final Map<String, Enum<?>> byName = new HashMap<String, Enum<?>>();
+            for (Enum<?> e : enums) {
+                byName.put(e.name(), e);
+            }
+            return new Setter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    String name = rs.getString(index);
+                    if (name == null) {
+                        return;
+                    }
+                    Enum<?> value = byName.get(name);
+                    if (value == null) {
+                        // the names are matched ignoring case
+                        for (Enum<?> e : enums) {
+                            if (e.name().equalsIgnoreCase(name)) {
+                                value = e;
+                                break;
+                            }
+                        }
+                    }
+                    if (value != null) {
+                        field.set(entity, value);
+                    }
+                }
+            };
+        }
+
+        return new Setter() {
+            @Override
+            public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                dao.setField(entity, field, rs, index);
+            }
+        };
+    }
+}
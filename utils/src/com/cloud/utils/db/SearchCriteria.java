@@ -337,6 +337,59 @@ public class SearchCriteria<K> {
         return params;
     }
     
+    /**
+     * Figures out which ids a where clause is limited to.  This only works
+     * out when the id is compared with EQ or IN outside of any parenthesis
+     * and nothing at that level is OR'ed or negated.
+     *
+     * @return the id values every matching row must have or null if the
+     *         criteria is not limited to a known set of ids.
+     */
+    public List<Object> getIdValues() {
+        if (_conditions == null) {
+            return null;
+        }
+
+        List<Condition> conditions = new ArrayList<Condition>(_conditions);
+        if (_additionals != null) {
+            conditions.addAll(_additionals);
+        }
+
+        List<Object> ids = null;
+        int depth = 0;
+        int i = 0;
+        for (Condition condition : conditions) {
+            Object[] params = _params.get(condition.name);
+            if (condition.op != null && condition.op.params != 0 && params == null) {
+                continue;  // not part of the where clause.
+            }
+
+            String cond = i++ > 0 ? condition.cond.trim() : "";
+            if (cond.equals("(")) {
+                depth++;
+            } else if (depth == 0 && cond.equals("OR")) {
+                return null;
+            }
+
+            if (condition.op == Op.RP) {
+                if (--depth < 0) {
+                    return null;
+                }
+            } else if (depth == 0 && (condition.op == Op.OR || condition.op == Op.NOT || condition.op == Op.TEXT)) {
+                return null;
+            } else if (depth == 0 && ids == null && condition.attr != null && condition.attr.isId() && (condition.op == Op.EQ || condition.op == Op.IN)) {
+                ids = new ArrayList<Object>(params.length);
+                for (Object param : params) {
+                    if (param == null) {
+                        return null;
+                    }
+                    ids.add(param);
+                }
+            }
+        }
+        return ids;
+    }
+
     public Collection<JoinBuilder<SearchCriteria<?>>> getJoins() {
         return _joins != null ? _joins.values() : null;
     }
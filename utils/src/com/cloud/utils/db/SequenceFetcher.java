@@ -21,11 +21,13 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.TableGenerator;
 
@@ -39,20 +41,85 @@ import com.cloud.utils.concurrency.NamedThreadFactory;
  * table retrieval was inside a transaction, the value
  * gets locked until the transaction is over.
  * 
- * TODO: enhance this so that it actually follows the
- * allocation size.
+ * Numeric sequences with an allocation size larger than
+ * one are handed out in blocks: each trip to the database
+ * reserves allocationSize values, which are then given out
+ * from memory until they run out.  Values given out that
+ * way are unique but not in order across management
+ * servers, and whatever is left of a block when the
+ * server stops is never used.
  *
  */
 public class SequenceFetcher {
     private final static Logger s_logger = Logger.getLogger(SequenceFetcher.class);
     ExecutorService _executors;
+
+    protected static class Block {
+        final AtomicLong _next;
+        final long _end;
+
+        protected Block(long start, long end) {
+            _next = new AtomicLong(start);
+            _end = end;
+        }
+    }
+
+    protected final ConcurrentHashMap<String, Block> _blocks = new ConcurrentHashMap<String, Block>();
+    protected final AtomicLong _fetches = new AtomicLong();
+    protected final AtomicLong _allocations = new AtomicLong();
     
     public <T> T getNextSequence(Class<T> clazz, TableGenerator tg) {
         return getNextSequence(clazz, tg, null);
     }
     
     public <T> T getNextSequence(Class<T> clazz, TableGenerator tg, Object key) {
-        Future<T> future = _executors.submit(new Fetcher<T>(clazz, tg, key));
+        _allocations.incrementAndGet();
+        if (tg.allocationSize() > 1 && (clazz == Long.class || clazz == Integer.class)) {
+            return getNextInBlock(clazz, tg, key);
+        }
+        return fetch(clazz, tg, key, tg.allocationSize());
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <T> T getNextInBlock(Class<T> clazz, TableGenerator tg, Object key) {
+        String name = tg.table() + "." + tg.valueColumnName() + ":" + (key == null ? tg.pkColumnValue() : key);
+        while (true) {
+            Block block = _blocks.get(name);
+            if (block == null) {
+                block = new Block(0, 0);
+                Block existing = _blocks.putIfAbsent(name, block);
+                if (existing != null) {
+                    block = existing;
+                }
+            }
+
+            long value = block._next.getAndIncrement();
+            if (value < block._end) {
+                return (T)(clazz == Long.class ? (Object)value : (Object)(int)value);
+            }
+
+            // the block is used up; one thread reserves the next one while the others wait for it.
+            synchronized (block) {
+                if (_blocks.get(name) != block) {
+                    continue;
+                }
+                Long start = fetch(Long.class, tg, key, tg.allocationSize());
+                if (start == null) {
+                    return null;
+                }
+                _blocks.put(name, new Block(start, start + tg.allocationSize()));
+            }
+        }
+    }
+
+    /**
+     * Reserves size values of the sequence in the database.
+     *
+     * @return the first of them or null if it can't be had.
+     */
+    protected <T> T fetch(Class<T> clazz, TableGenerator tg, Object key, int size) {
+        _fetches.incrementAndGet();
+        Future<T> future = _executors.submit(createFetcher(clazz, tg, key, size));
         try {
             return future.get();
         } catch (Exception e) {
@@ -61,6 +128,24 @@ public class SequenceFetcher {
         }
     }
     
+    protected <T> Callable<T> createFetcher(Class<T> clazz, TableGenerator tg, Object key, int size) {
+        return new Fetcher<T>(clazz, tg, key, size);
+    }
+
+    /**
+     * @return trips made to the database for a sequence.
+     */
+    public long getFetchCount() {
+        return _fetches.get();
+    }
+
+    /**
+     * @return sequence values asked for.
+     */
+    public long getAllocationCount() {
+        return _allocations.get();
+    }
+
     protected SequenceFetcher() {
         _executors = new ThreadPoolExecutor(100, 100, 120l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(250), new NamedThreadFactory("SequenceFetcher"));
     }
@@ -74,11 +159,13 @@ public class SequenceFetcher {
         TableGenerator _tg;
         Class<T> _clazz;
         Object _key;
+        int _size;
         
-        protected Fetcher(Class<T> clazz, TableGenerator tg, Object key) {
+        protected Fetcher(Class<T> clazz, TableGenerator tg, Object key, int size) {
             _tg = tg;
             _clazz = clazz;
             _key = key;
+            _size = size;
         }
         
         @Override @SuppressWarnings("unchecked")
@@ -103,7 +190,7 @@ public class SequenceFetcher {
                 sql.append(" WHERE ").append(_tg.pkColumnName()).append("=?");
                 
                 PreparedStatement updateStmt = txn.prepareStatement(sql.toString());
-                updateStmt.setInt(2, _tg.allocationSize());
+                updateStmt.setInt(2, _size);
                 if (_key == null) {
                     updateStmt.setString(3, _tg.pkColumnValue());
                 } else {
@@ -399,6 +399,47 @@ public class SqlGenerator {
         return sql;
     }
 
+    /**
+     * @param insertSql an insert built by buildInsertSqls() for a single row.
+     * @return the same insert taking the values of the given number of rows.
+     */
+    public static StringBuilder buildMultiRowInsertSql(String insertSql, int columns, int rows) {
+        StringBuilder sql = new StringBuilder(insertSql.length() + (rows - 1) * (columns * 3 + 4));
+        sql.append(insertSql);
+        for (int i = 1; i < rows; i++) {
+            sql.append(", (");
+            for (int j = 0; j < columns; j++) {
+                sql.append(j == 0 ? "?" : ", ?");
+            }
+            sql.append(")");
+        }
+        return sql;
+    }
+
+    /**
+     * Turns an insert into one that overwrites the updatable columns of the row it collides with.
+     */
+    public static StringBuilder buildUpsertSql(StringBuilder insertSql, Attribute[] attrs) {
+        insertSql.append(" ON DUPLICATE KEY UPDATE ");
+        boolean first = true;
+        for (Attribute attr : attrs) {
+            if (attr.isId() || !attr.isUpdatable()) {
+                continue;
+            }
+            if (!first) {
+                insertSql.append(", ");
+            }
+            insertSql.append(attr.columnName).append("=VALUES(").append(attr.columnName).append(")");
+            first = false;
+        }
+        if (first) {
+            // nothing to overwrite; keep the existing row as it is.
+            Attribute id = attrs[0];
+            insertSql.append(id.columnName).append("=").append(id.columnName);
+        }
+        return insertSql;
+    }
+
     protected List<Pair<String, Attribute[]>> buildDeleteSqls() {
         LinkedHashMap<String, ArrayList<Attribute>> map = new LinkedHashMap<String, ArrayList<Attribute>>();
         for (Class<?> table : _tables) {
@@ -25,14 +25,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
 
-import javax.sql.DataSource;
-
 import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.DriverManagerConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
@@ -42,6 +42,7 @@ import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.commons.pool.impl.StackKeyedObjectPoolFactory;
 import org.apache.log4j.Logger;
 
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -60,6 +61,12 @@ import com.cloud.utils.mgmt.JmxUtil;
  *
  * Note that this class is not synchronous but it doesn't need to be because
  * it is stored with TLS and is one per thread.  Use appropriately.
+ *
+ * When replicas of the cloud database are configured, reads that don't
+ * need the primary go to one of them over a second connection: DAO
+ * searches made outside of a DB transaction and every select made within
+ * a @DB(readOnly=true) method.  Once a Transaction writes, it keeps
+ * reading from the primary until a replica has caught up with the write.
  */
 public class Transaction {
     private static final Logger s_logger = Logger.getLogger(Transaction.class.getName() + "." + "Transaction");
@@ -97,13 +104,26 @@ public class Transaction {
     private String _name;
     private Connection _conn;
     private boolean _txn;
+    private List<Runnable> _afterCompletion;
     private short _dbId;
     private long _txnTime;
     private Statement _stmt;
     private String _creator;
+    private ConnectionPool _connPool;
+    private long _connTime;
+
+    private Connection _readConn;
+    private ReplicaSet.Replica _readReplica;
+    private long _readConnTime;
+    private int _readOnly;
+    private PreparedStatement _replicaStmt;
 
     private Transaction _prev = null;
 
+    // When this thread last wrote to the cloud database.  It outlives the Transaction scope, which closes after every dao
+    // call made outside a @DB method, so a read right after a write still waits for a replica to catch up with it.
+    private static final ThreadLocal<Long> s_lastWrite = new ThreadLocal<Long>();
+
     public static Transaction currentTxn() {
         Transaction txn = tls.get();
         assert txn != null : "No Transaction on stack.  Did you mark the method with @DB?";
@@ -192,8 +212,41 @@ public class Transaction {
         return _txn;
     }
 
+    /**
+     * Runs the task once the DB transaction in progress is committed or
+     * rolled back, or right away if there isn't one.  The same task is only
+     * run once per transaction no matter how many times it is registered.
+     */
+    public void afterCompletion(Runnable task) {
+        if (!_txn) {
+            task.run();
+            return;
+        }
+        if (_afterCompletion == null) {
+            _afterCompletion = new ArrayList<Runnable>();
+        }
+        if (!_afterCompletion.contains(task)) {
+            _afterCompletion.add(task);
+        }
+    }
+
+    protected void runAfterCompletion() {
+        if (_afterCompletion == null) {
+            return;
+        }
+        List<Runnable> tasks = _afterCompletion;
+        _afterCompletion = null;
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                s_logger.warn("Unable to run " + task + " after the transaction", e);
+            }
+        }
+    }
+
     public static Connection getStandaloneConnectionWithException() throws SQLException {
-        Connection conn = s_ds.getConnection();
+        Connection conn = s_cloudPool.getConnection();
         if (s_connLogger.isTraceEnabled()) {
             s_connLogger.trace("Retrieving a standalone connection: dbconn" + System.identityHashCode(conn));
         }
@@ -211,7 +264,7 @@ public class Transaction {
 
     public static Connection getStandaloneUsageConnection() {
         try {
-            Connection conn = s_usageDS.getConnection();
+            Connection conn = s_usagePool.getConnection();
             if (s_connLogger.isTraceEnabled()) {
                 s_connLogger.trace("Retrieving a standalone connection for usage: dbconn" + System.identityHashCode(conn));
             }
@@ -380,6 +433,7 @@ public class Transaction {
     }
 
     protected void closePreviousStatement() {
+        _replicaStmt = null;
         if (_stmt != null) {
             try {
                 if (s_stmtLogger.isTraceEnabled()) {
@@ -419,8 +473,58 @@ public class Transaction {
         return stmt;
     }
 
+    /**
+     * Prepares an auto close statement for a select that can be answered by a
+     * replica.  It runs on the primary within a DB transaction, when there
+     * are no replicas or none has caught up with what this thread wrote.
+     * 
+     * @param sql select statement
+     * @return PreparedStatement
+     * @throws SQLException if problem with JDBC layer.
+     */
+    public PreparedStatement prepareAutoCloseReadStatement(final String sql) throws SQLException {
+        final Connection conn = isSelect(sql) ? getReadConnection() : getConnection(sql);
+        final PreparedStatement pstmt = conn.prepareStatement(sql);
+        if (s_stmtLogger.isTraceEnabled()) {
+            s_stmtLogger.trace("Preparing read: " + sql);
+        }
+        closePreviousStatement();
+        _stmt = pstmt;
+        if (_readConn != null && conn == _readConn) {
+            _replicaStmt = pstmt;
+        }
+        return pstmt;
+    }
+
+    /**
+     * What a replica returns can be behind the primary by up to the max lag,
+     * even after this thread saw a write committed.  It's fine for the caller
+     * but mustn't be cached for anybody else.
+     * 
+     * @return true if the statement was prepared on a replica connection.
+     */
+    public boolean isReplicaStatement(final PreparedStatement pstmt) {
+        return pstmt != null && pstmt == _replicaStmt;
+    }
+
+    /**
+     * Prepares an auto close statement that runs on the primary even in a read only method.
+     */
+    public PreparedStatement prepareAutoClosePrimaryStatement(final String sql) throws SQLException {
+        if (!isSelect(sql)) {
+            markWrite();
+        }
+        final PreparedStatement pstmt = getConnection().prepareStatement(sql);
+        if (s_stmtLogger.isTraceEnabled()) {
+            s_stmtLogger.trace("Preparing: " + sql);
+        }
+        closePreviousStatement();
+        _stmt = pstmt;
+        return pstmt;
+    }
+
     public PreparedStatement prepareStatement(final String sql) throws SQLException {
-        final Connection conn = getConnection();
+        final Connection conn = getConnection(sql);
         final PreparedStatement pstmt = conn.prepareStatement(sql);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
@@ -440,7 +544,7 @@ public class Transaction {
      * @see java.sql.Connection
      */
     public PreparedStatement prepareAutoCloseStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
-        final Connection conn = getConnection();
+        final Connection conn = getConnection(sql);
         final PreparedStatement pstmt = conn.prepareStatement(sql, autoGeneratedKeys);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
@@ -462,7 +566,7 @@ public class Transaction {
      * @see java.sql.Connection
      */
     public PreparedStatement prepareAutoCloseStatement(final String sql, final String[] columnNames) throws SQLException {
-        final Connection conn = getConnection();
+        final Connection conn = getConnection(sql);
         final PreparedStatement pstmt = conn.prepareStatement(sql, columnNames);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
@@ -483,7 +587,7 @@ public class Transaction {
      * @see java.sql.Connection
      */
     public PreparedStatement prepareAutoCloseStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        final Connection conn = getConnection();
+        final Connection conn = getConnection(sql);
         final PreparedStatement pstmt = conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
@@ -508,16 +612,18 @@ public class Transaction {
         if (_conn == null) {
             switch (_dbId) {
             case CLOUD_DB:
-                if(s_ds != null) {
-                    _conn = s_ds.getConnection();
+                if(s_cloudPool != null) {
+                    _connPool = s_cloudPool;
+                    _conn = s_cloudPool.getConnection();
                 } else {
                     s_logger.warn("A static-initialized variable becomes null, process is dying?");
                     throw new CloudRuntimeException("Database is not initialized, process is dying?");
                 }
                 break;
             case USAGE_DB:
-                if(s_usageDS != null) {
-                    _conn = s_usageDS.getConnection();
+                if(s_usagePool != null) {
+                    _connPool = s_usagePool;
+                    _conn = s_usagePool.getConnection();
                 } else {
                     s_logger.warn("A static-initialized variable becomes null, process is dying?");
                     throw new CloudRuntimeException("Database is not initialized, process is dying?");
@@ -526,6 +632,7 @@ public class Transaction {
             default:
                 throw new CloudRuntimeException("No database selected for the transaction");
             }
+            _connTime = System.currentTimeMillis();
             _conn.setAutoCommit(!_txn);
 
             //
@@ -544,6 +651,107 @@ public class Transaction {
         return _conn;
     }
 
+    /**
+     * @return the connection for the statement: a replica for selects made in a read only method, the primary otherwise.
+     */
+    protected Connection getConnection(final String sql) throws SQLException {
+        if (isSelect(sql)) {
+            return _readOnly > 0 ? getReadConnection() : getConnection();
+        }
+        markWrite();
+        return getConnection();
+    }
+
+    protected static void markWrite() {
+        s_lastWrite.set(System.currentTimeMillis());
+    }
+
+    /**
+     * @return when this thread last wrote to the database; 0 if it hasn't.
+     */
+    public static long getLastWrite() {
+        final Long lastWrite = s_lastWrite.get();
+        return lastWrite == null ? 0 : lastWrite;
+    }
+
+    protected static boolean isSelect(final String sql) {
+        String trimmed = sql.trim();
+        if (!trimmed.regionMatches(true, 0, "SELECT", 0, 6)) {
+            return false;
+        }
+        String upper = trimmed.toUpperCase();
+        return !upper.contains(" FOR UPDATE") && !upper.contains("LOCK IN SHARE MODE");
+    }
+
+    /**
+     * @return a connection to a replica that has caught up with what this thread wrote, or the primary if there isn't one.
+     */
+    public Connection getReadConnection() throws SQLException {
+        final ReplicaSet replicas = s_replicas;
+        if (_dbId != CLOUD_DB || _txn || replicas == null) {
+            return getConnection();
+        }
+
+        final long lastWrite = getLastWrite();
+        if (_readConn != null) {
+            // it may have fallen behind a write made since it was picked
+            return replicas.isCaughtUp(_readReplica, lastWrite) ? _readConn : getConnection();
+        }
+
+        final ReplicaSet.Replica replica = replicas.pick(lastWrite);
+        if (replica == null) {
+            return getConnection();
+        }
+        try {
+            _readConn = replicas.getConnection(replica);
+        } catch (SQLException e) {
+            s_connLogger.warn("Unable to get a connection to " + replica + ", reading from the primary: " + e.getMessage());
+            return getConnection();
+        }
+        _readReplica = replica;
+        _readConnTime = System.currentTimeMillis();
+        if (s_connLogger.isTraceEnabled()) {
+            s_connLogger.trace("Creating a read connection to " + replica + ": dbconn" + System.identityHashCode(_readConn) + ". Stack: " + buildName());
+        }
+        return _readConn;
+    }
+
+    protected void closeReadConnection() {
+        if (_readConn == null) {
+            return;
+        }
+
+        try {
+            if (s_connLogger.isTraceEnabled()) {
+                s_connLogger.trace("Closing read connection: dbconn" + System.identityHashCode(_readConn));
+            }
+            _readConn.close();
+        } catch (final SQLException e) {
+            s_logger.warn("Unable to close read connection", e);
+        } finally {
+            _readReplica.getPool().returned(System.currentTimeMillis() - _readConnTime);
+            _readConn = null;
+            _readReplica = null;
+        }
+    }
+
+    /**
+     * Sends the selects made from here on to a replica when one is caught up.  Called for @DB(readOnly=true) methods.
+     */
+    public void startReadOnly() {
+        _readOnly++;
+    }
+
+    public void endReadOnly() {
+        if (_readOnly > 0) {
+            _readOnly--;
+        }
+    }
+
+    public boolean isReadOnly() {
+        return _readOnly > 0;
+    }
+
     protected boolean takeOver(final String name, final boolean create) {
         if (_stack.size() != 0) {
             if (!create) {
@@ -586,9 +794,11 @@ public class Transaction {
             rollbackTransaction();
         }
         _txn = false;
+        runAfterCompletion();
         _name = null;
 
         closeConnection();
+        _readOnly = 0;
 
         _stack.clear();
         Merovingian2 lockMaster = Merovingian2.getLockMaster();
@@ -681,6 +891,9 @@ public class Transaction {
         try {
             if (_conn != null) {
                 _conn.commit();
+                if (getLastWrite() >= _txnTime) {
+                    markWrite();
+                }
                 s_logger.trace("txn: DB Changes committed. Time = " + (System.currentTimeMillis() - _txnTime));
                 clearLockTimes();
                 closeConnection();
@@ -689,11 +902,14 @@ public class Transaction {
         } catch (final SQLException e) {
             rollbackTransaction();
             throw new CloudRuntimeException("Unable to commit or close the connection. ", e);
+        } finally {
+            runAfterCompletion();
         }
     }
 
     protected void closeConnection() {
         closePreviousStatement();
+        closeReadConnection();
 
         if (_conn == null) {
             return;
@@ -710,9 +926,13 @@ public class Transaction {
             }
             if(this._dbId != CONNECTED_DB) {
                 _conn.close();
+                if (_connPool != null) {
+                    _connPool.returned(System.currentTimeMillis() - _connTime);
+                }
             }
 
             _conn = null;
+            _connPool = null;
         } catch (final SQLException e) {
             s_logger.warn("Unable to close connection", e);
         }
@@ -804,6 +1024,8 @@ public class Transaction {
             closeConnection();
         } catch(final SQLException e) {
             s_logger.warn("Unable to rollback", e);
+        } finally {
+            runAfterCompletion();
         }
     }
 
@@ -819,6 +1041,7 @@ public class Transaction {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            runAfterCompletion();
         }
     }
 
@@ -949,8 +1172,49 @@ public class Transaction {
         }
     }
 
-    private static DataSource s_ds;
-    private static DataSource s_usageDS;
+    private static ConnectionPool s_cloudPool;
+    private static ConnectionPool s_usagePool;
+    private static volatile ReplicaSet s_replicas;
+
+    /**
+     * @return a row of statistics for the cloud and usage pools and each replica.
+     */
+    public static List<Map<String, String>> getConnectionPoolStatistics() {
+        List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+        rows.add(s_cloudPool.getStatistics());
+        rows.add(s_usagePool.getStatistics());
+        ReplicaSet replicas = s_replicas;
+        if (replicas != null) {
+            rows.addAll(replicas.getStatistics());
+        }
+        return rows;
+    }
+
+    public static void resetConnectionPoolStatistics() {
+        s_cloudPool.resetStatistics();
+        s_usagePool.resetStatistics();
+        ReplicaSet replicas = s_replicas;
+        if (replicas != null) {
+            for (ReplicaSet.Replica replica : replicas.getReplicas()) {
+                replica.getPool().resetStatistics();
+            }
+        }
+    }
+
+    public static ReplicaSet getReplicaSet() {
+        return s_replicas;
+    }
+
+    /**
+     * Replaces the replicas reads are spread over; null to read everything from the primary.
+     * @return the replicas used before.
+     */
+    static ReplicaSet setReplicaSet(ReplicaSet replicas) {
+        ReplicaSet previous = s_replicas;
+        s_replicas = replicas;
+        return previous;
+    }
+
     static {
         try {
             final File dbPropsFile = PropertiesUtil.findConfigFile("db.properties");
@@ -1007,7 +1271,41 @@ public class Transaction {
             final KeyedObjectPoolFactory poolableObjFactory = (cloudPoolPreparedStatements ? new StackKeyedObjectPoolFactory() : null);
             final PoolableConnectionFactory cloudPoolableConnectionFactory = new PoolableConnectionFactory(cloudConnectionFactory, cloudConnectionPool, poolableObjFactory,
                     cloudValidationQuery, false, false, isolationLevel);
-            s_ds = new PoolingDataSource(cloudPoolableConnectionFactory.getPool());
+            s_cloudPool = new ConnectionPool("cloud", cloudConnectionPool, new PoolingDataSource(cloudPoolableConnectionFactory.getPool()));
+
+            // read only copies of the cloud db, as host[:port] separated by commas
+            final String replicaHosts = dbProps.getProperty("db.cloud.replicas");
+            if (replicaHosts != null && replicaHosts.trim().length() > 0) {
+                final int replicaMaxActive = NumbersUtil.parseInt(dbProps.getProperty("db.cloud.replica.maxActive"), cloudMaxActive);
+                final long replicaMaxLag = NumbersUtil.parseLong(dbProps.getProperty("db.cloud.replica.maxLagSeconds"), 5) * 1000;
+                final long replicaCheckInterval = NumbersUtil.parseLong(dbProps.getProperty("db.cloud.replica.checkIntervalSeconds"), 5) * 1000;
+                final List<ReplicaSet.Replica> replicas = new ArrayList<ReplicaSet.Replica>();
+                for (String replicaHost : replicaHosts.split(",")) {
+                    replicaHost = replicaHost.trim();
+                    if (replicaHost.length() == 0) {
+                        continue;
+                    }
+                    int replicaPort = cloudPort;
+                    final int colon = replicaHost.indexOf(':');
+                    if (colon > 0) {
+                        replicaPort = Integer.parseInt(replicaHost.substring(colon + 1));
+                        replicaHost = replicaHost.substring(0, colon);
+                    }
+                    final GenericObjectPool replicaConnectionPool = new GenericObjectPool(null, replicaMaxActive, GenericObjectPool.DEFAULT_WHEN_EXHAUSTED_ACTION,
+                            cloudMaxWait, cloudMaxIdle, cloudTestOnBorrow, false, cloudTimeBtwEvictionRunsMillis, 1, cloudMinEvcitableIdleTimeMillis, cloudTestWhileIdle);
+                    final ConnectionFactory replicaConnectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://" + replicaHost + ":" + replicaPort + "/" + cloudDbName +
+                            "?autoReconnect=" + cloudAutoReconnect + (url != null ? "&" + url : "") + (useSSL ? "&useSSL=true" : ""), cloudUsername, cloudPassword);
+                    // read only so nothing is written to a replica by mistake
+                    final PoolableConnectionFactory replicaPoolableConnectionFactory = new PoolableConnectionFactory(replicaConnectionFactory, replicaConnectionPool,
+                            poolableObjFactory, cloudValidationQuery, true, true, isolationLevel);
+                    replicas.add(new ReplicaSet.Replica(new ConnectionPool("cloud-replica-" + replicaHost + ":" + replicaPort, replicaConnectionPool,
+                            new PoolingDataSource(replicaPoolableConnectionFactory.getPool()))));
+                }
+                if (replicas.size() > 0) {
+                    s_replicas = new ReplicaSet(replicas, replicaMaxLag, replicaCheckInterval);
+                    s_replicas.start();
+                }
+            }
 
             // configure the usage db
             final int usageMaxActive = Integer.parseInt(dbProps.getProperty("db.usage.maxActive"));
@@ -1025,17 +1323,17 @@ public class Transaction {
                     "?autoReconnect="+usageAutoReconnect, usageUsername, usagePassword);
             final PoolableConnectionFactory usagePoolableConnectionFactory = new PoolableConnectionFactory(usageConnectionFactory, usageConnectionPool,
                     new StackKeyedObjectPoolFactory(), null, false, false);
-            s_usageDS = new PoolingDataSource(usagePoolableConnectionFactory.getPool());
+            s_usagePool = new ConnectionPool("cloud_usage", usageConnectionPool, new PoolingDataSource(usagePoolableConnectionFactory.getPool()));
         } catch (final Exception e) {
             final GenericObjectPool connectionPool = new GenericObjectPool(null, 5);
             final ConnectionFactory connectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://localhost:3306/cloud", "cloud", "cloud");
             final PoolableConnectionFactory poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory, connectionPool, null, null, false, true);
-            s_ds = new PoolingDataSource(/*connectionPool*/ poolableConnectionFactory.getPool());
+            s_cloudPool = new ConnectionPool("cloud", connectionPool, new PoolingDataSource(/*connectionPool*/ poolableConnectionFactory.getPool()));
 
             final GenericObjectPool connectionPoolUsage = new GenericObjectPool(null, 5);
             final ConnectionFactory connectionFactoryUsage = new DriverManagerConnectionFactory("jdbc:mysql://localhost:3306/cloud_usage", "cloud", "cloud");
             final PoolableConnectionFactory poolableConnectionFactoryUsage = new PoolableConnectionFactory(connectionFactoryUsage, connectionPoolUsage, null, null, false, true);
-            s_usageDS = new PoolingDataSource(poolableConnectionFactoryUsage.getPool());
+            s_usagePool = new ConnectionPool("cloud_usage", connectionPoolUsage, new PoolingDataSource(poolableConnectionFactoryUsage.getPool()));
             s_logger.warn("Unable to load db configuration, using defaults with 5 connections.  Please check your configuration", e);
         }
     }
@@ -30,5 +30,12 @@ public interface TransactionMBean {
     List<Map<String, String>> getActiveTransactions();
     
     List<Map<String, String>> getTransactionsWithDatabaseConnection();
-    
+
+    /**
+     * @return one row per connection pool, replicas included: connections active/idle, how long callers waited for
+     *         one and how long transactions held on to it.  Replicas also show their lag and the reads sent to them.
+     */
+    List<Map<String, String>> getConnectionPools();
+
+    void resetConnectionPoolStatistics();
 }
@@ -101,6 +101,16 @@ public class TransactionMBeanImpl extends StandardMBean implements TransactionMB
         return map;
     }
 
+    @Override
+    public List<Map<String, String>> getConnectionPools() {
+        return Transaction.getConnectionPoolStatistics();
+    }
+
+    @Override
+    public void resetConnectionPoolStatistics() {
+        Transaction.resetConnectionPoolStatistics();
+    }
+
     @Override
     public List<Map<String, String>> getTransactionsWithDatabaseConnection() {
         ArrayList<Map<String, String>> txns = new ArrayList<Map<String, String>>();
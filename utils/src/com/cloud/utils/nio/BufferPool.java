@@ -0,0 +1,173 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool hands out ByteBuffers in power-of-two size classes and takes
+ * them back once the caller is done with them.  Link uses it for its read,
+ * plaintext and SSL packet buffers so that a steady stream of pings does not
+ * turn into a steady stream of garbage.
+ *
+ * Requests larger than the biggest size class are allocated unpooled and
+ * are simply dropped on release.  The pool is safe to use from multiple
+ * threads.
+ */
+public class BufferPool {
+    public static final int MIN_CLASS_SHIFT = 11;     // 2KB
+    public static final int MAX_CLASS_SHIFT = 17;     // 128KB
+    public static final int DEFAULT_BUFFERS_PER_CLASS = 256;
+
+    private final String _name;
+    private final boolean _direct;
+    private final int _maxPerClass;
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> _free;
+    private final AtomicInteger[] _freeCounts;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _discards = new AtomicLong();
+
+    public BufferPool(String name, boolean direct) {
+        this(name, direct, DEFAULT_BUFFERS_PER_CLASS);
+    }
+
+    public BufferPool(String name, boolean direct, int maxPerClass) {
+        _name = name;
+        _direct = direct;
+        _maxPerClass = maxPerClass;
+
+        int classes = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+        _free = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(classes);
+        _freeCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            _free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            _freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @param size minimum capacity needed.
+     * @return a cleared buffer with at least size bytes of capacity.
+     */
+    public ByteBuffer acquire(int size) {
+        int index = classIndex(size);
+        if (index < 0) {
+            _misses.incrementAndGet();
+            return allocate(size);
+        }
+
+        ByteBuffer buffer = _free.get(index).poll();
+        if (buffer != null) {
+            _freeCounts[index].decrementAndGet();
+            _hits.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        _misses.incrementAndGet();
+        return allocate(1 << (index + MIN_CLASS_SHIFT));
+    }
+
+    /**
+     * Gives a buffer back to the pool.  The caller must not touch the buffer
+     * afterwards.  Buffers that did not come from a pool of this kind are
+     * ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        if (buffer.isDirect() != _direct || Integer.bitCount(capacity) != 1) {
+            _discards.incrementAndGet();
+            return;
+        }
+
+        int index = classIndex(capacity);
+        if (index < 0) {
+            _discards.incrementAndGet();
+            return;
+        }
+
+        if (_freeCounts[index].incrementAndGet() > _maxPerClass) {
+            _freeCounts[index].decrementAndGet();
+            _discards.incrementAndGet();
+            return;
+        }
+
+        buffer.clear();
+        _free.get(index).offer(buffer);
+    }
+
+    protected ByteBuffer allocate(int size) {
+        return _direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    protected static int classIndex(int size) {
+        if (size > (1 << MAX_CLASS_SHIFT)) {
+            return -1;
+        }
+        if (size <= (1 << MIN_CLASS_SHIFT)) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public boolean isDirect() {
+        return _direct;
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    public long getDiscards() {
+        return _discards.get();
+    }
+
+    public int getFreeCount() {
+        int count = 0;
+        for (AtomicInteger freeCount : _freeCounts) {
+            count += freeCount.get();
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("BufferPool[").append(_name).append(", hits=").append(getHits()).append(", misses=").append(getMisses())
+            .append(", discards=").append(getDiscards()).append(", free=").append(getFreeCount()).append("]").toString();
+    }
+}
@@ -50,9 +50,13 @@ import com.cloud.utils.PropertiesUtil;
  */
 public class Link {
     private static final Logger s_logger = Logger.getLogger(Link.class);
+
+    /* Used by the static write() for callers that don't own a NioConnection */
+    private static final BufferPool s_bufferPool = new BufferPool("Link", true);
    
     private final InetSocketAddress _addr;
     private final NioConnection _connection;
+    private final BufferPool _bufferPool;
     private SelectionKey _key;
     private final ConcurrentLinkedQueue<ByteBuffer[]> _writeQueue;
     private ByteBuffer _readBuffer;
@@ -66,7 +70,8 @@ public class Link {
     public Link(InetSocketAddress addr, NioConnection connection) {
         _addr = addr;
         _connection = connection;
-        _readBuffer = ByteBuffer.allocate(2048);
+        _bufferPool = connection != null ? connection.getBufferPool() : s_bufferPool;
+        _readBuffer = _bufferPool.acquire(2048);
         _attach = null;
         _key = null;
         _writeQueue = new ConcurrentLinkedQueue<ByteBuffer[]>();
@@ -137,58 +142,54 @@ public class Link {
     }
     */
     
-    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
+    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine, BufferPool pool) throws IOException {
         SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
-        SSLEngineResult engResult;
-
+        ByteBuffer pkgBuf = pool.acquire(sslSession.getPacketBufferSize() + 40);
         ByteBuffer headBuf = ByteBuffer.allocate(4);
-        
-        int totalLen = 0;
-        for (ByteBuffer buffer : buffers) {
-            totalLen += buffer.limit();
-        }
+        ByteBuffer[] packet = new ByteBuffer[] { headBuf, pkgBuf };
+        SSLEngineResult engResult;
 
-        int processedLen = 0;
-        while (processedLen < totalLen) {
-            headBuf.clear();
-            pkgBuf.clear();
-            engResult = sslEngine.wrap(buffers, pkgBuf);
-            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
-                    engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                    engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-            }
-            
-            processedLen = 0;
+        try {
+            int totalLen = 0;
             for (ByteBuffer buffer : buffers) {
-                processedLen += buffer.position();
+                totalLen += buffer.limit();
             }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
-            pkgBuf.flip();
-            if (processedLen < totalLen) {
-                header = header | HEADER_FLAG_FOLLOWING;
-            }
-            headBuf.putInt(header);
-            headBuf.flip();
+            int processedLen = 0;
+            while (processedLen < totalLen) {
+                headBuf.clear();
+                pkgBuf.clear();
+                engResult = sslEngine.wrap(buffers, pkgBuf);
+                if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
+                        engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                        engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+                }
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
+                processedLen = 0;
+                for (ByteBuffer buffer : buffers) {
+                    processedLen += buffer.position();
                 }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
-            }
-            while (dataRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
+
+                int header = pkgBuf.position();
+                pkgBuf.flip();
+                if (processedLen < totalLen) {
+                    header = header | HEADER_FLAG_FOLLOWING;
+                }
+                headBuf.putInt(header);
+                headBuf.flip();
+
+                // Header and SSL packet go out in one gathering write.
+                long remaining = headBuf.remaining() + pkgBuf.remaining();
+                while (remaining > 0) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Writing Packet " + remaining);
+                    }
+                    remaining -= ch.write(packet);
                 }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
             }
+        } finally {
+            pool.release(pkgBuf);
         }
     }
     
@@ -203,7 +204,7 @@ public class Link {
      */
     public static void write(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         synchronized(ch) {
-            doWrite(ch, buffers, sslEngine);
+            doWrite(ch, buffers, sslEngine, s_bufferPool);
         } 
     }
     
@@ -237,7 +238,7 @@ public class Link {
             }
             
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                _plaintextBuffer = _bufferPool.acquire(2000);
             }
             
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -253,7 +254,8 @@ public class Link {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Resizing the byte buffer from " + _readBuffer.capacity());
                 }
-                _readBuffer = ByteBuffer.allocate(readSize);
+                _bufferPool.release(_readBuffer);
+                _readBuffer = _bufferPool.acquire(readSize);
             }
             _readBuffer.limit(readSize);
         }
@@ -276,34 +278,41 @@ public class Link {
         SSLSession sslSession = _sslEngine.getSession();
         SSLEngineResult engResult;
 
-        appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-        engResult = _sslEngine.unwrap(_readBuffer, appBuf);
-        if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
-                engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                engResult.getStatus() != SSLEngineResult.Status.OK) {
-            throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-        }
+        appBuf = _bufferPool.acquire(sslSession.getApplicationBufferSize() + 40);
+        try {
+            engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
+                    engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                    engResult.getStatus() != SSLEngineResult.Status.OK) {
+                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+            }
 
-        appBuf.flip();
-        if (_plaintextBuffer.remaining() < appBuf.limit()) {
-            // We need to expand _plaintextBuffer for more data
-            ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
-            _plaintextBuffer.flip();
-            newBuffer.put(_plaintextBuffer);
-            _plaintextBuffer = newBuffer;
+            appBuf.flip();
+            if (_plaintextBuffer.remaining() < appBuf.limit()) {
+                // We need to expand _plaintextBuffer for more data
+                ByteBuffer newBuffer = _bufferPool.acquire(_plaintextBuffer.capacity() + appBuf.limit() * 5);
+                _plaintextBuffer.flip();
+                newBuffer.put(_plaintextBuffer);
+                _bufferPool.release(_plaintextBuffer);
+                _plaintextBuffer = newBuffer;
+            }
+            _plaintextBuffer.put(appBuf);
+        } finally {
+            _bufferPool.release(appBuf);
         }
-        _plaintextBuffer.put(appBuf);
         _readBuffer.clear();
         _readHeader = true;
         
         if (s_logger.isTraceEnabled()) {
-            s_logger.trace("Done with packet: " + appBuf.limit());
+            s_logger.trace("Done with packet: " + engResult.bytesProduced());
         }
         
         if (!_gotFollowingPacket) {
             _plaintextBuffer.flip();
             byte[] result = new byte[_plaintextBuffer.limit()];
             _plaintextBuffer.get(result);
+            _bufferPool.release(_plaintextBuffer);
+            _plaintextBuffer = null;
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -322,22 +331,19 @@ public class Link {
     }
     
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-        
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-        
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
         
-        _writeQueue.add(item);
+        // The framing header is written per SSL packet in doWrite(), so the
+        // payload buffers are queued as they are.
+        if (data.length > 0) {
+            _writeQueue.add(data);
+        }
         if  (close) {
             _writeQueue.add(new ByteBuffer[0]);
         }
@@ -369,10 +375,7 @@ public class Link {
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            doWrite(ch, data, _sslEngine, _bufferPool);
         }
         return false;
     }
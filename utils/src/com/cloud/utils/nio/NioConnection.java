@@ -60,6 +60,7 @@ public abstract class NioConnection implements Runnable {
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
+    protected BufferPool _bufferPool;
     
     public NioConnection(String name, int port, int workers, HandlerFactory factory) {
         _name = name;
@@ -68,6 +69,7 @@ public abstract class NioConnection implements Runnable {
         _selector = null;
         _port = port;
         _factory = factory;
+        _bufferPool = new BufferPool(name, true);
         _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
     }
 
@@ -88,6 +90,9 @@ public abstract class NioConnection implements Runnable {
     }
 
     public void stop() {
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Stopping " + _name + " with " + _bufferPool);
+        }
     	_executor.shutdown();
         _isRunning = false;
         if (_thread != null) {
@@ -103,6 +108,14 @@ public abstract class NioConnection implements Runnable {
     	return _isStartup;
     }
     
+    /**
+     * @return the pool that the links of this connection draw their read
+     *         and SSL packet buffers from.
+     */
+    public BufferPool getBufferPool() {
+        return _bufferPool;
+    }
+    
     @Override
     public void run() {
     	synchronized(_thread) {
@@ -0,0 +1,55 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils;
+
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram(new long[] { 10, 100, 1000 });
+        histogram.record(0);
+        histogram.record(10);
+        histogram.record(11);
+        histogram.record(999);
+        histogram.record(5000);
+
+        List<Map<String, String>> buckets = histogram.getBuckets();
+        assertEquals(4, buckets.size());
+        assertEquals("10", buckets.get(0).get("le"));
+        assertEquals("2", buckets.get(0).get("count"));
+        assertEquals("1", buckets.get(1).get("count"));
+        assertEquals("1", buckets.get(2).get("count"));
+        assertEquals("+Inf", buckets.get(3).get("le"));
+        assertEquals("1", buckets.get(3).get("count"));
+
+        assertEquals(5, histogram.getCount());
+        assertEquals(5000, histogram.getMax());
+        assertEquals(1204, histogram.getAverage());
+        assertEquals(100, histogram.getPercentile(50));
+        assertEquals(5000, histogram.getPercentile(99));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals("0", histogram.getBuckets().get(3).get("count"));
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TimeSeriesRingTest extends TestCase {
+
+    public void testWrapAround() {
+        TimeSeriesRing ring = new TimeSeriesRing(3, 2);
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.getLastTime());
+        assertNull(ring.getLast());
+
+        for (int i = 1; i <= 5; i++) {
+            ring.add(i * 10, i, -i);
+        }
+        assertEquals(3, ring.size());
+        assertEquals(50, ring.getLastTime());
+        assertEquals(5.0, ring.getLast().getValue(0));
+
+        List<TimeSeriesRing.Sample> samples = ring.getSamples(0);
+        assertEquals(3, samples.size());
+        assertEquals(30, samples.get(0).getTime());
+        assertEquals(3.0, samples.get(0).getValue(0));
+        assertEquals(-3.0, samples.get(0).getValue(1));
+        assertEquals(50, samples.get(2).getTime());
+
+        samples = ring.getSamples(40);
+        assertEquals(1, samples.size());
+        assertEquals(-5.0, samples.get(0).getValue(1));
+    }
+}
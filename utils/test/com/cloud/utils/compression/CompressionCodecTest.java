@@ -0,0 +1,130 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class CompressionCodecTest extends TestCase {
+
+    public void testRoundTrips() {
+        byte[][] inputs = new byte[][] { new byte[0], "short".getBytes(), text(100000), random(70000), runs(200000) };
+        CompressionCodec[] codecs = new CompressionCodec[] { CompressionCodecs.GZIP, CompressionCodecs.DEFLATE, CompressionCodecs.LZ };
+        for (CompressionCodec codec : codecs) {
+            assertSame(codec, CompressionCodecs.get(codec.getId()));
+            assertSame(codec, CompressionCodecs.get(codec.getName()));
+            for (byte[] input : inputs) {
+                ByteBuffer[] compressed = codec.compress(split(input));
+                byte[] flat = flatten(compressed);
+                ByteBuffer output = codec.decompress(ByteBuffer.wrap(flat), input.length);
+                assertEquals(codec.getName(), input.length, output.remaining());
+                byte[] result = new byte[output.remaining()];
+                output.get(result);
+                assertTrue(codec.getName(), Arrays.equals(input, result));
+
+                // the size on the wire is only a hint.
+                output = codec.decompress(ByteBuffer.wrap(flat), 0);
+                assertEquals(codec.getName(), input.length, output.remaining());
+            }
+        }
+    }
+
+    public void testGzipCompatibility() throws Exception {
+        byte[] input = text(50000);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(input);
+        out.close();
+        ByteBuffer output = CompressionCodecs.GZIP.decompress(ByteBuffer.wrap(bytes.toByteArray()), input.length);
+        assertEquals(input.length, output.remaining());
+
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(flatten(CompressionCodecs.GZIP.compress(split(input)))));
+        byte[] result = new byte[input.length];
+        int read = 0;
+        int n;
+        while ((n = in.read(result, read, result.length - read)) > 0) {
+            read += n;
+        }
+        assertEquals(input.length, read);
+        assertEquals(-1, in.read());
+        assertTrue(Arrays.equals(input, result));
+    }
+
+    public void testCorruptData() {
+        byte[] compressed = flatten(CompressionCodecs.GZIP.compress(split(text(20000))));
+        compressed[compressed.length - 6] ^= 0x55;
+        try {
+            CompressionCodecs.GZIP.decompress(ByteBuffer.wrap(compressed), 20000);
+            fail("Corrupted data should not decompress");
+        } catch (CloudRuntimeException e) {
+        }
+
+        compressed = flatten(CompressionCodecs.LZ.compress(split(text(20000))));
+        try {
+            CompressionCodecs.LZ.decompress(ByteBuffer.wrap(compressed, 0, compressed.length / 2), 20000);
+            fail("Truncated data should not decompress");
+        } catch (CloudRuntimeException e) {
+        }
+    }
+
+    protected static ByteBuffer[] split(byte[] input) {
+        int half = input.length / 2;
+        return new ByteBuffer[] { ByteBuffer.wrap(input, 0, half).slice(), ByteBuffer.wrap(input, half, input.length - half) };
+    }
+
+    protected static byte[] flatten(ByteBuffer[] buffers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return out.toByteArray();
+    }
+
+    protected static byte[] text(int size) {
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(1);
+        while (sb.length() < size) {
+            sb.append("{\"vmName\":\"i-2-").append(random.nextInt(1000)).append("-VM\",\"cidr\":\"10.1.").append(random.nextInt(255)).append(".0/24\"},");
+        }
+        return sb.substring(0, size).getBytes();
+    }
+
+    protected static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(2).nextBytes(bytes);
+        return bytes;
+    }
+
+    protected static byte[] runs(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte)(i / 1000);
+        }
+        return bytes;
+    }
+}
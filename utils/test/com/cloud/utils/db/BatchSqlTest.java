@@ -0,0 +1,60 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.CacheInvalidationBusTest.CacheTestVO;
+
+public class BatchSqlTest extends TestCase {
+    public void testMultiRowInsert() {
+        List<Pair<String, Attribute[]>> inserts = new SqlGenerator(CacheTestVO.class).buildInsertSqls();
+        assertEquals(1, inserts.size());
+        Pair<String, Attribute[]> insert = inserts.get(0);
+        assertEquals("the identity column is left to the database", 2, insert.second().length);
+
+        assertEquals(insert.first(), SqlGenerator.buildMultiRowInsertSql(insert.first(), 2, 1).toString());
+        String sql = SqlGenerator.buildMultiRowInsertSql(insert.first(), 2, 3).toString();
+        assertEquals(insert.first() + ", (?, ?), (?, ?)", sql);
+        assertEquals(6, sql.replaceAll("[^?]", "").length());
+    }
+
+    public void testUpsert() {
+        Pair<String, Attribute[]> insert = new SqlGenerator(CacheTestVO.class).buildInsertSqls().get(0);
+        String sql = SqlGenerator.buildUpsertSql(SqlGenerator.buildMultiRowInsertSql(insert.first(), 2, 2), insert.second()).toString();
+        assertTrue(sql, sql.endsWith(" ON DUPLICATE KEY UPDATE state=VALUES(state), host_id=VALUES(host_id)"));
+        assertFalse("the id is never overwritten", sql.contains("id=VALUES(id)"));
+    }
+
+    public void testStatistics() {
+        BatchStatistics stats = new BatchStatistics("cache_test");
+        assertEquals("-", stats.getRowsPerRoundTrip());
+        stats.recordInsert(100);
+        stats.recordInsert(20);
+        stats.recordUpdate(30);
+        assertEquals(2, stats.getInsertRoundTrips());
+        assertEquals(120, stats.getInsertedRows());
+        assertEquals("50.00", stats.getRowsPerRoundTrip());
+        stats.resetStatistics();
+        assertEquals(0, stats.getInsertedRows());
+        assertEquals("-", stats.getRowsPerRoundTrip());
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class BatchWriterTest extends TestCase {
+    public void testConcurrentWritersShareBatches() throws Exception {
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger maxBatch = new AtomicInteger();
+        final BatchWriter<Integer> writer = new BatchWriter<Integer>(10) {
+            @Override
+            protected void write(List<Integer> items) throws Exception {
+                if (items.size() > maxBatch.get()) {
+                    maxBatch.set(items.size());
+                }
+                Thread.sleep(20);
+                written.addAll(items);
+            }
+        };
+
+        final int threads = 40;
+        final List<Integer> returned = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int item = i;
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    writer.write(item);
+                    assertTrue("returned before its item was written", written.contains(item));
+                    returned.add(item);
+                }
+            };
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join(10000);
+        }
+
+        assertEquals(threads, returned.size());
+        assertEquals(threads, written.size());
+        assertEquals(threads, writer.getItems());
+        assertTrue("writes weren't batched: " + writer.getBatches(), writer.getBatches() < threads);
+        assertTrue(maxBatch.get() <= 10);
+    }
+
+    public void testFailureReachesTheCaller() {
+        BatchWriter<String> writer = new BatchWriter<String>(10) {
+            @Override
+            protected void write(List<String> items) throws Exception {
+                if (items.contains("bad")) {
+                    throw new Exception("bad item");
+                }
+            }
+        };
+
+        writer.write("good");
+        try {
+            writer.write("bad");
+            fail("the failure should have been thrown");
+        } catch (CloudRuntimeException e) {
+            assertEquals("bad item", e.getCause().getMessage());
+        }
+        writer.write("good again");
+        assertEquals(1, writer.getFailures());
+        assertEquals(2, writer.getBatches());
+    }
+}
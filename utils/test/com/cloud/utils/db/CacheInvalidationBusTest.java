@@ -0,0 +1,276 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import junit.framework.TestCase;
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+
+public class CacheInvalidationBusTest extends TestCase {
+    @Entity
+    @Table(name="cache_test")
+    public static class CacheTestVO {
+        @Id
+        @GeneratedValue(strategy=GenerationType.IDENTITY)
+        long id;
+
+        @Column(name="state")
+        String state;
+
+        @Column(name="host_id")
+        Long hostId;
+
+        public long getId() {
+            return id;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public Long getHostId() {
+            return hostId;
+        }
+    }
+
+    public static class CacheTestDao extends GenericDaoBase<CacheTestVO, Long> {
+        protected CacheTestDao() {
+            _cache = new Cache("CacheTestDao" + System.nanoTime(), 100, false, true, 0, 0);
+            _cache.initialise();
+        }
+    }
+
+    @Entity
+    @Table(name="state_test")
+    public static class StateTestVO {
+        @Id
+        @GeneratedValue(strategy=GenerationType.IDENTITY)
+        long id;
+
+        @Column(name="updated")
+        long updated;
+
+        public long getUpdated() {
+            return updated;
+        }
+
+        public void incrUpdated() {
+            updated++;
+        }
+    }
+
+    public static class StateTestDao extends GenericDaoBase<StateTestVO, Long> {
+        protected StateTestDao() {
+            _cache = new Cache("StateTestDao" + System.nanoTime(), 100, false, true, 0, 0);
+            _cache.initialise();
+        }
+    }
+
+    protected static class RecordingPublisher implements CacheInvalidationBus.Publisher {
+        List<CacheInvalidationBus.Batch> batches = new ArrayList<CacheInvalidationBus.Batch>();
+
+        @Override
+        public void publish(CacheInvalidationBus.Batch batch) {
+            batches.add(batch);
+        }
+    }
+
+    public void testIdValues() {
+        CacheTestDao dao = new CacheTestDao();
+
+        SearchBuilder<CacheTestVO> sb = dao.createSearchBuilder();
+        sb.and("state", sb.entity().getState(), SearchCriteria.Op.EQ);
+        sb.and("id", sb.entity().getId(), SearchCriteria.Op.EQ);
+        sb.and().op("nullhost", sb.entity().getHostId(), SearchCriteria.Op.NULL);
+        sb.or("host", sb.entity().getHostId(), SearchCriteria.Op.EQ);
+        sb.closeParen();
+        sb.done();
+        SearchCriteria<CacheTestVO> sc = sb.create();
+        sc.setParameters("state", "Up");
+        sc.setParameters("id", 5L);
+        sc.setParameters("host", 3L);
+        assertEquals(Arrays.asList(new Object[] { 5L }), sc.getIdValues());
+
+        sb = dao.createSearchBuilder();
+        sb.and("state", sb.entity().getState(), SearchCriteria.Op.EQ);
+        sb.or("ids", sb.entity().getId(), SearchCriteria.Op.IN);
+        sb.done();
+        sc = sb.create();
+        sc.setParameters("state", "Up");
+        sc.setParameters("ids", 1L, 2L);
+        assertNull("an OR'ed id doesn't limit anything", sc.getIdValues());
+
+        sc = sb.create();
+        sc.setParameters("ids", 1L, 2L);
+        assertEquals(Arrays.asList(new Object[] { 1L, 2L }), sc.getIdValues());
+
+        sc = sb.create();
+        sc.setParameters("state", "Up");
+        assertNull(sc.getIdValues());
+    }
+
+    public void testBatching() {
+        CacheInvalidationBus bus = new CacheInvalidationBus();
+        RecordingPublisher publisher = new RecordingPublisher();
+        bus.start("1", publisher, 60000);
+        try {
+            bus.evict("host", Arrays.asList(new Object[] { 1L, 2L }));
+            bus.evict("host", Arrays.asList(new Object[] { 2L, 3L }));
+            bus.invalidate(new String[] { "host", "volumes" });
+            bus.evict("vm_instance", null);
+            bus.evict("vm_instance", Arrays.asList(new Object[] { 4L }));
+            assertEquals(4, bus.getPendingCount());
+
+            bus.flush();
+            assertEquals(1, publisher.batches.size());
+            CacheInvalidationBus.Batch batch = publisher.batches.get(0);
+            assertEquals("1", batch.getOrigin());
+            assertEquals(1, batch.getSeq());
+            assertEquals(Arrays.asList(new String[] { "1", "2", "3" }), batch.getIds().get("host"));
+            assertEquals(0, batch.getIds().get("volumes").size());
+            assertEquals(Arrays.asList(new String[] { "vm_instance" }), batch.getFlushes());
+            assertEquals(0, bus.getPendingCount());
+
+            bus.flush();
+            assertEquals("nothing to send", 1, publisher.batches.size());
+
+            List<Object> ids = new ArrayList<Object>();
+            for (long i = 0; i <= CacheInvalidationBus.MAX_IDS_PER_TABLE; i++) {
+                ids.add(i);
+            }
+            bus.evict("host", ids);
+            bus.flush();
+            batch = publisher.batches.get(1);
+            assertEquals(2, batch.getSeq());
+            assertNull(batch.getIds().get("host"));
+            assertEquals(Arrays.asList(new String[] { "host" }), batch.getFlushes());
+            assertEquals(2, bus.getBatchesSent());
+        } finally {
+            bus.stop();
+        }
+
+        bus.evict("host", Arrays.asList(new Object[] { 1L }));
+        assertEquals("a stopped bus doesn't collect anything", 0, bus.getPendingCount());
+    }
+
+    public void testReceive() {
+        CacheTestDao dao = new CacheTestDao();
+        for (long i = 1; i <= 4; i++) {
+            dao._cache.put(new Element(i, new CacheTestVO()));
+        }
+        long version = QueryCache.getVersions(new String[] { "cache_test" })[0];
+
+        CacheInvalidationBus bus = new CacheInvalidationBus();
+        Map<String, List<String>> ids = new HashMap<String, List<String>>();
+        ids.put("cache_test", Arrays.asList(new String[] { "1", "2" }));
+        bus.receive(new CacheInvalidationBus.Batch("2", 1, System.currentTimeMillis() - 50, ids, new ArrayList<String>()));
+
+        assertNull(dao._cache.get(1L));
+        assertNull(dao._cache.get(2L));
+        assertNotNull(dao._cache.get(3L));
+        assertTrue(QueryCache.getVersions(new String[] { "cache_test" })[0] > version);
+
+        Map<String, String> row = bus.getPeerLag().get(0);
+        assertEquals("2", row.get("peer"));
+        assertEquals("1", row.get("batchesReceived"));
+        assertTrue(Long.parseLong(row.get("lastLagMs")) >= 50);
+
+        // seq 2 never showed up so everything cached is suspect.
+        bus.receive(new CacheInvalidationBus.Batch("2", 3, System.currentTimeMillis(), new HashMap<String, List<String>>(), new ArrayList<String>()));
+        assertNull(dao._cache.get(3L));
+        assertNull(dao._cache.get(4L));
+        assertEquals("1", bus.getPeerLag().get(0).get("sequenceGaps"));
+        assertEquals(2, bus.getBatchesReceived());
+    }
+
+    public void testLocalEviction() {
+        CacheTestDao dao = new CacheTestDao();
+        CacheTestDao other = new CacheTestDao();
+        dao._cache.put(new Element(7L, new CacheTestVO()));
+        other._cache.put(new Element(7L, new CacheTestVO()));
+        other._cache.put(new Element(8L, new CacheTestVO()));
+
+        GenericDaoBase.evictFromLocalCaches("cache_test", Arrays.asList(new Object[] { "7" }));
+        assertNull(dao._cache.get(7L));
+        assertNull(other._cache.get(7L));
+        assertNotNull(other._cache.get(8L));
+
+        GenericDaoBase.evictFromLocalCaches("cache_test", null);
+        assertNull(other._cache.get(8L));
+    }
+
+    public void testConcurrentStateChanges() throws Exception {
+        final StateTestDao dao = new StateTestDao();
+        StateTestVO vo = new StateTestVO();
+        vo.id = 9;
+        vo.updated = 5;
+        dao.putInCache(vo);
+        vo.incrUpdated();
+
+        // What updateState() does with the vo: remember the counter for the optimistic check and bump it.
+        final int threads = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final long[] seen = new long[threads];
+        final StateTestVO[] vos = new StateTestVO[threads];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                        StateTestVO mine = dao.findById(9L);
+                        seen[index] = mine.getUpdated();
+                        mine.incrUpdated();
+                        vos[index] = mine;
+                    } catch (Exception e) {
+                        seen[index] = -1;
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join(10000);
+        }
+
+        for (int i = 0; i < threads; i++) {
+            assertEquals("every state change has to start from what was read", 5, seen[i]);
+            assertEquals(6, vos[i].getUpdated());
+            for (int j = 0; j < i; j++) {
+                assertNotSame(vos[i], vos[j]);
+            }
+        }
+        assertEquals("the cached entity must not change", 5, dao.findById(9L).getUpdated());
+    }
+}
@@ -75,4 +75,32 @@ public class Merovingian2Test extends TestCase {
         Assert.assertTrue(result);
     }
     
+    @Test
+    public void testWaiterIsWokenOnRelease() throws Exception {
+        final String key = "contended" + 1234;
+        Assert.assertTrue(_lockMaster.acquire(key, 5));
+        
+        final long[] waited = new long[] { -1 };
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                if (_lockMaster.acquire(key, 30)) {
+                    waited[0] = System.currentTimeMillis() - start;
+                    _lockMaster.release(key);
+                }
+            }
+        }, "Waiter");
+        waiter.start();
+        
+        Thread.sleep(500);
+        Assert.assertEquals(1, _lockMaster.getWaitingThreads());
+        Assert.assertTrue(_lockMaster.release(key));
+        waiter.join(10000);
+        
+        s_logger.info("Waiter got the lock after " + waited[0] + " ms: " + _lockMaster.getWaitTimeSummary());
+        Assert.assertTrue("waiter should not wait for the poll interval", waited[0] >= 0 && waited[0] < 2500);
+        Assert.assertTrue(_lockMaster.getLocalWakeups() >= 1);
+    }
+    
 }
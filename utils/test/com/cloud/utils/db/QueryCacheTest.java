@@ -0,0 +1,231 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+import net.sf.ehcache.Cache;
+
+public class QueryCacheTest extends TestCase {
+    @Entity
+    @Table(name="replica_test")
+    public static class ReplicaTestVO {
+        @Id
+        @Column(name="id")
+        long id;
+
+        @Column(name="name")
+        String name;
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    public static class ReplicaTestDao extends GenericDaoBase<ReplicaTestVO, Long> {
+        protected ReplicaTestDao() {
+            _cache = new Cache("ReplicaTestDao" + System.nanoTime(), 100, false, true, 0, 0);
+            _cache.initialise();
+            _queryCache = new QueryCache("ReplicaTestDao", 10, 60, 60);
+        }
+    }
+
+    /**
+     * A replica that still has the row as it was before the write: every
+     * select returns the rows it was given.
+     */
+    protected static class LaggingReplica implements InvocationHandler {
+        final Object[][] _rows;
+        int _row = -1;
+        Object _last;
+
+        LaggingReplica(Object[][] rows) {
+            _rows = rows;
+        }
+
+        DataSource getDataSource() {
+            return (DataSource)proxy(DataSource.class);
+        }
+
+        Object proxy(Class<?> type) {
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getConnection")) {
+                return proxy(Connection.class);
+            } else if (name.equals("prepareStatement")) {
+                return proxy(PreparedStatement.class);
+            } else if (name.equals("executeQuery")) {
+                _row = -1;
+                return proxy(ResultSet.class);
+            } else if (name.equals("getMetaData")) {
+                return proxy(ResultSetMetaData.class);
+            } else if (name.equals("next")) {
+                return ++_row < _rows.length;
+            } else if (name.equals("getColumnCount")) {
+                return 2;
+            } else if (name.equals("getTableName")) {
+                return "replica_test";
+            } else if (name.equals("getColumnName") || name.equals("getColumnLabel")) {
+                return ((Integer)args[0]).intValue() == 1 ? "id" : "name";
+            } else if (name.equals("getLong")) {
+                _last = _rows[_row][(Integer)args[0] - 1];
+                return _last == null ? 0L : ((Number)_last).longValue();
+            } else if (name.equals("getBytes")) {
+                _last = _rows[_row][(Integer)args[0] - 1];
+                return _last == null ? null : _last.toString().getBytes("UTF-8");
+            } else if (name.equals("wasNull")) {
+                return _last == null;
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+
+    private static final String SQL = "SELECT host.id FROM host WHERE host.data_center_id = ? AND host.status IN (?)";
+    private static final String[] TABLES = new String[] { "host", "op_host" };
+
+    public void testHitAndInvalidation() {
+        QueryCache cache = new QueryCache("test", 10, 60, 60);
+        Object[] params = new Object[] { 1L, new Object[] { "Up", "Alert" } };
+        assertNull(cache.get(SQL, params));
+
+        long[] versions = QueryCache.getVersions(TABLES);
+        cache.put(SQL, params, TABLES, versions, Arrays.asList(1L, 2L));
+
+        List<Long> result = cache.get(SQL, new Object[] { 1L, new Object[] { "Up", "Alert" } });
+        assertEquals(Arrays.asList(1L, 2L), result);
+        result.add(3L);
+        assertEquals("callers get their own copy", 2, cache.<Long>get(SQL, params).size());
+        assertNull(cache.get(SQL, new Object[] { 2L, new Object[] { "Up", "Alert" } }));
+        assertEquals(2, cache.getHits());
+
+        QueryCache.invalidate(new String[] { "op_host" });
+        assertNull(cache.get(SQL, params));
+        assertEquals(1, cache.getInvalidations());
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testWriteDuringRead() {
+        QueryCache cache = new QueryCache("test", 10, 60, 60);
+        Object[] params = new Object[] { 5L };
+        long[] versions = QueryCache.getVersions(TABLES);
+        QueryCache.invalidate(TABLES);
+        cache.put(SQL, params, TABLES, versions, Arrays.asList(1L));
+        assertNull(cache.get(SQL, params));
+    }
+
+    public void testNegativeResults() {
+        QueryCache cache = new QueryCache("test", 10, 60, 60);
+        Object[] params = new Object[] { 7L };
+        cache.put(SQL, params, TABLES, QueryCache.getVersions(TABLES), new ArrayList<Long>());
+        assertTrue(cache.get(SQL, params).isEmpty());
+        assertEquals(1, cache.getNegativeHits());
+        assertEquals(0, cache.getHits());
+
+        QueryCache noNegatives = new QueryCache("test", 10, 60, 0);
+        noNegatives.put(SQL, params, TABLES, QueryCache.getVersions(TABLES), new ArrayList<Long>());
+        assertNull(noNegatives.get(SQL, params));
+    }
+
+    public void testEviction() {
+        QueryCache cache = new QueryCache("test", 2, 60, 60);
+        long[] versions = QueryCache.getVersions(TABLES);
+        cache.put(SQL, new Object[] { 1L }, TABLES, versions, Arrays.asList(1L));
+        cache.put(SQL, new Object[] { 2L }, TABLES, versions, Arrays.asList(2L));
+        assertNotNull(cache.get(SQL, new Object[] { 1L }));
+        cache.put(SQL, new Object[] { 3L }, TABLES, versions, Arrays.asList(3L));
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        assertNull("least recently used goes first", cache.get(SQL, new Object[] { 2L }));
+        assertNotNull(cache.get(SQL, new Object[] { 1L }));
+    }
+
+    public void testReplicaReadsAreNotCached() throws Exception {
+        final ReplicaTestDao dao = new ReplicaTestDao();
+        LaggingReplica lagging = new LaggingReplica(new Object[][] { { 1L, "before" } });
+        List<ReplicaSet.Replica> replicas = new ArrayList<ReplicaSet.Replica>();
+        replicas.add(new ReplicaSet.Replica(new ConnectionPool("cloud-replica-lagging", null, lagging.getDataSource())));
+        ReplicaSet replicaSet = new ReplicaSet(replicas, 60000, 60000) {
+            @Override
+            protected long fetchLag(ReplicaSet.Replica replica) {
+                // it is behind, just not by enough to be taken out
+                return 0;
+            }
+        };
+        replicaSet.checkLag();
+        ReplicaSet previous = Transaction.setReplicaSet(replicaSet);
+        try {
+            // the row was changed and committed on the primary by this thread
+            QueryCache.invalidate(new String[] { "replica_test" });
+
+            final List<ReplicaTestVO> read = new ArrayList<ReplicaTestVO>();
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Transaction txn = Transaction.open("testReplicaReadsAreNotCached");
+                    try {
+                        read.addAll(dao.listAll());
+                    } finally {
+                        txn.close();
+                    }
+                }
+            }, "Reader");
+            reader.start();
+            reader.join(10000);
+
+            assertEquals(1, read.size());
+            assertEquals("the other thread reads from the replica", "before", read.get(0).getName());
+            assertEquals("what the replica returned must not be cached", 0, dao.getQueryCache().getSize());
+            assertNull(dao._cache.get(1L));
+        } finally {
+            Transaction.setReplicaSet(previous);
+        }
+    }
+}
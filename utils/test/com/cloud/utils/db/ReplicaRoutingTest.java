@@ -0,0 +1,125 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.dbcp.DriverManagerConnectionFactory;
+import org.apache.commons.dbcp.PoolableConnectionFactory;
+import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+/**
+ * Needs two MySQL instances on this machine: the primary from db.properties
+ * and a second one on the port given by -Dreplica.port (3307 by default)
+ * with the same cloud user.  They don't have to replicate; the lag of the
+ * second one is taken to be 0 and the tests tell them apart by @@port.
+ */
+public class ReplicaRoutingTest extends TestCase {
+    protected static final long CHECK_INTERVAL = 100;
+
+    int _replicaPort;
+    ReplicaSet _previous;
+    ReplicaSet _replicas;
+
+    @Override
+    protected void setUp() throws Exception {
+        _replicaPort = Integer.parseInt(System.getProperty("replica.port", "3307"));
+        GenericObjectPool pool = new GenericObjectPool(null, 5);
+        DriverManagerConnectionFactory factory = new DriverManagerConnectionFactory("jdbc:mysql://localhost:" + _replicaPort + "/cloud", "cloud", "cloud");
+        PoolableConnectionFactory poolableFactory = new PoolableConnectionFactory(factory, pool, null, null, true, true);
+        List<ReplicaSet.Replica> replicas = new ArrayList<ReplicaSet.Replica>();
+        replicas.add(new ReplicaSet.Replica(new ConnectionPool("cloud-replica-test", pool, new PoolingDataSource(poolableFactory.getPool()))));
+        _replicas = new ReplicaSet(replicas, 5000, CHECK_INTERVAL) {
+            @Override
+            protected long fetchLag(ReplicaSet.Replica replica) {
+                return 0;
+            }
+        };
+        _replicas.checkLag();
+        _previous = Transaction.setReplicaSet(_replicas);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Transaction.setReplicaSet(_previous);
+    }
+
+    protected int readPort(Transaction txn) throws Exception {
+        PreparedStatement pstmt = txn.prepareAutoCloseReadStatement("SELECT @@port");
+        ResultSet rs = pstmt.executeQuery();
+        assertTrue(rs.next());
+        return rs.getInt(1);
+    }
+
+    protected int primaryPort(Transaction txn) throws Exception {
+        PreparedStatement pstmt = txn.prepareAutoCloseStatement("SELECT @@port");
+        ResultSet rs = pstmt.executeQuery();
+        assertTrue(rs.next());
+        return rs.getInt(1);
+    }
+
+    public void testRouting() throws Exception {
+        Transaction txn = Transaction.open("testRouting");
+        try {
+            int primary = primaryPort(txn);
+            assertTrue("the two instances have to listen on different ports", primary != _replicaPort);
+            assertEquals(_replicaPort, readPort(txn));
+
+            txn.start();
+            assertEquals("within a DB transaction everything goes to the primary", primary, readPort(txn));
+            txn.prepareAutoCloseStatement("SELECT GET_LOCK('replica_routing_test', 0)").executeQuery();
+            txn.prepareAutoCloseStatement("DO RELEASE_LOCK('replica_routing_test')").execute();
+            txn.commit();
+
+            assertEquals("reads what it wrote from the primary", primary, readPort(txn));
+            txn.close();
+            txn = Transaction.open("testRouting");
+            assertEquals("still reads from the primary once the scope that wrote is closed", primary, readPort(txn));
+            Thread.sleep(ReplicaSet.LAG_RESOLUTION + 2 * CHECK_INTERVAL);
+            assertEquals("the replica has caught up", _replicaPort, readPort(txn));
+        } finally {
+            txn.close();
+        }
+    }
+
+    public void testReadOnly() throws Exception {
+        Transaction txn = Transaction.open("testReadOnly");
+        try {
+            txn.startReadOnly();
+            ResultSet rs = txn.prepareStatement("SELECT @@port").executeQuery();
+            assertTrue(rs.next());
+            assertEquals(_replicaPort, rs.getInt(1));
+            txn.endReadOnly();
+            assertTrue(primaryPort(txn) != _replicaPort);
+        } finally {
+            txn.close();
+        }
+
+        Map<String, String> row = Transaction.getConnectionPoolStatistics().get(2);
+        assertEquals("cloud-replica-test", row.get("pool"));
+        assertTrue(Long.parseLong(row.get("reads")) > 0);
+        assertEquals("0", row.get("lagMs"));
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ReplicaSetTest extends TestCase {
+    protected ReplicaSet.Replica replica(String name, long lag) {
+        ReplicaSet.Replica replica = new ReplicaSet.Replica(new ConnectionPool(name, null, null));
+        replica.setLag(lag);
+        return replica;
+    }
+
+    public void testPick() {
+        List<ReplicaSet.Replica> replicas = new ArrayList<ReplicaSet.Replica>();
+        ReplicaSet.Replica a = replica("a", 0);
+        ReplicaSet.Replica b = replica("b", 2000);
+        ReplicaSet.Replica c = replica("c", 10000);
+        ReplicaSet.Replica d = replica("d", -1);
+        replicas.add(a);
+        replicas.add(b);
+        replicas.add(c);
+        replicas.add(d);
+        ReplicaSet set = new ReplicaSet(replicas, 5000, 1000);
+
+        int picksOfA = 0;
+        for (int i = 0; i < 8; i++) {
+            ReplicaSet.Replica picked = set.pick(0);
+            assertTrue("too far behind or not replicating: " + picked, picked == a || picked == b);
+            if (picked == a) {
+                picksOfA++;
+            }
+        }
+        assertTrue("spread over both", picksOfA > 0 && picksOfA < 8);
+
+        a.setLag(-1);
+        b.setLag(6000);
+        assertNull("nothing usable so read from the primary", set.pick(0));
+    }
+
+    public void testReadYourWrites() {
+        List<ReplicaSet.Replica> replicas = new ArrayList<ReplicaSet.Replica>();
+        ReplicaSet.Replica a = replica("a", 0);
+        replicas.add(a);
+        ReplicaSet set = new ReplicaSet(replicas, 5000, 1000);
+
+        long now = System.currentTimeMillis();
+        assertNull("hasn't caught up with what was just written", set.pick(now));
+        assertSame(a, set.pick(now - ReplicaSet.LAG_RESOLUTION - 1100));
+
+        a.setLag(3000);
+        assertNull(set.pick(now - ReplicaSet.LAG_RESOLUTION - 1100));
+        assertSame(a, set.pick(now - 3000 - ReplicaSet.LAG_RESOLUTION - 1100));
+    }
+
+    public void testSelects() {
+        assertTrue(Transaction.isSelect("SELECT * FROM host WHERE id=?"));
+        assertTrue(Transaction.isSelect("  select count(*) from vm_instance"));
+        assertFalse(Transaction.isSelect("SELECT * FROM host WHERE id=? FOR UPDATE "));
+        assertFalse(Transaction.isSelect("SELECT * FROM host LOCK IN SHARE MODE"));
+        assertFalse(Transaction.isSelect("UPDATE host SET status=? WHERE id=?"));
+        assertFalse(Transaction.isSelect("INSERT INTO host_details (host_id, name, value) VALUES (?, ?, ?)"));
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.TableGenerator;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.Profiler;
+
+/**
+ * Times 200 deploys running at the same time, each taking a vm id, a volume
+ * id and two mac addresses from sequences whose rows are held for a few
+ * milliseconds per trip, with one value per trip against blocks of ten.  Run
+ * it with -Dbenchmark.roundtrip to try other database latencies.
+ */
+public class SequenceFetcherBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(SequenceFetcherBenchmark.class);
+
+    private static final int DEPLOYS = 200;
+    private static final int ROUNDS = Integer.getInteger("benchmark.iterations", 5);
+    private static final long ROUND_TRIP = Long.getLong("benchmark.roundtrip", 2);
+
+    public void testConcurrentDeploys() throws Exception {
+        TableGenerator single = SequenceFetcherTest.getGenerator("single");
+        TableGenerator block = SequenceFetcherTest.getGenerator("block");
+
+        SequenceFetcherTest.InMemorySequenceFetcher singles = new SequenceFetcherTest.InMemorySequenceFetcher(ROUND_TRIP);
+        SequenceFetcherTest.InMemorySequenceFetcher blocks = new SequenceFetcherTest.InMemorySequenceFetcher(ROUND_TRIP);
+        try {
+            long singleMs = measure(singles, single);
+            long blockMs = measure(blocks, block);
+            s_logger.info(ROUNDS + " rounds of " + DEPLOYS + " concurrent deploys with " + ROUND_TRIP + "ms per trip: " + singleMs + " ms and "
+                    + singles.getFetchCount() + " trips one value at a time, " + blockMs + " ms and " + blocks.getFetchCount() + " trips in blocks of "
+                    + block.allocationSize());
+            assertTrue(blocks.getFetchCount() < singles.getFetchCount());
+        } finally {
+            singles.shutdown();
+            blocks.shutdown();
+        }
+    }
+
+    protected long measure(SequenceFetcher fetcher, TableGenerator tg) throws Exception {
+        // warm up
+        deploy(fetcher, tg);
+
+        Profiler profiler = new Profiler();
+        profiler.start();
+        for (int i = 0; i < ROUNDS; i++) {
+            deploy(fetcher, tg);
+        }
+        profiler.stop();
+        return profiler.getDuration();
+    }
+
+    protected void deploy(final SequenceFetcher fetcher, final TableGenerator tg) throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[DEPLOYS];
+        for (int i = 0; i < DEPLOYS; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    // vm id, volume id, then a public and a private mac address
+                    Object[] keys = { "vm", "volume", 1L, 2L };
+                    for (Object key : keys) {
+                        if (fetcher.getNextSequence(Long.class, tg, key) == null) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+    }
+}
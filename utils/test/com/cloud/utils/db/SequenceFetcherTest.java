@@ -0,0 +1,157 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.persistence.TableGenerator;
+
+import junit.framework.TestCase;
+
+public class SequenceFetcherTest extends TestCase {
+    protected static class Sequences {
+        @TableGenerator(name="single_sq", table="sequence", pkColumnName="name", valueColumnName="value", pkColumnValue="single_seq", allocationSize=1)
+        long single;
+
+        @TableGenerator(name="block_sq", table="sequence", pkColumnName="name", valueColumnName="value", pkColumnValue="block_seq", allocationSize=10)
+        long block;
+
+        @TableGenerator(name="mac_address_sq", table="data_center", pkColumnName="id", valueColumnName="mac_address", allocationSize=10)
+        long macAddress;
+    }
+
+    public static TableGenerator getGenerator(String field) throws Exception {
+        return Sequences.class.getDeclaredField(field).getAnnotation(TableGenerator.class);
+    }
+
+    /**
+     * Keeps the sequence rows in memory.  Each fetch holds the row for roundTrip
+     * milliseconds, like SELECT ... FOR UPDATE does until the commit.
+     */
+    public static class InMemorySequenceFetcher extends SequenceFetcher {
+        final Map<String, long[]> _rows = new HashMap<String, long[]>();
+        final long _roundTrip;
+
+        public InMemorySequenceFetcher(long roundTrip) {
+            _roundTrip = roundTrip;
+        }
+
+        @Override
+        protected <T> Callable<T> createFetcher(final Class<T> clazz, final TableGenerator tg, final Object key, final int size) {
+            final long[] row;
+            synchronized (_rows) {
+                String name = tg.table() + ":" + (key == null ? tg.pkColumnValue() : key);
+                long[] existing = _rows.get(name);
+                if (existing == null) {
+                    existing = new long[] { 1 };
+                    _rows.put(name, existing);
+                }
+                row = existing;
+            }
+
+            return new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    synchronized (row) {
+                        if (_roundTrip > 0) {
+                            Thread.sleep(_roundTrip);
+                        }
+                        long value = row[0];
+                        row[0] += size;
+                        return clazz.cast(clazz == Long.class ? (Object)value : (Object)(int)value);
+                    }
+                }
+            };
+        }
+
+        public void shutdown() {
+            _executors.shutdownNow();
+        }
+    }
+
+    public void testSingleValues() throws Exception {
+        InMemorySequenceFetcher fetcher = new InMemorySequenceFetcher(0);
+        try {
+            TableGenerator tg = getGenerator("single");
+            assertEquals(Long.valueOf(1), fetcher.getNextSequence(Long.class, tg));
+            assertEquals(Long.valueOf(2), fetcher.getNextSequence(Long.class, tg));
+            assertEquals(2, fetcher.getFetchCount());
+        } finally {
+            fetcher.shutdown();
+        }
+    }
+
+    public void testBlocks() throws Exception {
+        InMemorySequenceFetcher fetcher = new InMemorySequenceFetcher(0);
+        try {
+            TableGenerator tg = getGenerator("block");
+            for (long i = 1; i <= 25; i++) {
+                assertEquals(Long.valueOf(i), fetcher.getNextSequence(Long.class, tg));
+            }
+            assertEquals("one trip per 10 values", 3, fetcher.getFetchCount());
+            assertEquals(Integer.valueOf(26), fetcher.getNextSequence(Integer.class, tg));
+
+            // keyed sequences each get their own blocks
+            TableGenerator mac = getGenerator("macAddress");
+            assertEquals(Long.valueOf(1), fetcher.getNextSequence(Long.class, mac, 1L));
+            assertEquals(Long.valueOf(1), fetcher.getNextSequence(Long.class, mac, 2L));
+            assertEquals(Long.valueOf(2), fetcher.getNextSequence(Long.class, mac, 1L));
+            assertEquals(5, fetcher.getFetchCount());
+            assertEquals(29, fetcher.getAllocationCount());
+        } finally {
+            fetcher.shutdown();
+        }
+    }
+
+    public void testConcurrentBlocks() throws Exception {
+        final InMemorySequenceFetcher fetcher = new InMemorySequenceFetcher(1);
+        final TableGenerator tg = getGenerator("block");
+        final List<Long> values = new CopyOnWriteArrayList<Long>();
+        Thread[] threads = new Thread[20];
+        try {
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 50; j++) {
+                            values.add(fetcher.getNextSequence(Long.class, tg));
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            fetcher.shutdown();
+        }
+
+        Set<Long> unique = new HashSet<Long>(values);
+        assertEquals(1000, values.size());
+        assertEquals(1000, unique.size());
+        assertFalse(unique.contains(null));
+        assertEquals(100, fetcher.getFetchCount());
+    }
+}
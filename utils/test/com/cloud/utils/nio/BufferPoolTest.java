@@ -0,0 +1,66 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase {
+
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool("test", false);
+        assertEquals(2048, pool.acquire(1).capacity());
+        assertEquals(2048, pool.acquire(2048).capacity());
+        assertEquals(4096, pool.acquire(2049).capacity());
+        assertEquals(32768, pool.acquire(18000).capacity());
+        assertEquals(200000, pool.acquire(200000).capacity());
+    }
+
+    public void testReuse() {
+        BufferPool pool = new BufferPool("test", true);
+        ByteBuffer buffer = pool.acquire(16000);
+        assertTrue(buffer.isDirect());
+        assertEquals(1, pool.getMisses());
+
+        buffer.put((byte)1);
+        pool.release(buffer);
+        assertEquals(1, pool.getFreeCount());
+
+        ByteBuffer reused = pool.acquire(10000);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getFreeCount());
+    }
+
+    public void testForeignBuffersAreDropped() {
+        BufferPool pool = new BufferPool("test", true, 1);
+        pool.release(ByteBuffer.allocate(4096));
+        pool.release(ByteBuffer.allocateDirect(3000));
+        pool.release(ByteBuffer.allocateDirect(1 << 20));
+        assertEquals(0, pool.getFreeCount());
+        assertEquals(3, pool.getDiscards());
+
+        pool.release(pool.acquire(4096));
+        pool.release(ByteBuffer.allocateDirect(4096));
+        assertEquals(1, pool.getFreeCount());
+        assertEquals(4, pool.getDiscards());
+    }
+}